@@ -0,0 +1,372 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads many objects of a {@link GlueStore} at once, one depth of their graph at a time: the
+ * records at a depth are read in one batch and decoded in parallel, and the references they
+ * hold form the next depth. The executor records are decoded on is shared by every store.
+ */
+final class BulkLoader {
+
+    /**
+     * Smallest number of records worth handing to another thread
+     */
+    private static final int MIN_RECORDS_PER_TASK = 16;
+
+    private static ExecutorService loadExecutor;
+    private static ExecutorService ownLoadExecutor;
+    private static volatile int loadParallelism = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Bulk load this thread is decoding records for, see {@link #current()}
+     */
+    private static final ThreadLocal<Load> bulkLoad = new ThreadLocal<>();
+
+    private final GlueStore store;
+    private final MemoryCache memoryCache;
+    private final Placeholders placeholders;
+    private final Expiry expiry;
+
+    BulkLoader(GlueStore store, MemoryCache memoryCache, Placeholders placeholders, Expiry expiry) {
+        this.store = store;
+        this.memoryCache = memoryCache;
+        this.placeholders = placeholders;
+        this.expiry = expiry;
+    }
+
+    /**
+     * See {@link GlueStore#setLoadExecutor(ExecutorService, int)}
+     */
+    static synchronized void setExecutor(ExecutorService executor, int parallelism) {
+        if (ownLoadExecutor != null) {
+            ownLoadExecutor.shutdown();
+            ownLoadExecutor = null;
+        }
+        loadExecutor = executor;
+        loadParallelism = Math.max(parallelism, 1);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (loadExecutor != null) return loadExecutor;
+
+        if (ownLoadExecutor == null) {
+            ownLoadExecutor = Executors.newFixedThreadPool(loadParallelism - 1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Glue-Load");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return ownLoadExecutor;
+    }
+
+    /**
+     * @return bulk load this thread is decoding records for, or null
+     */
+    static Load current() {
+        return bulkLoad.get();
+    }
+
+    /**
+     * A record to decode into an empty instance handed out by a bulk load
+     */
+    private static final class BulkRecord {
+        final String key;
+        final String modelName;
+        final Class cls;
+        final Pinnable shell;
+        final int depth;
+
+        byte[] data;
+        boolean loaded;
+
+        // Another record of the load holds the shell
+        boolean referenced;
+
+        // Instance another thread cached while this record was loading
+        Pinnable cached;
+
+        BulkRecord(String key, String modelName, Class cls, Pinnable shell, int depth) {
+            this.key = key;
+            this.modelName = modelName;
+            this.cls = cls;
+            this.shell = shell;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Objects handed out by a bulk load. Records are decoded on several threads, references
+     * are resolved one at a time under the lock of this object. Memory cache and placeholders
+     * are only read while records are decoded, and updated by the calling thread in between
+     */
+    final class Load {
+        private final HashMap<String, BulkRecord> records = new HashMap<>();
+        // Objects in memory which may still hold placeholders, by the depth they were reached at
+        private final IdentityHashMap<Pinnable, Integer> cached = new IdentityHashMap<>();
+
+        // Whether a placeholder was handed out, or an object in memory which holds one
+        private boolean partial;
+
+        // Records read before the load, see WarmUp.restoreSnapshot()
+        private Map<String, byte[]> preread;
+
+        // References found at the current depth, loaded at the next one
+        private ArrayList<BulkRecord> discovered = new ArrayList<>();
+        private int depth;
+
+        /**
+         * Find the object for a reference read from a record of this load
+         */
+        synchronized Pinnable resolve(String key, String modelName, Class declaredClass) {
+            BulkRecord record = records.get(key);
+            if (record != null) {
+                record.referenced = true;
+                return record.shell;
+            }
+
+            Class cls = store.referenceClass(modelName, declaredClass);
+            if (cls == null) {
+                return store.decodeUncached(key, declaredClass);
+            }
+            if (expiry.isExpired(key, modelName)) return null;
+
+            Pinnable pinnable = memoryCache.peek(key, modelName);
+            if (pinnable != null) {
+                if (memoryCache.isPartial(key, modelName) && !cached.containsKey(pinnable)) {
+                    cached.put(pinnable, depth + 1);
+                    partial = true;
+                }
+                return pinnable;
+            }
+
+            pinnable = placeholders.get(key);
+            if (pinnable == null) {
+                pinnable = (Pinnable) ClassMetadata.forClass(cls).newInstance();
+            }
+            if (pinnable == null) {
+                // No empty instance to hand out, decode the record now
+                return store.decodeUncached(key, cls);
+            }
+
+            record = new BulkRecord(key, modelName, cls, pinnable, depth + 1);
+            record.referenced = true;
+            records.put(key, record);
+            discovered.add(record);
+            return pinnable;
+        }
+
+        private void decode(List<BulkRecord> batch) {
+            bulkLoad.set(this);
+            try {
+                for (BulkRecord record : batch) {
+                    if (record.data == null) continue;
+
+                    Pinnable decoded = store.decode(record.data, record.cls, record.modelName);
+                    if (decoded != null) {
+                        GlueStore.copyFields(record.shell, decoded);
+                        record.loaded = true;
+                    }
+                }
+            } finally {
+                bulkLoad.remove();
+            }
+        }
+    }
+
+    /**
+     * Load objects by key
+     * @param keys internal keys, null ones are skipped
+     * @param maxDepth depth up to which relationships are loaded
+     * @return objects in the order of keys, without the ones which do not exist
+     */
+    ArrayList load(List<String> keys, Class cls, int maxDepth) {
+        return load(keys, cls, maxDepth, null);
+    }
+
+    /**
+     * @param preread records already read, by key, null to read every record from storage
+     */
+    ArrayList load(List<String> keys, Class cls, int maxDepth, Map<String, byte[]> preread) {
+        String modelName = store.getModelNameForClass(cls);
+        Load bulk = new Load();
+        bulk.preread = preread;
+        Pinnable[] found = new Pinnable[keys.size()];
+        ArrayList<BulkRecord> level = new ArrayList<>();
+
+        SecondaryIndex expiries = expiry.index(modelName);
+        long now = expiry.now();
+
+        for (int i = 0; i < keys.size(); i++) {
+            String key = keys.get(i);
+            if (key == null) continue;
+            if (Expiry.isExpired(expiries, key, now)) {
+                memoryCache.remove(key, modelName);
+                continue;
+            }
+
+            Pinnable pinnable = memoryCache.get(key, modelName);
+            if (pinnable != null) {
+                if (memoryCache.isPartial(key, modelName)) {
+                    bulk.cached.put(pinnable, 0);
+                }
+                found[i] = pinnable;
+                continue;
+            }
+
+            BulkRecord record = bulk.records.get(key);
+            if (record == null) {
+                pinnable = placeholders.get(key);
+                if (pinnable == null) {
+                    pinnable = (Pinnable) ClassMetadata.forClass(cls).newInstance();
+                }
+                if (pinnable == null) {
+                    // No empty instance to hand out, load the object on its own
+                    found[i] = store.getByInternalKey(key, cls, maxDepth);
+                    continue;
+                }
+
+                record = new BulkRecord(key, modelName, cls, pinnable, 0);
+                bulk.records.put(key, record);
+                level.add(record);
+            }
+            found[i] = record.shell;
+        }
+
+        for (int depth = 0; !level.isEmpty(); depth++) {
+            bulk.depth = depth;
+            decodeAll(bulk, level);
+
+            ArrayList<BulkRecord> next = bulk.discovered;
+            bulk.discovered = new ArrayList<>();
+
+            for (BulkRecord record : level) {
+                if (record.loaded) {
+                    placeholders.remove(record.key);
+                    record.cached = store.cacheRead(record.key, record.modelName, record.shell, record.data);
+                } else if (record.referenced) {
+                    // Another object holds the empty instance, keep it as a placeholder
+                    placeholders.add(record.key, record.shell);
+                    bulk.partial = true;
+                }
+            }
+
+            if (depth == maxDepth) {
+                for (BulkRecord record : next) {
+                    placeholders.add(record.key, record.shell);
+                    bulk.partial = true;
+                }
+                break;
+            }
+            level = next;
+        }
+
+        // Objects in memory may still hold placeholders from an earlier lazy load
+        for (Map.Entry<Pinnable, Integer> entry : bulk.cached.entrySet()) {
+            if (entry.getValue() < maxDepth) {
+                store.fetch(entry.getKey(), maxDepth - entry.getValue());
+            }
+        }
+
+        if (bulk.partial) {
+            store.markPartial(bulk.records.keySet());
+        }
+
+        ArrayList<Pinnable> results = new ArrayList<>();
+        for (int i = 0; i < found.length; i++) {
+            if (found[i] == null) continue;
+
+            BulkRecord record = bulk.records.get(keys.get(i));
+            if (record == null || record.shell != found[i]) {
+                results.add(found[i]);
+            } else if (record.loaded) {
+                results.add(record.cached != null ? record.cached : record.shell);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Read the records of a level in one batch, and decode them on the load executor
+     */
+    private void decodeAll(final Load bulk, List<BulkRecord> level) {
+        Map<String, byte[]> preread = bulk.preread;
+        ArrayList<String> keys = new ArrayList<>(level.size());
+        for (BulkRecord record : level) {
+            if (preread == null || !preread.containsKey(record.key)) {
+                keys.add(record.key);
+            }
+        }
+
+        Map<String, byte[]> values = keys.isEmpty()
+                ? Collections.<String, byte[]>emptyMap() : store.readRecords(keys);
+        for (BulkRecord record : level) {
+            record.data = preread != null && preread.containsKey(record.key)
+                    ? preread.get(record.key) : values.get(record.key);
+        }
+
+        int size = level.size();
+        int tasks = Math.min(loadParallelism, (size + MIN_RECORDS_PER_TASK - 1) / MIN_RECORDS_PER_TASK);
+        ArrayList<Future<?>> futures = new ArrayList<>();
+
+        if (tasks > 1) {
+            ExecutorService executor = getExecutor();
+            for (int task = 1; task < tasks; task++) {
+                final List<BulkRecord> batch = level.subList(size * task / tasks, size * (task + 1) / tasks);
+                try {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            bulk.decode(batch);
+                        }
+                    }));
+                } catch (RejectedExecutionException e) {
+                    // Executor is shut down, decode on this thread instead
+                    bulk.decode(batch);
+                }
+            }
+        }
+
+        // This thread takes the first share, then waits for the others
+        bulk.decode(level.subList(0, size / Math.max(tasks, 1)));
+
+        // Objects are only safe to use once every task is done, so keep waiting when interrupted
+        boolean interrupted = false;
+        Throwable failure = null;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // Fail as a decode on this thread would, rather than drop the batch
+                    if (failure == null) failure = e.getCause();
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+        if (failure instanceof Error) throw (Error) failure;
+        if (failure != null) throw new RuntimeException("Failed to decode records", failure);
+    }
+}
@@ -3,59 +3,185 @@ package me.thomasdao.glue;
 import android.content.Context;
 import android.content.SharedPreferences;
 
+import java.nio.charset.Charset;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by thomasdao on 16/12/15.
+ *
+ * Static entry point to the storage engine used by the default {@link GlueStore}. Defaults
+ * to a private SharedPreferences file, any other {@link StorageEngine} can be set with
+ * {@link #init(StorageEngine)}.
  */
 public class CacheHelper {
-    private static Context context;
-    private static final String PRIVATE_CACHE = "PRIVATE_CACHE";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String PRIVATE_CACHE = "PRIVATE_CACHE";
+
+    private static final Storage storage = new Storage(null);
 
     public static void init(Context ctx) {
-        context = ctx;
+        init(new SharedPreferencesEngine(ctx, PRIVATE_CACHE));
+    }
+
+    public static void init(StorageEngine storageEngine) {
+        storage.init(storageEngine);
+    }
+
+    static Storage storage() {
+        return storage;
     }
 
+    public static StorageEngine getEngine() {
+        return storage.getEngine();
+    }
+
+    /**
+     * @return preferences backing the cache, or null if another storage engine is used
+     */
     public static SharedPreferences getPrivateSharedPreference() {
-        return context.getSharedPreferences(PRIVATE_CACHE, Context.MODE_PRIVATE);
+        StorageEngine engine = storage.getEngine();
+        if (engine instanceof SharedPreferencesEngine) {
+            return ((SharedPreferencesEngine) engine).getSharedPreferences();
+        }
+        return null;
+    }
+
+    /************************************************************************************
+     * Write-behind
+     ************************************************************************************/
+
+    /**
+     * Queue writes in memory and persist them on a background thread. Queued writes are
+     * persisted once the oldest one is older than maxDelayMillis, or once maxPendingWrites
+     * keys are queued
+     * @param maxDelayMillis
+     * @param maxPendingWrites
+     */
+    public static void enableWriteBehind(long maxDelayMillis, int maxPendingWrites) {
+        storage.enableWriteBehind(maxDelayMillis, maxPendingWrites);
+    }
+
+    /**
+     * Persist queued writes and go back to writing on the caller's thread
+     * @throws RuntimeException if queued writes cannot be persisted, write-behind stays enabled
+     */
+    public static void disableWriteBehind() {
+        storage.disableWriteBehind();
+    }
+
+    public static boolean isWriteBehindEnabled() {
+        return storage.isWriteBehindEnabled();
     }
 
+    /**
+     * Start persisting queued writes now, without waiting for them
+     */
+    public static void flush() {
+        storage.flush();
+    }
+
+    /**
+     * Block until every write made before this call is on disk
+     * @param timeoutMillis maximum time to wait, 0 to wait forever
+     * @return true if all writes are durable, false on timeout
+     * @throws InterruptedException
+     * @throws RuntimeException if writing them failed, they stay queued and are retried
+     */
+    public static boolean awaitDurable(long timeoutMillis) throws InterruptedException {
+        return storage.awaitDurable(timeoutMillis);
+    }
+
+    /************************************************************************************
+     * Read and write
+     ************************************************************************************/
+
     public static void save(String key, String val) {
-        SharedPreferences preferences = getPrivateSharedPreference();
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(key, val);
-        editor.commit();
+        save(key, toBytes(val));
     }
 
+    public static void save(String key, byte[] val) {
+        storage.save(key, val);
+    }
+
+    /**
+     * @return value decoded as UTF-8 text, or null if key does not exist
+     */
     public static String getString(String key) {
-        SharedPreferences preferences = getPrivateSharedPreference();
-        return preferences.getString(key, null);
+        return toString(getBytes(key));
+    }
+
+    public static byte[] getBytes(String key) {
+        return storage.get(key);
+    }
+
+    /**
+     * Read several keys at once
+     * @param keys
+     * @return values by key, keys which do not exist are left out
+     */
+    public static Map<String, String> getStrings(Collection<String> keys) {
+        HashMap<String, String> values = new HashMap<>();
+        Map<String, byte[]> bytes = getBytes(keys);
+        for (String key : bytes.keySet()) {
+            values.put(key, toString(bytes.get(key)));
+        }
+        return values;
     }
 
+    /**
+     * Read several keys at once
+     * @param keys
+     * @return values by key, keys which do not exist are left out
+     */
+    public static Map<String, byte[]> getBytes(Collection<String> keys) {
+        return storage.get(keys);
+    }
+
+    private static byte[] toBytes(String val) {
+        return val == null ? null : val.getBytes(UTF_8);
+    }
+
+    private static String toString(byte[] val) {
+        return val == null ? null : new String(val, UTF_8);
+    }
+
+    public static Set<String> keys() {
+        return storage.keys();
+    }
 
     public static void save(HashMap<String, String> map) {
-        SharedPreferences preferences = getPrivateSharedPreference();
-        SharedPreferences.Editor editor = preferences.edit();
+        HashMap<String, byte[]> bytes = new HashMap<>();
         for (String key : map.keySet()) {
-            editor.putString(key, map.get(key));
+            bytes.put(key, toBytes(map.get(key)));
         }
-        editor.commit();
+        saveBytes(bytes);
+    }
+
+    /**
+     * Save a batch of values in a single write
+     * @param map values by key
+     */
+    public static void saveBytes(Map<String, byte[]> map) {
+        storage.saveBytes(map);
+    }
+
+    /**
+     * Save and delete values in a single write. Deletes are applied before puts
+     * @param puts values by key, may be empty
+     * @param deletes keys to remove, may be empty
+     */
+    public static void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        storage.write(puts, deletes);
     }
 
     public static void delete(Collection<String> keys) {
-        SharedPreferences preferences = getPrivateSharedPreference();
-        SharedPreferences.Editor editor = preferences.edit();
-        for (String key : keys) {
-            editor.remove(key);
-        }
-        editor.commit();
+        storage.delete(keys);
     }
 
     public static void clear() {
-        SharedPreferences preferences = getPrivateSharedPreference();
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.clear();
-        editor.commit();
+        storage.clear();
     }
 }
@@ -0,0 +1,76 @@
+package me.thomasdao.glue;
+
+/**
+ * Snapshot of memory cache counters, for the whole cache or for one model.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long rejections;
+    private final int size;
+    private final long weight;
+
+    CacheStats(long hits, long misses, long evictions, long rejections, int size, long weight) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.rejections = rejections;
+        this.size = size;
+        this.weight = weight;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of entries removed to make room for others
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return number of entries not admitted because they were less popular than the
+     * entry they would have evicted
+     */
+    public long getRejections() {
+        return rejections;
+    }
+
+    /**
+     * @return number of entries in memory
+     */
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * @return estimated weight of entries in memory
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public double getHitRatio() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", rejections=" + rejections +
+                ", size=" + size +
+                ", weight=" + weight +
+                '}';
+    }
+}
@@ -0,0 +1,131 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Changes to objects of one model since the last event of a listener. A pin or delete is
+ * delivered as a single event, and changes made while an event waits for delivery are merged
+ * into it, the last change of an object wins.
+ *
+ * Apply an event to objects shown so far: forget all of them if it is cleared, then remove
+ * the deleted ones and add or replace the saved ones.
+ */
+public class ChangeEvent {
+    private final String modelName;
+    private boolean cleared;
+    private final LinkedHashMap<String, Pinnable> saved = new LinkedHashMap<>();
+    private final LinkedHashSet<String> deleted = new LinkedHashSet<>();
+
+    ChangeEvent(String modelName) {
+        this.modelName = modelName;
+    }
+
+    public String getModelName() {
+        return modelName;
+    }
+
+    /**
+     * @return true if every object of the model was deleted, before the other changes
+     * of this event
+     */
+    public boolean isCleared() {
+        return cleared;
+    }
+
+    /**
+     * @return objects pinned, as they are in memory
+     */
+    public List<Pinnable> getSaved() {
+        return new ArrayList<>(saved.values());
+    }
+
+    /**
+     * @return uniques of the objects deleted. For a query, also objects which no longer
+     * match it
+     */
+    public Set<String> getDeleted() {
+        return Collections.unmodifiableSet(deleted);
+    }
+
+    public boolean isEmpty() {
+        return !cleared && saved.isEmpty() && deleted.isEmpty();
+    }
+
+    void save(String unique, Pinnable object) {
+        deleted.remove(unique);
+        saved.put(unique, object);
+    }
+
+    void delete(String unique) {
+        saved.remove(unique);
+        deleted.add(unique);
+    }
+
+    void clear() {
+        cleared = true;
+        saved.clear();
+        deleted.clear();
+    }
+
+    /**
+     * @return the changes of a single object
+     */
+    ChangeEvent forUnique(String unique) {
+        ChangeEvent event = new ChangeEvent(modelName);
+        event.cleared = cleared;
+        if (saved.containsKey(unique)) {
+            event.saved.put(unique, saved.get(unique));
+        } else if (deleted.contains(unique)) {
+            event.deleted.add(unique);
+        }
+        return event;
+    }
+
+    /**
+     * @return the changes seen by a query, where saved objects which do not match it are deleted
+     */
+    ChangeEvent forQuery(Query query) {
+        ChangeEvent event = new ChangeEvent(modelName);
+        event.cleared = cleared;
+        event.deleted.addAll(deleted);
+        for (Map.Entry<String, Pinnable> entry : saved.entrySet()) {
+            if (query.matches(entry.getValue())) {
+                event.saved.put(entry.getKey(), entry.getValue());
+            } else {
+                event.deleted.add(entry.getKey());
+            }
+        }
+        return event;
+    }
+
+    /**
+     * Add the changes of a later event
+     */
+    void merge(ChangeEvent later) {
+        if (later.cleared) {
+            clear();
+        }
+        for (String unique : later.deleted) {
+            delete(unique);
+        }
+        for (Map.Entry<String, Pinnable> entry : later.saved.entrySet()) {
+            save(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeEvent{" +
+                "modelName='" + modelName + '\'' +
+                ", cleared=" + cleared +
+                ", saved=" + saved.keySet() +
+                ", deleted=" + deleted +
+                '}';
+    }
+}
@@ -0,0 +1,9 @@
+package me.thomasdao.glue;
+
+/**
+ * Receives changes to the objects a listener observes, see {@link GlueStore#observe(Class, ChangeListener)}.
+ * Called on the change executor of the store, one event at a time for each listener.
+ */
+public interface ChangeListener {
+    void onChange(ChangeEvent event);
+}
@@ -0,0 +1,223 @@
+package me.thomasdao.glue;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Delivers the changes of a {@link GlueStore} to its listeners. The changes of a batch are
+ * published at once, and merged into the event a listener has pending, so a listener which
+ * falls behind gets fewer, larger events. A listener is never called from two threads at once.
+ */
+final class ChangeNotifier {
+
+    private static final class Observer {
+        final ChangeListener listener;
+        final String modelName;
+        final String unique;
+        final Query query;
+
+        // Guarded by the notifier
+        ChangeEvent pending;
+        boolean scheduled;
+
+        volatile boolean removed;
+
+        Observer(ChangeListener listener, String modelName, String unique, Query query) {
+            this.listener = listener;
+            this.modelName = modelName;
+            this.unique = unique;
+            this.query = query;
+        }
+    }
+
+    private final CopyOnWriteArrayList<Observer> observers = new CopyOnWriteArrayList<>();
+    private Executor executor;
+    private ExecutorService ownExecutor;
+
+    boolean hasObservers() {
+        return !observers.isEmpty();
+    }
+
+    /**
+     * @param unique null for every object of the model
+     * @param query null for every object of the model
+     */
+    void add(ChangeListener listener, String modelName, String unique, Query query) {
+        observers.add(new Observer(listener, modelName, unique, query));
+    }
+
+    void remove(ChangeListener listener) {
+        for (Observer observer : observers) {
+            if (observer.listener == listener) {
+                observer.removed = true;
+                observers.remove(observer);
+            }
+        }
+    }
+
+    /**
+     * @param executor null to deliver on a thread owned by the notifier
+     */
+    synchronized void setExecutor(Executor executor) {
+        if (ownExecutor != null) {
+            ownExecutor.shutdown();
+            ownExecutor = null;
+        }
+        this.executor = executor;
+    }
+
+    private synchronized Executor executor() {
+        if (executor != null) return executor;
+
+        if (ownExecutor == null) {
+            ownExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Glue-Changes");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return ownExecutor;
+    }
+
+    /************************************************************************************
+     * Publishing
+     ************************************************************************************/
+
+    /**
+     * @param objects objects written by a pin, by key
+     */
+    void saved(Map<String, Pinnable> objects) {
+        HashMap<String, ChangeEvent> changes = new HashMap<>();
+        for (Map.Entry<String, Pinnable> entry : objects.entrySet()) {
+            String key = entry.getKey();
+            change(changes, modelOf(key)).save(uniqueOf(key), entry.getValue());
+        }
+        publish(changes);
+    }
+
+    void deleted(String modelName, Collection<String> keys) {
+        ChangeEvent change = new ChangeEvent(modelName);
+        for (String key : keys) {
+            change.delete(uniqueOf(key));
+        }
+        publish(change);
+    }
+
+    void cleared(String modelName) {
+        ChangeEvent change = new ChangeEvent(modelName);
+        change.clear();
+        publish(change);
+    }
+
+    void clearedAll() {
+        HashSet<String> models = new HashSet<>();
+        for (Observer observer : observers) {
+            models.add(observer.modelName);
+        }
+
+        HashMap<String, ChangeEvent> changes = new HashMap<>();
+        for (String modelName : models) {
+            change(changes, modelName).clear();
+        }
+        publish(changes);
+    }
+
+    private static ChangeEvent change(Map<String, ChangeEvent> changes, String modelName) {
+        ChangeEvent change = changes.get(modelName);
+        if (change == null) {
+            change = new ChangeEvent(modelName);
+            changes.put(modelName, change);
+        }
+        return change;
+    }
+
+    private static String modelOf(String key) {
+        return key.substring(0, key.indexOf(':'));
+    }
+
+    private static String uniqueOf(String key) {
+        return key.substring(key.indexOf(':') + 1);
+    }
+
+    private void publish(ChangeEvent change) {
+        HashMap<String, ChangeEvent> changes = new HashMap<>();
+        changes.put(change.getModelName(), change);
+        publish(changes);
+    }
+
+    private void publish(Map<String, ChangeEvent> changes) {
+        for (final Observer observer : observers) {
+            ChangeEvent change = changes.get(observer.modelName);
+            if (change == null) continue;
+
+            ChangeEvent event = change;
+            if (observer.unique != null) {
+                event = change.forUnique(observer.unique);
+            } else if (observer.query != null) {
+                event = change.forQuery(observer.query);
+            }
+            if (event.isEmpty()) continue;
+
+            boolean schedule;
+            synchronized (this) {
+                if (observer.pending == null) {
+                    // Events are merged into later, keep the one shared by observers intact
+                    observer.pending = new ChangeEvent(event.getModelName());
+                }
+                observer.pending.merge(event);
+                schedule = !observer.scheduled;
+                observer.scheduled = true;
+            }
+
+            if (schedule) {
+                try {
+                    executor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            deliver(observer);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    e.printStackTrace();
+                    synchronized (this) {
+                        observer.scheduled = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Hand pending events to a listener until none is left
+     */
+    private void deliver(Observer observer) {
+        while (true) {
+            ChangeEvent event;
+            synchronized (this) {
+                event = observer.pending;
+                observer.pending = null;
+                if (event == null || observer.removed) {
+                    observer.scheduled = false;
+                    return;
+                }
+            }
+
+            try {
+                observer.listener.onChange(event);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package me.thomasdao.glue;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent fields of a Pinnable class, found by reflection once and cached for the life of
+ * the process. Fields declared by superclasses are included.
+ */
+final class ClassMetadata {
+
+    private static final ConcurrentHashMap<Class, ClassMetadata> REGISTRY = new ConcurrentHashMap<>();
+
+    /**
+     * A collection field, with whether its declared element type is known to be Pinnable
+     */
+    static final class CollectionField {
+        final Field field;
+        // False when the element type is raw or generic, elements are checked one by one
+        final boolean pinnableElements;
+
+        CollectionField(Field field, boolean pinnableElements) {
+            this.field = field;
+            this.pinnableElements = pinnableElements;
+        }
+    }
+
+    final Class type;
+
+    /**
+     * Fields holding a single Pinnable
+     */
+    final Field[] relationshipFields;
+
+    /**
+     * Fields holding a collection which may contain Pinnable objects
+     */
+    final CollectionField[] collectionFields;
+
+    /**
+     * Every instance field, copied by merge
+     */
+    final Field[] mergeableFields;
+
+    /**
+     * Fields annotated with {@link Indexed}
+     */
+    final Field[] indexedFields;
+
+    /**
+     * No-arg constructor, or null if the class has none
+     */
+    private final Constructor constructor;
+
+    static ClassMetadata forClass(Class cls) {
+        ClassMetadata metadata = REGISTRY.get(cls);
+        if (metadata == null) {
+            metadata = new ClassMetadata(cls);
+            ClassMetadata existing = REGISTRY.putIfAbsent(cls, metadata);
+            if (existing != null) {
+                metadata = existing;
+            }
+        }
+        return metadata;
+    }
+
+    private ClassMetadata(Class cls) {
+        type = cls;
+
+        Constructor noArg = null;
+        try {
+            noArg = cls.getDeclaredConstructor();
+            noArg.setAccessible(true);
+        } catch (Exception e) {
+            // Jackson may still create instances through a @JsonCreator
+        }
+        constructor = noArg;
+
+        ArrayList<Field> relationships = new ArrayList<>();
+        ArrayList<CollectionField> collections = new ArrayList<>();
+        ArrayList<Field> mergeable = new ArrayList<>();
+        ArrayList<Field> indexed = new ArrayList<>();
+
+        for (Class current = cls; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                // Do not consider static or compiler generated fields
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || field.isSynthetic()) {
+                    continue;
+                }
+
+                // Set field accessible once, to avoid exception on every access
+                field.setAccessible(true);
+                mergeable.add(field);
+
+                if (field.isAnnotationPresent(Indexed.class)) {
+                    indexed.add(field);
+                }
+
+                Class fieldType = field.getType();
+
+                // One to one relationship
+                if (Pinnable.class.isAssignableFrom(fieldType)) {
+                    relationships.add(field);
+                }
+
+                // One to many relationship
+                if (Collection.class.isAssignableFrom(fieldType)) {
+                    Class elementType = elementType(field);
+                    if (elementType == null) {
+                        collections.add(new CollectionField(field, false));
+                    } else if (Pinnable.class.isAssignableFrom(elementType)) {
+                        collections.add(new CollectionField(field, true));
+                    }
+                }
+            }
+        }
+
+        relationshipFields = relationships.toArray(new Field[relationships.size()]);
+        collectionFields = collections.toArray(new CollectionField[collections.size()]);
+        mergeableFields = mergeable.toArray(new Field[mergeable.size()]);
+        indexedFields = indexed.toArray(new Field[indexed.size()]);
+    }
+
+    /**
+     * @return declared element type of a collection field, or null if unknown
+     */
+    private static Class elementType(Field field) {
+        Type generic = field.getGenericType();
+        if (generic instanceof ParameterizedType) {
+            Type[] arguments = ((ParameterizedType) generic).getActualTypeArguments();
+            if (arguments.length == 1 && arguments[0] instanceof Class) {
+                return (Class) arguments[0];
+            }
+            if (arguments.length == 1 && arguments[0] instanceof ParameterizedType) {
+                Type raw = ((ParameterizedType) arguments[0]).getRawType();
+                if (raw instanceof Class) return (Class) raw;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return field with a name, or null if there is none
+     */
+    Field field(String name) {
+        for (Field field : mergeableFields) {
+            if (field.getName().equals(name)) return field;
+        }
+        return null;
+    }
+
+    /**
+     * @return indexed field with a name, or null if there is none
+     */
+    Field indexedField(String name) {
+        for (Field field : indexedFields) {
+            if (field.getName().equals(name)) return field;
+        }
+        return null;
+    }
+
+    /**
+     * @return a new empty instance, or null if the class has no no-arg constructor
+     */
+    Object newInstance() {
+        if (constructor == null) return null;
+
+        try {
+            return constructor.newInstance();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Add objects directly referenced by an object to a collection
+     * @param object instance of this class
+     * @param out
+     */
+    void collectRelationships(Object object, Collection<Pinnable> out) {
+        try {
+            for (Field field : relationshipFields) {
+                Object val = field.get(object);
+                if (val != null) {
+                    out.add((Pinnable) val);
+                }
+            }
+
+            for (CollectionField collectionField : collectionFields) {
+                Collection collection = (Collection) collectionField.field.get(object);
+                if (collection == null) continue;
+
+                for (Object item : collection) {
+                    if (item == null) continue;
+                    if (collectionField.pinnableElements || item instanceof Pinnable) {
+                        out.add((Pinnable) item);
+                    }
+                }
+            }
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Copy non null fields of second object to first object
+     * @param first
+     * @param second
+     */
+    void merge(Object first, Object second) {
+        for (Field field : mergeableFields) {
+            try {
+                Object val2 = field.get(second);
+                if (val2 != null) {
+                    field.set(first, val2);
+                }
+            } catch (IllegalAccessException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
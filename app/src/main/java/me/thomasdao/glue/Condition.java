@@ -0,0 +1,177 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * Condition on the value of a field in a {@link Query}. Values are compared as they are kept
+ * in a {@link SecondaryIndex}: a relationship by the key of the object it holds, a date by
+ * its time, numbers by value. Values are converted when the query runs, by its store.
+ *
+ * <pre>
+ * import static me.thomasdao.glue.Condition.*;
+ *
+ * Glue.query(Post.class).where("author", eq(user)).where("createdAt", gte(since))
+ * </pre>
+ */
+public final class Condition {
+
+    enum Operator {
+        EQ("="), NE("!="), GT(">"), GTE(">="), LT("<"), LTE("<="), IN("IN");
+
+        final String symbol;
+
+        Operator(String symbol) {
+            this.symbol = symbol;
+        }
+    }
+
+    final Operator operator;
+    final Object value;
+    final ArrayList<Object> values;
+
+    private Condition(Operator operator, Object value, ArrayList<Object> values) {
+        this.operator = operator;
+        this.value = value;
+        this.values = values;
+    }
+
+    private static Condition of(Operator operator, Object value) {
+        return new Condition(operator, value, null);
+    }
+
+    public static Condition eq(Object value) {
+        return of(Operator.EQ, value);
+    }
+
+    public static Condition ne(Object value) {
+        return of(Operator.NE, value);
+    }
+
+    public static Condition gt(Object value) {
+        return of(Operator.GT, value);
+    }
+
+    public static Condition gte(Object value) {
+        return of(Operator.GTE, value);
+    }
+
+    public static Condition lt(Object value) {
+        return of(Operator.LT, value);
+    }
+
+    public static Condition lte(Object value) {
+        return of(Operator.LTE, value);
+    }
+
+    public static Condition in(Collection<?> values) {
+        return new Condition(Operator.IN, null, new ArrayList<Object>(values));
+    }
+
+    /**
+     * @return this condition with its values as kept in an index, relationships are keyed by
+     * the active store
+     */
+    Condition normalize() {
+        if (values == null) {
+            return new Condition(operator, SecondaryIndex.normalize(value), null);
+        }
+
+        ArrayList<Object> normalized = new ArrayList<>(values.size());
+        for (Object candidate : values) {
+            normalized.add(SecondaryIndex.normalize(candidate));
+        }
+        return new Condition(operator, null, normalized);
+    }
+
+    /**
+     * @param fieldValue value of a field, as read from an object
+     * @return true if the value satisfies this normalized condition
+     */
+    boolean matches(Object fieldValue) {
+        Object normalized = SecondaryIndex.normalize(fieldValue);
+
+        switch (operator) {
+            case EQ:
+                return equal(normalized, value);
+            case NE:
+                return !equal(normalized, value);
+            case IN:
+                for (Object candidate : values) {
+                    if (equal(normalized, candidate)) return true;
+                }
+                return false;
+            default:
+                // Null is not ordered against other values
+                if (normalized == null || value == null) return false;
+
+                int compare = SecondaryIndex.ORDER.compare(normalized, value);
+                switch (operator) {
+                    case GT:
+                        return compare > 0;
+                    case GTE:
+                        return compare >= 0;
+                    case LT:
+                        return compare < 0;
+                    default:
+                        return compare <= 0;
+                }
+        }
+    }
+
+    private static boolean equal(Object first, Object second) {
+        if (first == null || second == null) return first == second;
+        return SecondaryIndex.ORDER.compare(first, second) == 0;
+    }
+
+    /**
+     * @return keys matching this condition, or null if the index cannot answer it
+     */
+    Collection<String> lookup(SecondaryIndex index) {
+        switch (operator) {
+            case EQ:
+                return value == null ? null : index.get(value);
+            case IN:
+                LinkedHashSet<String> keys = new LinkedHashSet<>();
+                for (Object candidate : values) {
+                    if (candidate == null) return null;
+                    keys.addAll(index.get(candidate));
+                }
+                return keys;
+            case NE:
+                return null;
+            default:
+                if (!index.sorted || value == null) return null;
+
+                switch (operator) {
+                    case GT:
+                        return index.getRange(value, false, null, false, false);
+                    case GTE:
+                        return index.getRange(value, true, null, false, false);
+                    case LT:
+                        return index.getRange(null, false, value, false, false);
+                    default:
+                        return index.getRange(null, false, value, true, false);
+                }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return operator.symbol + " " + (operator == Operator.IN ? format(values) : format(value));
+    }
+
+    private static String format(Object value) {
+        if (value instanceof String) return "\"" + value + "\"";
+        if (value instanceof Collection) {
+            StringBuilder builder = new StringBuilder("[");
+            for (Object item : (Collection) value) {
+                if (builder.length() > 1) builder.append(", ");
+                builder.append(format(item));
+            }
+            return builder.append("]").toString();
+        }
+        return String.valueOf(value);
+    }
+}
@@ -0,0 +1,70 @@
+package me.thomasdao.glue;
+
+import java.io.Closeable;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Objects of a model loaded one at a time, see {@link Glue#iterate(Class)} and
+ * {@link Glue#page(Class, int, int)}. Only the keys are held up front, each object is read
+ * when the cursor reaches it and keys whose object is gone are skipped.
+ *
+ * Not thread safe. Close a cursor to release its keys.
+ */
+public class Cursor<T extends Pinnable> implements Iterator<T>, Iterable<T>, Closeable {
+    private final GlueStore store;
+    private List<String> keys;
+    private final Class<T> cls;
+    private final int depth;
+
+    private int position;
+    private T next;
+
+    Cursor(GlueStore store, List<String> keys, Class<T> cls, int depth) {
+        this.store = store;
+        this.keys = keys;
+        this.cls = cls;
+        this.depth = depth;
+    }
+
+    /**
+     * @return number of keys in this cursor, an upper bound on the number of objects
+     */
+    public int size() {
+        return keys == null ? 0 : keys.size();
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == null && keys != null && position < keys.size()) {
+            next = cls.cast(store.getForCursor(keys.get(position++), cls, depth));
+        }
+        return next != null;
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+
+        T result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        keys = null;
+        next = null;
+    }
+}
@@ -0,0 +1,279 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * When the objects of a {@link GlueStore} expire. The time of each key is kept by model in a
+ * sorted {@link SecondaryIndex}, so expired keys are found without reading records, and the
+ * sweeper deletes them through the store as any other delete.
+ */
+final class Expiry {
+
+    /**
+     * Current time in milliseconds
+     */
+    interface Clock {
+        long currentTimeMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return System.currentTimeMillis();
+        }
+    };
+
+    private final GlueStore store;
+    private final Storage storage;
+    private final GlueMetrics metrics;
+
+    /**
+     * Classes of the models of the store, by model name
+     */
+    private final Map<String, Class> modelClasses;
+
+    /**
+     * When objects expire, by model name, see {@link #index(String)}
+     */
+    private final ConcurrentHashMap<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * Time to live of objects of each model in milliseconds, see {@link #setModelTtl(String, long)}
+     */
+    private final ConcurrentHashMap<String, Long> modelTtls = new ConcurrentHashMap<>();
+
+    /**
+     * Time objects expire against, see {@link #setClock(Clock)}
+     */
+    private volatile Clock clock = SYSTEM_CLOCK;
+
+    private ScheduledExecutorService sweeper;
+
+    Expiry(GlueStore store, Storage storage, GlueMetrics metrics, Map<String, Class> modelClasses) {
+        this.store = store;
+        this.storage = storage;
+        this.metrics = metrics;
+        this.modelClasses = modelClasses;
+    }
+
+    /**
+     * @param ttlMillis time to live in milliseconds, 0 for ever
+     */
+    void setModelTtl(String modelName, long ttlMillis) {
+        modelTtls.put(modelName, Math.max(ttlMillis, 0));
+    }
+
+    /**
+     * Time to live from {@link ModelName#ttlMillis()}, unless one was set already
+     */
+    void setDefaultTtl(String modelName, long ttlMillis) {
+        modelTtls.putIfAbsent(modelName, ttlMillis);
+    }
+
+    /**
+     * Replace the time objects expire against, so tests can expire them without waiting
+     * @param clock null for the system clock
+     */
+    void setClock(Clock clock) {
+        this.clock = clock == null ? SYSTEM_CLOCK : clock;
+    }
+
+    long now() {
+        return clock.currentTimeMillis();
+    }
+
+    /**
+     * Time when objects of a model expire, by key. Read from storage the first time a model
+     * is used. Expiry times are not kept in records, so an index which cannot be read fails
+     * every use of its model until {@link GlueStore#deleteAll(String)}
+     */
+    SecondaryIndex index(String modelName) {
+        SecondaryIndex index = indexes.get(modelName);
+        if (index != null) return index;
+
+        String name = indexName(modelName);
+        index = SecondaryIndex.load(storage, name, true);
+        if (index == null) {
+            index = new SecondaryIndex(name, true);
+        }
+
+        SecondaryIndex existing = indexes.putIfAbsent(modelName, index);
+        return existing != null ? existing : index;
+    }
+
+    static String indexName(String modelName) {
+        // Not a valid field name, so it cannot clash with a secondary index
+        return modelName + "#-expiry";
+    }
+
+    /**
+     * Forget the index of a model
+     * @return the index if it was read, or null
+     */
+    SecondaryIndex remove(String modelName) {
+        return indexes.remove(modelName);
+    }
+
+    /**
+     * Forget every index read from storage, TTLs are kept
+     */
+    void clear() {
+        indexes.clear();
+    }
+
+    /**
+     * @param key internal key of an object
+     * @return true if the object expired, a key which cannot expire is never expired
+     */
+    boolean isExpired(String key) {
+        return isExpired(key, key.substring(0, key.indexOf(':')));
+    }
+
+    boolean isExpired(String key, String modelName) {
+        return isExpired(index(modelName), key, now());
+    }
+
+    static boolean isExpired(SecondaryIndex expiry, String key, long now) {
+        Object expiresAt = expiry.valueOf(key);
+        return expiresAt != null && (Long) expiresAt <= now;
+    }
+
+    /**
+     * @return number of keys of a model which expired already
+     */
+    int countExpired(String modelName) {
+        return index(modelName).countAtMost(now());
+    }
+
+    /**
+     * @return keys of a model which expired already, soonest first
+     */
+    private ArrayList<String> expiredKeys(String modelName) {
+        return index(modelName).getRange(null, false, now(), true, false);
+    }
+
+    /**
+     * Add the expiry of an object being pinned: now plus the TTL of the pin, or else of its
+     * model. Null removes an expiry the object had before
+     */
+    void collect(Map<String, Long> expiries, String key, String modelName, long ttlMillis, long now) {
+        if (ttlMillis <= 0) {
+            Long modelTtl = modelTtls.get(modelName);
+            ttlMillis = modelTtl == null ? 0 : modelTtl;
+        }
+
+        if (ttlMillis > 0) {
+            expiries.put(key, now + ttlMillis);
+        } else if (index(modelName).contains(key)) {
+            expiries.put(key, null);
+        }
+    }
+
+    /**
+     * @return expiry indexes which changed
+     */
+    HashSet<SecondaryIndex> update(Map<String, Long> expiries) {
+        HashSet<SecondaryIndex> changed = new HashSet<>();
+        for (Map.Entry<String, Long> entry : expiries.entrySet()) {
+            String key = entry.getKey();
+            SecondaryIndex index = index(key.substring(0, key.indexOf(':')));
+            if (index.put(key, entry.getValue())) {
+                changed.add(index);
+            }
+        }
+        return changed;
+    }
+
+    /************************************************************************************
+     * Sweep
+     ************************************************************************************/
+
+    /**
+     * Delete expired objects of every model the store has used, see
+     * {@link GlueStore#sweepExpired(int)}
+     */
+    int sweep(int batchSize) {
+        batchSize = Math.max(batchSize, 1);
+        int swept = 0;
+
+        for (Map.Entry<String, Class> model : modelClasses.entrySet()) {
+            String modelName = model.getKey();
+            while (true) {
+                ArrayList<String> expired = expiredKeys(modelName);
+                if (expired.isEmpty()) break;
+
+                int deleted = sweepBatch(modelName, model.getValue(),
+                        expired.subList(0, Math.min(batchSize, expired.size())));
+                swept += deleted;
+                if (deleted == 0 || expired.size() <= batchSize) break;
+            }
+        }
+        return swept;
+    }
+
+    private int sweepBatch(String modelName, Class cls, List<String> keys) {
+        long start = metrics.start();
+        ReentrantLock lock = store.modelLock(modelName);
+        lock.lock();
+        try {
+            // Objects pinned again since the keys were listed are valid again
+            SecondaryIndex expiry = index(modelName);
+            long now = now();
+            LinkedHashMap<String, Class> objects = new LinkedHashMap<>();
+            for (String key : keys) {
+                if (isExpired(expiry, key, now)) {
+                    objects.put(key, cls);
+                }
+            }
+
+            if (!objects.isEmpty()) {
+                store.deleteKeysLocked(modelName, objects);
+            }
+            metrics.record(GlueMetrics.Operation.DELETE, modelName, start, 0);
+            return objects.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    synchronized void startSweeper(long intervalMillis, final int batchSize) {
+        stopSweeper();
+
+        sweeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Glue-Sweeper");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        sweeper.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sweep(batchSize);
+                } catch (Exception e) {
+                    // A failed sweep must not cancel the next ones
+                    e.printStackTrace();
+                }
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stopSweeper() {
+        if (sweeper != null) {
+            sweeper.shutdown();
+            sweeper = null;
+        }
+    }
+}
@@ -0,0 +1,472 @@
+package me.thomasdao.glue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Store each key in its own file inside a directory. Only plain Java IO is used, so this
+ * engine works on Android and on any JVM.
+ *
+ * A batch is atomic, also across a crash. Its values are written to temporary files first,
+ * then a journal listing the files of the batch, and only after that are files deleted and
+ * the temporary files renamed over the old ones. A crash before the journal is in place
+ * leaves the old values, a crash after it is finished by replaying the journal when the
+ * engine is opened again. A batch changing a single file is a single rename or delete and
+ * needs no journal.
+ */
+public class FileStorageEngine implements StorageEngine {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Files of the batch being applied, one per line: "+" and a name put, "-" and a name deleted
+     */
+    static final String JOURNAL = "batch.journal";
+
+    private final File directory;
+    private final boolean sync;
+    private final Object writeLock = new Object();
+
+    /**
+     * @param directory directory holding the files, created if missing
+     */
+    public FileStorageEngine(File directory) {
+        this(directory, true);
+    }
+
+    /**
+     * @param directory directory holding the files, created if missing
+     * @param sync whether to fsync every file before it replaces the old value
+     */
+    public FileStorageEngine(File directory, boolean sync) {
+        this.directory = directory;
+        this.sync = sync;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new RuntimeException("Cannot create storage directory: " + directory);
+        }
+
+        synchronized (writeLock) {
+            recover();
+            migrateNames();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /************************************************************************************
+     * File names. Anything other than [a-z0-9_-] is escaped as %XX of its UTF-8 bytes, upper
+     * case letters too, so names are portable, keys differing in case do not share a file on
+     * a case-insensitive file system, and names never contain "." used by temporary files.
+     *
+     * A name longer than MAX_NAME_LENGTH would fail on many file systems, it is cut and ends
+     * with "+" and the SHA-256 of the key instead. Such a file starts with the escaped key and
+     * a newline, so the key can be listed
+     ************************************************************************************/
+
+    static final int MAX_NAME_LENGTH = 128;
+    private static final int HASHED_PREFIX_LENGTH = MAX_NAME_LENGTH - 65;
+    private static final char HASHED = '+';
+
+    static String encodeKey(String key) {
+        StringBuilder builder = new StringBuilder(key.length() + 8);
+        for (byte b : key.getBytes(UTF_8)) {
+            char c = (char) (b & 0xff);
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-') {
+                builder.append(c);
+            } else {
+                builder.append('%');
+                builder.append(Character.forDigit((c >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(c & 0xf, 16));
+            }
+        }
+        return builder.toString();
+    }
+
+    static String decodeKey(String name) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '%' && i + 2 < name.length()) {
+                int hi = Character.digit(name.charAt(i + 1), 16);
+                int lo = Character.digit(name.charAt(i + 2), 16);
+                bytes.write((hi << 4) | lo);
+                i += 2;
+            } else {
+                bytes.write(c);
+            }
+        }
+        return new String(bytes.toByteArray(), UTF_8);
+    }
+
+    /**
+     * @return name of the file holding a key
+     */
+    static String fileName(String key) {
+        String name = encodeKey(key);
+        if (name.length() <= MAX_NAME_LENGTH) return name;
+
+        return name.substring(0, HASHED_PREFIX_LENGTH) + HASHED + sha256(key);
+    }
+
+    private static boolean isHashed(String name) {
+        return name.indexOf(HASHED) >= 0;
+    }
+
+    private static String sha256(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(UTF_8));
+            StringBuilder builder = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                builder.append(Character.forDigit((b >> 4) & 0xf, 16));
+                builder.append(Character.forDigit(b & 0xf, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return what the file of a key holds: the value, after the escaped key for a hashed name
+     */
+    private static byte[] contents(String name, String key, byte[] val) {
+        if (!isHashed(name)) return val;
+
+        byte[] header = (encodeKey(key) + "\n").getBytes(UTF_8);
+        byte[] data = new byte[header.length + val.length];
+        System.arraycopy(header, 0, data, 0, header.length);
+        System.arraycopy(val, 0, data, header.length, val.length);
+        return data;
+    }
+
+    /**
+     * @return length of the key line a hashed file starts with, or -1 if it has none
+     */
+    private static int headerLength(byte[] data) {
+        for (int i = 0; i < data.length; i++) {
+            if (data[i] == '\n') return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Rename files written before upper case letters were escaped and long names were hashed
+     */
+    private void migrateNames() {
+        String[] names = directory.list();
+        if (names == null) return;
+
+        for (String name : names) {
+            if (name.indexOf('.') >= 0 || isHashed(name)) continue;
+
+            String key = decodeKey(name);
+            String current = fileName(key);
+            if (current.equals(name)) continue;
+
+            File old = new File(directory, name);
+            try {
+                writeAtomically(new File(directory, current), contents(current, key, readFully(old)));
+                deleteFile(old);
+            } catch (IOException e) {
+                throw new RuntimeException("Cannot rename " + old, e);
+            }
+        }
+    }
+
+    /************************************************************************************
+     * StorageEngine
+     ************************************************************************************/
+
+    @Override
+    public byte[] get(String key) {
+        String name = fileName(key);
+        File file = new File(directory, name);
+        if (!file.isFile()) return null;
+
+        byte[] data;
+        try {
+            data = readFully(file);
+        } catch (IOException e) {
+            // File was removed between the check and the read
+            return null;
+        }
+        if (!isHashed(name)) return data;
+
+        int header = headerLength(data);
+        if (header < 0 || !key.equals(decodeKey(new String(data, 0, header - 1, UTF_8)))) return null;
+        return Arrays.copyOfRange(data, header, data.length);
+    }
+
+    @Override
+    public Map<String, byte[]> get(Collection<String> keys) {
+        HashMap<String, byte[]> values = new HashMap<>();
+        for (String key : keys) {
+            byte[] val = get(key);
+            if (val != null) {
+                values.put(key, val);
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        synchronized (writeLock) {
+            // A batch which failed while being applied is finished first
+            if (new File(directory, JOURNAL).exists()) {
+                recover();
+            }
+
+            // Deletes are applied before puts, so a key both deleted and put is only put
+            LinkedHashMap<String, byte[]> written = new LinkedHashMap<>();
+            for (Map.Entry<String, byte[]> put : puts.entrySet()) {
+                if (put.getValue() != null) {
+                    String name = fileName(put.getKey());
+                    written.put(name, contents(name, put.getKey(), put.getValue()));
+                }
+            }
+            ArrayList<String> deleted = new ArrayList<>();
+            for (String key : deletes) {
+                String name = fileName(key);
+                if (!written.containsKey(name)) {
+                    deleted.add(name);
+                }
+            }
+            if (written.isEmpty() && deleted.isEmpty()) return;
+
+            try {
+                for (Map.Entry<String, byte[]> file : written.entrySet()) {
+                    writeFile(tempFile(file.getKey()), file.getValue());
+                }
+            } catch (IOException e) {
+                // Nothing was applied yet, the old values stay
+                deleteTempFiles();
+                throw new RuntimeException("Cannot write batch", e);
+            }
+
+            try {
+                if (written.size() + deleted.size() == 1) {
+                    apply(written.keySet(), deleted, false);
+                    return;
+                }
+
+                writeAtomically(new File(directory, JOURNAL), journal(written.keySet(), deleted));
+                apply(written.keySet(), deleted, false);
+                deleteFile(new File(directory, JOURNAL));
+            } catch (IOException e) {
+                // Without a journal nothing was applied, with one the next write or open
+                // finishes the batch
+                if (!new File(directory, JOURNAL).exists()) {
+                    deleteTempFiles();
+                }
+                throw new RuntimeException("Cannot write batch", e);
+            }
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (writeLock) {
+            File[] files = directory.listFiles();
+            if (files == null) return;
+
+            for (File file : files) {
+                if (file.isFile() && !file.delete()) {
+                    throw new RuntimeException("Cannot delete " + file);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Set<String> keys() {
+        HashSet<String> keys = new HashSet<>();
+        String[] names = directory.list();
+        if (names == null) return keys;
+
+        for (String name : names) {
+            // Temporary files and the journal, key names never contain "."
+            if (name.indexOf('.') >= 0) continue;
+
+            if (!isHashed(name)) {
+                keys.add(decodeKey(name));
+                continue;
+            }
+            try {
+                byte[] header = readHeader(new File(directory, name));
+                if (header != null) {
+                    keys.add(decodeKey(new String(header, UTF_8)));
+                }
+            } catch (IOException e) {
+                // File was removed meanwhile
+            }
+        }
+        return keys;
+    }
+
+    /************************************************************************************
+     * Journal
+     ************************************************************************************/
+
+    private static byte[] journal(Collection<String> written, Collection<String> deleted) {
+        StringBuilder builder = new StringBuilder();
+        for (String name : deleted) {
+            builder.append('-').append(name).append('\n');
+        }
+        for (String name : written) {
+            builder.append('+').append(name).append('\n');
+        }
+        return builder.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * Delete files and rename temporary files over the files they replace
+     * @param replay whether the batch may be partly applied, then a missing temporary file
+     *               was renamed already
+     */
+    private void apply(Collection<String> written, Collection<String> deleted, boolean replay) throws IOException {
+        for (String name : deleted) {
+            deleteFile(new File(directory, name));
+        }
+        for (String name : written) {
+            File temp = tempFile(name);
+            if (replay && !temp.exists()) continue;
+            rename(temp, new File(directory, name));
+        }
+    }
+
+    /**
+     * Finish the batch of a journal left by a crash, then drop temporary files of a batch
+     * which never got its journal
+     */
+    private void recover() {
+        File journal = new File(directory, JOURNAL);
+        try {
+            if (journal.isFile()) {
+                ArrayList<String> written = new ArrayList<>();
+                ArrayList<String> deleted = new ArrayList<>();
+                for (String line : new String(readFully(journal), UTF_8).split("\n")) {
+                    if (line.startsWith("+")) {
+                        written.add(line.substring(1));
+                    } else if (line.startsWith("-")) {
+                        deleted.add(line.substring(1));
+                    }
+                }
+                apply(written, deleted, true);
+                deleteFile(journal);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot replay " + journal, e);
+        }
+        deleteTempFiles();
+    }
+
+    private void deleteTempFiles() {
+        File[] files = directory.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    /************************************************************************************
+     * IO
+     ************************************************************************************/
+
+    private File tempFile(String name) {
+        return new File(directory, name + TEMP_SUFFIX);
+    }
+
+    private void writeAtomically(File file, byte[] data) throws IOException {
+        File temp = tempFile(file.getName());
+        writeFile(temp, data);
+        try {
+            rename(temp, file);
+        } catch (IOException e) {
+            temp.delete();
+            throw e;
+        }
+    }
+
+    private void writeFile(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+            out.flush();
+            if (sync) {
+                out.getFD().sync();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void rename(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            // Some file systems do not replace an existing file on rename
+            if (!to.delete() || !from.renameTo(to)) {
+                throw new IOException("Cannot rename " + from + " to " + to);
+            }
+        }
+    }
+
+    private static void deleteFile(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * @return key line a hashed file starts with, without the newline, or null if it has none
+     */
+    private static byte[] readHeader(File file) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(new FileInputStream(file), 256);
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(MAX_NAME_LENGTH * 3);
+            int b;
+            while ((b = in.read()) != -1) {
+                if (b == '\n') return header.toByteArray();
+                header.write(b);
+            }
+            return null;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -2,16 +2,11 @@ package me.thomasdao.glue;
 
 import android.content.Context;
 
-import com.fasterxml.jackson.core.type.TypeReference;
-
-import java.lang.reflect.Field;
-import java.lang.reflect.Modifier;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Created by thomasdao on 15/12/15.
@@ -20,362 +15,563 @@ import java.util.concurrent.ConcurrentHashMap;
  * and there is no good and flexible ORM solution.
  *
  * LocalCache will always cache data in memory and occasionally flush to Preference. To
- * cache data in memory, it uses standard HashMap data structure. LocalCache expects its
+ * cache data in memory, it uses a MemoryCache, which can be bounded. LocalCache expects its
  * objects to implement Pinnable interface, where it will use "unique()" method
  * to determine the key to use.
  *
- * A object is cached by a key with format "modelName:unique". This is used as key for both
- * HashMap and Preference cache. Whenever a object is saved, we also keep track of how many
- * objects belong to a model, in a key "modelName". The value of "modelName" key is a json array
- * of all keys with that class.
+ * Glue is the default {@link GlueStore}, over the storage of {@link CacheHelper}. Its static
+ * methods run on that store, create more stores to keep separate data apart.
  *
  */
 public class Glue {
-
     /**
-     * Keep objects in memory
+     * Load every relationship, see {@link #get(String, Class, int)}
      */
-    private static ConcurrentHashMap<String, Pinnable> hashMap;
-    private static HashMap<Class, String> modelNames;
+    public static final int DEPTH_ALL = GlueStore.DEPTH_ALL;
+
+    private static final GlueStore store = new GlueStore(CacheHelper.storage());
 
     /**
      * Initialize Glue with a context
      * @param ctx
      */
     public static void init(Context ctx) {
-        CacheHelper.init(ctx);
-        hashMap = new ConcurrentHashMap<>();
-        modelNames = new HashMap<>();
+        init(new SharedPreferencesEngine(ctx, CacheHelper.PRIVATE_CACHE));
+    }
+
+    /**
+     * Initialize Glue with a storage engine, for example a {@link FileStorageEngine}
+     * to run without Android. Calling init again switches the engine: settings, observers
+     * and listeners of the default store are kept, objects read before are forgotten
+     * @param engine
+     */
+    public static void init(StorageEngine engine) {
+        store.setEngine(engine);
+    }
+
+    /**
+     * @return the store behind the static methods of Glue. It can be configured before init,
+     * reads and writes need an engine
+     */
+    public static GlueStore getDefaultStore() {
+        return store;
     }
 
     /************************************************************************************
-     * Key for an object: "modelName:unique"
-     * Key for all object belong to the same modelName: "modelName"
+     * Memory cache
      ************************************************************************************/
 
-    private static String internalKey(String modelName, String unique) {
-        if (unique == null) return null;
+    /**
+     * Bound the memory cache. Evicted objects are loaded again from storage when needed
+     * @param maxEntries maximum number of objects in memory, 0 for no limit
+     * @param maxWeight maximum total length of the encoded objects in memory, 0 for no limit
+     * @param policy
+     */
+    public static void configureMemoryCache(int maxEntries, long maxWeight, MemoryCache.Policy policy) {
+        store.configureMemoryCache(maxEntries, maxWeight, policy);
+    }
 
-        return modelName + ":" + unique;
+    /**
+     * Limit objects of a model in memory, overrides {@link ModelName#maxCached()}
+     * @param cls
+     * @param maxEntries maximum number of objects, 0 for no limit
+     */
+    public static void setModelCacheLimit(Class cls, int maxEntries) {
+        store.setModelCacheLimit(cls, maxEntries);
     }
 
-    private static String internalKey(Pinnable object) {
-        String modelName = getModelName(object);
-        if (modelName == null) return null;
+    public static CacheStats getCacheStats() {
+        return store.getCacheStats();
+    }
 
-        return internalKey(modelName, object.unique());
+    public static CacheStats getCacheStats(Class cls) {
+        return store.getCacheStats(cls);
     }
 
-    // Get all keys with same model name
-    private static HashSet<String> getAllKeysForModel(String modelName) {
-        // Keep track of all objects belong to a class name
-        String ids = CacheHelper.getString(modelName);
-        HashSet<String> keys = null;
+    /**
+     * @return records written by pins since init, and records skipped because they did not change
+     */
+    public static WriteStats getWriteStats() {
+        return store.getWriteStats();
+    }
 
-        if (ids != null && ids.length() > 0) {
-            try {
-                keys = JSONHelper.OBJECT_MAPPER.readValue(ids, new TypeReference<HashSet<String>>(){});
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+    /**
+     * @return latency and bytes of Glue operations since init, disabled until
+     * {@link GlueMetrics#setEnabled(boolean)}
+     */
+    public static GlueMetrics getMetrics() {
+        return store.getMetrics();
+    }
 
-        if (keys == null) {
-            keys = new HashSet<>();
-        }
+    /************************************************************************************
+     * Write-behind persistence
+     ************************************************************************************/
 
-        return keys;
+    /**
+     * Return from pin and delete as soon as memory cache is updated, and persist changes on a
+     * background thread. Repeated writes to the same key are coalesced. Reads always see the
+     * newest value, even before it reaches disk
+     * @param maxDelayMillis maximum time a change may wait in the queue
+     * @param maxPendingWrites number of queued keys which triggers a write
+     */
+    public static void enableWriteBehind(long maxDelayMillis, int maxPendingWrites) {
+        store.enableWriteBehind(maxDelayMillis, maxPendingWrites);
     }
 
-    // Convert a set to json string
-    private static String setToString(HashSet<String> set) {
-        if (set == null) return "[]";
-        return JSONHelper.toJSON(set);
+    /**
+     * Persist queued changes and go back to writing on the caller's thread
+     * @throws RuntimeException if queued changes cannot be persisted, write-behind stays enabled
+     */
+    public static void disableWriteBehind() {
+        store.disableWriteBehind();
     }
 
     /**
-     * Get relationships for an object using reflection
-     * @param pinnable
-     * @return
+     * Start persisting queued changes now, without waiting for them
      */
-    private static Set<Pinnable> getRelationships(Pinnable pinnable) {
-        if (pinnable == null) return null;
+    public static void flush() {
+        store.flush();
+    }
 
-        Set<Pinnable> relationships = new HashSet<>();
+    /**
+     * Block until every change made before this call is on disk
+     * @throws InterruptedException
+     * @throws RuntimeException if writing them failed, they stay queued and are retried
+     */
+    public static void awaitDurable() throws InterruptedException {
+        store.awaitDurable();
+    }
 
-        for(Field field : pinnable.getClass().getDeclaredFields()) {
-            // Do not consider static field
-            if (Modifier.isStatic(field.getModifiers())) {
-                continue;
-            }
+    /**
+     * Block until every change made before this call is on disk, or until timeout
+     * @param timeoutMillis
+     * @return true if all changes are durable, false on timeout
+     * @throws InterruptedException
+     * @throws RuntimeException if writing them failed, they stay queued and are retried
+     */
+    public static boolean awaitDurable(long timeoutMillis) throws InterruptedException {
+        return store.awaitDurable(timeoutMillis);
+    }
 
-            // Set field accessible to avoid exception
-            field.setAccessible(true);
+    /************************************************************************************
+     * Record format
+     ************************************************************************************/
 
-            Class type = field.getType();
+    /**
+     * Encode records with a codec from now on, for example a {@link SmileRecordCodec}.
+     * Records already stored keep their format and are still read
+     * @param codec
+     */
+    public static void setRecordCodec(RecordCodec codec) {
+        JSONHelper.setRecordCodec(codec);
+    }
 
-            // One to one relationship
-            if (Pinnable.class.isAssignableFrom(type)) {
-                try {
-                    Pinnable val = (Pinnable) field.get(pinnable);
-                    if (val != null) {
-                        relationships.add(val);
-                    }
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
-            }
+    /************************************************************************************
+     * Bulk load
+     ************************************************************************************/
 
-            // One to many relationship
-            if (Collection.class.isAssignableFrom(type)) {
-                try {
-                    Collection collection = (Collection) field.get(pinnable);
-                    if (collection != null) {
-                        for (Object item : collection) {
-                            if (item != null) {
-                                relationships.add((Pinnable) item);
-                            }
-                        }
-                    }
-                } catch (IllegalAccessException e) {
-                    e.printStackTrace();
-                }
+    /**
+     * Decode the records of getMany and getAll on an executor, for every store. The calling
+     * thread decodes a share of the records too. By default Glue runs its own pool with a
+     * thread for each processor
+     * @param executor null to use a pool owned by Glue
+     * @param parallelism number of threads decoding a batch, including the calling thread.
+     *                    1 decodes on the calling thread only
+     */
+    public static void setLoadExecutor(ExecutorService executor, int parallelism) {
+        GlueStore.setLoadExecutor(executor, parallelism);
+    }
 
-            }
-        }
+    /************************************************************************************
+     * Warm up
+     ************************************************************************************/
 
-        return relationships;
+    /**
+     * Restore the snapshot of the hot set, then load every object of the hot models, on a
+     * background thread. Call it right after init, so the first screen finds its objects
+     * in memory
+     * @param hotModels classes whose objects are all loaded
+     * @return number of objects in memory once done
+     */
+    public static Future<Integer> warmUp(Class... hotModels) {
+        return store.warmUp(hotModels);
     }
 
-    private static String getModelName(Object obj) {
-        if (obj == null) return null;
-        Class cls = obj.getClass();
-        return getModelNameForClass(cls);
+    /**
+     * Restore the snapshot of the hot set, then load some objects of a class, on a
+     * background thread
+     * @param cls
+     * @param hotUniques uniques of the objects to load
+     * @return number of objects in memory once done
+     */
+    public static Future<Integer> warmUp(Class cls, Collection<String> hotUniques) {
+        return store.warmUp(cls, hotUniques);
     }
 
-    private static String getModelNameForClass(Class cls) {
-        if (!modelNames.containsKey(cls)) {
-            if (cls.isAnnotationPresent(ModelName.class)) {
-                ModelName annotation = (ModelName) cls.getAnnotation(ModelName.class);
-                modelNames.put(cls, annotation.value());
-            } else {
-                throw new RuntimeException("Annotation @ModelName is missing for class: " + cls.getSimpleName());
-            }
-        }
-
-        return modelNames.get(cls);
+    /**
+     * Save the objects used most in a single value, to restore them on the next start with
+     * one read. The next pin or delete drops the snapshot, so it is never stale
+     * @param maxObjects maximum number of objects in the snapshot
+     * @return number of objects saved
+     */
+    public static int saveSnapshot(int maxObjects) {
+        return store.saveSnapshot(maxObjects);
     }
 
+    /**
+     * Load the objects of the last snapshot into memory, see {@link #saveSnapshot(int)}
+     * @return number of objects restored
+     */
+    public static int restoreSnapshot() {
+        return store.restoreSnapshot();
+    }
 
     /************************************************************************************
      * GET
      ************************************************************************************/
 
+    /**
+     * Load relationships only when asked for. get(unique, cls) then returns objects whose
+     * relationships are placeholders, see {@link #get(String, Class, int)}
+     * @param lazy
+     */
+    public static void setLazyLoading(boolean lazy) {
+        store.setLazyLoading(lazy);
+    }
+
     public static Pinnable get(String unique, Class cls) {
-        String modelName = getModelNameForClass(cls);
-        String key = internalKey(modelName, unique);
-        return getByInternalKey(key, cls);
+        return store.get(unique, cls);
     }
 
-    private static Pinnable getByInternalKey(String key, Class cls) {
-        if (key == null) return null;
+    /**
+     * Get an object, loading its relationships up to a depth. Relationships further away are
+     * placeholders: empty instances, not read from storage, which are filled in place by
+     * {@link #fetch(Pinnable, int)} or by a later get that reaches them
+     * @param unique
+     * @param cls
+     * @param depth 0 for the object only, 1 to load its relationships too, and so on.
+     *              DEPTH_ALL loads everything reachable
+     * @return
+     */
+    public static Pinnable get(String unique, Class cls, int depth) {
+        return store.get(unique, cls, depth);
+    }
 
-        Pinnable pinnable = null;
+    /**
+     * @param object
+     * @return false if object is a placeholder for a relationship which is not loaded yet
+     */
+    public static boolean isLoaded(Pinnable object) {
+        return store.isLoaded(object);
+    }
 
-        // Check if object exist in memory cache
-        if (hashMap.containsKey(key)) {
-            pinnable = hashMap.get(key);
-        } else {
-            // If object does not exist in memory cache, load the object
-            // and its relationships from preference
-            String val = CacheHelper.getString(key);
-            if (val != null) {
-                pinnable = JSONHelper.fromJSON(val, cls);
+    /**
+     * Load a placeholder in place
+     * @param object
+     * @return object
+     */
+    public static Pinnable fetch(Pinnable object) {
+        return store.fetch(object);
+    }
 
-                Set<Pinnable> relationships = getRelationships(pinnable);
-                if (relationships != null && relationships.size() > 0) {
-                    for (Pinnable obj : relationships) {
-                        if (obj != null) {
-                            get(obj.unique(), obj.getClass());
-                        }
-                    }
-                }
+    /**
+     * Load a placeholder in place, and placeholders reachable from an object up to a depth
+     * @param object
+     * @param depth
+     * @return object
+     */
+    public static Pinnable fetch(Pinnable object, int depth) {
+        return store.fetch(object, depth);
+    }
 
-                // Update memory cache
-                if (pinnable != null) {
-                    hashMap.put(key, pinnable);
-                }
-            }
-        }
+    public static ArrayList getAll(Class cls) {
+        return store.getAll(cls);
+    }
 
-        return pinnable;
+    /**
+     * Get all objects of a class, loading their relationships up to a depth
+     * @param cls
+     * @param depth see {@link #get(String, Class, int)}
+     * @return
+     */
+    public static ArrayList getAll(Class cls, int depth) {
+        return store.getAll(cls, depth);
     }
 
-    public static ArrayList getAll(Class cls) {
-        ArrayList<Pinnable> results = new ArrayList<>();
-        String modelName = getModelNameForClass(cls);
-        HashSet<String> set = getAllKeysForModel(modelName);
+    /**
+     * @param cls
+     * @return number of objects of a class, without reading them
+     */
+    public static int count(Class cls) {
+        return store.count(cls);
+    }
 
-        for (String key : set) {
-            Pinnable obj = getByInternalKey(key, cls);
-            if (obj != null) {
-                results.add(obj);
-            }
-        }
+    public static ArrayList getMany(Collection<String> uniques, Class cls) {
+        return store.getMany(uniques, cls);
+    }
 
-        return results;
+    /**
+     * Get several objects of a class at once. Their records are read from storage in one
+     * batch and decoded in parallel, see {@link #setLoadExecutor(ExecutorService, int)}
+     * @param uniques
+     * @param cls
+     * @param depth see {@link #get(String, Class, int)}
+     * @return objects in the order of uniques, without the ones which do not exist
+     */
+    public static ArrayList getMany(Collection<String> uniques, Class cls, int depth) {
+        return store.getMany(uniques, cls, depth);
     }
 
     /**
-     * Merge second object to first object
-     * @param first
-     * @param second
-     * @return first object
+     * Iterate over all objects of a class, loading each one when it is reached. Objects are
+     * in the order their keys were first saved, which stays the same across calls
+     * @param cls
+     * @return cursor, close it when done
      */
-    private static Pinnable mergeObject(Pinnable first, Pinnable second) {
-        if (second == null || first.equals(second)) {
-            return first;
-        }
+    public static <T extends Pinnable> Cursor<T> iterate(Class<T> cls) {
+        return store.iterate(cls);
+    }
 
-        for(Field field : second.getClass().getDeclaredFields()) {
-            // Do not consider static field
-            if (Modifier.isStatic(field.getModifiers())) {
-                continue;
-            }
+    /**
+     * @param cls
+     * @param depth see {@link #get(String, Class, int)}
+     * @return cursor, close it when done
+     */
+    public static <T extends Pinnable> Cursor<T> iterate(Class<T> cls, int depth) {
+        return store.iterate(cls, depth);
+    }
+
+    /**
+     * Iterate over a page of objects of a class, see {@link #iterate(Class)} for the order.
+     * Keys whose object no longer exists are skipped, so a page may hold fewer objects
+     * @param cls
+     * @param offset index of the first key
+     * @param limit maximum number of keys
+     * @return cursor, close it when done
+     */
+    public static <T extends Pinnable> Cursor<T> page(Class<T> cls, int offset, int limit) {
+        return store.page(cls, offset, limit);
+    }
 
-            // Set field accessible to avoid exception
-            field.setAccessible(true);
+    public static <T extends Pinnable> Cursor<T> page(Class<T> cls, int offset, int limit, int depth) {
+        return store.page(cls, offset, limit, depth);
+    }
 
-            // Naive way to copy fields from second object to first object
-            // Based on assumption that first object and second object are same class
-            try {
-                Object val2 = field.get(second);
-                if (val2 != null) {
-                    field.set(first, val2);
-                }
-            } catch (IllegalAccessException e) {
-                e.printStackTrace();
-            }
-        }
+    /************************************************************************************
+     * FIND
+     ************************************************************************************/
 
-        return first;
+    public static ArrayList find(Class cls, String field, Object value) {
+        return store.find(cls, field, value);
     }
 
+    /**
+     * Get objects whose {@link Indexed} field equals a value. Only the records of matching
+     * objects are read
+     * @param cls
+     * @param field name of the field
+     * @param value
+     * @param depth see {@link #get(String, Class, int)}
+     * @return objects in the order they were indexed
+     */
+    public static ArrayList find(Class cls, String field, Object value, int depth) {
+        return store.find(cls, field, value, depth);
+    }
 
     /**
-     * Save an object to both memory and preference
-     * @param object
+     * @return uniques of the objects whose {@link Indexed} field equals a value
      */
-    public static void pin(Pinnable object) {
-        if (object == null) return;
+    public static ArrayList<String> findUniques(Class cls, String field, Object value) {
+        return store.findUniques(cls, field, value);
+    }
 
-        ArrayList<Pinnable> list = new ArrayList<>();
-        list.add(object);
-        pinAll(list);
+    public static ArrayList findInRange(Class cls, String field, Object from, Object to) {
+        return store.findInRange(cls, field, from, to);
     }
 
-    public static void pinAll(Collection collection) {
-        if (collection == null || collection.size() == 0) return;
+    /**
+     * Get objects whose field is in a range of values, the field must be annotated
+     * with @Indexed(sorted = true)
+     * @param cls
+     * @param field name of the field
+     * @param from lowest value, included, or null for no lower bound
+     * @param to highest value, excluded, or null for no upper bound
+     * @param depth see {@link #get(String, Class, int)}
+     * @return objects in order of their values
+     */
+    public static ArrayList findInRange(Class cls, String field, Object from, Object to, int depth) {
+        return store.findInRange(cls, field, from, to, depth);
+    }
 
+    /**
+     * @return uniques of the objects whose field is in a range of values,
+     * see {@link #findInRange(Class, String, Object, Object, int)}
+     */
+    public static ArrayList<String> findUniquesInRange(Class cls, String field, Object from, Object to) {
+        return store.findUniquesInRange(cls, field, from, to);
+    }
 
-        for (Object obj : collection) {
-            if (obj == null) continue;
+    /**
+     * Find objects by conditions on their fields, see {@link Query}
+     * @param cls
+     * @return a query to add conditions, order and limit to
+     */
+    public static <T extends Pinnable> Query<T> query(Class<T> cls) {
+        return store.query(cls);
+    }
 
-            Class cls = obj.getClass();
+    /************************************************************************************
+     * Expiry
+     ************************************************************************************/
 
-            Pinnable object = (Pinnable) obj;
-            Pinnable existingObj = get(object.unique(), cls);
+    /**
+     * Keep objects of a model valid for a time after they are pinned, overrides
+     * {@link ModelName#ttlMillis()}
+     * @param cls
+     * @param ttlMillis time to live in milliseconds, 0 for ever
+     */
+    public static void setModelTtl(Class cls, long ttlMillis) {
+        store.setModelTtl(cls, ttlMillis);
+    }
 
-            // Do nothing if no changes
-            if (object.equals(existingObj)) {
-                continue;
-            }
+    /**
+     * Delete expired objects from storage, a batch per write
+     * @param batchSize maximum number of objects deleted in one write
+     * @return number of objects deleted
+     */
+    public static int sweepExpired(int batchSize) {
+        return store.sweepExpired(batchSize);
+    }
 
-            // Merge new object to existing object, return existing object
-            if (existingObj == null) {
-                existingObj = object;
-            } else {
-                mergeObject(existingObj, object);
-            }
+    /**
+     * Sweep expired objects on a background thread, so storage only holds valid objects
+     * @param intervalMillis time between two sweeps
+     * @param batchSize maximum number of objects deleted in one write
+     */
+    public static void startSweeper(long intervalMillis, int batchSize) {
+        store.startSweeper(intervalMillis, batchSize);
+    }
 
-            // Get key
-            String key = internalKey(existingObj);
+    public static void stopSweeper() {
+        store.stopSweeper();
+    }
 
-            // Update memory cache
-            hashMap.put(key, existingObj);
+    /************************************************************************************
+     * Observe
+     ************************************************************************************/
 
-            HashMap<String, String> buffers = new HashMap<>();
+    /**
+     * Be told of changes to objects of a class, instead of calling getAll again. The changes
+     * of a pinAll or deleteObjects come in one event, see {@link ChangeEvent}
+     * @param cls
+     * @param listener
+     */
+    public static void observe(Class cls, ChangeListener listener) {
+        store.observe(cls, listener);
+    }
 
-            // Update Preference cache
-            buffers.put(key, JSONHelper.toJSON(existingObj));
+    /**
+     * Be told of changes to a single object
+     * @param cls
+     * @param unique
+     * @param listener
+     */
+    public static void observe(Class cls, String unique, ChangeListener listener) {
+        store.observe(cls, unique, listener);
+    }
 
-            // Keep track of all objects belong to a class name
-            String modelName = getModelNameForClass(cls);
-            HashSet<String> set = getAllKeysForModel(modelName);
-            set.add(key);
-            buffers.put(modelName, setToString(set));
+    /**
+     * Be told of changes to the objects matching the conditions of a query, see
+     * {@link GlueStore#observe(Query, ChangeListener)}
+     * @param query
+     * @param listener
+     */
+    public static void observe(Query query, ChangeListener listener) {
+        store.observe(query, listener);
+    }
 
-            // Save to disk
-            CacheHelper.save(buffers);
+    public static void removeObserver(ChangeListener listener) {
+        store.removeObserver(listener);
+    }
 
-            // Check relationships
-            Set<Pinnable> relationships = getRelationships(existingObj);
-            pinAll(relationships);
-        }
+    /**
+     * Deliver changes on an executor, for example one posting to the main thread
+     * @param executor null to deliver on a background thread owned by Glue
+     */
+    public static void setChangeExecutor(Executor executor) {
+        store.setChangeExecutor(executor);
     }
 
-    public static void deleteAll(String modelName) {
-        HashSet<String> set = getAllKeysForModel(modelName);
-        ArrayList<String> keys = new ArrayList<>();
+    /************************************************************************************
+     * PIN and DELETE
+     ************************************************************************************/
 
-        for (String key : set) {
-            keys.add(key);
-            hashMap.remove(key);
-        }
+    /**
+     * Save an object to both memory and preference
+     * @param object
+     */
+    public static void pin(Pinnable object) {
+        store.pin(object);
+    }
 
-        keys.add(modelName);
-        CacheHelper.delete(keys);
+    /**
+     * Save objects and their relationships to both memory and preference, in a single commit.
+     * Batches are safe to pin from several threads: the models a batch touches are locked
+     * while it is merged and written, so batches on different models run side by side
+     * @param collection
+     */
+    public static void pinAll(Collection collection) {
+        store.pinAll(collection);
     }
 
-    public static void deleteObject(Pinnable object) {
-        ArrayList<Pinnable> list = new ArrayList<>();
-        list.add(object);
-        String modelName = getModelName(object);
-        deleteObjects(list, modelName);
+    /**
+     * Save an object which stays valid for a time, see {@link #pinAll(Collection, long)}
+     * @param object
+     * @param ttlMillis
+     */
+    public static void pin(Pinnable object, long ttlMillis) {
+        store.pin(object, ttlMillis);
     }
 
-    public static void deleteObjects(Collection<Pinnable> collection, String modelName) {
-        ArrayList<String> keys = new ArrayList<>();
+    /**
+     * Save objects which stay valid for a time. Once it is over, get and find treat them as
+     * missing, until pinned again. Their relationships keep the TTL of their model
+     * @param collection
+     * @param ttlMillis time to live in milliseconds, 0 for the TTL of their model
+     */
+    public static void pinAll(Collection collection, long ttlMillis) {
+        store.pinAll(collection, ttlMillis);
+    }
 
-        HashSet<String> array = getAllKeysForModel(modelName);
-        HashMap<String, Boolean> map = new HashMap<>();
-        for (String key : array) {
-            map.put(key, Boolean.TRUE);
-        }
+    /**
+     * Write patches of a model back into their records, so reading them costs no more than
+     * reading any other record. Patches are also folded on their own once they grow
+     * @param cls
+     */
+    public static void foldPatches(Class cls) {
+        store.foldPatches(cls);
+    }
 
-        for (Pinnable object : collection) {
-            String k = internalKey(object);
-            keys.add(k);
-            hashMap.remove(k);
-            map.remove(k);
-        }
+    public static void deleteAll(String modelName) {
+        store.deleteAll(modelName);
+    }
 
-        array = new HashSet<>();
-        for (String k : map.keySet()) {
-            array.add(k);
-        }
+    public static void deleteObject(Pinnable object) {
+        store.deleteObject(object);
+    }
 
-        // Update underlying preference
-        CacheHelper.save(modelName, setToString(array));
-        CacheHelper.delete(keys);
+    public static void deleteObjects(Collection<Pinnable> collection, String modelName) {
+        store.deleteObjects(collection, modelName);
     }
 
+    /**
+     * Remove every object. Unlike pins and deletes, not safe while other threads use Glue
+     */
     public static void clearAll() {
-        CacheHelper.clear();
-        hashMap.clear();
+        store.clearAll();
     }
 
     public static void clearMemoryCache() {
-        hashMap.clear();
+        store.clearMemoryCache();
     }
 }
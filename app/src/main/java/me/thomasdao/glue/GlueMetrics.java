@@ -0,0 +1,199 @@
+package me.thomasdao.glue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Latency and byte counts of the operations of a {@link GlueStore}, for the whole store and
+ * for each model, and listeners to export them as they happen. Hit ratios of the memory
+ * cache are kept apart, see {@link GlueStore#getCacheStats()}.
+ *
+ * Metrics are disabled by default. Disabled, an operation costs a single volatile read.
+ */
+public final class GlueMetrics {
+
+    public enum Operation {
+        /**
+         * get and fetch of a single object, from memory or storage
+         */
+        GET,
+        GET_MANY,
+        GET_ALL,
+        /**
+         * find by an indexed field, and queries
+         */
+        FIND,
+        PIN,
+        DELETE,
+        /**
+         * Encoding one object to a record, bytes are the length of the record
+         */
+        ENCODE,
+        /**
+         * Decoding one record to an object, bytes are the length of the record
+         */
+        DECODE,
+        /**
+         * A read from the storage engine, bytes are the length of the values read
+         */
+        STORAGE_READ,
+        /**
+         * A write to the storage engine, bytes are the length of the values written. With
+         * write-behind, writes are recorded on the background thread persisting them
+         */
+        STORAGE_WRITE,
+        /**
+         * Writing the changed segments of a model index, bytes are the length of the segments
+         */
+        INDEX_WRITE
+    }
+
+    /**
+     * Called on the thread of each operation while metrics are enabled, keep it short
+     */
+    public interface Listener {
+        /**
+         * @param operation
+         * @param modelName model of the operation, or null for storage operations and
+         * batches spanning several models
+         * @param nanos duration of the operation
+         * @param bytes bytes moved by the operation, 0 if none
+         */
+        void onOperation(Operation operation, String modelName, long nanos, long bytes);
+    }
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private volatile boolean enabled;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile LatencyHistogram[] totals = newHistograms();
+    private volatile ConcurrentHashMap<String, LatencyHistogram[]> models = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Integer> indexSizes = new ConcurrentHashMap<>();
+
+    GlueMetrics() {
+    }
+
+    private static LatencyHistogram[] newHistograms() {
+        LatencyHistogram[] histograms = new LatencyHistogram[OPERATIONS.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        return histograms;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Forget every count recorded so far
+     */
+    public void reset() {
+        totals = newHistograms();
+        models = new ConcurrentHashMap<>();
+        indexSizes.clear();
+    }
+
+    /************************************************************************************
+     * Recording
+     ************************************************************************************/
+
+    /**
+     * @return start time of an operation, or 0 when metrics are disabled
+     */
+    long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record an operation started by {@link #start()}
+     */
+    void record(Operation operation, String modelName, long start, long bytes) {
+        if (start == 0) return;
+
+        long nanos = System.nanoTime() - start;
+        totals[operation.ordinal()].record(nanos, bytes);
+        if (modelName != null) {
+            modelHistograms(modelName)[operation.ordinal()].record(nanos, bytes);
+        }
+
+        for (Listener listener : listeners) {
+            try {
+                listener.onOperation(operation, modelName, nanos, bytes);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    void recordIndexSize(String modelName, int keys) {
+        if (enabled) {
+            indexSizes.put(modelName, keys);
+        }
+    }
+
+    private LatencyHistogram[] modelHistograms(String modelName) {
+        ConcurrentHashMap<String, LatencyHistogram[]> current = models;
+        LatencyHistogram[] histograms = current.get(modelName);
+        if (histograms == null) {
+            histograms = newHistograms();
+            LatencyHistogram[] existing = current.putIfAbsent(modelName, histograms);
+            if (existing != null) {
+                histograms = existing;
+            }
+        }
+        return histograms;
+    }
+
+    /************************************************************************************
+     * Stats
+     ************************************************************************************/
+
+    public OperationStats getStats(Operation operation) {
+        return totals[operation.ordinal()].snapshot();
+    }
+
+    public OperationStats getStats(Operation operation, String modelName) {
+        LatencyHistogram[] histograms = models.get(modelName);
+        if (histograms == null) {
+            return new LatencyHistogram().snapshot();
+        }
+        return histograms[operation.ordinal()].snapshot();
+    }
+
+    /**
+     * @return stats of every operation of a model which was called at least once
+     */
+    public Map<Operation, OperationStats> getModelStats(String modelName) {
+        HashMap<Operation, OperationStats> stats = new HashMap<>();
+        for (Operation operation : OPERATIONS) {
+            OperationStats snapshot = getStats(operation, modelName);
+            if (snapshot.getCount() > 0) {
+                stats.put(operation, snapshot);
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * @return number of keys in the index of each model, as of its last write
+     */
+    public Map<String, Integer> getIndexSizes() {
+        return new HashMap<>(indexSizes);
+    }
+}
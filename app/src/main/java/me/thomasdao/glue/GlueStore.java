@@ -0,0 +1,1787 @@
+package me.thomasdao.glue;
+
+import android.content.Context;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A store of Pinnable objects: a memory cache in front of a {@link StorageEngine}, with the
+ * key index and secondary indexes of each model. {@link Glue} is the default store, any
+ * number of others can live next to it, for example one per feature, each over storage of
+ * its own. A {@link ShardedStorageEngine} spreads the data of a store over several files.
+ *
+ * An object is cached by a key with format "modelName:unique". This is used as key for both
+ * memory cache and storage. Whenever a object is saved, we also keep track of how many
+ * objects belong to a model, in a key "modelName". The keys with that class are kept in memory
+ * and stored in segments, see {@link KeyIndex}.
+ *
+ * The store owns a collaborator for each concern beside reads, pins and deletes:
+ * {@link BulkLoader} loads many objects at once, {@link WarmUp} keeps the snapshot of the hot
+ * set, {@link SecondaryIndexes} holds the indexes of {@link Indexed} fields and {@link Expiry}
+ * expires objects. Their package-private methods are the ones these collaborators call back.
+ */
+public class GlueStore {
+    /**
+     * Load every relationship, see {@link #get(String, Class, int)}
+     */
+    public static final int DEPTH_ALL = Integer.MAX_VALUE;
+
+    private final Storage storage;
+
+    /**
+     * Keep objects in memory
+     */
+    private final MemoryCache memoryCache = new MemoryCache();
+    private final ConcurrentHashMap<Class, String> modelNames = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Class> modelClasses = new ConcurrentHashMap<>();
+
+    private volatile int defaultDepth = DEPTH_ALL;
+
+    /**
+     * Placeholders for relationships which are not loaded yet
+     */
+    private final Placeholders placeholders = new Placeholders();
+
+    /**
+     * Objects being loaded on this thread, see {@link #loadGraph(String, String, Class, int)}
+     */
+    private static final ThreadLocal<LoadContext> loadContext = new ThreadLocal<>();
+
+    /**
+     * Store encoding or decoding records on this thread, see {@link #enter()}
+     */
+    private static final ThreadLocal<GlueStore> activeStore = new ThreadLocal<>();
+
+    /**
+     * Keys of each model read so far, by model name
+     */
+    private final ConcurrentHashMap<String, KeyIndex> keyIndexes = new ConcurrentHashMap<>();
+
+    /**
+     * Lock of each model, held while its objects and indexes change, see {@link #lockModels(Collection)}
+     */
+    private final ConcurrentHashMap<String, ReentrantLock> modelLocks = new ConcurrentHashMap<>();
+
+    private final GlueMetrics metrics = new GlueMetrics();
+    private final ChangeNotifier notifier = new ChangeNotifier();
+
+    private final Expiry expiry;
+    private final BulkLoader loader;
+    private final SecondaryIndexes secondaryIndexes;
+    private final WarmUp warmUp;
+
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong skippedEqual = new AtomicLong();
+    private final AtomicLong skippedFingerprint = new AtomicLong();
+    private final AtomicLong recordsPatched = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Store over a storage engine, for example a {@link FileStorageEngine} to run without
+     * Android, or a {@link ShardedStorageEngine}
+     * @param engine
+     */
+    public GlueStore(StorageEngine engine) {
+        this(new Storage(engine));
+    }
+
+    /**
+     * Store in a private SharedPreferences file of its own
+     * @param ctx
+     * @param name name of the file
+     */
+    public GlueStore(Context ctx, String name) {
+        this(new SharedPreferencesEngine(ctx, name));
+    }
+
+    GlueStore(Storage storage) {
+        this.storage = storage;
+        storage.setMetrics(metrics);
+
+        expiry = new Expiry(this, storage, metrics, modelClasses);
+        loader = new BulkLoader(this, memoryCache, placeholders, expiry);
+        secondaryIndexes = new SecondaryIndexes(this, storage, loader);
+        warmUp = new WarmUp(this, storage, memoryCache, loader, modelClasses);
+    }
+
+    public StorageEngine getEngine() {
+        return storage.getEngine();
+    }
+
+    /**
+     * Switch to another engine. Settings, TTLs, observers and listeners are kept, objects and
+     * indexes read from the previous engine are forgotten. Not safe while other threads use
+     * the store
+     * @param engine
+     */
+    void setEngine(StorageEngine engine) {
+        warmUp.setEngine(engine);
+        forgetObjects();
+    }
+
+    /************************************************************************************
+     * Memory cache
+     ************************************************************************************/
+
+    /**
+     * Bound the memory cache. Evicted objects are loaded again from storage when needed
+     * @param maxEntries maximum number of objects in memory, 0 for no limit
+     * @param maxWeight maximum total length of the encoded objects in memory, 0 for no limit
+     * @param policy
+     */
+    public void configureMemoryCache(int maxEntries, long maxWeight, MemoryCache.Policy policy) {
+        memoryCache.configure(maxEntries, maxWeight, policy);
+    }
+
+    /**
+     * Limit objects of a model in memory, overrides {@link ModelName#maxCached()}
+     * @param cls
+     * @param maxEntries maximum number of objects, 0 for no limit
+     */
+    public void setModelCacheLimit(Class cls, int maxEntries) {
+        memoryCache.setModelLimit(getModelNameForClass(cls), maxEntries);
+    }
+
+    public CacheStats getCacheStats() {
+        return memoryCache.stats();
+    }
+
+    public CacheStats getCacheStats(Class cls) {
+        return memoryCache.stats(getModelNameForClass(cls));
+    }
+
+    /**
+     * @return records written by pins since the store was created, and records skipped
+     * because they did not change
+     */
+    public WriteStats getWriteStats() {
+        return new WriteStats(recordsWritten.get(), recordsPatched.get(), bytesWritten.get(),
+                skippedEqual.get(), skippedFingerprint.get());
+    }
+
+    /**
+     * @return latency and bytes of the operations of this store, disabled until
+     * {@link GlueMetrics#setEnabled(boolean)}
+     */
+    public GlueMetrics getMetrics() {
+        return metrics;
+    }
+
+    /************************************************************************************
+     * Write-behind persistence
+     ************************************************************************************/
+
+    /**
+     * Return from pin and delete as soon as memory cache is updated, and persist changes on a
+     * background thread. Repeated writes to the same key are coalesced. Reads always see the
+     * newest value, even before it reaches disk
+     * @param maxDelayMillis maximum time a change may wait in the queue
+     * @param maxPendingWrites number of queued keys which triggers a write
+     */
+    public void enableWriteBehind(long maxDelayMillis, int maxPendingWrites) {
+        storage.enableWriteBehind(maxDelayMillis, maxPendingWrites);
+    }
+
+    /**
+     * Persist queued changes and go back to writing on the caller's thread
+     * @throws RuntimeException if queued changes cannot be persisted, write-behind stays enabled
+     */
+    public void disableWriteBehind() {
+        storage.disableWriteBehind();
+    }
+
+    /**
+     * Start persisting queued changes now, without waiting for them
+     */
+    public void flush() {
+        storage.flush();
+    }
+
+    /**
+     * Block until every change made before this call is on disk
+     * @throws InterruptedException
+     * @throws RuntimeException if writing them failed, they stay queued and are retried
+     */
+    public void awaitDurable() throws InterruptedException {
+        storage.awaitDurable(0);
+    }
+
+    /**
+     * Block until every change made before this call is on disk, or until timeout
+     * @param timeoutMillis
+     * @return true if all changes are durable, false on timeout
+     * @throws InterruptedException
+     * @throws RuntimeException if writing them failed, they stay queued and are retried
+     */
+    public boolean awaitDurable(long timeoutMillis) throws InterruptedException {
+        return storage.awaitDurable(timeoutMillis);
+    }
+
+    /************************************************************************************
+     * Active store
+     ************************************************************************************/
+
+    /**
+     * @return store encoding or decoding records on this thread, or the default store
+     */
+    static GlueStore active() {
+        GlueStore store = activeStore.get();
+        return store != null ? store : Glue.getDefaultStore();
+    }
+
+    /**
+     * Resolve references against this store on this thread, until {@link #leave(GlueStore)}
+     * @return store active before
+     */
+    GlueStore enter() {
+        GlueStore previous = activeStore.get();
+        activeStore.set(this);
+        return previous;
+    }
+
+    static void leave(GlueStore previous) {
+        if (previous == null) {
+            activeStore.remove();
+        } else {
+            activeStore.set(previous);
+        }
+    }
+
+    /************************************************************************************
+     * Key for an object: "modelName:unique"
+     * Key for all object belong to the same modelName: "modelName"
+     ************************************************************************************/
+
+    private static String internalKey(String modelName, String unique) {
+        if (unique == null) return null;
+
+        return modelName + ":" + unique;
+    }
+
+    String internalKey(Pinnable object) {
+        // A placeholder is empty, its key was known when it was created
+        String key = placeholders.keyOf(object);
+        if (key != null) return key;
+
+        String modelName = getModelName(object);
+        if (modelName == null) return null;
+
+        return internalKey(modelName, object.unique());
+    }
+
+    // Keys of all objects of a model, read from storage once
+    private KeyIndex keyIndex(String modelName) {
+        KeyIndex index = keyIndexes.get(modelName);
+        if (index != null) return index;
+
+        // Read under the model lock, so a writer never changes an index another thread replaces
+        ReentrantLock lock = modelLock(modelName);
+        lock.lock();
+        try {
+            index = keyIndexes.get(modelName);
+            if (index == null) {
+                index = KeyIndex.load(storage, modelName);
+                keyIndexes.put(modelName, index);
+            }
+            return index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Get all keys with same model name, in the order they were first saved
+    ArrayList<String> getAllKeysForModel(String modelName) {
+        return keyIndex(modelName).keys();
+    }
+
+    /**
+     * Get relationships for an object, using its generated adapter or cached class metadata
+     * @param pinnable
+     * @return
+     */
+    private static ArrayList<Pinnable> getRelationships(Pinnable pinnable) {
+        ArrayList<Pinnable> relationships = new ArrayList<>();
+        if (pinnable == null) return relationships;
+
+        ModelAdapter adapter = ModelAdapters.forClass(pinnable.getClass());
+        if (adapter != null) {
+            adapter.collectRelationships(pinnable, relationships);
+        } else {
+            ClassMetadata.forClass(pinnable.getClass()).collectRelationships(pinnable, relationships);
+        }
+        return relationships;
+    }
+
+    /**
+     * @return key written in place of an object referenced by another object
+     */
+    static String referenceKey(Pinnable pinnable) {
+        return active().internalKey(pinnable);
+    }
+
+    /**
+     * Find the object for a reference read from a record
+     * @param key "modelName:unique"
+     * @param declaredClass type of the field holding the reference
+     * @return
+     */
+    static Pinnable resolveReference(String key, Class declaredClass) {
+        int separator = key.indexOf(':');
+        if (separator < 0) return null;
+
+        String modelName = key.substring(0, separator);
+
+        // Records of a bulk load are decoded on several threads, which share its objects
+        BulkLoader.Load bulk = BulkLoader.current();
+        if (bulk != null) {
+            return bulk.resolve(key, modelName, declaredClass);
+        }
+
+        return active().resolve(key, modelName, declaredClass);
+    }
+
+    private Pinnable resolve(String key, String modelName, Class declaredClass) {
+        Class cls = referenceClass(modelName, declaredClass);
+        if (cls == null) {
+            return decodeUncached(key, declaredClass);
+        }
+
+        return getByInternalKey(key, cls, defaultDepth);
+    }
+
+    /**
+     * @return class of a referenced model, or null if it is not known yet
+     */
+    Class referenceClass(String modelName, Class declaredClass) {
+        Class cls = modelClasses.get(modelName);
+        if (cls != null && declaredClass.isAssignableFrom(cls)) return cls;
+
+        if (declaredClass.isAnnotationPresent(ModelName.class)
+                && modelName.equals(getModelNameForClass(declaredClass))) {
+            return declaredClass;
+        }
+        return null;
+    }
+
+    /**
+     * Decode a record as a class but keep it out of memory cache, for a model whose class
+     * is not known yet
+     */
+    Pinnable decodeUncached(String key, Class cls) {
+        byte[] val = readRecord(key);
+        if (val == null) return null;
+
+        GlueStore previous = enter();
+        try {
+            return decode(val, cls, null);
+        } finally {
+            leave(previous);
+        }
+    }
+
+    Pinnable decode(byte[] data, Class cls, String modelName) {
+        long start = metrics.start();
+        Pinnable pinnable = JSONHelper.decode(data, cls);
+        metrics.record(GlueMetrics.Operation.DECODE, modelName, start, data.length);
+        return pinnable;
+    }
+
+    private String getModelName(Object obj) {
+        if (obj == null) return null;
+        Class cls = obj.getClass();
+        return getModelNameForClass(cls);
+    }
+
+    String getModelNameForClass(Class cls) {
+        String modelName = modelNames.get(cls);
+        if (modelName != null) return modelName;
+
+        if (!cls.isAnnotationPresent(ModelName.class)) {
+            throw new RuntimeException("Annotation @ModelName is missing for class: " + cls.getSimpleName());
+        }
+
+        ModelName annotation = (ModelName) cls.getAnnotation(ModelName.class);
+        modelName = annotation.value();
+        modelClasses.putIfAbsent(modelName, cls);
+        if (annotation.maxCached() > 0) {
+            memoryCache.setModelLimit(modelName, annotation.maxCached());
+        }
+        if (annotation.ttlMillis() > 0) {
+            expiry.setDefaultTtl(modelName, annotation.ttlMillis());
+        }
+        modelNames.put(cls, modelName);
+        return modelName;
+    }
+
+
+    /************************************************************************************
+     * GET
+     ************************************************************************************/
+
+    /**
+     * Load relationships only when asked for. get(unique, cls) then returns objects whose
+     * relationships are placeholders, see {@link #get(String, Class, int)}
+     * @param lazy
+     */
+    public void setLazyLoading(boolean lazy) {
+        defaultDepth = lazy ? 0 : DEPTH_ALL;
+    }
+
+    public Pinnable get(String unique, Class cls) {
+        return get(unique, cls, defaultDepth);
+    }
+
+    /**
+     * Get an object, loading its relationships up to a depth. Relationships further away are
+     * placeholders: empty instances, not read from storage, which are filled in place by
+     * {@link #fetch(Pinnable, int)} or by a later get that reaches them
+     * @param unique
+     * @param cls
+     * @param depth 0 for the object only, 1 to load its relationships too, and so on.
+     *              DEPTH_ALL loads everything reachable
+     * @return
+     */
+    public Pinnable get(String unique, Class cls, int depth) {
+        long start = metrics.start();
+        String modelName = getModelNameForClass(cls);
+        String key = internalKey(modelName, unique);
+        Pinnable pinnable = getByInternalKey(key, cls, Math.max(depth, 0));
+        metrics.record(GlueMetrics.Operation.GET, modelName, start, 0);
+        return pinnable;
+    }
+
+    /**
+     * @param object
+     * @return false if object is a placeholder for a relationship which is not loaded yet
+     */
+    public boolean isLoaded(Pinnable object) {
+        return object != null && placeholders.keyOf(object) == null;
+    }
+
+    /**
+     * Load a placeholder in place
+     * @param object
+     * @return object
+     */
+    public Pinnable fetch(Pinnable object) {
+        return fetch(object, 0);
+    }
+
+    /**
+     * Load a placeholder in place, and placeholders reachable from an object up to a depth
+     * @param object
+     * @param depth
+     * @return object
+     */
+    public Pinnable fetch(Pinnable object, int depth) {
+        if (object == null) return object;
+        if (placeholders.isEmpty()) {
+            // Nothing anywhere is left to load
+            markComplete(object);
+            return object;
+        }
+
+        long start = metrics.start();
+        IdentityHashMap<Pinnable, Boolean> visited = new IdentityHashMap<>();
+        visited.put(object, Boolean.TRUE);
+        ArrayList<Pinnable> level = new ArrayList<>();
+        level.add(object);
+
+        // Whether the walk stopped at the depth with relationships left to visit
+        boolean truncated = false;
+
+        for (int d = 0; !level.isEmpty() && !placeholders.isEmpty(); d++) {
+            ArrayList<Pinnable> next = new ArrayList<>();
+            for (Pinnable current : level) {
+                String key = placeholders.keyOf(current);
+                if (key != null) {
+                    Class cls = current.getClass();
+                    loadGraph(key, getModelNameForClass(cls), cls, depth - d);
+                }
+
+                for (Pinnable relationship : getRelationships(current)) {
+                    if (d == depth) {
+                        truncated |= !visited.containsKey(relationship);
+                    } else if (visited.put(relationship, Boolean.TRUE) == null) {
+                        next.add(relationship);
+                    }
+                }
+            }
+            level = next;
+        }
+
+        // Once the whole graph is loaded, gets of these objects need not walk it again
+        if (!truncated) {
+            for (Pinnable visitedObject : visited.keySet()) {
+                if (placeholders.keyOf(visitedObject) != null) {
+                    truncated = true;
+                    break;
+                }
+            }
+        }
+        if (!truncated) {
+            for (Pinnable visitedObject : visited.keySet()) {
+                markComplete(visitedObject);
+            }
+        }
+
+        if (start != 0) {
+            metrics.record(GlueMetrics.Operation.GET, getModelName(object), start, 0);
+        }
+        return object;
+    }
+
+    Pinnable getByInternalKey(String key, Class cls, int depth) {
+        if (key == null) return null;
+
+        String modelName = getModelNameForClass(cls);
+        if (expiry.isExpired(key, modelName)) {
+            memoryCache.remove(key, modelName);
+            return null;
+        }
+
+        // Check if object exist in memory cache
+        Pinnable pinnable = memoryCache.get(key, modelName);
+
+        // Reached through a reference while loading another object
+        LoadContext context = loadContext.get();
+        if (context != null) {
+            if (pinnable == null) return load(context, key, modelName, cls);
+
+            context.partial |= memoryCache.isPartial(key, modelName);
+            return pinnable;
+        }
+
+        if (pinnable == null) {
+            // If object does not exist in memory cache, load the object
+            // and the objects it references from preference
+            pinnable = loadGraph(key, modelName, cls, depth);
+        }
+
+        // Objects in memory may still hold placeholders from an earlier lazy load
+        if (pinnable != null && depth > 0 && memoryCache.isPartial(key, modelName)) {
+            fetch(pinnable, depth);
+        }
+
+        return pinnable;
+    }
+
+    /**
+     * Note that every object reachable from a cached object is loaded
+     */
+    private void markComplete(Pinnable object) {
+        String modelName = getModelName(object);
+        memoryCache.markComplete(internalKey(modelName, object.unique()), modelName, object);
+    }
+
+    /**
+     * Note that objects reachable from cached objects may be placeholders
+     * @param keys internal keys, which start with the model name
+     */
+    void markPartial(Collection<String> keys) {
+        for (String key : keys) {
+            int separator = key.indexOf(':');
+            if (separator > 0) {
+                memoryCache.markPartial(key, key.substring(0, separator));
+            }
+        }
+    }
+
+    /**
+     * Objects handed out while loading a graph, and records read but not decoded yet
+     */
+    private static final class LoadContext {
+        final int maxDepth;
+        final HashMap<String, Pinnable> objects = new HashMap<>();
+        final ArrayDeque<PendingLoad> queue = new ArrayDeque<>();
+
+        // Depth of the record being decoded, the root is at 0
+        int depth = -1;
+
+        // Whether a placeholder was handed out, or an object in memory which holds one
+        boolean partial;
+
+        LoadContext(int maxDepth) {
+            this.maxDepth = maxDepth;
+        }
+    }
+
+    private static final class PendingLoad {
+        final String key;
+        final String modelName;
+        final Class cls;
+        final Pinnable shell;
+        final byte[] data;
+        final int depth;
+
+        PendingLoad(String key, String modelName, Class cls, Pinnable shell, byte[] data, int depth) {
+            this.key = key;
+            this.modelName = modelName;
+            this.cls = cls;
+            this.shell = shell;
+            this.data = data;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Load an object from storage, and the objects it references up to a depth
+     */
+    private Pinnable loadGraph(String key, String modelName, Class cls, int maxDepth) {
+        LoadContext context = new LoadContext(maxDepth);
+        loadContext.set(context);
+        GlueStore previous = enter();
+        try {
+            Pinnable pinnable = load(context, key, modelName, cls);
+
+            // References found while decoding a record are queued and decoded after it,
+            // so a deep graph does not recurse and a cycle ends on an object already loading
+            PendingLoad pending;
+            while ((pending = context.queue.poll()) != null) {
+                context.depth = pending.depth;
+                Pinnable decoded = decode(pending.data, pending.cls, pending.modelName);
+                if (decoded == null) {
+                    context.objects.remove(pending.key);
+                    continue;
+                }
+
+                copyFields(pending.shell, decoded);
+                Pinnable cached = cacheRead(pending.key, pending.modelName, pending.shell, pending.data);
+                if (cached != null) {
+                    // Another thread cached the object meanwhile, hand out its instance
+                    context.objects.put(pending.key, cached);
+                    context.partial |= memoryCache.isPartial(pending.key, pending.modelName);
+                }
+            }
+
+            if (context.partial) {
+                markPartial(context.objects.keySet());
+            }
+            return context.objects.get(key);
+        } finally {
+            leave(previous);
+            loadContext.remove();
+        }
+    }
+
+    /**
+     * Read a record, and return an empty instance which is filled in once the record
+     * is decoded by loadGraph. Beyond the depth of the load, return a placeholder
+     * without reading storage
+     */
+    private Pinnable load(LoadContext context, String key, String modelName, Class cls) {
+        Pinnable pinnable = context.objects.get(key);
+        if (pinnable != null) return pinnable;
+
+        int depth = context.depth + 1;
+        Pinnable placeholder = placeholders.get(key);
+
+        if (depth > context.maxDepth) {
+            if (placeholder == null) {
+                placeholder = (Pinnable) ClassMetadata.forClass(cls).newInstance();
+                if (placeholder != null) {
+                    placeholder = placeholders.add(key, placeholder);
+                }
+            }
+
+            // Without a no-arg constructor there is no placeholder, load the object now
+            if (placeholder != null) {
+                context.partial = true;
+                return placeholder;
+            }
+        }
+
+        byte[] val = readRecord(key);
+        if (val == null) return null;
+
+        if (placeholder != null) {
+            // Fill in the placeholder handed out by an earlier load
+            placeholders.remove(key);
+            pinnable = placeholder;
+        } else {
+            pinnable = (Pinnable) ClassMetadata.forClass(cls).newInstance();
+        }
+
+        if (pinnable == null) {
+            // No empty instance to hand out, decode the record now
+            int parentDepth = context.depth;
+            context.depth = depth;
+            pinnable = decode(val, cls, modelName);
+            context.depth = parentDepth;
+
+            if (pinnable != null) {
+                Pinnable cached = cacheRead(key, modelName, pinnable, val);
+                if (cached != null) {
+                    pinnable = cached;
+                }
+                context.objects.put(key, pinnable);
+            }
+            return pinnable;
+        }
+
+        context.objects.put(key, pinnable);
+        context.queue.add(new PendingLoad(key, modelName, cls, pinnable, val, depth));
+        return pinnable;
+    }
+
+    public ArrayList getAll(Class cls) {
+        return getAll(cls, defaultDepth);
+    }
+
+    /**
+     * Get all objects of a class, loading their relationships up to a depth
+     * @param cls
+     * @param depth see {@link #get(String, Class, int)}
+     * @return
+     */
+    public ArrayList getAll(Class cls, int depth) {
+        long start = metrics.start();
+        String modelName = getModelNameForClass(cls);
+        ArrayList<String> keys = getAllKeysForModel(modelName);
+        ArrayList objects = loader.load(keys, cls, Math.max(depth, 0));
+        metrics.record(GlueMetrics.Operation.GET_ALL, modelName, start, 0);
+        return objects;
+    }
+
+    /**
+     * @param cls
+     * @return number of objects of a class, without reading them
+     */
+    public int count(Class cls) {
+        String modelName = getModelNameForClass(cls);
+        return keyIndex(modelName).size() - expiry.countExpired(modelName);
+    }
+
+    public ArrayList getMany(Collection<String> uniques, Class cls) {
+        return getMany(uniques, cls, defaultDepth);
+    }
+
+    /**
+     * Get several objects of a class at once. Their records are read from storage in one
+     * batch and decoded in parallel, see {@link #setLoadExecutor(ExecutorService, int)}
+     * @param uniques
+     * @param cls
+     * @param depth see {@link #get(String, Class, int)}
+     * @return objects in the order of uniques, without the ones which do not exist
+     */
+    public ArrayList getMany(Collection<String> uniques, Class cls, int depth) {
+        long start = metrics.start();
+        String modelName = getModelNameForClass(cls);
+        ArrayList<String> keys = new ArrayList<>(uniques.size());
+        for (String unique : uniques) {
+            keys.add(internalKey(modelName, unique));
+        }
+        ArrayList objects = loader.load(keys, cls, Math.max(depth, 0));
+        metrics.record(GlueMetrics.Operation.GET_MANY, modelName, start, 0);
+        return objects;
+    }
+
+    /**
+     * Iterate over all objects of a class, loading each one when it is reached. Objects are
+     * in the order their keys were first saved, which stays the same across calls
+     * @param cls
+     * @return cursor, close it when done
+     */
+    public <T extends Pinnable> Cursor<T> iterate(Class<T> cls) {
+        return iterate(cls, defaultDepth);
+    }
+
+    /**
+     * @param cls
+     * @param depth see {@link #get(String, Class, int)}
+     * @return cursor, close it when done
+     */
+    public <T extends Pinnable> Cursor<T> iterate(Class<T> cls, int depth) {
+        return page(cls, 0, Integer.MAX_VALUE, depth);
+    }
+
+    /**
+     * Iterate over a page of objects of a class, see {@link #iterate(Class)} for the order.
+     * Keys whose object no longer exists are skipped, so a page may hold fewer objects
+     * @param cls
+     * @param offset index of the first key
+     * @param limit maximum number of keys
+     * @return cursor, close it when done
+     */
+    public <T extends Pinnable> Cursor<T> page(Class<T> cls, int offset, int limit) {
+        return page(cls, offset, limit, defaultDepth);
+    }
+
+    public <T extends Pinnable> Cursor<T> page(Class<T> cls, int offset, int limit, int depth) {
+        String modelName = getModelNameForClass(cls);
+        ArrayList<String> keys = getAllKeysForModel(modelName);
+
+        int from = Math.min(Math.max(offset, 0), keys.size());
+        int to = (int) Math.min((long) from + Math.max(limit, 0), keys.size());
+        return new Cursor<>(this, keys.subList(from, to), cls, Math.max(depth, 0));
+    }
+
+    /**
+     * Load an object for a cursor
+     */
+    Pinnable getForCursor(String key, Class cls, int depth) {
+        return getByInternalKey(key, cls, depth);
+    }
+
+    /************************************************************************************
+     * Bulk load
+     ************************************************************************************/
+
+    /**
+     * Decode the records of getMany and getAll on an executor. The calling thread decodes
+     * a share of the records too. By default Glue runs its own pool with a thread for
+     * each processor
+     * @param executor null to use a pool owned by Glue
+     * @param parallelism number of threads decoding a batch, including the calling thread.
+     *                    1 decodes on the calling thread only
+     */
+    public static void setLoadExecutor(ExecutorService executor, int parallelism) {
+        BulkLoader.setExecutor(executor, parallelism);
+    }
+
+    /************************************************************************************
+     * Warm up
+     ************************************************************************************/
+
+    /**
+     * Restore the snapshot of the hot set, then load every object of the hot models, on a
+     * background thread. Call it right after creating the store, so the first screen finds
+     * its objects in memory
+     * @param hotModels classes whose objects are all loaded. Their relationships stay
+     *                  placeholders unless the snapshot or another hot model holds them
+     * @return number of objects in memory once done
+     */
+    public Future<Integer> warmUp(Class... hotModels) {
+        return warmUp.warmUp(hotModels);
+    }
+
+    /**
+     * Restore the snapshot of the hot set, then load some objects of a class, on a
+     * background thread
+     * @param cls
+     * @param hotUniques uniques of the objects to load
+     * @return number of objects in memory once done
+     */
+    public Future<Integer> warmUp(Class cls, Collection<String> hotUniques) {
+        return warmUp.warmUp(cls, hotUniques);
+    }
+
+    /**
+     * Save the hot set as a single value in storage: the records of the objects in memory,
+     * most often and most recently used first. The next pin or delete drops the snapshot, so
+     * it never holds records older than the ones in storage. Save it when the app goes to the
+     * background, and restore it on the next start with {@link #restoreSnapshot()}
+     * @param maxObjects maximum number of objects in the snapshot
+     * @return number of objects saved
+     */
+    public int saveSnapshot(int maxObjects) {
+        return warmUp.saveSnapshot(maxObjects);
+    }
+
+    /**
+     * Load the objects of the snapshot saved by {@link #saveSnapshot(int)} into memory, with
+     * a single read from storage. Their relationships outside the snapshot stay placeholders.
+     * Nothing is restored once the store has written anything, as the snapshot is then gone
+     * @return number of objects restored
+     */
+    public int restoreSnapshot() {
+        return warmUp.restoreSnapshot();
+    }
+
+    /************************************************************************************
+     * FIND
+     ************************************************************************************/
+
+    public ArrayList find(Class cls, String field, Object value) {
+        return find(cls, field, value, defaultDepth);
+    }
+
+    /**
+     * Get objects whose {@link Indexed} field equals a value. Only the records of matching
+     * objects are read
+     * @param cls
+     * @param field name of the field
+     * @param value
+     * @param depth see {@link #get(String, Class, int)}
+     * @return objects in the order they were indexed
+     */
+    public ArrayList find(Class cls, String field, Object value, int depth) {
+        long start = metrics.start();
+        ArrayList objects = loader.load(secondaryIndexes.matches(secondaryIndexes.get(cls, field), value), cls, Math.max(depth, 0));
+        if (start != 0) {
+            metrics.record(GlueMetrics.Operation.FIND, getModelNameForClass(cls), start, 0);
+        }
+        return objects;
+    }
+
+    /**
+     * @return uniques of the objects whose {@link Indexed} field equals a value
+     */
+    public ArrayList<String> findUniques(Class cls, String field, Object value) {
+        long start = metrics.start();
+        ArrayList<String> uniques = uniques(secondaryIndexes.matches(secondaryIndexes.get(cls, field), value));
+        if (start != 0) {
+            metrics.record(GlueMetrics.Operation.FIND, getModelNameForClass(cls), start, 0);
+        }
+        return uniques;
+    }
+
+    public ArrayList findInRange(Class cls, String field, Object from, Object to) {
+        return findInRange(cls, field, from, to, defaultDepth);
+    }
+
+    /**
+     * Get objects whose field is in a range of values, the field must be annotated
+     * with @Indexed(sorted = true)
+     * @param cls
+     * @param field name of the field
+     * @param from lowest value, included, or null for no lower bound
+     * @param to highest value, excluded, or null for no upper bound
+     * @param depth see {@link #get(String, Class, int)}
+     * @return objects in order of their values
+     */
+    public ArrayList findInRange(Class cls, String field, Object from, Object to, int depth) {
+        long start = metrics.start();
+        ArrayList objects = loader.load(secondaryIndexes.matchesInRange(secondaryIndexes.get(cls, field), from, to), cls,
+                Math.max(depth, 0));
+        if (start != 0) {
+            metrics.record(GlueMetrics.Operation.FIND, getModelNameForClass(cls), start, 0);
+        }
+        return objects;
+    }
+
+    /**
+     * @return uniques of the objects whose field is in a range of values,
+     * see {@link #findInRange(Class, String, Object, Object, int)}
+     */
+    public ArrayList<String> findUniquesInRange(Class cls, String field, Object from, Object to) {
+        long start = metrics.start();
+        ArrayList<String> uniques = uniques(secondaryIndexes.matchesInRange(secondaryIndexes.get(cls, field), from, to));
+        if (start != 0) {
+            metrics.record(GlueMetrics.Operation.FIND, getModelNameForClass(cls), start, 0);
+        }
+        return uniques;
+    }
+
+    /**
+     * Find objects by conditions on their fields, see {@link Query}
+     * @param cls
+     * @return a query to add conditions, order and limit to
+     */
+    public <T extends Pinnable> Query<T> query(Class<T> cls) {
+        return new Query<>(this, cls);
+    }
+
+    /**
+     * @return index of a field, or null if the field is not indexed
+     */
+    SecondaryIndex indexFor(Class cls, String fieldName) {
+        return secondaryIndexes.indexFor(cls, fieldName);
+    }
+
+    /**
+     * @return keys of every object of a class, for a query which scans
+     */
+    ArrayList<String> keysForQuery(Class cls) {
+        return getAllKeysForModel(getModelNameForClass(cls));
+    }
+
+    /**
+     * @return number of keys of a class, expired ones included
+     */
+    int keyCountForQuery(Class cls) {
+        return keyIndex(getModelNameForClass(cls)).size();
+    }
+
+    /**
+     * Load objects for a query, without the ones which do not exist
+     */
+    ArrayList loadForQuery(List<String> keys, Class cls, int depth) {
+        return loader.load(keys, cls, depth);
+    }
+
+    int getDefaultDepth() {
+        return defaultDepth;
+    }
+
+    ArrayList<String> uniques(Collection<String> keys) {
+        ArrayList<String> uniques = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            if (!expiry.isExpired(key)) {
+                uniques.add(key.substring(key.indexOf(':') + 1));
+            }
+        }
+        return uniques;
+    }
+
+    /**
+     * Merge second object to first object
+     * @param first
+     * @param second
+     * @return first object
+     */
+    private static Pinnable mergeObject(Pinnable first, Pinnable second) {
+        if (second == null || first.equals(second)) {
+            return first;
+        }
+
+        copyFields(first, second);
+        return first;
+    }
+
+    /**
+     * Copy non null fields of second object to first object
+     */
+    static void copyFields(Pinnable first, Pinnable second) {
+        // Based on assumption that first object and second object are same class
+        ModelAdapter adapter = ModelAdapters.forClass(second.getClass());
+        if (adapter != null) {
+            adapter.merge(first, second);
+        } else {
+            ClassMetadata.forClass(second.getClass()).merge(first, second);
+        }
+    }
+
+    /************************************************************************************
+     * Expiry
+     ************************************************************************************/
+
+    /**
+     * Keep objects of a model valid for a time after they are pinned, overrides
+     * {@link ModelName#ttlMillis()}. Applies to objects pinned from now on
+     * @param cls
+     * @param ttlMillis time to live in milliseconds, 0 for ever
+     */
+    public void setModelTtl(Class cls, long ttlMillis) {
+        expiry.setModelTtl(getModelNameForClass(cls), ttlMillis);
+    }
+
+    /**
+     * Replace the time objects expire against, so tests can expire them without waiting
+     * @param clock null for the system clock
+     */
+    void setClock(Expiry.Clock clock) {
+        expiry.setClock(clock);
+    }
+
+    /**
+     * @param key internal key of an object
+     * @return true if the object expired, a key which cannot expire is never expired
+     */
+    boolean isExpired(String key) {
+        return expiry.isExpired(key);
+    }
+
+    /**
+     * Delete expired objects, with their patches and index entries, of every model this
+     * store has used. Each batch is deleted in a single write under the lock of its model,
+     * and observers are told as for any delete
+     * @param batchSize maximum number of objects deleted in one write
+     * @return number of objects deleted
+     */
+    public int sweepExpired(int batchSize) {
+        return expiry.sweep(batchSize);
+    }
+
+    /**
+     * Sweep expired objects on a background thread, see {@link #sweepExpired(int)}
+     * @param intervalMillis time between two sweeps
+     * @param batchSize maximum number of objects deleted in one write
+     */
+    public void startSweeper(long intervalMillis, int batchSize) {
+        expiry.startSweeper(intervalMillis, batchSize);
+    }
+
+    public void stopSweeper() {
+        expiry.stopSweeper();
+    }
+
+    /************************************************************************************
+     * Observe
+     ************************************************************************************/
+
+    /**
+     * Be told of changes to objects of a class: pins, deletes, deleteAll and clearAll. The
+     * changes of a batch come in one event, see {@link ChangeEvent}
+     * @param cls
+     * @param listener
+     */
+    public void observe(Class cls, ChangeListener listener) {
+        notifier.add(listener, getModelNameForClass(cls), null, null);
+    }
+
+    /**
+     * Be told of changes to a single object
+     * @param cls
+     * @param unique
+     * @param listener
+     */
+    public void observe(Class cls, String unique, ChangeListener listener) {
+        notifier.add(listener, getModelNameForClass(cls), unique, null);
+    }
+
+    /**
+     * Be told of changes to the objects matching the conditions of a query. A pinned object
+     * which does not match is deleted in the event. Order, offset and limit are not applied
+     * @param query a query of this store
+     * @param listener
+     */
+    public void observe(Query query, ChangeListener listener) {
+        if (query.getStore() != this) {
+            throw new IllegalArgumentException("Query belongs to another store");
+        }
+        notifier.add(listener, getModelNameForClass(query.getModelClass()), null, query);
+    }
+
+    /**
+     * Stop every observation of a listener. An event already being delivered still arrives
+     * @param listener
+     */
+    public void removeObserver(ChangeListener listener) {
+        notifier.remove(listener);
+    }
+
+    /**
+     * Deliver changes on an executor, for example one posting to the main thread. Each
+     * listener gets one event at a time, in the order of the changes
+     * @param executor null to deliver on a background thread owned by the store
+     */
+    public void setChangeExecutor(Executor executor) {
+        notifier.setExecutor(executor);
+    }
+
+    /************************************************************************************
+     * PIN and DELETE
+     ************************************************************************************/
+
+    /**
+     * Save an object to both memory and preference
+     * @param object
+     */
+    public void pin(Pinnable object) {
+        if (object == null) return;
+
+        ArrayList<Pinnable> list = new ArrayList<>();
+        list.add(object);
+        pinAll(list);
+    }
+
+    /**
+     * Save objects and their relationships to both memory and preference, in a single commit.
+     * Batches are safe to pin from several threads: the models a batch touches are locked
+     * while it is merged and written, so batches on different models run side by side
+     * @param collection
+     */
+    public void pinAll(Collection collection) {
+        pinAll(collection, 0);
+    }
+
+    /**
+     * Save an object which stays valid for a time, see {@link #pinAll(Collection, long)}
+     * @param object
+     * @param ttlMillis
+     */
+    public void pin(Pinnable object, long ttlMillis) {
+        if (object == null) return;
+
+        ArrayList<Pinnable> list = new ArrayList<>();
+        list.add(object);
+        pinAll(list, ttlMillis);
+    }
+
+    /**
+     * Save objects which stay valid for a time. Once it is over, get and find treat them as
+     * missing, until pinned again. Their relationships keep the TTL of their model
+     * @param collection
+     * @param ttlMillis time to live in milliseconds, 0 for the TTL of their model
+     */
+    public void pinAll(Collection collection, long ttlMillis) {
+        if (collection == null || collection.size() == 0) return;
+
+        long start = metrics.start();
+        HashSet<String> models = modelsOf(collection);
+        ArrayList<ReentrantLock> locks = lockModels(models);
+        try {
+            pinLocked(collection, ttlMillis);
+        } finally {
+            unlockModels(locks);
+        }
+        metrics.record(GlueMetrics.Operation.PIN, models.size() == 1 ? models.iterator().next() : null,
+                start, 0);
+    }
+
+    private void pinLocked(Collection collection, long ttlMillis) {
+        // References are written as keys of this store
+        GlueStore previous = enter();
+        try {
+            pinObjects(collection, ttlMillis);
+        } finally {
+            leave(previous);
+        }
+    }
+
+    private void pinObjects(Collection collection, long ttlMillis) {
+        // Objects and model indexes touched by this batch, written in a single commit
+        LinkedHashMap<String, Pinnable> objects = new LinkedHashMap<>();
+        HashSet<KeyIndex> dirtyIndexes = new HashSet<>();
+
+        HashMap<String, Long> expiries = new HashMap<>();
+        collectChanges(collection, objects, dirtyIndexes, expiries, ttlMillis);
+
+        // An unchanged object pinned again still has its expiry renewed
+        if (objects.size() == 0 && expiries.isEmpty()) return;
+
+        // Serialize once all merges are done, so each record captures the final state
+        LinkedHashMap<String, byte[]> records = new LinkedHashMap<>();
+        ArrayList<String> unchanged = new ArrayList<>();
+        HashMap<String, Long> written = new HashMap<>();
+        for (String key : objects.keySet()) {
+            Pinnable object = objects.get(key);
+            String modelName = getModelName(object);
+            long start = metrics.start();
+            byte[] data = JSONHelper.encode(object);
+            metrics.record(GlueMetrics.Operation.ENCODE, modelName, start, data == null ? 0 : data.length);
+
+            // Now that the encoded length is known, update the weight in memory cache
+            if (data != null) {
+                memoryCache.put(key, modelName, object, data.length);
+
+                // A merge often leaves the object as it was saved, nothing to write then
+                Long fingerprint = fingerprint(data);
+                if (fingerprint.equals(memoryCache.getFingerprint(key, modelName))) {
+                    unchanged.add(key);
+                    continue;
+                }
+                written.put(key, fingerprint);
+            }
+            records.put(key, data);
+        }
+
+        for (String key : unchanged) {
+            objects.remove(key);
+        }
+        skippedFingerprint.addAndGet(unchanged.size());
+
+        HashMap<String, byte[]> buffers = new HashMap<>();
+        ArrayList<String> deletes = new ArrayList<>();
+        writeRecords(records, buffers, deletes);
+
+        // Only the segments of model indexes which have new keys are written
+        for (KeyIndex index : dirtyIndexes) {
+            writeIndex(index, buffers, deletes);
+        }
+
+        // Like model indexes, secondary indexes only write the segments of changed keys
+        for (SecondaryIndex index : secondaryIndexes.update(objects)) {
+            index.writeChanges(buffers, deletes);
+        }
+        for (SecondaryIndex index : expiry.update(expiries)) {
+            index.writeChanges(buffers, deletes);
+        }
+
+        // Save to disk
+        if (!buffers.isEmpty() || !deletes.isEmpty()) {
+            warmUp.dropSnapshot(deletes);
+            storage.write(buffers, deletes);
+        }
+
+        // Only records which were written match their fingerprints
+        for (Map.Entry<String, Long> entry : written.entrySet()) {
+            Pinnable object = objects.get(entry.getKey());
+            memoryCache.setFingerprint(entry.getKey(), getModelName(object), object, entry.getValue(), true);
+        }
+
+        if (!objects.isEmpty() && notifier.hasObservers()) {
+            notifier.saved(objects);
+        }
+    }
+
+    /**
+     * Add the changed segments of a model index to a batch of writes
+     */
+    private void writeIndex(KeyIndex index, Map<String, byte[]> buffers, Collection<String> deletes) {
+        long start = metrics.start();
+        long bytes = index.writeChanges(buffers, deletes);
+        if (start != 0) {
+            metrics.record(GlueMetrics.Operation.INDEX_WRITE, index.modelName, start, bytes);
+            metrics.recordIndexSize(index.modelName, index.size());
+        }
+    }
+
+    /**
+     * Add changed records to a batch of writes. A record of which only a few fields changed
+     * is written as a patch, see {@link RecordPatch}
+     * @param records new records by key
+     * @param buffers
+     * @param deletes
+     */
+    private void writeRecords(Map<String, byte[]> records, Map<String, byte[]> buffers,
+                                     Collection<String> deletes) {
+        ArrayList<String> keys = new ArrayList<>(records.size() * 2);
+        for (String key : records.keySet()) {
+            keys.add(key);
+            keys.add(RecordPatch.patchKey(key));
+        }
+        Map<String, byte[]> stored = storage.get(keys);
+
+        for (Map.Entry<String, byte[]> entry : records.entrySet()) {
+            String key = entry.getKey();
+            byte[] data = entry.getValue();
+            String patchKey = RecordPatch.patchKey(key);
+            byte[] patch = stored.get(patchKey);
+            byte[] update = data == null ? null : RecordPatch.diff(stored.get(key), patch, data);
+
+            if (update == null) {
+                // The whole record, which replaces any patch
+                buffers.put(key, data);
+                if (patch != null) {
+                    deletes.add(patchKey);
+                }
+                recordsWritten.incrementAndGet();
+                bytesWritten.addAndGet(data == null ? 0 : data.length);
+            } else if (update != patch) {
+                buffers.put(patchKey, update);
+                recordsPatched.incrementAndGet();
+                bytesWritten.addAndGet(update.length);
+            }
+        }
+    }
+
+    /**
+     * Read records, with their patches applied
+     * @return records by key, keys which do not exist are left out
+     */
+    Map<String, byte[]> readRecords(Collection<String> keys) {
+        ArrayList<String> storageKeys = new ArrayList<>(keys.size() * 2);
+        for (String key : keys) {
+            storageKeys.add(key);
+            storageKeys.add(RecordPatch.patchKey(key));
+        }
+
+        Map<String, byte[]> values = storage.get(storageKeys);
+        HashMap<String, byte[]> records = new HashMap<>();
+        for (String key : keys) {
+            byte[] base = values.get(key);
+            if (base != null) {
+                records.put(key, RecordPatch.apply(base, values.get(RecordPatch.patchKey(key))));
+            }
+        }
+        return records;
+    }
+
+    private byte[] readRecord(String key) {
+        return readRecords(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Write patches of a model back into their records, so reading them costs no more than
+     * reading any other record. Patches are also folded on their own once they grow
+     * @param cls
+     */
+    public void foldPatches(Class cls) {
+        String modelName = getModelNameForClass(cls);
+        ReentrantLock lock = modelLock(modelName);
+        lock.lock();
+        try {
+            ArrayList<String> patchKeys = new ArrayList<>();
+            ArrayList<String> keys = getAllKeysForModel(modelName);
+            for (String key : keys) {
+                patchKeys.add(RecordPatch.patchKey(key));
+            }
+
+            Map<String, byte[]> patches = storage.get(patchKeys);
+            if (patches.isEmpty()) return;
+
+            ArrayList<String> patched = new ArrayList<>();
+            for (String key : keys) {
+                if (patches.containsKey(RecordPatch.patchKey(key))) {
+                    patched.add(key);
+                }
+            }
+
+            HashMap<String, byte[]> buffers = new HashMap<>(readRecords(patched));
+            storage.write(buffers, patches.keySet());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 64-bit FNV-1a hash of an encoded record. Two encodings with the same fingerprint are
+     * taken to be the same record
+     */
+    private static Long fingerprint(byte[] data) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : data) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Cache an object read from storage along with the fingerprint of its record, unless
+     * another thread cached the key meanwhile
+     * @return the object already cached, or null
+     */
+    Pinnable cacheRead(String key, String modelName, Pinnable object, byte[] data) {
+        Pinnable cached = memoryCache.putIfAbsent(key, modelName, object, data.length);
+        if (cached == null) {
+            memoryCache.setFingerprint(key, modelName, object, fingerprint(data), false);
+        }
+        return cached;
+    }
+
+    /**
+     * Merge a collection and its relationships into memory cache, and gather
+     * the records and model indexes which need to be written
+     * @param collection
+     * @param objects changed objects by key
+     * @param dirtyIndexes model indexes which have new keys
+     */
+    private void collectChanges(Collection collection,
+                                       LinkedHashMap<String, Pinnable> objects,
+                                       HashSet<KeyIndex> dirtyIndexes,
+                                       Map<String, Long> expiries,
+                                       long ttlMillis) {
+        if (collection == null || collection.size() == 0) return;
+
+        // Walk the graph with a work list rather than recursion, so its depth is not limited
+        // by the stack. Each instance is visited once, which also ends cycles. Objects of
+        // the collection map to true, relationships to false
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+        ArrayDeque<Pinnable> queue = new ArrayDeque<>();
+        for (Object obj : collection) {
+            if (obj != null && visited.put(obj, Boolean.TRUE) == null) {
+                queue.add((Pinnable) obj);
+            }
+        }
+
+        // Whether the pinned graph holds a placeholder, and whether one may now be reachable
+        // from objects in memory which had their whole graph loaded
+        boolean partial = false;
+        boolean mergedComplete = false;
+
+        long now = expiry.now();
+        Pinnable object;
+        while ((object = queue.poll()) != null) {
+            // Nothing to save for a relationship which was never loaded
+            if (placeholders.keyOf(object) != null) {
+                partial = true;
+                continue;
+            }
+
+            Class cls = object.getClass();
+            String modelName = getModelNameForClass(cls);
+            String key = internalKey(modelName, object.unique());
+
+            // Pinning again renews the expiry, even when nothing changed
+            expiry.collect(expiries, key, modelName, visited.get(object) ? ttlMillis : 0, now);
+
+            // Objects merged earlier in this batch may have been evicted from memory
+            // cache already, and are not in storage yet
+            Pinnable existingObj = objects.get(key);
+            if (existingObj == null) {
+                // Relationships of the existing object are not needed to merge
+                existingObj = getByInternalKey(key, cls, 0);
+            }
+            boolean existingPartial = existingObj != null && memoryCache.isPartial(key, modelName);
+            partial |= existingPartial;
+
+            // Do nothing if no changes
+            if (object == existingObj || object.equals(existingObj)) {
+                skippedEqual.incrementAndGet();
+                continue;
+            }
+
+            // Merge new object to existing object, return existing object
+            if (existingObj == null) {
+                existingObj = object;
+            } else {
+                mergeObject(existingObj, object);
+                mergedComplete |= !existingPartial;
+            }
+
+            // Update memory cache. Objects are serialized once the walk is over, so an
+            // object reached several times is still written once
+            memoryCache.put(key, modelName, existingObj, 0);
+            objects.put(key, existingObj);
+
+            // Keep track of all objects belong to a class name
+            KeyIndex index = keyIndex(modelName);
+            if (index.add(key)) {
+                dirtyIndexes.add(index);
+            }
+
+            // Check relationships of the new object, the ones it leaves out are saved already.
+            // These are the objects modelsOf found, so their models are locked
+            for (Pinnable relationship : getRelationships(object)) {
+                if (visited.put(relationship, Boolean.FALSE) == null) {
+                    queue.add(relationship);
+                }
+            }
+        }
+
+        if (partial && mergedComplete) {
+            // Objects which reference a merged object do not know, so the next get of
+            // any of them walks its graph again
+            memoryCache.markAllPartial();
+        } else if (partial) {
+            markPartial(objects.keySet());
+        }
+    }
+
+    /**
+     * Models of the objects reachable from a collection, which a pin may change
+     */
+    private HashSet<String> modelsOf(Collection collection) {
+        HashSet<String> models = new HashSet<>();
+        IdentityHashMap<Object, Boolean> visited = new IdentityHashMap<>();
+        ArrayDeque<Pinnable> queue = new ArrayDeque<>();
+        for (Object obj : collection) {
+            if (obj != null && visited.put(obj, Boolean.TRUE) == null) {
+                queue.add((Pinnable) obj);
+            }
+        }
+
+        Pinnable object;
+        while ((object = queue.poll()) != null) {
+            if (placeholders.keyOf(object) != null) continue;
+
+            models.add(getModelName(object));
+            for (Pinnable relationship : getRelationships(object)) {
+                if (visited.put(relationship, Boolean.TRUE) == null) {
+                    queue.add(relationship);
+                }
+            }
+        }
+        return models;
+    }
+
+    ReentrantLock modelLock(String modelName) {
+        ReentrantLock lock = modelLocks.get(modelName);
+        if (lock == null) {
+            ReentrantLock created = new ReentrantLock();
+            lock = modelLocks.putIfAbsent(modelName, created);
+            if (lock == null) {
+                lock = created;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * Lock models in order of their names, so two batches never wait on each other
+     */
+    ArrayList<ReentrantLock> lockModels(Collection<String> modelNames) {
+        ArrayList<ReentrantLock> locks = new ArrayList<>();
+        for (String modelName : new TreeSet<>(modelNames)) {
+            ReentrantLock lock = modelLock(modelName);
+            lock.lock();
+            locks.add(lock);
+        }
+        return locks;
+    }
+
+    void unlockModels(List<ReentrantLock> locks) {
+        for (int i = locks.size() - 1; i >= 0; i--) {
+            locks.get(i).unlock();
+        }
+    }
+
+    public void deleteAll(String modelName) {
+        long start = metrics.start();
+        ReentrantLock lock = modelLock(modelName);
+        lock.lock();
+        try {
+            deleteAllLocked(modelName);
+        } finally {
+            lock.unlock();
+        }
+        metrics.record(GlueMetrics.Operation.DELETE, modelName, start, 0);
+    }
+
+    private void deleteAllLocked(String modelName) {
+        KeyIndex index = keyIndex(modelName);
+        ArrayList<String> keys = index.keys();
+
+        for (String key : keys) {
+            placeholders.remove(key);
+        }
+        memoryCache.removeModel(modelName);
+        keyIndexes.remove(modelName);
+
+        // Indexes by storage name, null for the ones this store has not read
+        HashMap<String, SecondaryIndex> indexes = new HashMap<>();
+        indexes.put(Expiry.indexName(modelName), expiry.remove(modelName));
+        secondaryIndexes.removeModel(modelName, modelClasses.get(modelName), indexes);
+
+        ArrayList<String> snapshot = new ArrayList<>();
+        warmUp.dropSnapshot(snapshot);
+        if (!snapshot.isEmpty()) {
+            storage.delete(snapshot);
+        }
+
+        // A model kept in a shard of its own is dropped with its shard
+        if (!storage.clearModel(modelName)) {
+            deleteModelKeys(index, indexes, keys);
+        }
+
+        if (notifier.hasObservers()) {
+            notifier.cleared(modelName);
+        }
+    }
+
+    /**
+     * Delete records, patches and indexes of a model from a shared storage
+     */
+    private void deleteModelKeys(KeyIndex index, Map<String, SecondaryIndex> indexes, ArrayList<String> keys) {
+        int count = keys.size();
+        for (int i = 0; i < count; i++) {
+            keys.add(RecordPatch.patchKey(keys.get(i)));
+        }
+        keys.addAll(index.storageKeys());
+
+        for (Map.Entry<String, SecondaryIndex> entry : indexes.entrySet()) {
+            SecondaryIndex secondary = entry.getValue();
+            if (secondary == null) {
+                // The manifest of a stored index lists its segments
+                try {
+                    secondary = SecondaryIndex.load(storage, entry.getKey(), false);
+                } catch (RuntimeException e) {
+                    keys.add(entry.getKey());
+                    keys.addAll(KeyIndex.storedSegments(storage.keys(), entry.getKey()));
+                    continue;
+                }
+            }
+            if (secondary != null) {
+                keys.addAll(secondary.storageKeys());
+            } else {
+                keys.add(entry.getKey());
+            }
+        }
+
+        storage.delete(keys);
+    }
+
+    public void deleteObject(Pinnable object) {
+        ArrayList<Pinnable> list = new ArrayList<>();
+        list.add(object);
+        String modelName = getModelName(object);
+        deleteObjects(list, modelName);
+    }
+
+    public void deleteObjects(Collection<Pinnable> collection, String modelName) {
+        long start = metrics.start();
+        ReentrantLock lock = modelLock(modelName);
+        lock.lock();
+        try {
+            deleteLocked(collection, modelName);
+        } finally {
+            lock.unlock();
+        }
+        metrics.record(GlueMetrics.Operation.DELETE, modelName, start, 0);
+    }
+
+    private void deleteLocked(Collection<Pinnable> collection, String modelName) {
+        LinkedHashMap<String, Class> objects = new LinkedHashMap<>();
+        for (Pinnable object : collection) {
+            String k = internalKey(object);
+            if (k != null) {
+                objects.put(k, object.getClass());
+            }
+        }
+        deleteKeysLocked(modelName, objects);
+    }
+
+    /**
+     * @param objects keys to delete, with the class of their object
+     */
+    void deleteKeysLocked(String modelName, Map<String, Class> objects) {
+        ArrayList<String> keys = new ArrayList<>();
+        ArrayList<String> deleted = new ArrayList<>();
+
+        KeyIndex keyIndex = keyIndex(modelName);
+        SecondaryIndex expiryIndex = expiry.index(modelName);
+        HashSet<SecondaryIndex> changed = new HashSet<>();
+
+        for (Map.Entry<String, Class> object : objects.entrySet()) {
+            String k = object.getKey();
+            Class cls = object.getValue();
+
+            keys.add(k);
+            keys.add(RecordPatch.patchKey(k));
+            deleted.add(k);
+            memoryCache.remove(k, modelName);
+            placeholders.remove(k);
+            keyIndex.remove(k);
+            if (expiryIndex.remove(k)) {
+                changed.add(expiryIndex);
+            }
+
+            for (Field field : ClassMetadata.forClass(cls).indexedFields) {
+                SecondaryIndex index = secondaryIndexes.get(modelName, cls, field);
+                if (index.remove(k)) {
+                    changed.add(index);
+                }
+            }
+        }
+
+        // Update underlying preference
+        HashMap<String, byte[]> buffers = new HashMap<>();
+        writeIndex(keyIndex, buffers, keys);
+        for (SecondaryIndex index : changed) {
+            index.writeChanges(buffers, keys);
+        }
+        warmUp.dropSnapshot(keys);
+        storage.write(buffers, keys);
+
+        if (!deleted.isEmpty() && notifier.hasObservers()) {
+            notifier.deleted(modelName, deleted);
+        }
+    }
+
+    /**
+     * Remove every object. Unlike pins and deletes, not safe while other threads use Glue
+     */
+    public void clearAll() {
+        warmUp.clearStorage();
+        forgetObjects();
+
+        if (notifier.hasObservers()) {
+            notifier.clearedAll();
+        }
+    }
+
+    /**
+     * Forget objects and indexes read from storage
+     */
+    private void forgetObjects() {
+        memoryCache.clear();
+        placeholders.clear();
+        keyIndexes.clear();
+        secondaryIndexes.clear();
+        expiry.clear();
+    }
+
+    public void clearMemoryCache() {
+        memoryCache.clear();
+    }
+}
@@ -0,0 +1,24 @@
+package me.thomasdao.glue;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Keep a secondary index on a field, so objects can be found by its value without reading
+ * every record of the model, see {@link Glue#find(Class, String, Object)}.
+ *
+ * Strings, numbers, booleans, enums, dates and relationships can be indexed. A relationship
+ * is indexed by the key of the object it holds. Null values are not indexed.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.FIELD)
+public @interface Indexed {
+
+    /**
+     * Keep values in order, so objects can also be found by a range of values,
+     * see {@link Glue#findInRange(Class, String, Object, Object)}
+     */
+    boolean sorted() default false;
+}
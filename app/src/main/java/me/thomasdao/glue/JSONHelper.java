@@ -5,23 +5,115 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
+import java.util.concurrent.CopyOnWriteArrayList;
+
 /**
  * Created by thomasdao on 21/12/15.
+ *
+ * Encode and decode stored records. Records are written with the current {@link RecordCodec},
+ * JSON by default, and read with whichever known codec accepts their header. JSON and Smile
+ * records are always read, as Smile records start with a header JSON never does.
+ *
+ * {@link #OBJECT_MAPPER}, {@link #toJSON(Object)} and {@link #fromJSON(String, Class)} write
+ * relationships as nested objects. Only the record codecs write them as references.
  */
 public class JSONHelper {
-
     public static ObjectMapper getObjectMapper() {
-        ObjectMapper objectMapper = new ObjectMapper();
+        return configure(new ObjectMapper());
+    }
+
+    private static ObjectMapper configure(ObjectMapper objectMapper) {
         objectMapper.configure(
                 DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
         objectMapper.configure(JsonParser.Feature.ALLOW_COMMENTS, true);
         return objectMapper;
     }
 
+    /**
+     * Apply the settings of stored records to a mapper of any data format: relationships
+     * are written as "modelName:unique" references, resolved against the store reading them
+     */
+    static ObjectMapper recordMapper(ObjectMapper objectMapper) {
+        configure(objectMapper);
+        objectMapper.registerModule(References.module());
+        return objectMapper;
+    }
+
     public static final ObjectMapper OBJECT_MAPPER = getObjectMapper();
 
-    public static String toJSON(Object obj) {
+    public static final RecordCodec JSON = new JsonRecordCodec();
+
+    public static final RecordCodec SMILE = new SmileRecordCodec();
+
+    private static volatile RecordCodec codec = JSON;
+
+    /**
+     * Codecs tried in order when reading, newest first
+     */
+    private static final CopyOnWriteArrayList<RecordCodec> codecs = new CopyOnWriteArrayList<>();
+
+    static {
+        codecs.add(JSON);
+        codecs.add(SMILE);
+    }
+
+    /**
+     * Write new records with a codec. Records written by JSON, Smile, or any codec set before,
+     * can still be read. A codec replaces a known one of the same class
+     * @param recordCodec
+     */
+    public static synchronized void setRecordCodec(RecordCodec recordCodec) {
+        for (RecordCodec known : codecs) {
+            if (known.getClass() == recordCodec.getClass()) {
+                codecs.remove(known);
+            }
+        }
+        codecs.add(0, recordCodec);
+        codec = recordCodec;
+    }
+
+    public static RecordCodec getRecordCodec() {
+        return codec;
+    }
+
+    /**
+     * @return record for an object, or null if it cannot be encoded
+     */
+    public static byte[] encode(Object obj) {
+        try {
+            return codec.encode(obj);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return object in a record, or null if no codec can decode it
+     */
+    public static Pinnable decode(byte[] data, Class cls) {
+        RecordCodec recordCodec = codecFor(data);
+        if (recordCodec == null) return null;
 
+        try {
+            return (Pinnable) recordCodec.decode(data, cls);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * @return codec which wrote a record, or null if no known codec accepts it
+     */
+    static RecordCodec codecFor(byte[] data) {
+        for (RecordCodec recordCodec : codecs) {
+            if (recordCodec.accepts(data)) return recordCodec;
+        }
+        return null;
+    }
+
+    public static String toJSON(Object obj) {
         try {
             return OBJECT_MAPPER.writeValueAsString(obj);
         } catch (JsonProcessingException e) {
@@ -0,0 +1,70 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Base of codecs built on a Jackson data format. Models with a generated {@link ModelAdapter}
+ * are written and read with the streaming API, anything else goes through databind.
+ */
+public abstract class JacksonRecordCodec implements RecordCodec {
+    protected final ObjectMapper mapper;
+
+    protected JacksonRecordCodec(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public ObjectMapper getObjectMapper() {
+        return mapper;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        ModelAdapter adapter = value instanceof Pinnable ? ModelAdapters.forClass(value.getClass()) : null;
+        if (adapter == null) {
+            return mapper.writeValueAsBytes(value);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        JsonGenerator generator = mapper.getFactory().createGenerator(out);
+        adapter.write(generator, (Pinnable) value);
+        generator.close();
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> cls) throws IOException {
+        ModelAdapter adapter = ModelAdapters.forClass(cls);
+        if (adapter == null) {
+            return mapper.readValue(data, cls);
+        }
+
+        JsonParser parser = mapper.getFactory().createParser(data);
+        try {
+            parser.nextToken();
+            return cls.cast(adapter.read(parser));
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * @param data record accepted by this codec
+     * @return fields of the record, or null if it is not an object
+     * @throws IOException
+     */
+    ObjectNode readTree(byte[] data) throws IOException {
+        JsonNode node = mapper.readTree(data);
+        return node instanceof ObjectNode ? (ObjectNode) node : null;
+    }
+
+    byte[] encodeTree(JsonNode node) throws IOException {
+        return mapper.writeValueAsBytes(node);
+    }
+}
@@ -0,0 +1,38 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Records as UTF-8 JSON text. JSON has no header, a record is taken as JSON when it starts
+ * like a JSON document, which covers every record written before codecs were introduced.
+ */
+public class JsonRecordCodec extends JacksonRecordCodec {
+
+    public JsonRecordCodec() {
+        super(JSONHelper.recordMapper(new ObjectMapper()));
+    }
+
+    @Override
+    public boolean accepts(byte[] data) {
+        for (byte b : data) {
+            switch (b) {
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    continue;
+                case '{':
+                case '[':
+                case '"':
+                case '-':
+                case 't':
+                case 'f':
+                case 'n':
+                    return true;
+                default:
+                    return b >= '0' && b <= '9';
+            }
+        }
+        return false;
+    }
+}
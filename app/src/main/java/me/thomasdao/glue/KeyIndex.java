@@ -0,0 +1,300 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.databind.JavaType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keys of all objects of a model, in the order they were first saved. The index is read
+ * once and kept in memory.
+ *
+ * Keys are stored in segments of up to {@link #SEGMENT_SIZE} keys, each a json array under
+ * "modelName#id". The "modelName" key holds the ids of the segments in order, as
+ * {"segments":[0,1,...]}. A new key is appended to the last segment, and removing a key only
+ * rewrites its own segment, so a change costs a segment rather than the whole index.
+ *
+ * Before segments, "modelName" held a json array of every key. Such an index is read as it is,
+ * and split into segments the next time it changes.
+ *
+ * An index whose manifest or one of its segments cannot be read is rebuilt from the records
+ * in storage, rather than kept without the keys it lost and written back that way.
+ *
+ * Methods are synchronized, so the index can be read while a writer holding the model lock
+ * changes it.
+ */
+final class KeyIndex {
+    static final int SEGMENT_SIZE = 256;
+
+    private static final JavaType KEY_LIST = JSONHelper.OBJECT_MAPPER.getTypeFactory()
+            .constructCollectionType(ArrayList.class, String.class);
+
+    private static final class Segment {
+        final int id;
+        final LinkedHashSet<String> keys = new LinkedHashSet<>();
+
+        Segment(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Stored form of the list of segments
+     */
+    static final class Manifest {
+        public List<Integer> segments = new ArrayList<>();
+    }
+
+    final String modelName;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final HashMap<String, Segment> segmentOf = new HashMap<>();
+    private int nextId;
+
+    // Changes not written yet
+    private final LinkedHashSet<Segment> dirtySegments = new LinkedHashSet<>();
+    private final ArrayList<Integer> droppedSegments = new ArrayList<>();
+    private boolean manifestDirty;
+
+    private KeyIndex(String modelName) {
+        this.modelName = modelName;
+    }
+
+    private String segmentKey(int id) {
+        return modelName + "#" + id;
+    }
+
+    /**
+     * Read the index of a model from storage
+     */
+    static KeyIndex load(Storage storage, String modelName) {
+        KeyIndex index = new KeyIndex(modelName);
+        byte[] data = storage.get(modelName);
+        if (data == null || data.length == 0) return index;
+
+        try {
+            index.read(storage, data);
+            return index;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return rebuild(storage, modelName);
+        }
+    }
+
+    private void read(Storage storage, byte[] data) throws IOException {
+        if (firstByte(data) == '[') {
+            // A single array from before segments. Adding its keys leaves every segment
+            // to be written, so the index is split on the next write
+            ArrayList<String> keys = JSONHelper.OBJECT_MAPPER.readValue(data, KEY_LIST);
+            for (String key : keys) {
+                add(key);
+            }
+            return;
+        }
+
+        Manifest manifest = JSONHelper.OBJECT_MAPPER.readValue(data, Manifest.class);
+        ArrayList<String> segmentKeys = new ArrayList<>();
+        for (Integer id : manifest.segments) {
+            segmentKeys.add(segmentKey(id));
+        }
+
+        Map<String, byte[]> values = storage.get(segmentKeys);
+        for (Integer id : manifest.segments) {
+            Segment segment = new Segment(id);
+            byte[] value = values.get(segmentKey(id));
+            if (value == null) {
+                throw new IOException("Missing segment " + segmentKey(id));
+            }
+
+            ArrayList<String> keys = JSONHelper.OBJECT_MAPPER.readValue(value, KEY_LIST);
+            for (String key : keys) {
+                if (!segmentOf.containsKey(key) && segment.keys.add(key)) {
+                    segmentOf.put(key, segment);
+                }
+            }
+            segments.add(segment);
+            nextId = Math.max(nextId, id + 1);
+        }
+    }
+
+    /**
+     * Index every record of a model in storage, in the order of their keys since the order they
+     * were saved in is lost. Every segment is written on the next write, and stored segments
+     * are dropped
+     */
+    static KeyIndex rebuild(Storage storage, String modelName) {
+        KeyIndex index = new KeyIndex(modelName);
+        Set<String> stored = storage.keys();
+
+        ArrayList<String> records = new ArrayList<>();
+        String prefix = modelName + ":";
+        for (String key : stored) {
+            if (key.startsWith(prefix)) {
+                records.add(key);
+            }
+        }
+        Collections.sort(records);
+
+        // New segments take ids after the stored ones, so puts and deletes do not overlap
+        ArrayList<String> segmentKeys = storedSegments(stored, modelName);
+        for (String key : segmentKeys) {
+            int id = Integer.parseInt(key.substring(modelName.length() + 1));
+            index.droppedSegments.add(id);
+            index.nextId = Math.max(index.nextId, id + 1);
+        }
+
+        for (String key : records) {
+            index.add(key);
+        }
+        index.manifestDirty = true;
+        return index;
+    }
+
+    /**
+     * @return keys of the stored segments of an index, "name#id" with a numeric id
+     */
+    static ArrayList<String> storedSegments(Collection<String> stored, String name) {
+        ArrayList<String> segments = new ArrayList<>();
+        String prefix = name + "#";
+        for (String key : stored) {
+            if (key.length() > prefix.length() && key.startsWith(prefix) && isNumber(key, prefix.length())) {
+                segments.add(key);
+            }
+        }
+        return segments;
+    }
+
+    private static boolean isNumber(String key, int start) {
+        for (int i = start; i < key.length(); i++) {
+            if (key.charAt(i) < '0' || key.charAt(i) > '9') return false;
+        }
+        return true;
+    }
+
+    private static byte firstByte(byte[] data) {
+        for (byte b : data) {
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') return b;
+        }
+        return 0;
+    }
+
+    synchronized int size() {
+        return segmentOf.size();
+    }
+
+    synchronized boolean contains(String key) {
+        return segmentOf.containsKey(key);
+    }
+
+    /**
+     * @return keys in the order they were first saved
+     */
+    synchronized ArrayList<String> keys() {
+        ArrayList<String> keys = new ArrayList<>(size());
+        for (Segment segment : segments) {
+            keys.addAll(segment.keys);
+        }
+        return keys;
+    }
+
+    /**
+     * @return true if the key is new
+     */
+    synchronized boolean add(String key) {
+        if (segmentOf.containsKey(key)) return false;
+
+        Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (last == null || last.keys.size() >= SEGMENT_SIZE) {
+            last = new Segment(nextId++);
+            segments.add(last);
+            manifestDirty = true;
+        }
+
+        last.keys.add(key);
+        segmentOf.put(key, last);
+        dirtySegments.add(last);
+        return true;
+    }
+
+    /**
+     * @return true if the key was in the index
+     */
+    synchronized boolean remove(String key) {
+        Segment segment = segmentOf.remove(key);
+        if (segment == null) return false;
+
+        segment.keys.remove(key);
+        if (segment.keys.isEmpty() && segment != segments.get(segments.size() - 1)) {
+            // Keep the last segment to append to, drop any other once it is empty
+            segments.remove(segment);
+            dirtySegments.remove(segment);
+            droppedSegments.add(segment.id);
+            manifestDirty = true;
+        } else {
+            dirtySegments.add(segment);
+        }
+        return true;
+    }
+
+    /**
+     * Move changes made since the last call to a batch of writes
+     * @param puts
+     * @param deletes
+     * @return length of the segments and manifest put
+     */
+    synchronized long writeChanges(Map<String, byte[]> puts, Collection<String> deletes) {
+        // Serialized first, so a failure leaves the changes to write and the batch untouched
+        HashMap<String, byte[]> changed = new HashMap<>();
+        long bytes = 0;
+        try {
+            for (Segment segment : dirtySegments) {
+                byte[] data = JSONHelper.OBJECT_MAPPER.writeValueAsBytes(segment.keys);
+                changed.put(segmentKey(segment.id), data);
+                bytes += data.length;
+            }
+
+            if (manifestDirty) {
+                Manifest manifest = new Manifest();
+                for (Segment segment : segments) {
+                    manifest.segments.add(segment.id);
+                }
+                byte[] data = JSONHelper.OBJECT_MAPPER.writeValueAsBytes(manifest);
+                changed.put(modelName, data);
+                bytes += data.length;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write index " + modelName, e);
+        }
+
+        puts.putAll(changed);
+        for (Integer id : droppedSegments) {
+            deletes.add(segmentKey(id));
+        }
+        dirtySegments.clear();
+        droppedSegments.clear();
+        manifestDirty = false;
+        return bytes;
+    }
+
+    /**
+     * @return every storage key of this index
+     */
+    synchronized ArrayList<String> storageKeys() {
+        ArrayList<String> keys = new ArrayList<>();
+        keys.add(modelName);
+        for (Segment segment : segments) {
+            keys.add(segmentKey(segment.id));
+        }
+        for (Integer id : droppedSegments) {
+            keys.add(segmentKey(id));
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,46 @@
+package me.thomasdao.glue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts of durations in buckets of powers of two nanoseconds, with totals. Bucket i holds
+ * durations below 2^i ns. Recording takes a few atomic increments and no lock.
+ */
+final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+
+    static long upperBound(int bucket) {
+        return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+    }
+
+    void record(long nanos, long byteCount) {
+        if (nanos < 0) nanos = 0;
+
+        buckets.incrementAndGet(BUCKETS - Long.numberOfLeadingZeros(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        if (byteCount > 0) {
+            bytes.addAndGet(byteCount);
+        }
+
+        long max;
+        while (nanos > (max = maxNanos.get())) {
+            if (maxNanos.compareAndSet(max, nanos)) break;
+        }
+    }
+
+    OperationStats snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new OperationStats(count.get(), totalNanos.get(), maxNanos.get(), bytes.get(), copy);
+    }
+}
@@ -0,0 +1,684 @@
+package me.thomasdao.glue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only storage engine. Every batch is appended to a single log file as one frame, and
+ * an in-memory index maps each key to the position of its newest value. Writing costs the
+ * size of the change, not the size of the store.
+ *
+ * Log layout:
+ * <pre>
+ *   header:  "GLOG" version(byte)
+ *   frame:   length(int) crc32(int) ops...
+ *   op:      PUT key-length(int) key value-length(int) value
+ *            DELETE key-length(int) key
+ * </pre>
+ *
+ * On open the log is replayed to rebuild the index. A frame with a bad checksum or a
+ * truncated tail, left by a crash in the middle of a write, is cut off, so each batch is
+ * either fully applied or not at all.
+ *
+ * Overwritten and deleted values stay in the log as garbage. Once garbage passes
+ * compactionThreshold of the file, live values are copied to a new log on a background
+ * thread, which then replaces the old one.
+ */
+public class LogStructuredEngine implements StorageEngine {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] MAGIC = {'G', 'L', 'O', 'G'};
+    private static final byte VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1;
+    private static final int FRAME_HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    // Frames written by compaction are split around this size
+    private static final int COMPACTION_FRAME_SIZE = 64 * 1024;
+
+    public static final float DEFAULT_COMPACTION_THRESHOLD = 0.5f;
+    public static final long DEFAULT_MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    /**
+     * Position of a value inside the log
+     */
+    private static final class Location {
+        final long offset;
+        final int length;
+        // Bytes taken by the whole op, used to account garbage
+        final int opSize;
+
+        Location(long offset, int length, int opSize) {
+            this.offset = offset;
+            this.length = length;
+            this.opSize = opSize;
+        }
+    }
+
+    /**
+     * Key to location map, plus the bytes taken by live ops
+     */
+    private static final class Index {
+        final ConcurrentHashMap<String, Location> locations = new ConcurrentHashMap<>();
+        long liveBytes;
+
+        void put(String key, Location location) {
+            Location old = locations.put(key, location);
+            liveBytes += location.opSize - (old == null ? 0 : old.opSize);
+        }
+
+        void remove(String key) {
+            Location old = locations.remove(key);
+            if (old != null) {
+                liveBytes -= old.opSize;
+            }
+        }
+    }
+
+    private final File file;
+    private final File compactionFile;
+    private final boolean sync;
+    private final boolean memoryMap;
+    private final float compactionThreshold;
+    private final long minCompactionBytes;
+
+    // Guards the file and index references: shared by reads and writes, exclusive when the
+    // log is replaced or cleared. Always taken before writeMutex
+    private final ReentrantReadWriteLock fileLock = new ReentrantReadWriteLock();
+    // Serializes appends
+    private final Object writeMutex = new Object();
+    // Only one compaction at a time
+    private final Object compactionMutex = new Object();
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private volatile Index index;
+    private long end;
+    // Bumped when the log is replaced or cleared, so a running compaction can tell
+    private long generation;
+
+    private MappedByteBuffer mapped;
+    private final Object mapLock = new Object();
+
+    private final ExecutorService compactor;
+    private boolean compactionScheduled;
+
+    /**
+     * Open a log with fsync on every write, no memory mapping and default compaction settings
+     * @param file log file, created if missing
+     * @throws IOException
+     */
+    public LogStructuredEngine(File file) throws IOException {
+        this(file, true, false, DEFAULT_COMPACTION_THRESHOLD, DEFAULT_MIN_COMPACTION_BYTES);
+    }
+
+    /**
+     * @param file log file, created if missing
+     * @param sync whether to fsync every batch before returning
+     * @param memoryMap whether to read values through a memory mapped buffer
+     * @param compactionThreshold fraction of garbage in the log which triggers compaction
+     * @param minCompactionBytes garbage bytes needed before compaction is considered
+     * @throws IOException
+     */
+    public LogStructuredEngine(File file, boolean sync, boolean memoryMap,
+                               float compactionThreshold, long minCompactionBytes) throws IOException {
+        this.file = file;
+        this.compactionFile = new File(file.getPath() + ".compact");
+        this.sync = sync;
+        this.memoryMap = memoryMap;
+        this.compactionThreshold = compactionThreshold;
+        this.minCompactionBytes = minCompactionBytes;
+
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Cannot create directory: " + parent);
+        }
+
+        // A compaction interrupted by a crash never replaced the log, drop its output
+        if (compactionFile.exists()) {
+            compactionFile.delete();
+        }
+
+        open();
+
+        compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Glue-Compaction");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /************************************************************************************
+     * Open and recover
+     ************************************************************************************/
+
+    private void open() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+
+        if (channel.size() < HEADER_SIZE) {
+            writeHeader(channel);
+        } else {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (header.get(i) != MAGIC[i]) {
+                    throw new IOException("Not a Glue log file: " + file);
+                }
+            }
+            if (header.get(MAGIC.length) != VERSION) {
+                throw new IOException("Unsupported Glue log version: " + header.get(MAGIC.length));
+            }
+        }
+
+        Index recovered = new Index();
+        end = replay(channel, HEADER_SIZE, channel.size(), recovered);
+
+        // Cut off anything after the last complete frame
+        if (end < channel.size()) {
+            channel.truncate(end);
+            channel.force(true);
+        }
+
+        index = recovered;
+    }
+
+    private static void writeHeader(FileChannel target) throws IOException {
+        target.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put(VERSION);
+        header.flip();
+        writeFully(target, header, 0);
+        target.force(true);
+    }
+
+    /**
+     * Apply frames between start and limit to an index
+     * @return offset after the last valid frame
+     */
+    private static long replay(FileChannel source, long start, long limit, Index target) throws IOException {
+        long position = start;
+        ByteBuffer frameHeader = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+
+        while (position + FRAME_HEADER_SIZE <= limit) {
+            frameHeader.clear();
+            readFully(source, frameHeader, position);
+            int length = frameHeader.getInt(0);
+            int checksum = frameHeader.getInt(4);
+
+            if (length <= 0 || position + FRAME_HEADER_SIZE + length > limit) break;
+
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(source, payload, position + FRAME_HEADER_SIZE);
+
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) break;
+
+            if (!applyFrame(payload, position + FRAME_HEADER_SIZE, target)) break;
+
+            position += FRAME_HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    /**
+     * Apply the ops of one frame to an index. The frame is only applied if it parses fully
+     * @param payload frame payload
+     * @param payloadOffset position of the payload in the log
+     */
+    private static boolean applyFrame(ByteBuffer payload, long payloadOffset, Index target) {
+        HashMap<String, Location> puts = new HashMap<>();
+        ArrayList<String> order = new ArrayList<>();
+        HashSet<String> deletes = new HashSet<>();
+
+        payload.position(0);
+        try {
+            while (payload.hasRemaining()) {
+                int opStart = payload.position();
+                byte op = payload.get();
+                int keyLength = payload.getInt();
+                byte[] keyBytes = new byte[keyLength];
+                payload.get(keyBytes);
+                String key = new String(keyBytes, UTF_8);
+
+                if (op == OP_PUT) {
+                    int valueLength = payload.getInt();
+                    int valueStart = payload.position();
+                    payload.position(valueStart + valueLength);
+                    int opSize = payload.position() - opStart;
+                    puts.put(key, new Location(payloadOffset + valueStart, valueLength, opSize));
+                    deletes.remove(key);
+                    order.add(key);
+                } else if (op == OP_DELETE) {
+                    puts.remove(key);
+                    deletes.add(key);
+                    order.add(key);
+                } else {
+                    return false;
+                }
+            }
+        } catch (RuntimeException e) {
+            // Buffer underflow or bad length, the frame is corrupt
+            return false;
+        }
+
+        for (String key : order) {
+            if (deletes.contains(key)) {
+                target.remove(key);
+            } else if (puts.containsKey(key)) {
+                target.put(key, puts.get(key));
+            }
+        }
+        return true;
+    }
+
+    /************************************************************************************
+     * StorageEngine
+     ************************************************************************************/
+
+    @Override
+    public byte[] get(String key) {
+        fileLock.readLock().lock();
+        try {
+            Location location = index.locations.get(key);
+            if (location == null) return null;
+            return read(location);
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read key: " + key, e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, byte[]> get(Collection<String> keys) {
+        HashMap<String, byte[]> values = new HashMap<>();
+
+        fileLock.readLock().lock();
+        try {
+            for (String key : keys) {
+                Location location = index.locations.get(key);
+                if (location != null) {
+                    values.put(key, read(location));
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot read keys", e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+
+        return values;
+    }
+
+    @Override
+    public void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        if (puts.isEmpty() && deletes.isEmpty()) return;
+
+        byte[] payload;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            for (String key : deletes) {
+                writeDelete(out, key);
+            }
+            for (String key : puts.keySet()) {
+                byte[] val = puts.get(key);
+                if (val == null) {
+                    writeDelete(out, key);
+                } else {
+                    writePut(out, key, val);
+                }
+            }
+            out.flush();
+            payload = bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        fileLock.readLock().lock();
+        try {
+            synchronized (writeMutex) {
+                long payloadOffset = appendFrame(channel, end, payload);
+                if (sync) {
+                    channel.force(false);
+                }
+                end = payloadOffset + payload.length;
+                applyFrame(ByteBuffer.wrap(payload), payloadOffset, index);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot append to " + file, e);
+        } finally {
+            fileLock.readLock().unlock();
+        }
+
+        maybeScheduleCompaction();
+    }
+
+    @Override
+    public void clear() {
+        fileLock.writeLock().lock();
+        try {
+            synchronized (writeMutex) {
+                writeHeader(channel);
+                end = HEADER_SIZE;
+                index = new Index();
+                generation++;
+                unmap();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot clear " + file, e);
+        } finally {
+            fileLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public Set<String> keys() {
+        return new HashSet<>(index.locations.keySet());
+    }
+
+    /************************************************************************************
+     * Stats
+     ************************************************************************************/
+
+    /**
+     * @return size of the log file in bytes
+     */
+    public long size() {
+        synchronized (writeMutex) {
+            return end;
+        }
+    }
+
+    /**
+     * @return bytes taken by live values and their keys
+     */
+    public long liveBytes() {
+        synchronized (writeMutex) {
+            return index.liveBytes;
+        }
+    }
+
+    /************************************************************************************
+     * Compaction
+     ************************************************************************************/
+
+    private void maybeScheduleCompaction() {
+        long garbage;
+        long total;
+        synchronized (writeMutex) {
+            if (compactionScheduled) return;
+            total = end - HEADER_SIZE;
+            garbage = total - index.liveBytes;
+
+            if (garbage < minCompactionBytes || garbage < total * compactionThreshold) return;
+            compactionScheduled = true;
+        }
+
+        compactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                } finally {
+                    synchronized (writeMutex) {
+                        compactionScheduled = false;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Copy live values to a new log and replace the current one. Reads and writes keep going
+     * while values are copied, writes made meanwhile are carried over before the switch
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        synchronized (compactionMutex) {
+            RandomAccessFile target = new RandomAccessFile(compactionFile, "rw");
+            FileChannel targetChannel = target.getChannel();
+            boolean replaced = false;
+
+            try {
+                writeHeader(targetChannel);
+                Index compacted = new Index();
+                long snapshotEnd;
+                long snapshotGeneration;
+                long targetEnd;
+
+                // Copy a snapshot of live values, writes can still append meanwhile
+                fileLock.readLock().lock();
+                try {
+                    HashMap<String, Location> snapshot;
+                    synchronized (writeMutex) {
+                        snapshot = new HashMap<>(index.locations);
+                        snapshotEnd = end;
+                        snapshotGeneration = generation;
+                    }
+                    targetEnd = copyLive(snapshot, targetChannel, compacted);
+                } finally {
+                    fileLock.readLock().unlock();
+                }
+
+                fileLock.writeLock().lock();
+                try {
+                    synchronized (writeMutex) {
+                        // The log was cleared while copying, the copy is stale
+                        if (generation != snapshotGeneration) return;
+
+                        // Carry over frames appended while copying, as they are
+                        long tailLength = end - snapshotEnd;
+                        if (tailLength > 0) {
+                            ByteBuffer tail = ByteBuffer.allocate((int) tailLength);
+                            readFully(channel, tail, snapshotEnd);
+                            tail.flip();
+                            writeFully(targetChannel, tail, targetEnd);
+                            replay(targetChannel, targetEnd, targetEnd + tailLength, compacted);
+                            targetEnd += tailLength;
+                        }
+                        targetChannel.force(true);
+
+                        if (!compactionFile.renameTo(file)) {
+                            throw new IOException("Cannot replace " + file);
+                        }
+
+                        unmap();
+                        randomAccessFile.close();
+                        randomAccessFile = target;
+                        channel = targetChannel;
+                        end = targetEnd;
+                        index = compacted;
+                        generation++;
+                        replaced = true;
+                    }
+                } finally {
+                    fileLock.writeLock().unlock();
+                }
+            } finally {
+                if (!replaced) {
+                    target.close();
+                    compactionFile.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Write live values of a snapshot to a new log
+     * @return end of the new log
+     */
+    private long copyLive(Map<String, Location> snapshot, FileChannel target, Index compacted) throws IOException {
+        long position = HEADER_SIZE;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(COMPACTION_FRAME_SIZE * 2);
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for (Map.Entry<String, Location> entry : snapshot.entrySet()) {
+            writePut(out, entry.getKey(), read(entry.getValue()));
+
+            if (bytes.size() >= COMPACTION_FRAME_SIZE) {
+                out.flush();
+                position = appendFrame(target, position, bytes.toByteArray(), compacted);
+                bytes.reset();
+            }
+        }
+
+        out.flush();
+        if (bytes.size() > 0) {
+            position = appendFrame(target, position, bytes.toByteArray(), compacted);
+        }
+        return position;
+    }
+
+    private static long appendFrame(FileChannel target, long position, byte[] payload, Index compacted) throws IOException {
+        long payloadOffset = appendFrame(target, position, payload);
+        applyFrame(ByteBuffer.wrap(payload), payloadOffset, compacted);
+        return payloadOffset + payload.length;
+    }
+
+    /************************************************************************************
+     * Close
+     ************************************************************************************/
+
+    /**
+     * Stop background compaction and close the log
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        compactor.shutdown();
+        try {
+            compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        synchronized (compactionMutex) {
+            fileLock.writeLock().lock();
+            try {
+                synchronized (writeMutex) {
+                    unmap();
+                    randomAccessFile.close();
+                }
+            } finally {
+                fileLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /************************************************************************************
+     * IO
+     ************************************************************************************/
+
+    private byte[] read(Location location) throws IOException {
+        byte[] value = new byte[location.length];
+
+        // A mapped buffer is indexed by int, larger logs are read through the channel
+        if (memoryMap && location.offset + location.length <= Integer.MAX_VALUE) {
+            ByteBuffer buffer = mappedFor(location.offset + location.length);
+            buffer.position((int) location.offset);
+            buffer.get(value);
+        } else {
+            readFully(channel, ByteBuffer.wrap(value), location.offset);
+        }
+
+        return value;
+    }
+
+    /**
+     * Return a private view of the mapped log, remapped if it does not reach limit yet
+     */
+    private ByteBuffer mappedFor(long limit) throws IOException {
+        synchronized (mapLock) {
+            if (mapped == null || mapped.capacity() < limit) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            return mapped.duplicate();
+        }
+    }
+
+    private void unmap() {
+        synchronized (mapLock) {
+            mapped = null;
+        }
+    }
+
+    private static void writePut(DataOutputStream out, String key, byte[] value) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeByte(OP_PUT);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+        out.writeInt(value.length);
+        out.write(value);
+    }
+
+    private static void writeDelete(DataOutputStream out, String key) throws IOException {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        out.writeByte(OP_DELETE);
+        out.writeInt(keyBytes.length);
+        out.write(keyBytes);
+    }
+
+    /**
+     * Append one frame
+     * @return position of the payload
+     */
+    private static long appendFrame(FileChannel target, long position, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+
+        ByteBuffer buffer = ByteBuffer.allocate(FRAME_HEADER_SIZE + payload.length);
+        buffer.putInt(payload.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.put(payload);
+        buffer.flip();
+
+        writeFully(target, buffer, position);
+        return position + FRAME_HEADER_SIZE;
+    }
+
+    private static void writeFully(FileChannel target, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += target.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel source, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = source.read(buffer, position);
+            if (read < 0) throw new IOException("Unexpected end of log");
+            position += read;
+        }
+    }
+}
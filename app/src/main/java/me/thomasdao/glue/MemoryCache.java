@@ -0,0 +1,570 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded memory tier for Glue. Entries are grouped in one segment per model, so each model
+ * can have its own entry limit on top of the global entry and weight limits.
+ *
+ * Victims are picked least recently used first. With {@link Policy#TINY_LFU} a frequency
+ * sketch of recent accesses also decides admission: a new entry which would evict a more
+ * popular one is not cached, so a scan over cold objects does not flush the hot set.
+ *
+ * An evicted object is still in storage and is loaded again on the next get.
+ */
+public class MemoryCache {
+
+    public enum Policy {
+        /**
+         * Always admit, evict least recently used
+         */
+        LRU,
+        /**
+         * Admit only entries accessed more often than the one they would evict
+         */
+        TINY_LFU
+    }
+
+    private static final class Entry {
+        final String key;
+        final Segment segment;
+        Pinnable value;
+        long weight;
+        long tick;
+
+        // Objects reachable from the value may be placeholders, see GlueStore#fetch
+        boolean partial;
+
+        // Hash of the record stored for the key, null if not known
+        Long fingerprint;
+
+        Entry(String key, Segment segment) {
+            this.key = key;
+            this.segment = segment;
+        }
+    }
+
+    private static final class Segment {
+        // Iteration order is least recently used first, see touch()
+        final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+        int maxEntries;
+        long weight;
+        long hits, misses, evictions, rejections;
+
+        /**
+         * @return least recently used entry other than keep
+         */
+        Entry eldest(Entry keep) {
+            for (Entry entry : entries.values()) {
+                if (entry != keep) return entry;
+            }
+            return null;
+        }
+
+        void touch(Entry entry) {
+            entries.remove(entry.key);
+            entries.put(entry.key, entry);
+        }
+    }
+
+    private final Object lock = new Object();
+    private final HashMap<String, Segment> segments = new HashMap<>();
+    private final HashMap<String, Integer> modelLimits = new HashMap<>();
+
+    private int maxEntries;
+    private long maxWeight;
+    private Policy policy;
+    private FrequencySketch sketch;
+
+    private int size;
+    private long weight;
+    private long tick;
+
+    /**
+     * Unbounded cache, as Glue has always behaved
+     */
+    public MemoryCache() {
+        this(0, 0, Policy.LRU);
+    }
+
+    /**
+     * @param maxEntries maximum number of entries, 0 for no limit
+     * @param maxWeight maximum total weight, 0 for no limit
+     * @param policy
+     */
+    public MemoryCache(int maxEntries, long maxWeight, Policy policy) {
+        configure(maxEntries, maxWeight, policy);
+    }
+
+    /**
+     * Change limits, evicting entries right away if needed
+     * @param maxEntries maximum number of entries, 0 for no limit
+     * @param maxWeight maximum total weight, 0 for no limit
+     * @param policy
+     */
+    public void configure(int maxEntries, long maxWeight, Policy policy) {
+        synchronized (lock) {
+            this.maxEntries = Math.max(0, maxEntries);
+            this.maxWeight = Math.max(0, maxWeight);
+            this.policy = policy == null ? Policy.LRU : policy;
+            this.sketch = this.policy == Policy.TINY_LFU
+                    ? new FrequencySketch(maxEntries > 0 ? maxEntries : 1024) : null;
+
+            for (Segment segment : segments.values()) {
+                evictSegment(segment, null);
+            }
+            evictGlobal(null);
+        }
+    }
+
+    /**
+     * Limit entries of a model
+     * @param modelName
+     * @param maxEntries maximum number of entries for this model, 0 for no limit
+     */
+    public void setModelLimit(String modelName, int maxEntries) {
+        synchronized (lock) {
+            modelLimits.put(modelName, Math.max(0, maxEntries));
+            Segment segment = segments.get(modelName);
+            if (segment != null) {
+                segment.maxEntries = Math.max(0, maxEntries);
+                evictSegment(segment, null);
+            }
+        }
+    }
+
+    private Segment segment(String modelName) {
+        Segment segment = segments.get(modelName);
+        if (segment == null) {
+            segment = new Segment();
+            Integer limit = modelLimits.get(modelName);
+            segment.maxEntries = limit == null ? 0 : limit;
+            segments.put(modelName, segment);
+        }
+        return segment;
+    }
+
+    /************************************************************************************
+     * Read and write
+     ************************************************************************************/
+
+    /**
+     * Look up an entry, counting a hit or a miss
+     * @param key
+     * @param modelName
+     * @return cached object, or null
+     */
+    public Pinnable get(String key, String modelName) {
+        synchronized (lock) {
+            if (sketch != null) {
+                sketch.increment(key);
+            }
+
+            Segment segment = segment(modelName);
+            Entry entry = segment.entries.get(key);
+            if (entry == null) {
+                segment.misses++;
+                return null;
+            }
+
+            segment.touch(entry);
+            entry.tick = ++tick;
+            segment.hits++;
+            return entry.value;
+        }
+    }
+
+    /**
+     * Look up an entry without touching recency or stats
+     */
+    public Pinnable peek(String key, String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            if (segment == null) return null;
+            Entry entry = segment.entries.get(key);
+            return entry == null ? null : entry.value;
+        }
+    }
+
+    /**
+     * Add or replace an entry
+     * @param key
+     * @param modelName
+     * @param value
+     * @param entryWeight estimated size of the object, for example its encoded length
+     * @return true if the entry is cached, false if the admission policy rejected it
+     */
+    public boolean put(String key, String modelName, Pinnable value, long entryWeight) {
+        if (value == null) return false;
+
+        synchronized (lock) {
+            Segment segment = segment(modelName);
+            Entry entry = segment.entries.get(key);
+
+            if (entry == null) {
+                if (!admit(key, segment, entryWeight)) {
+                    segment.rejections++;
+                    return false;
+                }
+
+                entry = new Entry(key, segment);
+                segment.entries.put(key, entry);
+                size++;
+            } else {
+                segment.touch(entry);
+            }
+
+            segment.weight += entryWeight - entry.weight;
+            weight += entryWeight - entry.weight;
+
+            entry.value = value;
+            entry.weight = entryWeight;
+            entry.tick = ++tick;
+
+            evictSegment(segment, entry);
+            evictGlobal(entry);
+            return true;
+        }
+    }
+
+    /**
+     * Add an entry unless the key is cached already, so an object read from storage does not
+     * replace one another thread has just cached
+     * @return the object already cached, or null if value was added or rejected
+     */
+    public Pinnable putIfAbsent(String key, String modelName, Pinnable value, long entryWeight) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            Entry entry = segment == null ? null : segment.entries.get(key);
+            if (entry != null && entry.value != value) return entry.value;
+
+            put(key, modelName, value, entryWeight);
+            return null;
+        }
+    }
+
+    /**
+     * Note that objects reachable from a cached object may be placeholders, so a get which
+     * needs its relationships fetches them. Kept until the entry is evicted or marked complete
+     */
+    void markPartial(String key, String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            Entry entry = segment == null ? null : segment.entries.get(key);
+            if (entry != null) {
+                entry.partial = true;
+            }
+        }
+    }
+
+    /**
+     * @return hash of the record stored for a cached key, null if not known
+     */
+    Long getFingerprint(String key, String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            Entry entry = segment == null ? null : segment.entries.get(key);
+            return entry == null ? null : entry.fingerprint;
+        }
+    }
+
+    /**
+     * Remember the hash of the record stored for a key, which is forgotten with the entry
+     * @param value the object the record was read or written from, nothing is kept if another is cached
+     * @param replace false to keep a hash set before, for a record read while it may be written
+     */
+    void setFingerprint(String key, String modelName, Pinnable value, Long fingerprint, boolean replace) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            Entry entry = segment == null ? null : segment.entries.get(key);
+            if (entry != null && entry.value == value && (replace || entry.fingerprint == null)) {
+                entry.fingerprint = fingerprint;
+            }
+        }
+    }
+
+    /**
+     * Note that objects reachable from any cached object may be placeholders
+     */
+    void markAllPartial() {
+        synchronized (lock) {
+            for (Segment segment : segments.values()) {
+                for (Entry entry : segment.entries.values()) {
+                    entry.partial = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Note that every object reachable from a cached object is loaded
+     * @param value the object whose graph was walked, another instance cached meanwhile keeps its mark
+     */
+    void markComplete(String key, String modelName, Pinnable value) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            Entry entry = segment == null ? null : segment.entries.get(key);
+            if (entry != null && entry.value == value) {
+                entry.partial = false;
+            }
+        }
+    }
+
+    /**
+     * @return true if objects reachable from a cached object may be placeholders
+     */
+    boolean isPartial(String key, String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            Entry entry = segment == null ? null : segment.entries.get(key);
+            return entry != null && entry.partial;
+        }
+    }
+
+    public void remove(String key, String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            if (segment == null) return;
+
+            Entry entry = segment.entries.remove(key);
+            if (entry != null) {
+                detach(segment, entry);
+            }
+        }
+    }
+
+    /**
+     * Remove all entries of a model
+     */
+    public void removeModel(String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            if (segment == null) return;
+
+            size -= segment.entries.size();
+            weight -= segment.weight;
+            segment.entries.clear();
+            segment.weight = 0;
+        }
+    }
+
+    public void clear() {
+        synchronized (lock) {
+            for (Segment segment : segments.values()) {
+                segment.entries.clear();
+                segment.weight = 0;
+            }
+            size = 0;
+            weight = 0;
+        }
+    }
+
+    /**
+     * Keys of the hot set, hottest first: by access frequency with {@link Policy#TINY_LFU},
+     * then by how recently they were used
+     * @param max maximum number of keys
+     * @return model name of each key
+     */
+    LinkedHashMap<String, String> hottest(int max) {
+        ArrayList<Candidate> candidates = new ArrayList<>();
+        synchronized (lock) {
+            for (Map.Entry<String, Segment> segment : segments.entrySet()) {
+                for (Entry entry : segment.getValue().entries.values()) {
+                    int frequency = sketch == null ? 0 : sketch.frequency(entry.key);
+                    candidates.add(new Candidate(entry.key, segment.getKey(), frequency, entry.tick));
+                }
+            }
+        }
+
+        Collections.sort(candidates);
+        LinkedHashMap<String, String> keys = new LinkedHashMap<>();
+        for (Candidate candidate : candidates) {
+            if (keys.size() >= max) break;
+            keys.put(candidate.key, candidate.modelName);
+        }
+        return keys;
+    }
+
+    private static final class Candidate implements Comparable<Candidate> {
+        final String key;
+        final String modelName;
+        final int frequency;
+        final long tick;
+
+        Candidate(String key, String modelName, int frequency, long tick) {
+            this.key = key;
+            this.modelName = modelName;
+            this.frequency = frequency;
+            this.tick = tick;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            if (frequency != other.frequency) return other.frequency - frequency;
+            return tick < other.tick ? 1 : (tick == other.tick ? 0 : -1);
+        }
+    }
+
+    /************************************************************************************
+     * Admission and eviction
+     ************************************************************************************/
+
+    private boolean admit(String key, Segment segment, long entryWeight) {
+        if (sketch == null) return true;
+
+        // Only compare when the new entry forces an eviction
+        Entry victim = null;
+        if (segment.maxEntries > 0 && segment.entries.size() >= segment.maxEntries) {
+            victim = segment.eldest(null);
+        } else if ((maxEntries > 0 && size >= maxEntries)
+                || (maxWeight > 0 && weight + entryWeight > maxWeight)) {
+            victim = globalVictim(null);
+        }
+
+        return victim == null || sketch.frequency(key) > sketch.frequency(victim.key);
+    }
+
+    private void evictSegment(Segment segment, Entry keep) {
+        while (segment.maxEntries > 0 && segment.entries.size() > segment.maxEntries) {
+            if (!evictEldest(segment, keep)) return;
+        }
+    }
+
+    private void evictGlobal(Entry keep) {
+        while ((maxEntries > 0 && size > maxEntries) || (maxWeight > 0 && weight > maxWeight)) {
+            Entry victim = globalVictim(keep);
+            if (victim == null) return;
+            evict(victim);
+        }
+    }
+
+    private boolean evictEldest(Segment segment, Entry keep) {
+        Entry victim = segment.eldest(keep);
+        if (victim == null) return false;
+        evict(victim);
+        return true;
+    }
+
+    private void evict(Entry entry) {
+        entry.segment.entries.remove(entry.key);
+        detach(entry.segment, entry);
+        entry.segment.evictions++;
+    }
+
+    /**
+     * The least recently used entry over all segments. Each segment is ordered, so only
+     * its eldest entry needs to be compared
+     */
+    private Entry globalVictim(Entry keep) {
+        Entry victim = null;
+        for (Segment segment : segments.values()) {
+            Entry eldest = segment.eldest(keep);
+            if (eldest != null && (victim == null || eldest.tick < victim.tick)) {
+                victim = eldest;
+            }
+        }
+        return victim;
+    }
+
+    private void detach(Segment segment, Entry entry) {
+        size--;
+        weight -= entry.weight;
+        segment.weight -= entry.weight;
+    }
+
+    /************************************************************************************
+     * Stats
+     ************************************************************************************/
+
+    public CacheStats stats() {
+        synchronized (lock) {
+            long hits = 0, misses = 0, evictions = 0, rejections = 0;
+            for (Segment segment : segments.values()) {
+                hits += segment.hits;
+                misses += segment.misses;
+                evictions += segment.evictions;
+                rejections += segment.rejections;
+            }
+            return new CacheStats(hits, misses, evictions, rejections, size, weight);
+        }
+    }
+
+    public CacheStats stats(String modelName) {
+        synchronized (lock) {
+            Segment segment = segments.get(modelName);
+            if (segment == null) {
+                return new CacheStats(0, 0, 0, 0, 0, 0);
+            }
+            return new CacheStats(segment.hits, segment.misses, segment.evictions,
+                    segment.rejections, segment.entries.size(), segment.weight);
+        }
+    }
+
+    /**
+     * Approximate access counts of recent keys, using a count-min sketch of 4 bit counters.
+     * Counters are halved periodically so old popularity fades
+     */
+    private static final class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[][] counters;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int expectedEntries) {
+            int width = 64;
+            while (width < expectedEntries && width < (1 << 24)) {
+                width <<= 1;
+            }
+            counters = new byte[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * width;
+        }
+
+        private int index(int hash, int row) {
+            int h = (hash ^ SEEDS[row]) * 0x45D9F3B;
+            h ^= h >>> 16;
+            return h & mask;
+        }
+
+        void increment(String key) {
+            int hash = key.hashCode();
+            boolean added = false;
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(hash, row);
+                if (counters[row][i] < 15) {
+                    counters[row][i]++;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(String key) {
+            int hash = key.hashCode();
+            int min = 15;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counters[row][index(hash, row)]);
+            }
+            return min;
+        }
+
+        private void reset() {
+            for (byte[] row : counters) {
+                for (int i = 0; i < row.length; i++) {
+                    row[i] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
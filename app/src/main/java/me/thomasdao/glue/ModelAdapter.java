@@ -0,0 +1,48 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Reflection free access to a model class. Implementations are generated at compile time by
+ * the glue-compiler annotation processor for every class annotated with {@link ModelName},
+ * and named after the model class with a "$$GlueAdapter" suffix.
+ *
+ * Glue falls back to reflection and Jackson databind for classes without an adapter.
+ */
+public interface ModelAdapter<T extends Pinnable> {
+
+    /**
+     * Write an object as a JSON object
+     * @param generator
+     * @param object may be null
+     * @throws IOException
+     */
+    void write(JsonGenerator generator, T object) throws IOException;
+
+    /**
+     * Read an object, the parser is positioned on its START_OBJECT or VALUE_NULL token,
+     * or before it. The parser is left on the matching END_OBJECT token
+     * @param parser
+     * @return object, or null
+     * @throws IOException
+     */
+    T read(JsonParser parser) throws IOException;
+
+    /**
+     * Add objects directly referenced by an object to a collection
+     * @param object
+     * @param out
+     */
+    void collectRelationships(T object, Collection<Pinnable> out);
+
+    /**
+     * Copy non null fields of second object to first object
+     * @param first
+     * @param second
+     */
+    void merge(T first, T second);
+}
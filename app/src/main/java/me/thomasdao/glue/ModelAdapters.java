@@ -0,0 +1,136 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Look up generated {@link ModelAdapter}s, and helpers called by generated code.
+ */
+public final class ModelAdapters {
+    static final String SUFFIX = "$$GlueAdapter";
+
+    // Marks classes known to have no adapter, ConcurrentHashMap does not take null values
+    private static final ModelAdapter NONE = new ModelAdapter() {
+        @Override
+        public void write(JsonGenerator generator, Pinnable object) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Pinnable read(JsonParser parser) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void collectRelationships(Pinnable object, Collection out) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void merge(Pinnable first, Pinnable second) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static final ConcurrentHashMap<Class, ModelAdapter> ADAPTERS = new ConcurrentHashMap<>();
+
+    private ModelAdapters() {
+    }
+
+    /**
+     * @param cls
+     * @return generated adapter for a class, or null if there is none
+     */
+    public static ModelAdapter forClass(Class cls) {
+        ModelAdapter adapter = ADAPTERS.get(cls);
+        if (adapter == null) {
+            adapter = load(cls);
+            ADAPTERS.putIfAbsent(cls, adapter);
+        }
+        return adapter == NONE ? null : adapter;
+    }
+
+    private static ModelAdapter load(Class cls) {
+        try {
+            Class adapterClass = Class.forName(cls.getName() + SUFFIX, true, cls.getClassLoader());
+            return (ModelAdapter) adapterClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            return NONE;
+        } catch (Exception e) {
+            e.printStackTrace();
+            return NONE;
+        }
+    }
+
+    /************************************************************************************
+     * Used by generated adapters
+     ************************************************************************************/
+
+    /**
+     * Write a value which is not a String or a primitive
+     */
+    public static void writeValue(JsonGenerator generator, Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+            return;
+        }
+
+        ModelAdapter adapter = value instanceof Pinnable ? forClass(value.getClass()) : null;
+        if (adapter != null) {
+            adapter.write(generator, (Pinnable) value);
+        } else {
+            generator.writeObject(value);
+        }
+    }
+
+    /**
+     * Write a relationship as a reference to the object's own record
+     */
+    public static void writeReference(JsonGenerator generator, Pinnable value) throws IOException {
+        References.write(generator, value);
+    }
+
+    /**
+     * Write a collection of relationships as references
+     */
+    public static void writeReferences(JsonGenerator generator, Collection value) throws IOException {
+        References.writeAll(generator, value);
+    }
+
+    /**
+     * Read a value which is not a String or a primitive, the parser is on its first token.
+     * A Pinnable may be a reference, or a nested object in older records
+     */
+    public static <T> T readValue(JsonParser parser, Class<T> cls) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) return null;
+
+        if (Pinnable.class.isAssignableFrom(cls) && parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+            return cls.cast(References.read(parser, cls));
+        }
+
+        ModelAdapter adapter = Pinnable.class.isAssignableFrom(cls) ? forClass(cls) : null;
+        if (adapter != null) {
+            return cls.cast(adapter.read(parser));
+        }
+        return parser.readValueAs(cls);
+    }
+
+    /**
+     * Read a value of a generic type, the parser is on its first token
+     */
+    public static <T> T readValue(JsonParser parser, TypeReference<T> type) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) return null;
+        return parser.readValueAs(type);
+    }
+
+    public static String readString(JsonParser parser) throws IOException {
+        if (parser.getCurrentToken() == JsonToken.VALUE_NULL) return null;
+        return parser.getValueAsString();
+    }
+}
@@ -14,4 +14,14 @@ import java.lang.annotation.Target;
 @Target(ElementType.TYPE) //on class level
 public @interface ModelName {
     String value();
+
+    /**
+     * Maximum number of objects of this model kept in memory, 0 for no limit
+     */
+    int maxCached() default 0;
+
+    /**
+     * Time an object of this model stays valid after it is pinned, in milliseconds, 0 for ever
+     */
+    long ttlMillis() default 0;
 }
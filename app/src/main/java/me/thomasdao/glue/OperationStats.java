@@ -0,0 +1,75 @@
+package me.thomasdao.glue;
+
+/**
+ * Snapshot of the calls of one operation, for a whole store or for one model: how many,
+ * how long they took and how many bytes they moved. Durations are kept in buckets of powers
+ * of two nanoseconds, so percentiles are upper bounds within a factor of two.
+ */
+public class OperationStats {
+    private final long count;
+    private final long totalNanos;
+    private final long maxNanos;
+    private final long bytes;
+    private final long[] buckets;
+
+    OperationStats(long count, long totalNanos, long maxNanos, long bytes, long[] buckets) {
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.maxNanos = maxNanos;
+        this.bytes = bytes;
+        this.buckets = buckets;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public double getMeanNanos() {
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    /**
+     * @return bytes read or written by the calls, 0 for operations which do not move bytes
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return duration which that share of calls did not exceed, 0 if there was no call
+     */
+    public long getPercentileNanos(double percentile) {
+        if (count == 0) return 0;
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= Math.max(rank, 1)) {
+                return Math.min(LatencyHistogram.upperBound(i), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "OperationStats{" +
+                "count=" + count +
+                ", meanNanos=" + (long) getMeanNanos() +
+                ", p50Nanos=" + getPercentileNanos(50) +
+                ", p99Nanos=" + getPercentileNanos(99) +
+                ", maxNanos=" + maxNanos +
+                ", bytes=" + bytes +
+                '}';
+    }
+}
@@ -0,0 +1,135 @@
+package me.thomasdao.glue;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+
+/**
+ * Placeholders handed out for relationships which are not loaded yet, by key and by instance.
+ *
+ * Placeholders are held weakly. Once no object refers to a placeholder any more, nothing can
+ * fill it in or ask whether it is loaded, so it is forgotten rather than kept for the life of
+ * the store. Methods are synchronized.
+ */
+final class Placeholders {
+
+    /**
+     * Weak reference to a placeholder, equal to another reference or a {@link Lookup} to the
+     * same instance
+     */
+    private static final class Ref extends WeakReference<Pinnable> {
+        final String key;
+        final int hash;
+
+        Ref(String key, Pinnable placeholder, ReferenceQueue<Pinnable> queue) {
+            super(placeholder, queue);
+            this.key = key;
+            this.hash = System.identityHashCode(placeholder);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+
+            Object instance = o instanceof Ref ? ((Ref) o).get() : (o instanceof Lookup ? ((Lookup) o).instance : null);
+            return instance != null && instance == get();
+        }
+    }
+
+    private static final class Lookup {
+        final Pinnable instance;
+
+        Lookup(Pinnable instance) {
+            this.instance = instance;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(instance);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Ref && ((Ref) o).get() == instance;
+        }
+    }
+
+    private final ReferenceQueue<Pinnable> queue = new ReferenceQueue<>();
+    private final HashMap<String, Ref> byKey = new HashMap<>();
+    private final HashMap<Object, Ref> byInstance = new HashMap<>();
+
+    /**
+     * Hand out an empty instance for a key until its record is loaded
+     * @return the placeholder for the key, which is an earlier one if another load added it first
+     */
+    synchronized Pinnable add(String key, Pinnable placeholder) {
+        expunge();
+        Pinnable existing = get(key);
+        if (existing != null) return existing;
+        if (byInstance.containsKey(new Lookup(placeholder))) return placeholder;
+
+        Ref ref = new Ref(key, placeholder, queue);
+        byKey.put(key, ref);
+        byInstance.put(ref, ref);
+        return placeholder;
+    }
+
+    /**
+     * Forget the placeholder for a key, if any
+     */
+    synchronized void remove(String key) {
+        Ref ref = byKey.remove(key);
+        if (ref != null) {
+            byInstance.remove(ref);
+        }
+    }
+
+    synchronized Pinnable get(String key) {
+        Ref ref = byKey.get(key);
+        return ref == null ? null : ref.get();
+    }
+
+    /**
+     * @return key of a placeholder, or null if object is not one
+     */
+    synchronized String keyOf(Pinnable object) {
+        Ref ref = byInstance.get(new Lookup(object));
+        return ref == null ? null : ref.key;
+    }
+
+    synchronized boolean isEmpty() {
+        expunge();
+        return byKey.isEmpty();
+    }
+
+    synchronized int size() {
+        expunge();
+        return byKey.size();
+    }
+
+    synchronized void clear() {
+        byKey.clear();
+        byInstance.clear();
+        while (queue.poll() != null) {
+            // Drop references cleared meanwhile
+        }
+    }
+
+    /**
+     * Remove placeholders which are no longer referenced
+     */
+    private void expunge() {
+        Ref ref;
+        while ((ref = (Ref) queue.poll()) != null) {
+            byInstance.remove(ref);
+            if (byKey.get(ref.key) == ref) {
+                byKey.remove(ref.key);
+            }
+        }
+    }
+}
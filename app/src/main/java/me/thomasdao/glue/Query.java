@@ -0,0 +1,440 @@
+package me.thomasdao.glue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Find objects of a model by conditions on their fields, in an order, see {@link Glue#query(Class)}.
+ *
+ * <pre>
+ * Glue.query(Post.class).where("author", eq(user)).orderBy("createdAt", Query.Order.DESC).limit(20).find()
+ * </pre>
+ *
+ * Conditions on {@link Indexed} fields are answered by their index, and keys matching all of them
+ * are the candidates. Without such a condition every key of the model is a candidate. Records
+ * are only read for candidates, and only while there are conditions left to check or results
+ * left to fill. An order on a sorted index walks the index, so a limit stops the query early.
+ * {@link #explain()} shows which of these steps a query takes.
+ */
+public class Query<T extends Pinnable> {
+
+    public enum Order {
+        ASC, DESC
+    }
+
+    /**
+     * Candidates read at once while conditions are checked on objects
+     */
+    private static final int BATCH_SIZE = 64;
+
+    private static final class Clause {
+        final Field field;
+        final Condition condition;
+
+        Clause(Field field, Condition condition) {
+            this.field = field;
+            this.condition = condition;
+        }
+
+        @Override
+        public String toString() {
+            return field.getName() + " " + condition;
+        }
+    }
+
+    /**
+     * Candidate keys in order, and what is left to do on objects
+     */
+    private static final class Plan {
+        final ArrayList<String> steps = new ArrayList<>();
+        final ArrayList<Clause> filters = new ArrayList<>();
+        Iterator<String> keys;
+        boolean scan;
+        boolean sortInMemory;
+    }
+
+    private final GlueStore store;
+    private final Class<T> cls;
+    private final ArrayList<Clause> clauses = new ArrayList<>();
+    private Field orderField;
+    private Order order = Order.ASC;
+    private int offset;
+    private int limit = Integer.MAX_VALUE;
+    private int depth = -1;
+
+    Query(GlueStore store, Class<T> cls) {
+        this.store = store;
+        this.cls = cls;
+    }
+
+    /**
+     * Keep objects whose field satisfies a condition, conditions add up
+     * @param field name of the field
+     * @param condition
+     * @return this query
+     */
+    public Query<T> where(String field, Condition condition) {
+        clauses.add(new Clause(field(field), condition));
+        return this;
+    }
+
+    /**
+     * Order objects by a field, objects without a value come last
+     * @param field name of the field
+     * @param order
+     * @return this query
+     */
+    public Query<T> orderBy(String field, Order order) {
+        this.orderField = field(field);
+        this.order = order;
+        return this;
+    }
+
+    public Query<T> offset(int offset) {
+        this.offset = Math.max(offset, 0);
+        return this;
+    }
+
+    public Query<T> limit(int limit) {
+        this.limit = Math.max(limit, 0);
+        return this;
+    }
+
+    /**
+     * @param depth depth of relationships loaded for the results, see {@link Glue#get(String, Class, int)}
+     * @return this query
+     */
+    public Query<T> depth(int depth) {
+        this.depth = Math.max(depth, 0);
+        return this;
+    }
+
+    private Field field(String name) {
+        Field field = ClassMetadata.forClass(cls).field(name);
+        if (field == null) {
+            throw new IllegalArgumentException(cls.getSimpleName() + " has no field " + name);
+        }
+        return field;
+    }
+
+    /**
+     * @return matching objects
+     */
+    @SuppressWarnings("unchecked")
+    public ArrayList<T> find() {
+        int loadDepth = depth < 0 ? store.getDefaultDepth() : depth;
+        GlueMetrics metrics = store.getMetrics();
+        long start = metrics.start();
+        GlueStore previous = store.enter();
+        try {
+            return store.loadForQuery(execute(plan()), cls, loadDepth);
+        } finally {
+            GlueStore.leave(previous);
+            if (start != 0) {
+                metrics.record(GlueMetrics.Operation.FIND, store.getModelNameForClass(cls), start, 0);
+            }
+        }
+    }
+
+    /**
+     * @return uniques of matching objects
+     */
+    public ArrayList<String> findUniques() {
+        GlueMetrics metrics = store.getMetrics();
+        long start = metrics.start();
+        GlueStore previous = store.enter();
+        try {
+            return store.uniques(execute(plan()));
+        } finally {
+            GlueStore.leave(previous);
+            if (start != 0) {
+                metrics.record(GlueMetrics.Operation.FIND, store.getModelNameForClass(cls), start, 0);
+            }
+        }
+    }
+
+    /**
+     * @return true if an object satisfies every condition of this query, order, offset and
+     * limit aside
+     */
+    boolean matches(Pinnable object) {
+        GlueStore previous = store.enter();
+        try {
+            for (Clause clause : clauses) {
+                if (!clause.condition.normalize().matches(value(clause.field, object))) return false;
+            }
+            return true;
+        } finally {
+            GlueStore.leave(previous);
+        }
+    }
+
+    GlueStore getStore() {
+        return store;
+    }
+
+    Class<T> getModelClass() {
+        return cls;
+    }
+
+    /**
+     * @return the steps this query takes, one per line. A query which reads every key of
+     * the model has a SCAN step
+     */
+    public String explain() {
+        Plan plan;
+        GlueStore previous = store.enter();
+        try {
+            plan = plan();
+        } finally {
+            GlueStore.leave(previous);
+        }
+
+        StringBuilder builder = new StringBuilder("QUERY ").append(cls.getSimpleName());
+        for (String step : plan.steps) {
+            builder.append('\n').append("  ").append(step);
+        }
+        return builder.toString();
+    }
+
+    /************************************************************************************
+     * Planning
+     ************************************************************************************/
+
+    private Plan plan() {
+        Plan plan = new Plan();
+
+        // Conditions an index can answer narrow the candidates, the others are checked on objects
+        LinkedHashSet<String> candidates = null;
+        for (Clause where : clauses) {
+            Clause clause = new Clause(where.field, where.condition.normalize());
+            SecondaryIndex index = store.indexFor(cls, clause.field.getName());
+            Collection<String> keys = index == null ? null : clause.condition.lookup(index);
+            if (keys == null) {
+                plan.filters.add(clause);
+                continue;
+            }
+
+            plan.steps.add("INDEX " + index.name + " " + clause.condition + " (" + keys.size() + " keys)");
+            if (candidates == null) {
+                candidates = new LinkedHashSet<>(keys);
+            } else {
+                candidates.retainAll(keys instanceof LinkedHashSet ? keys : new LinkedHashSet<>(keys));
+            }
+        }
+
+        if (candidates == null) {
+            plan.scan = true;
+            plan.steps.add("SCAN " + cls.getSimpleName() + " (" + store.keyCountForQuery(cls) + " keys)");
+        }
+
+        SecondaryIndex orderIndex = orderField == null ? null : store.indexFor(cls, orderField.getName());
+        if (orderIndex != null && orderIndex.sorted) {
+            plan.keys = new OrderedKeys(orderIndex, candidates);
+            plan.steps.add("ORDER BY INDEX " + orderIndex.name + " " + order);
+        } else {
+            List<String> keys = candidates == null ? store.keysForQuery(cls) : new ArrayList<>(candidates);
+            plan.keys = keys.iterator();
+            if (orderField != null) {
+                plan.sortInMemory = true;
+                plan.steps.add("SORT " + orderField.getName() + " " + order);
+            }
+        }
+
+        for (Clause clause : plan.filters) {
+            plan.steps.add("FILTER " + clause);
+        }
+        if (offset > 0) {
+            plan.steps.add("OFFSET " + offset);
+        }
+        if (limit < Integer.MAX_VALUE) {
+            plan.steps.add("LIMIT " + limit);
+        }
+
+        return plan;
+    }
+
+    /**
+     * Candidates in the order of a sorted index, then candidates without a value. The index is
+     * read a page at a time as keys are taken, so a query which reaches its limit stops there
+     */
+    private final class OrderedKeys implements Iterator<String> {
+        private final SecondaryIndex index;
+
+        // Null when every key of the model is a candidate
+        private final LinkedHashSet<String> candidates;
+
+        private final ArrayDeque<String> page = new ArrayDeque<>();
+        private final HashSet<String> seen = new HashSet<>();
+        private Object last;
+        private boolean indexDone;
+        private Iterator<String> withoutValue;
+        private String next;
+
+        OrderedKeys(SecondaryIndex index, LinkedHashSet<String> candidates) {
+            this.index = index;
+            this.candidates = candidates;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (!page.isEmpty()) {
+                    String key = page.poll();
+                    // A key whose value changed between two pages may be read twice
+                    if ((candidates == null || candidates.contains(key)) && seen.add(key)) {
+                        next = key;
+                    }
+                } else if (!indexDone) {
+                    last = index.page(last, order == Order.DESC, BATCH_SIZE, page);
+                    indexDone = last == null;
+                } else {
+                    if (withoutValue == null) {
+                        Collection<String> keys = candidates == null ? store.keysForQuery(cls) : candidates;
+                        ArrayList<String> rest = new ArrayList<>();
+                        for (String key : keys) {
+                            if (!index.contains(key) && !seen.contains(key)) {
+                                rest.add(key);
+                            }
+                        }
+                        withoutValue = rest.iterator();
+                    }
+                    if (!withoutValue.hasNext()) return false;
+                    next = withoutValue.next();
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            String key = next;
+            next = null;
+            return key;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /************************************************************************************
+     * Execution
+     ************************************************************************************/
+
+    /**
+     * @return keys of matching objects, in order
+     */
+    private List<String> execute(Plan plan) {
+        Iterator<String> keys = plan.keys;
+
+        // Every condition was answered by an index, no record needs to be read. Expired
+        // objects are still in indexes, they are skipped before they count for offset or limit
+        if (plan.filters.isEmpty() && !plan.sortInMemory) {
+            ArrayList<String> result = new ArrayList<>();
+            int skipped = 0;
+            while (result.size() < limit && keys.hasNext()) {
+                String key = keys.next();
+                if (store.isExpired(key)) continue;
+
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    result.add(key);
+                }
+            }
+            return result;
+        }
+
+        if (plan.sortInMemory) {
+            ArrayList<String> all = new ArrayList<>();
+            while (keys.hasNext()) {
+                all.add(keys.next());
+            }
+
+            ArrayList<Pinnable> matches = new ArrayList<>();
+            for (Object object : store.loadForQuery(all, cls, 0)) {
+                if (accept(plan, object)) {
+                    matches.add((Pinnable) object);
+                }
+            }
+            Collections.sort(matches, comparator());
+
+            ArrayList<String> result = new ArrayList<>();
+            int to = (int) Math.min((long) offset + limit, matches.size());
+            for (int i = offset; i < to; i++) {
+                result.add(GlueStore.referenceKey(matches.get(i)));
+            }
+            return result;
+        }
+
+        // Check conditions on candidates a batch at a time, until the limit is reached
+        ArrayList<String> result = new ArrayList<>();
+        int skipped = 0;
+        ArrayList<String> batch = new ArrayList<>(BATCH_SIZE);
+        while (result.size() < limit && keys.hasNext()) {
+            batch.clear();
+            while (batch.size() < BATCH_SIZE && keys.hasNext()) {
+                batch.add(keys.next());
+            }
+            for (Object object : store.loadForQuery(batch, cls, 0)) {
+                if (!accept(plan, object)) continue;
+
+                if (skipped < offset) {
+                    skipped++;
+                } else if (result.size() < limit) {
+                    result.add(GlueStore.referenceKey((Pinnable) object));
+                }
+            }
+        }
+        return result;
+    }
+
+    private static boolean accept(Plan plan, Object object) {
+        for (Clause clause : plan.filters) {
+            if (!clause.condition.matches(value(clause.field, object))) return false;
+        }
+        return true;
+    }
+
+    private static Object value(Field field, Object object) {
+        try {
+            return SecondaryIndex.normalize(field.get(object));
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private Comparator<Pinnable> comparator() {
+        final Field field = orderField;
+        final boolean descending = order == Order.DESC;
+        return new Comparator<Pinnable>() {
+            @Override
+            public int compare(Pinnable first, Pinnable second) {
+                Object a = value(field, first);
+                Object b = value(field, second);
+
+                // Objects without a value come last in both orders
+                if (a == null || b == null) {
+                    return a == null ? (b == null ? 0 : 1) : -1;
+                }
+
+                int compare = SecondaryIndex.ORDER.compare(a, b);
+                return descending ? -compare : compare;
+            }
+        };
+    }
+}
@@ -0,0 +1,32 @@
+package me.thomasdao.glue;
+
+import java.io.IOException;
+
+/**
+ * Encoding of the records Glue stores. Every codec starts its records with a header of its
+ * own, so a record can be read back after the codec in use has changed. See
+ * {@link JSONHelper#setRecordCodec(RecordCodec)}.
+ */
+public interface RecordCodec {
+
+    /**
+     * @param data a stored record
+     * @return true if data starts with the header of this codec
+     */
+    boolean accepts(byte[] data);
+
+    /**
+     * @param value a Pinnable, or any value Jackson can write
+     * @return encoded record, starting with the header of this codec
+     * @throws IOException
+     */
+    byte[] encode(Object value) throws IOException;
+
+    /**
+     * @param data record accepted by this codec
+     * @param cls
+     * @return decoded value
+     * @throws IOException
+     */
+    <T> T decode(byte[] data, Class<T> cls) throws IOException;
+}
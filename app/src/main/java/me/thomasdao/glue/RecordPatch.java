@@ -0,0 +1,120 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Field level updates of stored records. An update which changes a few fields of a record
+ * writes only those fields, as a patch stored under "~modelName:unique" next to the record.
+ * Later updates add their fields to the same patch, and a read applies the patch on top of
+ * the record.
+ *
+ * A patch is folded back into its record once it grows to half the size of the record, so
+ * reads never pay for more than that. Patches need a {@link JacksonRecordCodec}, records of
+ * any other codec are always written in full.
+ */
+final class RecordPatch {
+    private static final String PREFIX = "~";
+
+    private RecordPatch() {
+    }
+
+    /**
+     * @return key of the patch of a record
+     */
+    static String patchKey(String key) {
+        return PREFIX + key;
+    }
+
+    /**
+     * Apply a patch to a record
+     * @param base stored record
+     * @param patch stored patch, or null
+     * @return the record with the fields of the patch, in the codec of the record
+     */
+    static byte[] apply(byte[] base, byte[] patch) {
+        if (base == null || patch == null) return base;
+
+        try {
+            JacksonRecordCodec baseCodec = treeCodec(base);
+            JacksonRecordCodec patchCodec = treeCodec(patch);
+            if (baseCodec == null || patchCodec == null) return base;
+
+            ObjectNode fields = baseCodec.readTree(base);
+            ObjectNode changes = patchCodec.readTree(patch);
+            if (fields == null || changes == null) return base;
+
+            fields.setAll(changes);
+            return baseCodec.encodeTree(fields);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return base;
+    }
+
+    /**
+     * Patch which turns a stored record into a new one
+     * @param base stored record
+     * @param patch stored patch, or null
+     * @param record new record, written by the current codec
+     * @return the new patch to store in place of the old one, the old patch itself if no field
+     * changed, or null if the record should be written in full
+     */
+    static byte[] diff(byte[] base, byte[] patch, byte[] record) {
+        if (base == null) return null;
+
+        try {
+            RecordCodec codec = JSONHelper.getRecordCodec();
+            if (!(codec instanceof JacksonRecordCodec)) return null;
+
+            // A record in another codec is rewritten, which moves it to the current one
+            JacksonRecordCodec current = (JacksonRecordCodec) codec;
+            if (JSONHelper.codecFor(base) != current) return null;
+            if (patch != null && JSONHelper.codecFor(patch) != current) return null;
+
+            ObjectNode stored = current.readTree(base);
+            ObjectNode changes = patch == null ? null : current.readTree(patch);
+            ObjectNode fields = current.readTree(record);
+            if (stored == null || fields == null || (patch != null && changes == null)) return null;
+
+            if (changes != null) {
+                stored.setAll(changes);
+            } else {
+                changes = fields.objectNode();
+            }
+
+            boolean changed = false;
+            Iterator<Map.Entry<String, JsonNode>> iterator = fields.fields();
+            while (iterator.hasNext()) {
+                Map.Entry<String, JsonNode> field = iterator.next();
+                if (!field.getValue().equals(stored.get(field.getKey()))) {
+                    changes.set(field.getKey(), field.getValue());
+                    changed = true;
+                }
+            }
+
+            // A field the new record no longer has cannot be removed by a patch
+            Iterator<String> names = stored.fieldNames();
+            while (names.hasNext()) {
+                if (!fields.has(names.next())) return null;
+            }
+
+            if (!changed) return patch;
+
+            // Fold the patch into the record once reading it costs as much as the record
+            byte[] encoded = current.encodeTree(changes);
+            return encoded.length * 2 > record.length ? null : encoded;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    private static JacksonRecordCodec treeCodec(byte[] data) {
+        RecordCodec codec = JSONHelper.codecFor(data);
+        return codec instanceof JacksonRecordCodec ? (JacksonRecordCodec) codec : null;
+    }
+}
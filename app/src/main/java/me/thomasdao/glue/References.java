@@ -0,0 +1,205 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.BeanDescription;
+import com.fasterxml.jackson.databind.BeanProperty;
+import com.fasterxml.jackson.databind.DeserializationConfig;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializationConfig;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.deser.BeanDeserializerModifier;
+import com.fasterxml.jackson.databind.deser.std.DelegatingDeserializer;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.BeanSerializerModifier;
+import com.fasterxml.jackson.databind.ser.ContextualSerializer;
+import com.fasterxml.jackson.databind.ser.ResolvableSerializer;
+
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * Normalized storage of relationships. A field whose declared type is Pinnable, or a collection
+ * of Pinnable, is written as its "modelName:unique" key instead of a nested copy of the object.
+ * The referenced object is stored under its own key by pinAll, and resolved through the memory
+ * cache when the record is read.
+ *
+ * Nested objects are still accepted when reading, so records written before references were
+ * introduced load as they did before.
+ */
+final class References {
+
+    private References() {
+    }
+
+    /**
+     * @return true if values of a property are written as references
+     */
+    static boolean isReference(JavaType type) {
+        if (Pinnable.class.isAssignableFrom(type.getRawClass())) return true;
+        return type.isCollectionLikeType()
+                && Pinnable.class.isAssignableFrom(type.getContentType().getRawClass());
+    }
+
+    /**
+     * Write an object as a reference, or as a nested object if it has no key
+     */
+    static void write(JsonGenerator generator, Pinnable value) throws IOException {
+        String key = value == null ? null : GlueStore.referenceKey(value);
+        if (key != null) {
+            generator.writeString(key);
+        } else {
+            ModelAdapters.writeValue(generator, value);
+        }
+    }
+
+    /**
+     * Write a collection whose elements are Pinnable
+     */
+    static void writeAll(JsonGenerator generator, Collection collection) throws IOException {
+        if (collection == null) {
+            generator.writeNull();
+            return;
+        }
+
+        generator.writeStartArray();
+        for (Object item : collection) {
+            if (item instanceof Pinnable) {
+                write(generator, (Pinnable) item);
+            } else {
+                ModelAdapters.writeValue(generator, item);
+            }
+        }
+        generator.writeEndArray();
+    }
+
+    /**
+     * Read a reference, the parser is on a VALUE_STRING token
+     */
+    static Object read(JsonParser parser, Class declaredClass) throws IOException {
+        return GlueStore.resolveReference(parser.getText(), declaredClass);
+    }
+
+    /**
+     * Jackson module writing and reading references for every Pinnable class
+     */
+    static SimpleModule module() {
+        SimpleModule module = new SimpleModule("GlueReferences");
+
+        module.setSerializerModifier(new BeanSerializerModifier() {
+            @Override
+            public JsonSerializer<?> modifySerializer(SerializationConfig config, BeanDescription beanDesc,
+                                                      JsonSerializer<?> serializer) {
+                if (!Pinnable.class.isAssignableFrom(beanDesc.getBeanClass())) return serializer;
+                return new ReferenceSerializer(serializer, false);
+            }
+        });
+
+        module.setDeserializerModifier(new BeanDeserializerModifier() {
+            @Override
+            public JsonDeserializer<?> modifyDeserializer(DeserializationConfig config, BeanDescription beanDesc,
+                                                          JsonDeserializer<?> deserializer) {
+                if (!Pinnable.class.isAssignableFrom(beanDesc.getBeanClass())) return deserializer;
+                return new ReferenceDeserializer(deserializer, beanDesc.getBeanClass());
+            }
+        });
+
+        return module;
+    }
+
+    /**
+     * Writes a Pinnable as a reference when it is the value of a relationship property, and
+     * as a full object otherwise, for example as the root of a record
+     */
+    private static final class ReferenceSerializer extends JsonSerializer<Object>
+            implements ContextualSerializer, ResolvableSerializer {
+        private final JsonSerializer<Object> delegate;
+        private final boolean asReference;
+
+        @SuppressWarnings("unchecked")
+        ReferenceSerializer(JsonSerializer<?> delegate, boolean asReference) {
+            this.delegate = (JsonSerializer<Object>) delegate;
+            this.asReference = asReference;
+        }
+
+        @Override
+        public void resolve(SerializerProvider provider) throws JsonMappingException {
+            if (delegate instanceof ResolvableSerializer) {
+                ((ResolvableSerializer) delegate).resolve(provider);
+            }
+        }
+
+        @Override
+        public JsonSerializer<?> createContextual(SerializerProvider provider, BeanProperty property)
+                throws JsonMappingException {
+            JsonSerializer<?> serializer = delegate;
+            if (serializer instanceof ContextualSerializer) {
+                serializer = ((ContextualSerializer) serializer).createContextual(provider, property);
+            }
+            return new ReferenceSerializer(serializer, property != null && isReference(property.getType()));
+        }
+
+        @Override
+        public void serialize(Object value, JsonGenerator generator, SerializerProvider provider) throws IOException {
+            String key = asReference ? GlueStore.referenceKey((Pinnable) value) : null;
+            if (key != null) {
+                generator.writeString(key);
+            } else {
+                delegate.serialize(value, generator, provider);
+            }
+        }
+
+        @Override
+        public void serializeWithType(Object value, JsonGenerator generator, SerializerProvider provider,
+                                      TypeSerializer typeSerializer) throws IOException {
+            delegate.serializeWithType(value, generator, provider, typeSerializer);
+        }
+
+        @Override
+        public boolean usesObjectId() {
+            return delegate.usesObjectId();
+        }
+
+        @Override
+        public Class<Object> handledType() {
+            return delegate.handledType();
+        }
+
+        @Override
+        public JsonSerializer<?> getDelegatee() {
+            return delegate;
+        }
+    }
+
+    /**
+     * Resolves a reference, or reads a nested object as before
+     */
+    private static final class ReferenceDeserializer extends DelegatingDeserializer {
+        private final Class declaredClass;
+
+        ReferenceDeserializer(JsonDeserializer<?> delegate, Class declaredClass) {
+            super(delegate);
+            this.declaredClass = declaredClass;
+        }
+
+        @Override
+        protected JsonDeserializer<?> newDelegatingInstance(JsonDeserializer<?> delegate) {
+            return new ReferenceDeserializer(delegate, declaredClass);
+        }
+
+        @Override
+        public Object deserialize(JsonParser parser, DeserializationContext context) throws IOException {
+            if (parser.getCurrentToken() == JsonToken.VALUE_STRING) {
+                return read(parser, declaredClass);
+            }
+            return super.deserialize(parser, context);
+        }
+    }
+
+}
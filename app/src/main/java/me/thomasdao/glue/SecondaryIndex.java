@@ -0,0 +1,466 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+/**
+ * Keys of the objects of a model by the value of an {@link Indexed} field.
+ *
+ * The value of every key is stored, so an object can be moved or removed without knowing its
+ * previous state. Values are stored in segments of up to {@link KeyIndex#SEGMENT_SIZE} keys,
+ * each a json object under "name#id", and "name" holds the ids of the segments as a
+ * {@link KeyIndex.Manifest}. A changed key only rewrites its own segment. Keys by value are
+ * rebuilt when the index is read, in a hash map or, for a sorted index, in a tree map.
+ *
+ * Before segments, "name" held a single json object of every key. Such an index is read as
+ * it is, and split into segments the next time it changes.
+ *
+ * Methods are synchronized and return copies, so the index can be read while a writer holding
+ * the model lock changes it.
+ */
+final class SecondaryIndex {
+
+    private static final class Segment {
+        final int id;
+        final LinkedHashMap<String, Object> values = new LinkedHashMap<>();
+
+        Segment(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Booleans first, then numbers, then strings
+     */
+    static final Comparator<Object> ORDER = new Comparator<Object>() {
+        @Override
+        public int compare(Object first, Object second) {
+            int rank = rank(first) - rank(second);
+            if (rank != 0) return rank;
+
+            if (first instanceof Long && second instanceof Long) {
+                long a = (Long) first;
+                long b = (Long) second;
+                return a < b ? -1 : (a == b ? 0 : 1);
+            }
+            if (first instanceof Number) {
+                return Double.compare(((Number) first).doubleValue(), ((Number) second).doubleValue());
+            }
+            if (first instanceof Boolean) {
+                boolean a = (Boolean) first;
+                return a == (Boolean) second ? 0 : (a ? 1 : -1);
+            }
+            return ((String) first).compareTo((String) second);
+        }
+
+        private int rank(Object value) {
+            if (value instanceof Boolean) return 0;
+            if (value instanceof Number) return 1;
+            return 2;
+        }
+    };
+
+    private static final TypeReference<LinkedHashMap<String, Object>> VALUES =
+            new TypeReference<LinkedHashMap<String, Object>>(){};
+
+    final String name;
+    final boolean sorted;
+
+    private final ArrayList<Segment> segments = new ArrayList<>();
+    private final HashMap<String, Segment> segmentOf = new HashMap<>();
+    private final Map<Object, LinkedHashSet<String>> keys;
+    private int nextId;
+
+    // Number of keys whose value is at most the watermark, see countAtMost
+    private Object watermark;
+    private int atMostWatermark;
+
+    // Changes not written yet
+    private final LinkedHashSet<Segment> dirtySegments = new LinkedHashSet<>();
+    private final ArrayList<Integer> droppedSegments = new ArrayList<>();
+    private boolean manifestDirty;
+
+    SecondaryIndex(String name, boolean sorted) {
+        this.name = name;
+        this.sorted = sorted;
+        this.keys = sorted
+                ? new TreeMap<Object, LinkedHashSet<String>>(ORDER)
+                : new HashMap<Object, LinkedHashSet<String>>();
+    }
+
+    private String segmentKey(int id) {
+        return name + "#" + id;
+    }
+
+    /**
+     * Value of a field as it is kept in an index: a string, a boolean, a Long or a Double.
+     * A whole number is a Long whatever its type, so 5 and 5.0 are the same value, and a float
+     * is read through its decimal form, so 0.1f is 0.1
+     * @param value
+     * @return null if the value is not indexed
+     */
+    static Object normalize(Object value) {
+        if (value == null) return null;
+
+        if (value instanceof Pinnable) return GlueStore.referenceKey((Pinnable) value);
+        if (value instanceof Date) return ((Date) value).getTime();
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) return normalize(Double.parseDouble(value.toString()));
+        if (value instanceof Double) {
+            double d = (Double) value;
+            if (d == Math.rint(d) && Math.abs(d) < 0x1p63) return (long) d;
+            return d;
+        }
+        if (value instanceof Number) return normalize(((Number) value).doubleValue());
+        if (value instanceof Enum) return ((Enum) value).name();
+        if (value instanceof Boolean || value instanceof String) return value;
+        return value.toString();
+    }
+
+    /**
+     * Index a key by a value, or remove it if the value is null
+     * @return true if the index changed
+     */
+    synchronized boolean put(String key, Object value) {
+        value = normalize(value);
+        if (value == null) return remove(key);
+
+        Segment segment = segmentOf.get(key);
+        Object previous = segment == null ? null : segment.values.get(key);
+        if (value.equals(previous)) return false;
+
+        if (previous != null) {
+            removeKey(previous, key);
+        } else {
+            segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (segment == null || segment.values.size() >= KeyIndex.SEGMENT_SIZE) {
+                segment = new Segment(nextId++);
+                segments.add(segment);
+                manifestDirty = true;
+            }
+            segmentOf.put(key, segment);
+        }
+        segment.values.put(key, value);
+        dirtySegments.add(segment);
+        addKey(value, key);
+        return true;
+    }
+
+    /**
+     * @return true if the index changed
+     */
+    synchronized boolean remove(String key) {
+        Segment segment = segmentOf.remove(key);
+        if (segment == null) return false;
+
+        removeKey(segment.values.remove(key), key);
+        if (segment.values.isEmpty() && segment != segments.get(segments.size() - 1)) {
+            // Keep the last segment to append to, drop any other once it is empty
+            segments.remove(segment);
+            dirtySegments.remove(segment);
+            droppedSegments.add(segment.id);
+            manifestDirty = true;
+        } else {
+            dirtySegments.add(segment);
+        }
+        return true;
+    }
+
+    private void removeKey(Object value, String key) {
+        LinkedHashSet<String> set = keys.get(value);
+        if (set == null) return;
+
+        if (set.remove(key) && isAtMostWatermark(value)) {
+            atMostWatermark--;
+        }
+        if (set.isEmpty()) {
+            keys.remove(value);
+        }
+    }
+
+    private void addKey(Object value, String key) {
+        LinkedHashSet<String> set = keys.get(value);
+        if (set == null) {
+            set = new LinkedHashSet<>();
+            keys.put(value, set);
+        }
+        if (set.add(key) && isAtMostWatermark(value)) {
+            atMostWatermark++;
+        }
+    }
+
+    private boolean isAtMostWatermark(Object value) {
+        return watermark != null && ORDER.compare(value, watermark) <= 0;
+    }
+
+    /**
+     * Number of keys whose value is at most a bound, in a sorted index. The count is kept as
+     * keys change, and a higher bound only counts the values between the two, so a bound which
+     * rises over time, like the current time, costs the newly passed values rather than the index
+     * @param bound
+     * @return number of keys
+     */
+    synchronized int countAtMost(Object bound) {
+        if (!sorted) {
+            throw new IllegalArgumentException("Index " + name + " is not sorted");
+        }
+
+        bound = normalize(bound);
+        NavigableMap<Object, LinkedHashSet<String>> map = (TreeMap<Object, LinkedHashSet<String>>) keys;
+        NavigableMap<Object, LinkedHashSet<String>> passed;
+        if (watermark == null || ORDER.compare(bound, watermark) < 0) {
+            atMostWatermark = 0;
+            passed = map.headMap(bound, true);
+        } else {
+            passed = map.subMap(watermark, false, bound, true);
+        }
+
+        for (LinkedHashSet<String> set : passed.values()) {
+            atMostWatermark += set.size();
+        }
+        watermark = bound;
+        return atMostWatermark;
+    }
+
+    /**
+     * @return true if a key has a value in this index
+     */
+    synchronized boolean contains(String key) {
+        return segmentOf.containsKey(key);
+    }
+
+    synchronized int size() {
+        return segmentOf.size();
+    }
+
+    /**
+     * @return value of a key as kept in this index, or null
+     */
+    synchronized Object valueOf(String key) {
+        Segment segment = segmentOf.get(key);
+        return segment == null ? null : segment.values.get(key);
+    }
+
+    /**
+     * @return keys whose value equals a value
+     */
+    synchronized Collection<String> get(Object value) {
+        LinkedHashSet<String> set = keys.get(normalize(value));
+        return set == null ? Collections.<String>emptyList() : new ArrayList<>(set);
+    }
+
+    /**
+     * @param from lowest value, included, or null for no lower bound
+     * @param to highest value, excluded, or null for no upper bound
+     * @return keys in order of their values
+     */
+    ArrayList<String> getRange(Object from, Object to) {
+        return getRange(from, true, to, false, false);
+    }
+
+    /**
+     * @param from lowest value, or null for no lower bound
+     * @param to highest value, or null for no upper bound
+     * @param descending true for keys from the highest value to the lowest
+     * @return keys in order of their values
+     */
+    synchronized ArrayList<String> getRange(Object from, boolean fromInclusive, Object to, boolean toInclusive,
+                                            boolean descending) {
+        if (!sorted) {
+            throw new IllegalArgumentException("Index " + name + " is not sorted");
+        }
+
+        ArrayList<String> result = new ArrayList<>();
+        NavigableMap<Object, LinkedHashSet<String>> range = (TreeMap<Object, LinkedHashSet<String>>) keys;
+        Object lower = normalize(from);
+        Object upper = normalize(to);
+        if (lower != null && upper != null) {
+            int compare = ORDER.compare(lower, upper);
+            if (compare > 0 || (compare == 0 && !(fromInclusive && toInclusive))) return result;
+            range = range.subMap(lower, fromInclusive, upper, toInclusive);
+        } else if (lower != null) {
+            range = range.tailMap(lower, fromInclusive);
+        } else if (upper != null) {
+            range = range.headMap(upper, toInclusive);
+        }
+        if (descending) {
+            range = range.descendingMap();
+        }
+
+        for (LinkedHashSet<String> set : range.values()) {
+            result.addAll(set);
+        }
+        return result;
+    }
+
+    /**
+     * Read keys in order of their values a page at a time, so a caller which stops early does
+     * not copy the whole index. A value is never split, so a page may hold more than max keys
+     * @param after value the page starts after, or null to start at the first value
+     * @param descending true to read from the highest value to the lowest
+     * @param max number of keys after which the page ends
+     * @param page receives keys in order of their values
+     * @return last value of the page, or null if no value is left
+     */
+    synchronized Object page(Object after, boolean descending, int max, Collection<String> page) {
+        if (!sorted) {
+            throw new IllegalArgumentException("Index " + name + " is not sorted");
+        }
+
+        NavigableMap<Object, LinkedHashSet<String>> range = (TreeMap<Object, LinkedHashSet<String>>) keys;
+        if (descending) {
+            range = range.descendingMap();
+        }
+        if (after != null) {
+            range = range.tailMap(after, false);
+        }
+
+        Object last = null;
+        int count = 0;
+        for (Map.Entry<Object, LinkedHashSet<String>> entry : range.entrySet()) {
+            page.addAll(entry.getValue());
+            count += entry.getValue().size();
+            last = entry.getKey();
+            if (count >= max) break;
+        }
+        return last;
+    }
+
+    /**
+     * @return true if changes were made since the last {@link #writeChanges(Map, Collection)}
+     */
+    synchronized boolean isDirty() {
+        return manifestDirty || !dirtySegments.isEmpty() || !droppedSegments.isEmpty();
+    }
+
+    /**
+     * Move changes made since the last call to a batch of writes
+     * @param puts
+     * @param deletes
+     * @return length of the segments and manifest put
+     */
+    synchronized long writeChanges(Map<String, byte[]> puts, Collection<String> deletes) {
+        // Serialized first, so a failure leaves the changes to write and the batch untouched
+        HashMap<String, byte[]> changed = new HashMap<>();
+        long bytes = 0;
+        try {
+            for (Segment segment : dirtySegments) {
+                byte[] data = JSONHelper.OBJECT_MAPPER.writeValueAsBytes(segment.values);
+                changed.put(segmentKey(segment.id), data);
+                bytes += data.length;
+            }
+
+            if (manifestDirty) {
+                KeyIndex.Manifest manifest = new KeyIndex.Manifest();
+                for (Segment segment : segments) {
+                    manifest.segments.add(segment.id);
+                }
+                byte[] data = JSONHelper.OBJECT_MAPPER.writeValueAsBytes(manifest);
+                changed.put(name, data);
+                bytes += data.length;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Cannot write index " + name, e);
+        }
+
+        puts.putAll(changed);
+        for (Integer id : droppedSegments) {
+            deletes.add(segmentKey(id));
+        }
+        dirtySegments.clear();
+        droppedSegments.clear();
+        manifestDirty = false;
+        return bytes;
+    }
+
+    /**
+     * @return every storage key of this index
+     */
+    synchronized ArrayList<String> storageKeys() {
+        ArrayList<String> keys = new ArrayList<>();
+        keys.add(name);
+        for (Segment segment : segments) {
+            keys.add(segmentKey(segment.id));
+        }
+        for (Integer id : droppedSegments) {
+            keys.add(segmentKey(id));
+        }
+        return keys;
+    }
+
+    /**
+     * Read an index from storage
+     * @return null if the index is not stored
+     * @throws RuntimeException if the manifest or a segment cannot be read
+     */
+    static SecondaryIndex load(Storage storage, String name, boolean sorted) {
+        byte[] data = storage.get(name);
+        if (data == null) return null;
+
+        try {
+            LinkedHashMap<String, Object> stored = JSONHelper.OBJECT_MAPPER.readValue(data, VALUES);
+            SecondaryIndex index = new SecondaryIndex(name, sorted);
+
+            // Keys of a model always hold a ':', so a manifest is never read as a single object
+            Object ids = stored.get("segments");
+            if (!(ids instanceof List)) {
+                // A single object from before segments. Adding its keys leaves every segment
+                // to be written, so the index is split on the next write
+                for (Map.Entry<String, Object> entry : stored.entrySet()) {
+                    index.put(entry.getKey(), entry.getValue());
+                }
+                return index;
+            }
+
+            ArrayList<String> segmentKeys = new ArrayList<>();
+            for (Object id : (List) ids) {
+                segmentKeys.add(index.segmentKey(((Number) id).intValue()));
+            }
+
+            Map<String, byte[]> values = storage.get(segmentKeys);
+            for (Object object : (List) ids) {
+                Segment segment = new Segment(((Number) object).intValue());
+                byte[] value = values.get(index.segmentKey(segment.id));
+                if (value == null) {
+                    throw new IOException("Missing segment " + index.segmentKey(segment.id));
+                }
+
+                LinkedHashMap<String, Object> entries = JSONHelper.OBJECT_MAPPER.readValue(value, VALUES);
+                for (Map.Entry<String, Object> entry : entries.entrySet()) {
+                    index.add(segment, entry.getKey(), normalize(entry.getValue()));
+                }
+                index.segments.add(segment);
+                index.nextId = Math.max(index.nextId, segment.id + 1);
+            }
+            return index;
+        } catch (Exception e) {
+            throw new RuntimeException("Cannot read index " + name, e);
+        }
+    }
+
+    /**
+     * Add a stored key to a segment being read, without marking anything to write
+     */
+    private void add(Segment segment, String key, Object value) {
+        if (value == null || segmentOf.containsKey(key)) return;
+
+        segment.values.put(key, value);
+        segmentOf.put(key, segment);
+        addKey(value, key);
+    }
+}
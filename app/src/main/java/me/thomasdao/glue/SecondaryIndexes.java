@@ -0,0 +1,190 @@
+package me.thomasdao.glue;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The {@link SecondaryIndex} of each {@link Indexed} field of the models of a {@link GlueStore}.
+ * An index is read from storage the first time its field is used, or built from the records
+ * of its model when it is not stored, for example when the field was not indexed before.
+ */
+final class SecondaryIndexes {
+
+    private final GlueStore store;
+    private final Storage storage;
+    private final BulkLoader loader;
+
+    /**
+     * Indexes read so far, by storage key
+     */
+    private final ConcurrentHashMap<String, SecondaryIndex> indexes = new ConcurrentHashMap<>();
+
+    SecondaryIndexes(GlueStore store, Storage storage, BulkLoader loader) {
+        this.store = store;
+        this.storage = storage;
+        this.loader = loader;
+    }
+
+    /**
+     * @return index of a field, or null if the field is not indexed
+     */
+    SecondaryIndex indexFor(Class cls, String fieldName) {
+        Field field = ClassMetadata.forClass(cls).indexedField(fieldName);
+        if (field == null) return null;
+        return get(store.getModelNameForClass(cls), cls, field);
+    }
+
+    /**
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    SecondaryIndex get(Class cls, String fieldName) {
+        Field field = ClassMetadata.forClass(cls).indexedField(fieldName);
+        if (field == null) {
+            throw new IllegalArgumentException("Field " + fieldName + " of " + cls.getSimpleName()
+                    + " is not annotated with @Indexed");
+        }
+        return get(store.getModelNameForClass(cls), cls, field);
+    }
+
+    static String indexName(String modelName, Field field) {
+        return modelName + "#" + field.getName();
+    }
+
+    /**
+     * Read a secondary index, or build it from the objects of a model which were saved
+     * before the field was indexed
+     */
+    SecondaryIndex get(String modelName, Class cls, Field field) {
+        String name = indexName(modelName, field);
+        SecondaryIndex index = indexes.get(name);
+        if (index != null) return index;
+
+        // Read or build under the model lock, so no writer changes the objects meanwhile
+        ReentrantLock lock = store.modelLock(modelName);
+        lock.lock();
+        try {
+            index = indexes.get(name);
+            if (index != null) return index;
+
+            boolean sorted = field.getAnnotation(Indexed.class).sorted();
+            ArrayList<String> stale = new ArrayList<>();
+            try {
+                index = SecondaryIndex.load(storage, name, sorted);
+            } catch (RuntimeException e) {
+                // Built again from the records below, and what was stored of it is dropped
+                e.printStackTrace();
+                index = null;
+                stale = KeyIndex.storedSegments(storage.keys(), name);
+            }
+
+            if (index == null) {
+                index = new SecondaryIndex(name, sorted);
+                ArrayList<String> keys = store.getAllKeysForModel(modelName);
+                GlueStore previous = store.enter();
+                try {
+                    for (Object object : loader.load(keys, cls, 0)) {
+                        index.put(store.internalKey((Pinnable) object), fieldValue(field, object));
+                    }
+                } finally {
+                    GlueStore.leave(previous);
+                }
+
+                HashMap<String, byte[]> buffers = new HashMap<>();
+                ArrayList<String> deletes = new ArrayList<>();
+                index.writeChanges(buffers, deletes);
+                for (String key : stale) {
+                    if (!buffers.containsKey(key)) {
+                        deletes.add(key);
+                    }
+                }
+                storage.write(buffers, deletes);
+            }
+
+            indexes.put(name, index);
+            return index;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static Object fieldValue(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * Keys indexed under a value, a Pinnable value is looked up by its key in the store
+     */
+    ArrayList<String> matches(SecondaryIndex index, Object value) {
+        GlueStore previous = store.enter();
+        try {
+            return new ArrayList<>(index.get(value));
+        } finally {
+            GlueStore.leave(previous);
+        }
+    }
+
+    ArrayList<String> matchesInRange(SecondaryIndex index, Object from, Object to) {
+        GlueStore previous = store.enter();
+        try {
+            return index.getRange(from, to);
+        } finally {
+            GlueStore.leave(previous);
+        }
+    }
+
+    /**
+     * Index changed objects by their current field values
+     * @param objects changed objects by key
+     * @return indexes which changed
+     */
+    HashSet<SecondaryIndex> update(Map<String, Pinnable> objects) {
+        HashSet<SecondaryIndex> changed = new HashSet<>();
+        for (Map.Entry<String, Pinnable> entry : objects.entrySet()) {
+            Pinnable object = entry.getValue();
+            Class cls = object.getClass();
+            Field[] fields = ClassMetadata.forClass(cls).indexedFields;
+            if (fields.length == 0) continue;
+
+            String modelName = store.getModelNameForClass(cls);
+            for (Field field : fields) {
+                SecondaryIndex index = get(modelName, cls, field);
+                if (index.put(entry.getKey(), fieldValue(field, object))) {
+                    changed.add(index);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Forget the indexes of a model
+     * @param cls class of the model, or null if the store has not used it
+     * @param removed filled with the indexes of the model by storage key, null for the ones
+     *                which were not read
+     */
+    void removeModel(String modelName, Class cls, Map<String, SecondaryIndex> removed) {
+        if (cls == null) return;
+
+        for (Field field : ClassMetadata.forClass(cls).indexedFields) {
+            String name = indexName(modelName, field);
+            removed.put(name, indexes.remove(name));
+        }
+    }
+
+    /**
+     * Forget every index read from storage
+     */
+    void clear() {
+        indexes.clear();
+    }
+}
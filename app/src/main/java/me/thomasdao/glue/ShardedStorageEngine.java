@@ -0,0 +1,208 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spread the keys of a store over several engines, for example one SharedPreferences file per
+ * hot model, so a write only rewrites the file of its own shard and a shard can be cleared
+ * without touching the others.
+ *
+ * Keys are routed either by model, every key of a model to the shard set for it and the rest
+ * to a default shard, or by a hash of the key. By model, a record, its patch and the indexes
+ * of its model always share a shard. By hash, a record and its patch share a shard, but index
+ * keys such as "modelName" and "modelName#id" are hashed on their own and may sit on others.
+ *
+ * A batch is split by shard and written to each shard in turn, it is not atomic across shards.
+ */
+public class ShardedStorageEngine implements StorageEngine {
+    private final StorageEngine defaultShard;
+    private final ConcurrentHashMap<String, StorageEngine> modelShards = new ConcurrentHashMap<>();
+    private final List<StorageEngine> hashShards;
+
+    /**
+     * Route keys by model, models without a shard of their own go to defaultShard. See
+     * {@link #setModelShard(String, StorageEngine)}
+     * @param defaultShard
+     */
+    public ShardedStorageEngine(StorageEngine defaultShard) {
+        this.defaultShard = defaultShard;
+        this.hashShards = null;
+    }
+
+    private ShardedStorageEngine(List<StorageEngine> hashShards) {
+        this.defaultShard = null;
+        this.hashShards = hashShards;
+    }
+
+    /**
+     * Route keys by a hash of the record key
+     * @param shards at least one engine, the number of shards must not change once data is stored
+     */
+    public static ShardedStorageEngine byHash(StorageEngine... shards) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("At least one shard is needed");
+        }
+        return new ShardedStorageEngine(Collections.unmodifiableList(Arrays.asList(shards)));
+    }
+
+    /**
+     * Keep every key of a model in its own engine. Set shards before the store reads the model
+     * @param modelName
+     * @param shard
+     * @return this engine
+     */
+    public ShardedStorageEngine setModelShard(String modelName, StorageEngine shard) {
+        if (hashShards != null) {
+            throw new IllegalStateException("Keys are routed by hash");
+        }
+        modelShards.put(modelName, shard);
+        return this;
+    }
+
+    /**
+     * @return engine keeping a model on its own, or null if the model shares a shard
+     */
+    public StorageEngine getModelShard(String modelName) {
+        return hashShards == null ? modelShards.get(modelName) : null;
+    }
+
+    /**
+     * @return every shard, the default one first
+     */
+    public List<StorageEngine> getShards() {
+        if (hashShards != null) return hashShards;
+
+        LinkedHashSet<StorageEngine> shards = new LinkedHashSet<>();
+        shards.add(defaultShard);
+        shards.addAll(modelShards.values());
+        return new ArrayList<>(shards);
+    }
+
+    /**
+     * Model of a key: "modelName:unique" and its patch "~modelName:unique", the key index
+     * "modelName" and "modelName#id", the secondary index "modelName#field" and its
+     * "modelName#field#id" segments
+     */
+    static String modelOf(String key) {
+        int start = key.startsWith("~") ? 1 : 0;
+        for (int i = start; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == ':' || c == '#') return key.substring(start, i);
+        }
+        return key.substring(start);
+    }
+
+    /**
+     * @return shard holding a key
+     */
+    public StorageEngine shardFor(String key) {
+        if (hashShards == null) {
+            StorageEngine shard = modelShards.get(modelOf(key));
+            return shard != null ? shard : defaultShard;
+        }
+
+        // A patch shares the shard of its record
+        String routed = key.startsWith("~") ? key.substring(1) : key;
+        int hash = routed.hashCode();
+        hash ^= hash >>> 16;
+        return hashShards.get((hash & 0x7fffffff) % hashShards.size());
+    }
+
+    /************************************************************************************
+     * StorageEngine
+     ************************************************************************************/
+
+    @Override
+    public byte[] get(String key) {
+        return shardFor(key).get(key);
+    }
+
+    @Override
+    public Map<String, byte[]> get(Collection<String> keys) {
+        IdentityHashMap<StorageEngine, ArrayList<String>> byShard = new IdentityHashMap<>();
+        for (String key : keys) {
+            StorageEngine shard = shardFor(key);
+            ArrayList<String> shardKeys = byShard.get(shard);
+            if (shardKeys == null) {
+                shardKeys = new ArrayList<>();
+                byShard.put(shard, shardKeys);
+            }
+            shardKeys.add(key);
+        }
+
+        if (byShard.size() == 1) {
+            Map.Entry<StorageEngine, ArrayList<String>> only = byShard.entrySet().iterator().next();
+            return only.getKey().get(only.getValue());
+        }
+
+        HashMap<String, byte[]> values = new HashMap<>();
+        for (Map.Entry<StorageEngine, ArrayList<String>> entry : byShard.entrySet()) {
+            values.putAll(entry.getKey().get(entry.getValue()));
+        }
+        return values;
+    }
+
+    @Override
+    public void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        IdentityHashMap<StorageEngine, HashMap<String, byte[]>> putsByShard = new IdentityHashMap<>();
+        IdentityHashMap<StorageEngine, ArrayList<String>> deletesByShard = new IdentityHashMap<>();
+
+        for (Map.Entry<String, byte[]> entry : puts.entrySet()) {
+            StorageEngine shard = shardFor(entry.getKey());
+            HashMap<String, byte[]> shardPuts = putsByShard.get(shard);
+            if (shardPuts == null) {
+                shardPuts = new HashMap<>();
+                putsByShard.put(shard, shardPuts);
+            }
+            shardPuts.put(entry.getKey(), entry.getValue());
+        }
+
+        for (String key : deletes) {
+            StorageEngine shard = shardFor(key);
+            ArrayList<String> shardDeletes = deletesByShard.get(shard);
+            if (shardDeletes == null) {
+                shardDeletes = new ArrayList<>();
+                deletesByShard.put(shard, shardDeletes);
+            }
+            shardDeletes.add(key);
+        }
+
+        // Each shard touched by the batch gets a single write
+        Set<StorageEngine> shards = Collections.newSetFromMap(new IdentityHashMap<StorageEngine, Boolean>());
+        shards.addAll(putsByShard.keySet());
+        shards.addAll(deletesByShard.keySet());
+        for (StorageEngine shard : shards) {
+            Map<String, byte[]> shardPuts = putsByShard.get(shard);
+            Collection<String> shardDeletes = deletesByShard.get(shard);
+            shard.write(shardPuts != null ? shardPuts : new HashMap<String, byte[]>(),
+                    shardDeletes != null ? shardDeletes : new ArrayList<String>());
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (StorageEngine shard : getShards()) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public Set<String> keys() {
+        HashSet<String> keys = new HashSet<>();
+        for (StorageEngine shard : getShards()) {
+            keys.addAll(shard.keys());
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,124 @@
+package me.thomasdao.glue;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Base64;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Store values in a private SharedPreferences file. Every write commits the whole file.
+ *
+ * SharedPreferences only holds strings. Values which are UTF-8 text, such as JSON records,
+ * are stored as that text, so files written by earlier versions read as they are. Any other
+ * value, for example a Smile record, is stored as Base64 behind a marker.
+ */
+public class SharedPreferencesEngine implements StorageEngine {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Prefix of a Base64 value. A private use character, which no JSON document starts with
+     */
+    static final String BINARY_PREFIX = "\uE000";
+
+    private final SharedPreferences preferences;
+
+    public SharedPreferencesEngine(Context context, String name) {
+        preferences = context.getSharedPreferences(name, Context.MODE_PRIVATE);
+    }
+
+    public SharedPreferences getSharedPreferences() {
+        return preferences;
+    }
+
+    /**
+     * @return value as stored in preferences
+     */
+    static String toText(byte[] value) {
+        String text = decodeText(value);
+        if (text != null && !text.startsWith(BINARY_PREFIX)) {
+            return text;
+        }
+        return BINARY_PREFIX + Base64.encodeToString(value, Base64.NO_WRAP);
+    }
+
+    static byte[] fromText(String text) {
+        if (text.startsWith(BINARY_PREFIX)) {
+            return Base64.decode(text.substring(BINARY_PREFIX.length()), Base64.NO_WRAP);
+        }
+        return text.getBytes(UTF_8);
+    }
+
+    /**
+     * @return value as a string if it is valid UTF-8 which can be saved in an XML file, or null
+     */
+    private static String decodeText(byte[] value) {
+        CharBuffer chars;
+        try {
+            chars = UTF_8.newDecoder().decode(ByteBuffer.wrap(value));
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+
+        for (int i = 0; i < chars.length(); i++) {
+            char c = chars.get(i);
+            if (c < 0x20 && c != '\t' && c != '\n' && c != '\r') return null;
+        }
+        return chars.toString();
+    }
+
+    @Override
+    public byte[] get(String key) {
+        String val = preferences.getString(key, null);
+        return val == null ? null : fromText(val);
+    }
+
+    @Override
+    public Map<String, byte[]> get(Collection<String> keys) {
+        HashMap<String, byte[]> values = new HashMap<>();
+        for (String key : keys) {
+            String val = preferences.getString(key, null);
+            if (val != null) {
+                values.put(key, fromText(val));
+            }
+        }
+        return values;
+    }
+
+    @Override
+    public void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        SharedPreferences.Editor editor = preferences.edit();
+        for (String key : deletes) {
+            editor.remove(key);
+        }
+        for (String key : puts.keySet()) {
+            byte[] val = puts.get(key);
+            if (val == null) {
+                editor.remove(key);
+            } else {
+                editor.putString(key, toText(val));
+            }
+        }
+        editor.commit();
+    }
+
+    @Override
+    public void clear() {
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.clear();
+        editor.commit();
+    }
+
+    @Override
+    public Set<String> keys() {
+        return new HashSet<>(preferences.getAll().keySet());
+    }
+}
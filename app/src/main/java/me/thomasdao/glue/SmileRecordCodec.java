@@ -0,0 +1,30 @@
+package me.thomasdao.glue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileGenerator;
+
+/**
+ * Records in Smile, Jackson's binary JSON. Records are smaller than JSON and faster to read,
+ * field names and short strings are written once and referenced after that.
+ *
+ * Every record starts with the Smile header ":)\n", which no JSON document starts with.
+ */
+public class SmileRecordCodec extends JacksonRecordCodec {
+
+    public SmileRecordCodec() {
+        super(JSONHelper.recordMapper(new ObjectMapper(createFactory())));
+    }
+
+    private static SmileFactory createFactory() {
+        SmileFactory factory = new SmileFactory();
+        factory.enable(SmileGenerator.Feature.WRITE_HEADER);
+        factory.enable(SmileGenerator.Feature.CHECK_SHARED_STRING_VALUES);
+        return factory;
+    }
+
+    @Override
+    public boolean accepts(byte[] data) {
+        return data.length >= 3 && data[0] == ':' && data[1] == ')' && data[2] == '\n';
+    }
+}
@@ -0,0 +1,249 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage of a {@link GlueStore}: its engine, and the write-behind queue in front of it when
+ * enabled. Reads see queued writes before they reach the engine.
+ */
+final class Storage {
+    private volatile StorageEngine engine;
+
+    /**
+     * When set, writes are queued and persisted on a background thread
+     */
+    private volatile WriteBehindQueue writeBehind;
+
+    private volatile GlueMetrics metrics = new GlueMetrics();
+
+    Storage(StorageEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Record reads and writes of the engine in the metrics of a store
+     */
+    void setMetrics(GlueMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    void init(StorageEngine storageEngine) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            // Changes queued for the previous engine must land there first
+            try {
+                queue.awaitDurable(0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        engine = storageEngine;
+    }
+
+    StorageEngine getEngine() {
+        return engine;
+    }
+
+    private StorageEngine engine() {
+        StorageEngine current = engine;
+        if (current == null) {
+            throw new IllegalStateException("No storage engine, call Glue.init() first");
+        }
+        return current;
+    }
+
+    /************************************************************************************
+     * Write-behind
+     ************************************************************************************/
+
+    synchronized void enableWriteBehind(long maxDelayMillis, int maxPendingWrites) {
+        disableWriteBehind();
+        writeBehind = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void write(Map<String, byte[]> puts, Collection<String> deletes, boolean clear) {
+                if (clear) {
+                    engine().clear();
+                }
+                commit(puts, deletes);
+            }
+        }, maxDelayMillis, maxPendingWrites);
+    }
+
+    synchronized void disableWriteBehind() {
+        if (writeBehind != null) {
+            // Writers which still see the queue are refused by it and write to the engine
+            writeBehind.shutdown();
+            writeBehind = null;
+        }
+    }
+
+    boolean isWriteBehindEnabled() {
+        return writeBehind != null;
+    }
+
+    void flush() {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
+    boolean awaitDurable(long timeoutMillis) throws InterruptedException {
+        WriteBehindQueue queue = writeBehind;
+        if (queue == null) return true;
+        return queue.awaitDurable(timeoutMillis);
+    }
+
+    /************************************************************************************
+     * Read and write
+     ************************************************************************************/
+
+    byte[] get(String key) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null) {
+            byte[] val = queue.lookup(key);
+            if (val != WriteBehindQueue.MISS) {
+                return val;
+            }
+        }
+
+        return read(key);
+    }
+
+    /**
+     * @return values by key, keys which do not exist are left out
+     */
+    Map<String, byte[]> get(Collection<String> keys) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue == null) {
+            return read(keys);
+        }
+
+        HashMap<String, byte[]> values = new HashMap<>();
+        ArrayList<String> misses = new ArrayList<>();
+        for (String key : keys) {
+            byte[] val = queue.lookup(key);
+            if (val == WriteBehindQueue.MISS) {
+                misses.add(key);
+            } else if (val != null) {
+                values.put(key, val);
+            }
+        }
+
+        if (misses.size() > 0) {
+            values.putAll(read(misses));
+        }
+        return values;
+    }
+
+    Set<String> keys() {
+        // Queued writes must reach the engine before its key set is complete
+        try {
+            awaitDurable(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return engine().keys();
+    }
+
+    void save(String key, byte[] val) {
+        HashMap<String, byte[]> map = new HashMap<>();
+        map.put(key, val);
+        saveBytes(map);
+    }
+
+    void saveBytes(Map<String, byte[]> map) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && queue.putAll(map)) return;
+
+        commit(map, new ArrayList<String>());
+    }
+
+    /**
+     * Save and delete values in a single write. Deletes are applied before puts
+     */
+    void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && queue.write(puts, deletes)) return;
+
+        commit(puts, deletes);
+    }
+
+    void delete(Collection<String> keys) {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && queue.delete(keys)) return;
+
+        commit(new HashMap<String, byte[]>(), keys);
+    }
+
+    void clear() {
+        WriteBehindQueue queue = writeBehind;
+        if (queue != null && queue.clear()) return;
+
+        engine().clear();
+    }
+
+    private byte[] read(String key) {
+        GlueMetrics current = metrics;
+        long start = current.start();
+        byte[] value = engine().get(key);
+        current.record(GlueMetrics.Operation.STORAGE_READ, null, start, value == null ? 0 : value.length);
+        return value;
+    }
+
+    private Map<String, byte[]> read(Collection<String> keys) {
+        GlueMetrics current = metrics;
+        long start = current.start();
+        Map<String, byte[]> values = engine().get(keys);
+        if (start != 0) {
+            current.record(GlueMetrics.Operation.STORAGE_READ, null, start, length(values));
+        }
+        return values;
+    }
+
+    private void commit(Map<String, byte[]> puts, Collection<String> deletes) {
+        GlueMetrics current = metrics;
+        long start = current.start();
+        engine().write(puts, deletes);
+        if (start != 0) {
+            current.record(GlueMetrics.Operation.STORAGE_WRITE, null, start, length(puts));
+        }
+    }
+
+    private static long length(Map<String, byte[]> values) {
+        long length = 0;
+        for (byte[] value : values.values()) {
+            if (value != null) {
+                length += value.length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Clear the shard of a model, if the engine keeps the model in a shard of its own
+     * @return false if the model shares its shard, and its keys must be deleted one by one
+     */
+    boolean clearModel(String modelName) {
+        StorageEngine current = engine;
+        if (!(current instanceof ShardedStorageEngine)) return false;
+
+        ShardedStorageEngine sharded = (ShardedStorageEngine) current;
+        StorageEngine shard = sharded.getModelShard(modelName);
+        if (shard == null) return false;
+
+        // Queued writes of the model must not land after the clear
+        try {
+            awaitDurable(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        shard.clear();
+        return true;
+    }
+}
@@ -0,0 +1,51 @@
+package me.thomasdao.glue;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Persistent key-value storage used by Glue. Keys are strings and values are bytes. An object
+ * is stored under "modelName:unique", with its latest changed fields under "~modelName:unique".
+ * The key index of a model is stored under "modelName", a secondary index under
+ * "modelName#field" and the expiry times of a model under "modelName#-expiry", each with its
+ * segments under "#id" appended to its key. The snapshot of the hot set is under "#snapshot".
+ * Values are encoded by a {@link RecordCodec}, engines store them as they are.
+ *
+ * Implementations must be safe to call from multiple threads.
+ */
+public interface StorageEngine {
+
+    /**
+     * @param key
+     * @return stored value, or null if key does not exist
+     */
+    byte[] get(String key);
+
+    /**
+     * Read several keys at once
+     * @param keys
+     * @return values by key, keys which do not exist are left out
+     */
+    Map<String, byte[]> get(Collection<String> keys);
+
+    /**
+     * Write a batch of changes. Deletes are applied before puts. A batch holds records with
+     * the index segments listing them, so it is applied as a whole: after a crash either
+     * every change of it is stored or none. {@link ShardedStorageEngine} only keeps this
+     * within each shard
+     * @param puts values to save by key, may be empty
+     * @param deletes keys to remove, may be empty
+     */
+    void write(Map<String, byte[]> puts, Collection<String> deletes);
+
+    /**
+     * Remove every key
+     */
+    void clear();
+
+    /**
+     * @return snapshot of all stored keys
+     */
+    Set<String> keys();
+}
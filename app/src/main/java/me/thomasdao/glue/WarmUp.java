@@ -0,0 +1,276 @@
+package me.thomasdao.glue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Warms up the memory cache of a {@link GlueStore} after a start, from a snapshot of the hot
+ * set saved as a single value in storage and from the objects of hot models.
+ *
+ * Any write of the store drops the snapshot, so it never holds records older than the ones in
+ * storage. The store clears or switches its storage through this class, which keeps track of
+ * whether a snapshot may be stored.
+ */
+final class WarmUp {
+
+    /**
+     * Storage key of the snapshot of the hot set, see {@link #saveSnapshot(int)}
+     */
+    static final String SNAPSHOT_KEY = "#snapshot";
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private final GlueStore store;
+    private final Storage storage;
+    private final MemoryCache memoryCache;
+    private final BulkLoader loader;
+
+    /**
+     * Classes of the models of the store, by model name
+     */
+    private final Map<String, Class> modelClasses;
+
+    /**
+     * Whether a snapshot may be in storage, and how many times writes dropped it. Both are
+     * guarded by snapshotLock. A store starts out assuming a snapshot, since one saved before
+     * a restart is not known yet, so its first write deletes it in any case
+     */
+    private final Object snapshotLock = new Object();
+    private volatile boolean snapshotStored = true;
+    private long snapshotDrops;
+
+    WarmUp(GlueStore store, Storage storage, MemoryCache memoryCache, BulkLoader loader,
+           Map<String, Class> modelClasses) {
+        this.store = store;
+        this.storage = storage;
+        this.memoryCache = memoryCache;
+        this.loader = loader;
+        this.modelClasses = modelClasses;
+    }
+
+    /**
+     * See {@link GlueStore#warmUp(Class[])}
+     */
+    Future<Integer> warmUp(final Class... hotModels) {
+        return run(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                restoreSnapshot();
+                for (Class cls : hotModels) {
+                    store.getAll(cls, 0);
+                }
+                return memoryCache.stats().getSize();
+            }
+        });
+    }
+
+    /**
+     * See {@link GlueStore#warmUp(Class, Collection)}
+     */
+    Future<Integer> warmUp(final Class cls, final Collection<String> hotUniques) {
+        return run(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                restoreSnapshot();
+                store.getMany(hotUniques, cls, 0);
+                return memoryCache.stats().getSize();
+            }
+        });
+    }
+
+    private static Future<Integer> run(Callable<Integer> task) {
+        // A thread of its own, since loads wait for the load executor
+        FutureTask<Integer> future = new FutureTask<>(task);
+        Thread thread = new Thread(future, "Glue-WarmUp");
+        thread.setDaemon(true);
+        thread.start();
+        return future;
+    }
+
+    /**
+     * See {@link GlueStore#saveSnapshot(int)}
+     */
+    int saveSnapshot(int maxObjects) {
+        LinkedHashMap<String, String> hot = memoryCache.hottest(maxObjects);
+        LinkedHashMap<String, ArrayList<String>> keysByModel = new LinkedHashMap<>();
+        for (Map.Entry<String, String> entry : hot.entrySet()) {
+            if (!modelClasses.containsKey(entry.getValue())) continue;
+
+            ArrayList<String> keys = keysByModel.get(entry.getValue());
+            if (keys == null) {
+                keys = new ArrayList<>();
+                keysByModel.put(entry.getValue(), keys);
+            }
+            keys.add(entry.getKey());
+        }
+
+        // Writers of these models wait, so the records read are the ones in storage
+        ArrayList<ReentrantLock> locks = store.lockModels(keysByModel.keySet());
+        try {
+            Map<String, byte[]> records = store.readRecords(hot.keySet());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int saved = 0;
+
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(keysByModel.size());
+            for (Map.Entry<String, ArrayList<String>> model : keysByModel.entrySet()) {
+                ArrayList<String> keys = new ArrayList<>();
+                for (String key : model.getValue()) {
+                    if (records.containsKey(key)) keys.add(key);
+                }
+
+                out.writeUTF(model.getKey());
+                out.writeUTF(modelClasses.get(model.getKey()).getName());
+                out.writeInt(keys.size());
+                for (String key : keys) {
+                    byte[] record = records.get(key);
+                    out.writeUTF(key);
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+                saved += keys.size();
+            }
+            out.flush();
+
+            synchronized (snapshotLock) {
+                storage.save(SNAPSHOT_KEY, bytes.toByteArray());
+                snapshotStored = true;
+            }
+            return saved;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        } finally {
+            store.unlockModels(locks);
+        }
+    }
+
+    /**
+     * See {@link GlueStore#restoreSnapshot()}
+     */
+    int restoreSnapshot() {
+        long drops;
+        synchronized (snapshotLock) {
+            if (!snapshotStored) return 0;
+            drops = snapshotDrops;
+        }
+
+        byte[] data = storage.get(SNAPSHOT_KEY);
+        if (data == null) return 0;
+
+        LinkedHashMap<String, ArrayList<String>> keysByModel = new LinkedHashMap<>();
+        HashMap<String, Class> classes = new HashMap<>();
+        HashMap<String, byte[]> records = new HashMap<>();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            if (in.readInt() != SNAPSHOT_VERSION) return 0;
+
+            int models = in.readInt();
+            for (int i = 0; i < models; i++) {
+                String modelName = in.readUTF();
+                Class cls = snapshotClass(modelName, in.readUTF());
+                int count = in.readInt();
+
+                ArrayList<String> keys = new ArrayList<>(count);
+                for (int j = 0; j < count; j++) {
+                    String key = in.readUTF();
+                    byte[] record = new byte[in.readInt()];
+                    in.readFully(record);
+                    keys.add(key);
+                    records.put(key, record);
+                }
+
+                if (cls != null) {
+                    keysByModel.put(modelName, keys);
+                    classes.put(modelName, cls);
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return 0;
+        }
+
+        int restored = 0;
+        ArrayList<ReentrantLock> locks = store.lockModels(keysByModel.keySet());
+        try {
+            // A write since the snapshot was read may have changed its records
+            synchronized (snapshotLock) {
+                if (snapshotDrops != drops) return 0;
+            }
+
+            for (Map.Entry<String, ArrayList<String>> model : keysByModel.entrySet()) {
+                restored += loader.load(model.getValue(), classes.get(model.getKey()), 0, records).size();
+            }
+        } finally {
+            store.unlockModels(locks);
+        }
+        return restored;
+    }
+
+    /**
+     * @return class of a model in a snapshot, null if it no longer exists
+     */
+    private Class snapshotClass(String modelName, String className) {
+        Class cls = modelClasses.get(modelName);
+        if (cls != null) return cls;
+
+        try {
+            cls = Class.forName(className);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+
+        ModelName annotation = (ModelName) cls.getAnnotation(ModelName.class);
+        if (annotation == null || !annotation.value().equals(modelName)) return null;
+        return cls;
+    }
+
+    /**
+     * Delete the snapshot with a write, the first time a write follows it
+     */
+    void dropSnapshot(Collection<String> deletes) {
+        if (!snapshotStored) return;
+
+        synchronized (snapshotLock) {
+            if (snapshotStored) {
+                snapshotStored = false;
+                snapshotDrops++;
+                deletes.add(SNAPSHOT_KEY);
+            }
+        }
+    }
+
+    /**
+     * Switch the storage to another engine, which may hold a snapshot of its own
+     */
+    void setEngine(StorageEngine engine) {
+        synchronized (snapshotLock) {
+            storage.init(engine);
+            snapshotStored = true;
+            snapshotDrops++;
+        }
+    }
+
+    /**
+     * Remove everything from storage, the snapshot included
+     */
+    void clearStorage() {
+        synchronized (snapshotLock) {
+            storage.clear();
+            snapshotStored = false;
+            snapshotDrops++;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package me.thomasdao.glue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Buffer writes in memory and persist them on a background thread.
+ *
+ * Writes to the same key are coalesced, so only the newest value reaches disk. A batch is
+ * written once the oldest pending write is older than maxDelayMillis, once there are more
+ * than maxPendingWrites keys queued, or when a flush is requested. Reads must go through
+ * {@link #lookup(String)} first so they always see the newest queued value.
+ *
+ * A batch which fails to write goes back to the queue and is retried, and waiting for
+ * durability fails with its error. Once shut down the queue refuses writes, so the caller
+ * writes them itself.
+ */
+class WriteBehindQueue {
+
+    /**
+     * Marker for a queued delete. Compared by identity, never written
+     */
+    private static final byte[] TOMBSTONE = new byte[0];
+
+    /**
+     * Result of lookup when the queue holds nothing for a key and disk must be read
+     */
+    static final byte[] MISS = new byte[0];
+
+    /**
+     * Time before a batch which failed to write is tried again
+     */
+    static final long RETRY_DELAY_MILLIS = 1000;
+
+    /**
+     * Write a batch to the underlying storage
+     */
+    interface Writer {
+        void write(Map<String, byte[]> puts, Collection<String> deletes, boolean clear);
+    }
+
+    private final Writer writer;
+    private final long maxDelayMillis;
+    private final int maxPendingWrites;
+    private final Object lock = new Object();
+
+    // Writes not yet picked up by the writer thread
+    private LinkedHashMap<String, byte[]> pending = new LinkedHashMap<>();
+    private boolean pendingClear;
+    private long oldestPendingAt;
+
+    // Writes currently being persisted, still visible to readers
+    private Map<String, byte[]> inflight;
+    private boolean inflightClear;
+
+    // Sequence of the last enqueued write and of the last write known to be on disk
+    private long enqueuedSeq;
+    private long durableSeq;
+
+    // Number of failed writes, the last error and when to try again
+    private long failures;
+    private Exception failure;
+    private long retryAt;
+
+    private boolean flushRequested;
+    private boolean shutdown;
+    private final Thread thread;
+
+    WriteBehindQueue(Writer writer, long maxDelayMillis, int maxPendingWrites) {
+        this.writer = writer;
+        this.maxDelayMillis = maxDelayMillis < 0 ? 0 : maxDelayMillis;
+        this.maxPendingWrites = maxPendingWrites < 1 ? 1 : maxPendingWrites;
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "Glue-WriteBehind");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /************************************************************************************
+     * Enqueue
+     ************************************************************************************/
+
+    /**
+     * @return false if the queue is shut down, the write must then go to storage directly
+     */
+    boolean put(String key, byte[] val) {
+        synchronized (lock) {
+            if (shutdown) return false;
+
+            enqueue(key, val == null ? TOMBSTONE : val);
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    boolean putAll(Map<String, byte[]> map) {
+        synchronized (lock) {
+            if (shutdown) return false;
+
+            for (String key : map.keySet()) {
+                byte[] val = map.get(key);
+                enqueue(key, val == null ? TOMBSTONE : val);
+            }
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    boolean delete(Collection<String> keys) {
+        synchronized (lock) {
+            if (shutdown) return false;
+
+            for (String key : keys) {
+                enqueue(key, TOMBSTONE);
+            }
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Enqueue deletes then puts at once, so no reader sees one without the other
+     */
+    boolean write(Map<String, byte[]> puts, Collection<String> deletes) {
+        synchronized (lock) {
+            if (shutdown) return false;
+
+            for (String key : deletes) {
+                enqueue(key, TOMBSTONE);
+            }
+            for (String key : puts.keySet()) {
+                byte[] val = puts.get(key);
+                enqueue(key, val == null ? TOMBSTONE : val);
+            }
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    boolean clear() {
+        synchronized (lock) {
+            if (shutdown) return false;
+
+            // Everything queued so far is superseded by the clear
+            pending.clear();
+            pendingClear = true;
+            markEnqueued();
+            lock.notifyAll();
+        }
+        return true;
+    }
+
+    private void enqueue(String key, byte[] val) {
+        // Remove first so a rewritten key moves to the end of the queue
+        pending.remove(key);
+        pending.put(key, val);
+        markEnqueued();
+    }
+
+    private void markEnqueued() {
+        if (oldestPendingAt == 0) {
+            oldestPendingAt = System.currentTimeMillis();
+        }
+        enqueuedSeq++;
+    }
+
+    /************************************************************************************
+     * Read
+     ************************************************************************************/
+
+    /**
+     * Find the newest queued value for a key
+     * @param key
+     * @return queued value, null if the key is queued for delete or was cleared,
+     * {@link #MISS} if the value must be read from disk
+     */
+    byte[] lookup(String key) {
+        synchronized (lock) {
+            if (pending.containsKey(key)) {
+                return valueOf(pending.get(key));
+            }
+            if (pendingClear) return null;
+
+            if (inflight != null) {
+                if (inflight.containsKey(key)) {
+                    return valueOf(inflight.get(key));
+                }
+                if (inflightClear) return null;
+            }
+        }
+
+        return MISS;
+    }
+
+    private static byte[] valueOf(byte[] queued) {
+        return queued == TOMBSTONE ? null : queued;
+    }
+
+    /************************************************************************************
+     * Flush
+     ************************************************************************************/
+
+    /**
+     * Ask the writer thread to persist queued writes now, without waiting
+     */
+    void flush() {
+        synchronized (lock) {
+            flushRequested = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Block until every write queued before this call is on disk
+     * @param timeoutMillis maximum time to wait, 0 to wait forever
+     * @return true if all writes are durable
+     * @throws InterruptedException
+     * @throws RuntimeException if a write failed while waiting, the writes stay queued and
+     * are retried
+     */
+    boolean awaitDurable(long timeoutMillis) throws InterruptedException {
+        long deadline = timeoutMillis > 0 ? System.currentTimeMillis() + timeoutMillis : 0;
+
+        synchronized (lock) {
+            long target = enqueuedSeq;
+            long failed = failures;
+            flushRequested = true;
+            lock.notifyAll();
+
+            while (durableSeq < target) {
+                if (failures != failed) {
+                    throw new RuntimeException("Cannot persist queued writes", failure);
+                }
+                if (deadline == 0) {
+                    lock.wait();
+                } else {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) return false;
+                    lock.wait(remaining);
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Persist everything still queued and stop the writer thread. Writes made from then on
+     * are refused
+     * @throws RuntimeException if queued writes cannot be persisted, the queue keeps running
+     */
+    void shutdown() {
+        try {
+            while (true) {
+                awaitDurable(0);
+
+                // Writes may have come in meanwhile, the queue only stops once it is empty
+                synchronized (lock) {
+                    if (pending.isEmpty() && !pendingClear && inflight == null) {
+                        shutdown = true;
+                        lock.notifyAll();
+                        return;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /************************************************************************************
+     * Writer thread
+     ************************************************************************************/
+
+    private void loop() {
+        while (true) {
+            Map<String, byte[]> batch;
+            boolean clear;
+            long seq;
+
+            synchronized (lock) {
+                try {
+                    while (!shutdown && !shouldWrite()) {
+                        if (pending.isEmpty() && !pendingClear) {
+                            lock.wait();
+                        } else {
+                            long writeAt = flushRequested ? 0 : oldestPendingAt + maxDelayMillis;
+                            long wait = Math.max(writeAt, retryAt) - System.currentTimeMillis();
+                            if (wait > 0) lock.wait(wait);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (shutdown) return;
+
+                // Hand the pending writes over, they stay visible to readers while in flight
+                batch = pending;
+                clear = pendingClear;
+                seq = enqueuedSeq;
+
+                inflight = batch;
+                inflightClear = clear;
+                pending = new LinkedHashMap<>();
+                pendingClear = false;
+                oldestPendingAt = 0;
+                flushRequested = false;
+            }
+
+            HashMap<String, byte[]> puts = new HashMap<>();
+            ArrayList<String> deletes = new ArrayList<>();
+            for (Map.Entry<String, byte[]> entry : batch.entrySet()) {
+                if (entry.getValue() == TOMBSTONE) {
+                    deletes.add(entry.getKey());
+                } else {
+                    puts.put(entry.getKey(), entry.getValue());
+                }
+            }
+
+            Exception error = null;
+            try {
+                writer.write(puts, deletes, clear);
+            } catch (Exception e) {
+                e.printStackTrace();
+                error = e;
+            }
+
+            synchronized (lock) {
+                inflight = null;
+                inflightClear = false;
+                if (error == null) {
+                    durableSeq = seq;
+                } else {
+                    requeue(batch, clear);
+                    failures++;
+                    failure = error;
+                    retryAt = System.currentTimeMillis() + RETRY_DELAY_MILLIS;
+                }
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Put a batch which failed to write back in front of the writes queued since
+     */
+    private void requeue(Map<String, byte[]> batch, boolean clear) {
+        // A clear queued since supersedes the batch
+        if (pendingClear) return;
+
+        LinkedHashMap<String, byte[]> merged = new LinkedHashMap<>(batch);
+        for (Map.Entry<String, byte[]> entry : pending.entrySet()) {
+            merged.remove(entry.getKey());
+            merged.put(entry.getKey(), entry.getValue());
+        }
+        pending = merged;
+        pendingClear = clear;
+        if (oldestPendingAt == 0) {
+            oldestPendingAt = System.currentTimeMillis();
+        }
+    }
+
+    private boolean shouldWrite() {
+        if (pending.isEmpty() && !pendingClear) {
+            flushRequested = false;
+            return false;
+        }
+        if (System.currentTimeMillis() < retryAt) return false;
+
+        return flushRequested
+                || pending.size() >= maxPendingWrites
+                || System.currentTimeMillis() - oldestPendingAt >= maxDelayMillis;
+    }
+}
@@ -0,0 +1,71 @@
+package me.thomasdao.glue;
+
+/**
+ * Snapshot of pin counters: records written in full or as patches, and records not written
+ * because nothing changed.
+ */
+public class WriteStats {
+    private final long written;
+    private final long patched;
+    private final long bytesWritten;
+    private final long skippedEqual;
+    private final long skippedFingerprint;
+
+    WriteStats(long written, long patched, long bytesWritten, long skippedEqual, long skippedFingerprint) {
+        this.written = written;
+        this.patched = patched;
+        this.bytesWritten = bytesWritten;
+        this.skippedEqual = skippedEqual;
+        this.skippedFingerprint = skippedFingerprint;
+    }
+
+    /**
+     * @return number of records written in full by pins
+     */
+    public long getWritten() {
+        return written;
+    }
+
+    /**
+     * @return number of records updated by writing only their changed fields
+     */
+    public long getPatched() {
+        return patched;
+    }
+
+    /**
+     * @return bytes of records and patches written by pins, indexes left out
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return number of objects pinned which were equal to the objects already saved
+     */
+    public long getSkippedEqual() {
+        return skippedEqual;
+    }
+
+    /**
+     * @return number of records not written because they encoded to the record already saved
+     */
+    public long getSkippedFingerprint() {
+        return skippedFingerprint;
+    }
+
+    public long getSkipped() {
+        return skippedEqual + skippedFingerprint;
+    }
+
+    @Override
+    public String toString() {
+        return "WriteStats{" +
+                "written=" + written +
+                ", patched=" + patched +
+                ", bytesWritten=" + bytesWritten +
+                ", skippedEqual=" + skippedEqual +
+                ", skippedFingerprint=" + skippedFingerprint +
+                '}';
+    }
+}
@@ -0,0 +1,23 @@
+package me.thomasdao.glue;
+
+/**
+ * A model with a package-private field and no getter for it, which Jackson does not write.
+ */
+@ModelName("Account")
+public class Account implements Pinnable {
+    private String id;
+    String token;
+
+    @Override
+    public String unique() {
+        return id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+}
@@ -0,0 +1,32 @@
+package me.thomasdao.glue;
+
+/**
+ * A Post subclass, its relationships are declared by the superclass.
+ */
+@ModelName("Article")
+public class Article extends Post {
+    private String title;
+
+    public String getTitle() {
+        return title;
+    }
+
+    public void setTitle(String title) {
+        this.title = title;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) return false;
+
+        Article article = (Article) o;
+        return !(title != null ? !title.equals(article.title) : article.title != null);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + (title != null ? title.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,35 @@
+package me.thomasdao.glue;
+
+/**
+ * A model with a getter which has no field, which Jackson still writes.
+ */
+@ModelName("Badge")
+public class Badge implements Pinnable {
+    private String id;
+    private int level;
+
+    @Override
+    public String unique() {
+        return id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public void setLevel(int level) {
+        this.level = level;
+    }
+
+    public String getTitle() {
+        return "Level " + level;
+    }
+}
@@ -0,0 +1,84 @@
+package me.thomasdao.glue;
+
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class ClassMetadataTest {
+
+    private static class Base implements Pinnable {
+        static int created;
+
+        String id;
+        User owner;
+
+        @Override
+        public String unique() {
+            return id;
+        }
+    }
+
+    private static class Derived extends Base {
+        static final String KIND = "derived";
+
+        String title;
+        ArrayList<Comment> comments;
+    }
+
+    private static HashSet<String> names(Field[] fields) {
+        HashSet<String> names = new HashSet<>();
+        for (Field field : fields) {
+            names.add(field.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void findsSuperclassFieldsAndSkipsStaticOnes() throws Exception {
+        ClassMetadata metadata = ClassMetadata.forClass(Derived.class);
+        assertEquals(new HashSet<>(Arrays.asList("id", "owner", "title", "comments")),
+                names(metadata.mergeableFields));
+        assertEquals(new HashSet<>(Arrays.asList("owner")), names(metadata.relationshipFields));
+        assertEquals(1, metadata.collectionFields.length);
+        assertTrue(metadata.collectionFields[0].pinnableElements);
+        assertNull(metadata.field("created"));
+        assertNull(metadata.field("KIND"));
+
+        // Relationships declared by a superclass model
+        assertNotNull(ClassMetadata.forClass(Article.class).field("author"));
+        assertSame(metadata, ClassMetadata.forClass(Derived.class));
+    }
+
+    @Test
+    public void walksAndMergesInheritedFields() throws Exception {
+        User owner = new User();
+        owner.setId("1");
+        Comment comment = new Comment();
+        comment.setId("1");
+
+        Derived derived = new Derived();
+        derived.id = "1";
+        derived.owner = owner;
+        derived.comments = new ArrayList<>(Arrays.asList(comment, null));
+
+        ClassMetadata metadata = ClassMetadata.forClass(Derived.class);
+        ArrayList<Pinnable> relationships = new ArrayList<>();
+        metadata.collectRelationships(derived, relationships);
+        assertEquals(Arrays.<Pinnable>asList(owner, comment), relationships);
+
+        Derived target = new Derived();
+        target.title = "kept";
+        metadata.merge(target, derived);
+        assertEquals("1", target.id);
+        assertSame(owner, target.owner);
+        assertEquals("kept", target.title);
+    }
+}
@@ -6,6 +6,8 @@ package me.thomasdao.glue;
 @ModelName("Comment")
 public class Comment implements Pinnable {
     private String id, comment;
+
+    @Indexed
     private User author;
 
     public String getId() {
@@ -0,0 +1,183 @@
+package me.thomasdao.glue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * Pins and deletes from several threads at once. Runs on a plain JVM.
+ */
+public class ConcurrencyTest {
+    private static final int THREADS = 4;
+    private static final int BATCHES = 50;
+    private static final int BATCH_SIZE = 10;
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private FileStorageEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = fixture.engine();
+        Glue.init(engine);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Glue.clearAll();
+    }
+
+    private interface Writer {
+        void run(int thread) throws Exception;
+    }
+
+    /**
+     * Start writers together and wait for all of them
+     * @return elapsed time in ms
+     */
+    private static long runWriters(final Writer writer) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        ArrayList<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        writer.run(thread);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = (System.nanoTime() - begin) / 1000000;
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return elapsed;
+    }
+
+    private static void report(String name, long elapsed) {
+        int objects = THREADS * BATCHES * BATCH_SIZE;
+        System.out.println(name + ": " + objects + " objects on " + THREADS + " threads in "
+                + elapsed + " ms, " + (objects * 1000L / Math.max(elapsed, 1)) + " objects/s");
+    }
+
+    @Test
+    public void concurrentPinsKeepEveryKey() throws Exception {
+        long elapsed = runWriters(new Writer() {
+            @Override
+            public void run(int thread) {
+                for (int b = 0; b < BATCHES; b++) {
+                    ArrayList<User> batch = new ArrayList<>();
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        batch.add(user(thread + "-" + b + "-" + i));
+                    }
+                    Glue.pinAll(batch);
+                }
+            }
+        });
+        report("Same model", elapsed);
+
+        int expected = THREADS * BATCHES * BATCH_SIZE;
+        assertEquals(expected, Glue.count(User.class));
+
+        // Every key also reached storage
+        Glue.init(engine);
+        assertEquals(expected, Glue.count(User.class));
+        HashSet<String> ids = new HashSet<>();
+        for (Object object : Glue.getAll(User.class)) {
+            ids.add(((User) object).getId());
+        }
+        assertEquals(expected, ids.size());
+    }
+
+    @Test
+    public void concurrentPinsOnDifferentModels() throws Exception {
+        long elapsed = runWriters(new Writer() {
+            @Override
+            public void run(int thread) {
+                for (int b = 0; b < BATCHES; b++) {
+                    ArrayList<Pinnable> batch = new ArrayList<>();
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        String id = b + "-" + i;
+                        if (thread % 2 == 0) {
+                            batch.add(user(thread + "-" + id));
+                        } else {
+                            // Comments share authors with the other writers' users
+                            Comment comment = new Comment();
+                            comment.setId(thread + "-" + id);
+                            comment.setAuthor(user("author-" + i));
+                            batch.add(comment);
+                        }
+                    }
+                    Glue.pinAll(batch);
+                }
+            }
+        });
+        report("Different models", elapsed);
+
+        int perModel = THREADS / 2 * BATCHES * BATCH_SIZE;
+        assertEquals(perModel, Glue.count(Comment.class));
+        assertEquals(perModel + BATCH_SIZE, Glue.count(User.class));
+
+        Glue.init(engine);
+        assertEquals(perModel, Glue.count(Comment.class));
+        assertEquals(perModel + BATCH_SIZE, Glue.count(User.class));
+        assertEquals(perModel / BATCH_SIZE, Glue.find(Comment.class, "author", user("author-0")).size());
+    }
+
+    @Test
+    public void concurrentPinsAndDeletes() throws Exception {
+        runWriters(new Writer() {
+            @Override
+            public void run(int thread) {
+                for (int b = 0; b < BATCHES; b++) {
+                    ArrayList<Pinnable> batch = new ArrayList<>();
+                    for (int i = 0; i < BATCH_SIZE; i++) {
+                        batch.add(user(thread + "-" + b + "-" + i));
+                    }
+                    Glue.pinAll(batch);
+
+                    // Every other batch is deleted again right away
+                    if (b % 2 == 1) {
+                        Glue.deleteObjects(batch, "User");
+                    }
+                }
+            }
+        });
+
+        int expected = THREADS * BATCHES * BATCH_SIZE / 2;
+        assertEquals(expected, Glue.count(User.class));
+
+        Glue.init(engine);
+        assertEquals(expected, Glue.count(User.class));
+        for (Object object : Glue.getAll(User.class)) {
+            int batch = Integer.parseInt(((User) object).getId().split("-")[1]);
+            assertEquals(0, batch % 2);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package me.thomasdao.glue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class FileStorageEngineTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileStorageEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new FileStorageEngine(folder.newFolder("glue"), false);
+        Glue.init(engine);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Glue.clearAll();
+    }
+
+    private static byte[] bytes(String val) {
+        return val.getBytes(Charset.forName("UTF-8"));
+    }
+
+    @Test
+    public void canEncodeKeys() throws Exception {
+        String[] keys = {"User:1", "Post:a/b", "..", "Comment:%20", "User:\u00e9\u4e2d"};
+        for (String key : keys) {
+            String name = FileStorageEngine.encodeKey(key);
+            assertFalse(name.contains("/"));
+            assertFalse(name.contains("."));
+            assertEquals(key, FileStorageEngine.decodeKey(name));
+        }
+
+        // Names differ in more than case, for case-insensitive file systems
+        String upper = FileStorageEngine.encodeKey("Post:A");
+        String lower = FileStorageEngine.encodeKey("Post:a");
+        assertNotEquals(upper.toLowerCase(), lower.toLowerCase());
+        assertEquals(upper.toLowerCase(), upper);
+    }
+
+    @Test
+    public void canStoreLongKeys() throws Exception {
+        StringBuilder unique = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            unique.append("\u00e9/");
+        }
+        String key = "Post:" + unique;
+        String other = key + "x";
+        assertTrue(FileStorageEngine.fileName(key).length() <= FileStorageEngine.MAX_NAME_LENGTH);
+
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put(key, bytes("long"));
+        puts.put(other, bytes("longer"));
+        puts.put("Post:1", bytes("short"));
+        engine.write(puts, new ArrayList<String>());
+
+        FileStorageEngine reopened = new FileStorageEngine(engine.getDirectory(), false);
+        assertArrayEquals(bytes("long"), reopened.get(key));
+        assertArrayEquals(bytes("longer"), reopened.get(other));
+        assertEquals(new HashSet<>(Arrays.asList(key, other, "Post:1")), reopened.keys());
+
+        reopened.write(new HashMap<String, byte[]>(), Arrays.asList(key));
+        assertNull(reopened.get(key));
+        assertEquals(2, reopened.keys().size());
+    }
+
+    @Test
+    public void renamesFilesOfOldNames() throws Exception {
+        // Names as written before upper case was escaped
+        writeFile("Post%3aA", "upper");
+        writeFile("Post", "[\"A\"]");
+
+        FileStorageEngine reopened = new FileStorageEngine(engine.getDirectory(), false);
+        assertArrayEquals(bytes("upper"), reopened.get("Post:A"));
+        assertArrayEquals(bytes("[\"A\"]"), reopened.get("Post"));
+        assertNull(reopened.get("Post:a"));
+        assertEquals(new HashSet<>(Arrays.asList("Post:A", "Post")), reopened.keys());
+        assertFalse(new File(engine.getDirectory(), "Post%3aA").exists());
+    }
+
+    @Test
+    public void canWriteAndDelete() throws Exception {
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("a", bytes("1"));
+        puts.put("b", bytes("2"));
+        puts.put("c", bytes("3"));
+        engine.write(puts, new ArrayList<String>());
+
+        assertArrayEquals(bytes("2"), engine.get("b"));
+        assertNull(engine.get("d"));
+        assertEquals(3, engine.keys().size());
+
+        Map<String, byte[]> values = engine.get(Arrays.asList("a", "c", "d"));
+        assertEquals(2, values.size());
+        assertArrayEquals(bytes("3"), values.get("c"));
+
+        // Deletes are applied before puts
+        puts.clear();
+        puts.put("a", bytes("4"));
+        engine.write(puts, Arrays.asList("a", "b"));
+        assertArrayEquals(bytes("4"), engine.get("a"));
+        assertNull(engine.get("b"));
+
+        engine.clear();
+        assertEquals(0, engine.keys().size());
+    }
+
+    private void writeFile(String name, String value) throws Exception {
+        FileOutputStream out = new FileOutputStream(new File(engine.getDirectory(), name));
+        out.write(bytes(value));
+        out.close();
+    }
+
+    private HashMap<String, byte[]> oldValues() {
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("Post:1", bytes("old 1"));
+        puts.put("Post:2", bytes("old 2"));
+        puts.put("Post", bytes("[1,2]"));
+        return puts;
+    }
+
+    @Test
+    public void journalFinishesBatchAfterCrash() throws Exception {
+        engine.write(oldValues(), new ArrayList<String>());
+
+        // Crash after the journal was written and the first put renamed
+        String post1 = FileStorageEngine.fileName("Post:1");
+        String post3 = FileStorageEngine.fileName("Post:3");
+        String index = FileStorageEngine.fileName("Post");
+        writeFile(post1, "new 1");
+        writeFile(post3 + ".tmp", "new 3");
+        writeFile(index + ".tmp", "[1,3]");
+        writeFile(FileStorageEngine.JOURNAL, "-" + FileStorageEngine.fileName("Post:2") + "\n"
+                + "+" + post1 + "\n+" + post3 + "\n+" + index + "\n");
+
+        FileStorageEngine reopened = new FileStorageEngine(engine.getDirectory(), false);
+        assertEquals(new HashSet<>(Arrays.asList("Post:1", "Post:3", "Post")), reopened.keys());
+        assertArrayEquals(bytes("new 1"), reopened.get("Post:1"));
+        assertArrayEquals(bytes("[1,3]"), reopened.get("Post"));
+        assertEquals(3, engine.getDirectory().list().length);
+    }
+
+    @Test
+    public void batchWithoutJournalIsDropped() throws Exception {
+        engine.write(oldValues(), new ArrayList<String>());
+
+        // Crash while the values of a batch were written, before its journal
+        writeFile(FileStorageEngine.fileName("Post:1") + ".tmp", "new 1");
+        writeFile(FileStorageEngine.fileName("Post") + ".tmp", "[1");
+
+        FileStorageEngine reopened = new FileStorageEngine(engine.getDirectory(), false);
+        assertArrayEquals(bytes("old 1"), reopened.get("Post:1"));
+        assertArrayEquals(bytes("[1,2]"), reopened.get("Post"));
+        assertEquals(3, engine.getDirectory().list().length);
+    }
+
+    @Test
+    public void failedBatchLeavesOldValues() throws Exception {
+        engine.write(oldValues(), new ArrayList<String>());
+
+        // A directory in place of a temporary file fails the batch before it is applied
+        assertTrue(new File(engine.getDirectory(), FileStorageEngine.fileName("Post") + ".tmp").mkdir());
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("Post:1", bytes("new 1"));
+        puts.put("Post", bytes("[1]"));
+        try {
+            engine.write(puts, Arrays.asList("Post:2"));
+            fail();
+        } catch (RuntimeException e) {
+            // Expected
+        }
+
+        assertArrayEquals(bytes("old 1"), engine.get("Post:1"));
+        assertArrayEquals(bytes("old 2"), engine.get("Post:2"));
+        assertEquals(3, engine.keys().size());
+    }
+
+    @Test
+    public void canPinWithoutAndroid() throws Exception {
+        User user = new User();
+        user.setId("1");
+        user.setUsername("thomas");
+
+        Post post = new Post();
+        post.setId("1");
+        post.setContent("Hello");
+        post.setAuthor(user);
+        Glue.pin(post);
+
+        Glue.clearMemoryCache();
+        assertEquals(post, Glue.get("1", Post.class));
+        assertEquals(user, Glue.get("1", User.class));
+        assertTrue(engine.keys().contains("Post:1"));
+    }
+}
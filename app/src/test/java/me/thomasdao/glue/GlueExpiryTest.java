@@ -0,0 +1,174 @@
+package me.thomasdao.glue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import static me.thomasdao.glue.StoreFixture.post;
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * Objects expiring after their TTL, and sweeping them from storage. Runs on a plain JVM.
+ */
+public class GlueExpiryTest {
+
+    private static final long TTL = 200;
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private FileStorageEngine engine;
+    private GlueStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = fixture.engine();
+        store = fixture.store();
+    }
+
+    private void expire() {
+        fixture.advance(TTL);
+    }
+
+    @Test
+    public void expiredObjectsAreMisses() throws Exception {
+        User author = user("1");
+        store.pin(post("1", author), TTL);
+        store.pin(post("2", author));
+        assertEquals(2, store.getAll(Post.class).size());
+
+        expire();
+        assertNull(store.get("1", Post.class));
+        assertNotNull(store.get("2", Post.class));
+        assertEquals(1, store.getAll(Post.class).size());
+        assertEquals(1, store.getMany(Arrays.asList("1", "2"), Post.class).size());
+        assertEquals(1, store.count(Post.class));
+        assertEquals(Arrays.asList("2"), store.findUniques(Post.class, "author", author));
+        assertEquals(1, store.query(Post.class).where("author", Condition.eq(author)).find().size());
+
+        // Expiry is kept in storage
+        assertNull(fixture.reopen().get("1", Post.class));
+
+        // Pinning again makes the object valid, without a TTL for ever
+        store.pin(post("1", author));
+        assertNotNull(store.get("1", Post.class));
+        store.pin(post("2", author), TTL);
+        store.pin(post("2", author));
+        expire();
+        assertEquals(2, store.count(Post.class));
+    }
+
+    @Test
+    public void modelTtlAppliesToRelationships() throws Exception {
+        store.setModelTtl(User.class, TTL);
+        store.pin(post("1", user("1")));
+
+        // Pinning an unchanged object renews it
+        fixture.advance(TTL / 2);
+        store.pin(user("1"));
+        fixture.advance(TTL / 2 + 20);
+        assertNotNull(store.get("1", User.class));
+
+        expire();
+        assertNull(store.get("1", User.class));
+
+        Post post = (Post) fixture.reopen().get("1", Post.class);
+        assertEquals("post 1", post.getContent());
+        assertNull(post.getAuthor());
+    }
+
+    @Test
+    public void expiredObjectsDoNotTakeQueryPlaces() throws Exception {
+        User author = user("1");
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            posts.add(post(String.valueOf(i), author));
+        }
+        store.pinAll(posts.subList(0, 10), TTL);
+        store.pinAll(posts.subList(10, 30));
+
+        expire();
+        Query<Post> query = store.query(Post.class).where("author", Condition.eq(author)).limit(15);
+        assertEquals(15, query.findUniques().size());
+        assertEquals("10", query.findUniques().get(0));
+        assertEquals(5, query.offset(15).find().size());
+    }
+
+    @Test
+    public void ttlPinWritesOnlyItsSegment() throws Exception {
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            posts.add(post(String.valueOf(i), user("1")));
+        }
+        store.pinAll(posts, 60 * 1000);
+
+        GlueMetrics metrics = store.getMetrics();
+        metrics.setEnabled(true);
+        Post post = post("1000", user("1"));
+        post.setContent("changed");
+        store.pin(post, 60 * 1000);
+
+        // The whole expiry index would take tens of kilobytes
+        long bytes = metrics.getStats(GlueMetrics.Operation.STORAGE_WRITE).getBytes();
+        assertTrue("Wrote " + bytes + " bytes", bytes < 12 * 1024);
+        assertEquals(2000, store.count(Post.class));
+    }
+
+    @Test
+    public void sweepDeletesExpiredRecords() throws Exception {
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            posts.add(post(String.valueOf(i), user("1")));
+        }
+        store.pinAll(posts, TTL);
+        store.pin(post("keep", user("1")));
+
+        final ArrayList<ChangeEvent> events = new ArrayList<>();
+        store.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        store.observe(Post.class, new ChangeListener() {
+            @Override
+            public void onChange(ChangeEvent event) {
+                events.add(event);
+            }
+        });
+
+        expire();
+        assertEquals(50, store.sweepExpired(20));
+        assertEquals(3, events.size());
+        assertEquals(0, store.sweepExpired(20));
+
+        assertFalse(engine.keys().contains("Post:0"));
+        assertTrue(engine.keys().contains("Post:keep"));
+        assertEquals(1, store.count(Post.class));
+        assertEquals(1, fixture.reopen().getAll(Post.class).size());
+    }
+
+    @Test
+    public void sweeperRunsInBackground() throws Exception {
+        store.pinAll(Arrays.asList(post("1", user("1")), post("2", user("1"))), TTL);
+        expire();
+        store.startSweeper(20, 10);
+        try {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (engine.keys().contains("Post:1") && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+        } finally {
+            store.stopSweeper();
+        }
+
+        assertFalse(engine.keys().contains("Post:1"));
+        assertFalse(engine.keys().contains("Post:2"));
+        assertEquals(0, store.count(Post.class));
+    }
+}
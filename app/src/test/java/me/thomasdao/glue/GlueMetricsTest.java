@@ -0,0 +1,140 @@
+package me.thomasdao.glue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static me.thomasdao.glue.StoreFixture.post;
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * Operation metrics of a store. Runs on a plain JVM.
+ */
+public class GlueMetricsTest {
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private GlueStore store;
+    private final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+
+    @Before
+    public void setUp() throws Exception {
+        store = fixture.store();
+        store.getMetrics().addListener(new GlueMetrics.Listener() {
+            @Override
+            public void onOperation(GlueMetrics.Operation operation, String modelName, long nanos, long bytes) {
+                events.add(operation + " " + modelName);
+            }
+        });
+    }
+
+    @Test
+    public void disabledMetricsRecordNothing() throws Exception {
+        store.pin(post("1", user("1")));
+        store.clearMemoryCache();
+        assertNotNull(store.get("1", Post.class));
+
+        GlueMetrics metrics = store.getMetrics();
+        assertFalse(metrics.isEnabled());
+        for (GlueMetrics.Operation operation : GlueMetrics.Operation.values()) {
+            assertEquals(0, metrics.getStats(operation).getCount());
+        }
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void recordsOperationsByModel() throws Exception {
+        GlueMetrics metrics = store.getMetrics();
+        metrics.setEnabled(true);
+
+        store.pin(post("1", user("1")));
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.PIN).getCount());
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.ENCODE, "Post").getCount());
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.ENCODE, "User").getCount());
+        assertTrue(metrics.getStats(GlueMetrics.Operation.STORAGE_WRITE).getBytes() > 0);
+        assertEquals(Integer.valueOf(1), metrics.getIndexSizes().get("Post"));
+        assertTrue(events.contains("PIN null"));
+        assertTrue(events.contains("INDEX_WRITE Post"));
+
+        // A cold get reads and decodes both records
+        store.clearMemoryCache();
+        Post post = (Post) store.get("1", Post.class);
+        assertEquals("user1", post.getAuthor().getUsername());
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.GET, "Post").getCount());
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.DECODE, "User").getCount());
+        assertTrue(metrics.getStats(GlueMetrics.Operation.DECODE, "Post").getBytes() > 0);
+        assertTrue(metrics.getStats(GlueMetrics.Operation.STORAGE_READ).getCount() > 0);
+
+        // A warm get is served from memory
+        long decodes = metrics.getStats(GlueMetrics.Operation.DECODE).getCount();
+        store.get("1", Post.class);
+        assertEquals(decodes, metrics.getStats(GlueMetrics.Operation.DECODE).getCount());
+        assertEquals(2, metrics.getStats(GlueMetrics.Operation.GET, "Post").getCount());
+
+        assertEquals(1, store.find(Post.class, "author", post.getAuthor()).size());
+        assertEquals(1, store.query(Post.class).where("author", Condition.eq(post.getAuthor())).find().size());
+        assertEquals(2, metrics.getStats(GlueMetrics.Operation.FIND, "Post").getCount());
+
+        store.deleteObject(post);
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.DELETE, "Post").getCount());
+        assertEquals(Integer.valueOf(0), metrics.getIndexSizes().get("Post"));
+        assertTrue(events.contains("DELETE Post"));
+
+        OperationStats gets = metrics.getStats(GlueMetrics.Operation.GET);
+        assertTrue(gets.getMaxNanos() > 0);
+        assertTrue(gets.getPercentileNanos(50) <= gets.getPercentileNanos(100));
+        assertEquals(gets.getMaxNanos(), gets.getPercentileNanos(100));
+        assertTrue(metrics.getModelStats("Post").containsKey(GlueMetrics.Operation.GET));
+
+        metrics.reset();
+        assertEquals(0, metrics.getStats(GlueMetrics.Operation.GET).getCount());
+    }
+
+    @Test
+    public void pinAllWritesOnceWhateverItsSize() throws Exception {
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 8010; i++) {
+            posts.add(post(String.valueOf(i), user(String.valueOf(i % 10))));
+        }
+        store.pinAll(posts.subList(0, 10));
+
+        GlueMetrics metrics = store.getMetrics();
+        metrics.setEnabled(true);
+        store.pinAll(posts.subList(10, posts.size()));
+
+        // One write for the batch, with the key index of Post updated once, and each new
+        // record encoded once
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.STORAGE_WRITE).getCount());
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.INDEX_WRITE, "Post").getCount());
+        assertEquals(8000, metrics.getStats(GlueMetrics.Operation.ENCODE, "Post").getCount());
+        assertEquals(0, metrics.getStats(GlueMetrics.Operation.ENCODE, "User").getCount());
+        assertEquals(8010, store.count(Post.class));
+    }
+
+    @Test
+    public void percentilesAreWithinTheirBucket() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L, 1);
+        }
+
+        OperationStats stats = histogram.snapshot();
+        assertEquals(1000, stats.getCount());
+        assertEquals(1000, stats.getBytes());
+        assertEquals(1000000, stats.getMaxNanos());
+        assertEquals(500500, stats.getMeanNanos(), 0.001);
+
+        // Upper bounds at most twice the exact value
+        long p50 = stats.getPercentileNanos(50);
+        assertTrue(p50 >= 500000 && p50 <= 1000000);
+        long p99 = stats.getPercentileNanos(99);
+        assertTrue(p99 >= 990000 && p99 <= 1000000);
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentileNanos(50));
+    }
+}
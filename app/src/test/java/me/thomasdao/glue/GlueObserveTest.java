@@ -0,0 +1,196 @@
+package me.thomasdao.glue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * Change events of a store. Runs on a plain JVM.
+ */
+public class GlueObserveTest {
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private GlueStore store;
+
+    // Deliveries wait here until run(), like a busy main thread
+    private final ArrayList<Runnable> queue = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        store = fixture.store();
+        store.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queue.add(command);
+            }
+        });
+    }
+
+    private void run() {
+        while (!queue.isEmpty()) {
+            queue.remove(0).run();
+        }
+    }
+
+    private static class Recorder implements ChangeListener {
+        final List<ChangeEvent> events = Collections.synchronizedList(new ArrayList<ChangeEvent>());
+
+        @Override
+        public void onChange(ChangeEvent event) {
+            events.add(event);
+        }
+
+        ChangeEvent single() {
+            assertEquals(1, events.size());
+            return events.remove(0);
+        }
+    }
+
+    private static Post post(String id, User author, String content) {
+        Post post = StoreFixture.post(id, author);
+        post.setContent(content);
+        return post;
+    }
+
+    private static HashSet<String> uniques(ChangeEvent event) {
+        HashSet<String> uniques = new HashSet<>();
+        for (Pinnable object : event.getSaved()) {
+            uniques.add(object.unique());
+        }
+        return uniques;
+    }
+
+    @Test
+    public void batchIsOneEventPerModel() throws Exception {
+        Recorder posts = new Recorder();
+        Recorder users = new Recorder();
+        store.observe(Post.class, posts);
+        store.observe(User.class, users);
+
+        ArrayList<Post> batch = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(post(String.valueOf(i), user(String.valueOf(i % 2)), "post " + i));
+        }
+        store.pinAll(batch);
+        run();
+
+        ChangeEvent event = posts.single();
+        assertEquals("Post", event.getModelName());
+        assertEquals(10, event.getSaved().size());
+        assertFalse(event.isCleared());
+        assertEquals(2, users.single().getSaved().size());
+
+        // Objects which did not change are not reported
+        store.pin(post("1", user("1"), "post 1"));
+        run();
+        assertTrue(posts.events.isEmpty());
+
+        store.deleteObject(store.get("3", Post.class));
+        run();
+        assertEquals(Collections.singleton("3"), posts.single().getDeleted());
+
+        store.deleteAll("Post");
+        run();
+        assertTrue(posts.single().isCleared());
+        assertTrue(users.events.isEmpty());
+
+        store.clearAll();
+        run();
+        assertTrue(posts.single().isCleared());
+        assertTrue(users.single().isCleared());
+    }
+
+    @Test
+    public void pendingEventsAreMerged() throws Exception {
+        Recorder posts = new Recorder();
+        store.observe(Post.class, posts);
+
+        store.pin(post("1", user("1"), "first"));
+        store.pin(post("2", user("1"), "second"));
+        store.pin(post("1", user("1"), "changed"));
+        store.deleteObject(store.get("2", Post.class));
+        assertEquals(1, queue.size());
+        run();
+
+        ChangeEvent event = posts.single();
+        assertEquals(1, event.getSaved().size());
+        assertEquals("changed", ((Post) event.getSaved().get(0)).getContent());
+        assertEquals(Collections.singleton("2"), event.getDeleted());
+
+        store.pin(post("3", user("1"), "third"));
+        store.deleteAll("Post");
+        store.pin(post("4", user("1"), "fourth"));
+        run();
+
+        event = posts.single();
+        assertTrue(event.isCleared());
+        assertEquals(Collections.singleton("4"), uniques(event));
+    }
+
+    @Test
+    public void keyAndQueryObservers() throws Exception {
+        User alice = user("1");
+        User bob = user("2");
+        store.pinAll(Arrays.asList(alice, bob));
+
+        Recorder one = new Recorder();
+        Recorder byAlice = new Recorder();
+        store.observe(Post.class, "1", one);
+        store.observe(store.query(Post.class).where("author", Condition.eq(alice)), byAlice);
+
+        store.pinAll(Arrays.asList(post("1", alice, "a"), post("2", bob, "b")));
+        run();
+        assertEquals(Collections.singleton("1"), uniques(one.single()));
+        assertEquals(Collections.singleton("1"), uniques(byAlice.single()));
+
+        // A post leaving the query is deleted from its view
+        store.pin(post("1", bob, "a"));
+        run();
+        assertEquals(Collections.singleton("1"), uniques(one.single()));
+        ChangeEvent event = byAlice.single();
+        assertTrue(event.getSaved().isEmpty());
+        assertEquals(Collections.singleton("1"), event.getDeleted());
+
+        store.removeObserver(one);
+        store.pin(post("1", alice, "a"));
+        run();
+        assertTrue(one.events.isEmpty());
+        assertEquals(Collections.singleton("1"), uniques(byAlice.single()));
+    }
+
+    @Test
+    public void defaultExecutorDelivers() throws Exception {
+        store.setChangeExecutor(null);
+        final ArrayList<ChangeEvent> events = new ArrayList<>();
+        store.observe(Post.class, new ChangeListener() {
+            @Override
+            public void onChange(ChangeEvent event) {
+                synchronized (events) {
+                    events.add(event);
+                    events.notifyAll();
+                }
+            }
+        });
+
+        store.pin(post("1", user("1"), "post"));
+        synchronized (events) {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (events.isEmpty() && System.currentTimeMillis() < deadline) {
+                events.wait(100);
+            }
+        }
+        assertEquals(1, events.size());
+    }
+}
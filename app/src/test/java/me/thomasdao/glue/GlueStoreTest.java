@@ -0,0 +1,232 @@
+package me.thomasdao.glue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static me.thomasdao.glue.StoreFixture.post;
+import static org.junit.Assert.*;
+
+/**
+ * Several stores side by side, and stores sharded over several engines. Runs on a plain JVM.
+ */
+public class GlueStoreTest {
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private static User user(String id, String username) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername(username);
+        return user;
+    }
+
+    @Test
+    public void storesKeepDataApart() throws Exception {
+        GlueStore first = new GlueStore(fixture.newEngine("first"));
+        GlueStore second = new GlueStore(fixture.newEngine("second"));
+
+        first.pin(post("1", user("1", "alice")));
+        second.pin(post("1", user("1", "bob")));
+
+        // References resolve against the store reading the record
+        GlueStore reopened = new GlueStore(second.getEngine());
+        Post post = (Post) reopened.get("1", Post.class);
+        assertEquals("bob", post.getAuthor().getUsername());
+        assertEquals(1, reopened.find(Post.class, "author", user("1", null)).size());
+
+        first.deleteAll("User");
+        assertNull(first.get("1", User.class));
+        assertNotNull(second.get("1", User.class));
+        assertEquals(1, first.count(Post.class));
+    }
+
+    @Test
+    public void modelShardHoldsItsKeys() throws Exception {
+        FileStorageEngine main = fixture.newEngine("main");
+        FileStorageEngine users = fixture.newEngine("users");
+        ShardedStorageEngine sharded = new ShardedStorageEngine(main).setModelShard("User", users);
+        GlueStore store = new GlueStore(sharded);
+
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            posts.add(post(String.valueOf(i), user(String.valueOf(i % 3), "user" + i % 3)));
+        }
+        store.pinAll(posts);
+
+        for (String key : users.keys()) {
+            assertEquals("User", ShardedStorageEngine.modelOf(key));
+        }
+        for (String key : main.keys()) {
+            assertNotEquals("User", ShardedStorageEngine.modelOf(key));
+        }
+        assertTrue(users.keys().contains("User:0"));
+        assertTrue(main.keys().contains("Post:0"));
+
+        GlueStore reopened = new GlueStore(sharded);
+        assertEquals(3, reopened.count(User.class));
+        assertEquals("user1", ((Post) reopened.get("4", Post.class)).getAuthor().getUsername());
+
+        // Deleting the model drops its shard, the other models are left alone
+        reopened.deleteAll("User");
+        assertTrue(users.keys().isEmpty());
+        assertEquals(10, new GlueStore(sharded).count(Post.class));
+    }
+
+    @Test
+    public void hashShardsKeepPatchesWithRecords() throws Exception {
+        ShardedStorageEngine sharded = ShardedStorageEngine.byHash(fixture.newEngine("a"), fixture.newEngine("b"), fixture.newEngine("c"));
+        GlueStore store = new GlueStore(sharded);
+
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            Post post = post(String.valueOf(i), null);
+            post.setContent("A post long enough to be patched rather than rewritten " + i);
+            post.setUpdatedAt(new Date(1000));
+            posts.add(post);
+        }
+        store.pinAll(posts);
+
+        Post update = post("7", null);
+        update.setContent(null);
+        update.setUpdatedAt(new Date(2000));
+        store.pin(update);
+
+        int used = 0;
+        for (StorageEngine shard : sharded.getShards()) {
+            if (!shard.keys().isEmpty()) used++;
+        }
+        assertTrue(used > 1);
+
+        assertEquals(1, store.getWriteStats().getPatched());
+        assertNotNull(sharded.shardFor("Post:7").get(RecordPatch.patchKey("Post:7")));
+
+        // A batch spanning every shard reads back whole
+        assertEquals(sharded.keys().size(), sharded.get(sharded.keys()).size());
+
+        Post post = (Post) new GlueStore(sharded).get("7", Post.class);
+        assertEquals(new Date(2000), post.getUpdatedAt());
+        assertTrue(post.getContent().endsWith(" 7"));
+    }
+
+    @Test
+    public void failedWriteIsNotTakenAsStored() throws Exception {
+        final boolean[] failing = {true};
+        FileStorageEngine engine = new FileStorageEngine(fixture.newFolder("failing"), false) {
+            @Override
+            public void write(Map<String, byte[]> puts, Collection<String> deletes) {
+                if (failing[0]) {
+                    throw new RuntimeException("Disk full");
+                }
+                super.write(puts, deletes);
+            }
+        };
+        GlueStore store = new GlueStore(engine);
+
+        Node node = new Node();
+        node.setId("1");
+        node.setLabel("first");
+        try {
+            store.pin(node);
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("Disk full", e.getMessage());
+        }
+
+        // Node has no equals, only a fingerprint of the failed write could skip this one
+        failing[0] = false;
+        Node again = new Node();
+        again.setId("1");
+        again.setLabel("first");
+        store.pin(again);
+        assertEquals(0, store.getWriteStats().getSkippedFingerprint());
+        assertEquals("first", ((Node) new GlueStore(engine).get("1", Node.class)).getLabel());
+    }
+
+    @Test
+    public void defaultStoreOutlivesInit() throws Exception {
+        Glue.init(fixture.newEngine("first"));
+        GlueStore store = Glue.getDefaultStore();
+        store.setModelTtl(Account.class, 60 * 1000);
+        final ArrayList<ChangeEvent> events = new ArrayList<>();
+        ChangeListener listener = new ChangeListener() {
+            @Override
+            public void onChange(ChangeEvent event) {
+                events.add(event);
+            }
+        };
+        store.setChangeExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        store.observe(Account.class, listener);
+
+        try {
+            Account account = new Account();
+            account.setId("1");
+            Glue.pin(account);
+
+            // Objects of the first engine are gone, observers and TTLs are kept
+            FileStorageEngine second = fixture.newEngine("second");
+            Glue.init(second);
+            assertSame(store, Glue.getDefaultStore());
+            assertNull(Glue.get("1", Account.class));
+
+            Glue.pin(account);
+            assertEquals(2, events.size());
+            assertTrue(second.keys().contains("Account#-expiry"));
+        } finally {
+            store.removeObserver(listener);
+            store.setModelTtl(Account.class, 0);
+            store.setChangeExecutor(null);
+        }
+    }
+
+    @Test
+    public void failedDecodeTaskFailsLoad() throws Exception {
+        GlueStore store = fixture.store();
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            posts.add(post(String.valueOf(i), user("1", "alice")));
+        }
+        store.pinAll(posts);
+
+        // Runs each decode task, then fails it as a broken record would
+        ExecutorService failing = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>()) {
+            @Override
+            public Future<?> submit(final Runnable task) {
+                return super.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        task.run();
+                        throw new IllegalStateException("Broken record");
+                    }
+                });
+            }
+        };
+        Glue.setLoadExecutor(failing, 2);
+        try {
+            new GlueStore(store.getEngine()).getAll(Post.class);
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("Broken record", e.getMessage());
+        } finally {
+            Glue.setLoadExecutor(null, Runtime.getRuntime().availableProcessors());
+            failing.shutdown();
+        }
+    }
+}
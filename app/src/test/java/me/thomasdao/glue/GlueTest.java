@@ -2,6 +2,8 @@ package me.thomasdao.glue;
 
 import android.os.Build;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -11,8 +13,11 @@ import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 
+import static me.thomasdao.glue.Condition.*;
 import static org.junit.Assert.*;
 
 /**
@@ -21,10 +26,14 @@ import static org.junit.Assert.*;
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.JELLY_BEAN)
 public class GlueTest {
+    // Counters of the default store when the test started, the store outlives each test
+    private WriteStats initialStats;
+
     @Before
     public void setUp() throws Exception {
         // Register Model
         Glue.init(RuntimeEnvironment.application);
+        initialStats = Glue.getWriteStats();
     }
 
     @After
@@ -108,4 +117,835 @@ public class GlueTest {
         assertEquals(comment, comments1.get(0));
         assertEquals(comment1, comments1.get(1));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void canPinAllInOneBatch() throws Exception {
+        ArrayList<Comment> comments = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i % 3));
+            user.setUsername("user" + (i % 3));
+
+            Comment comment = new Comment();
+            comment.setId(String.valueOf(i));
+            comment.setComment("Comment " + i);
+            comment.setAuthor(user);
+            comments.add(comment);
+        }
+        Glue.pinAll(comments);
+
+        // Relationships are pinned in the same batch
+        Glue.clearMemoryCache();
+        assertEquals(10, Glue.getAll(Comment.class).size());
+        assertEquals(3, Glue.getAll(User.class).size());
+        assertEquals(comments.get(4), Glue.get("4", Comment.class));
+    }
+
+    @Test
+    public void canWriteBehind() throws Exception {
+        Glue.enableWriteBehind(60 * 1000, 1000);
+        try {
+            User user = new User();
+            user.setId("1");
+            user.setUsername("thomas");
+            Glue.pin(user);
+
+            User update = new User();
+            update.setId("1");
+            update.setAge(28);
+            Glue.pin(update);
+            user.setAge(28);
+
+            // Queued changes are visible before they reach disk
+            Glue.clearMemoryCache();
+            assertEquals(user, Glue.get("1", User.class));
+            assertNull(CacheHelper.getPrivateSharedPreference().getString("User:1", null));
+
+            Glue.awaitDurable();
+            assertNotNull(CacheHelper.getPrivateSharedPreference().getString("User:1", null));
+
+            // Deletes are queued too
+            Glue.deleteObject(user);
+            assertNull(Glue.get("1", User.class));
+            assertTrue(Glue.awaitDurable(10 * 1000));
+            assertNull(CacheHelper.getPrivateSharedPreference().getString("User:1", null));
+        } finally {
+            Glue.disableWriteBehind();
+        }
+    }
+
+    @Test
+    public void canReloadEvictedObjects() throws Exception {
+        Glue.configureMemoryCache(5, 0, MemoryCache.Policy.LRU);
+        try {
+            ArrayList<User> users = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                User user = new User();
+                user.setId(String.valueOf(i));
+                user.setUsername("user" + i);
+                users.add(user);
+            }
+            Glue.pinAll(users);
+            assertTrue(Glue.getCacheStats().getSize() <= 5);
+
+            // Evicted objects load again from storage
+            for (int i = 0; i < 20; i++) {
+                assertEquals(users.get(i), Glue.get(String.valueOf(i), User.class));
+            }
+
+            CacheStats stats = Glue.getCacheStats(User.class);
+            assertTrue(stats.getEvictions() > 0);
+            assertTrue(stats.getMisses() > 0);
+        } finally {
+            Glue.configureMemoryCache(0, 0, MemoryCache.Policy.LRU);
+        }
+    }
+
+    @Test
+    public void canPinRelationshipsOfSuperclass() throws Exception {
+        User author = new User();
+        author.setId("1");
+        author.setUsername("thomas");
+
+        Article article = new Article();
+        article.setId("1");
+        article.setTitle("Glue");
+        article.setAuthor(author);
+        Glue.pin(article);
+
+        // Author is declared by Post, it is still pinned on its own
+        Glue.clearMemoryCache();
+        assertEquals(author, Glue.get("1", User.class));
+        assertEquals(article, Glue.get("1", Article.class));
+
+        // Merge copies superclass fields too
+        Article update = new Article();
+        update.setId("1");
+        update.setContent("Updated");
+        Glue.pin(update);
+
+        Article merged = (Article) Glue.get("1", Article.class);
+        assertEquals("Updated", merged.getContent());
+        assertEquals("Glue", merged.getTitle());
+        assertEquals(author, merged.getAuthor());
+    }
+
+    /**
+     * @return record of an object in the JSON codec, as text
+     */
+    private static String record(Object value) throws Exception {
+        return new String(JSONHelper.JSON.encode(value), "UTF-8");
+    }
+
+    @Test
+    public void toJSONNestsRelationships() throws Exception {
+        User author = new User();
+        author.setId("1");
+        author.setUsername("thomas");
+
+        Post post = new Post();
+        post.setId("1");
+        post.setAuthor(author);
+
+        // Public JSON helpers write whole graphs, as when sending an object over the network
+        String json = JSONHelper.toJSON(post);
+        assertTrue(json.contains("\"author\":{\"id\":\"1\",\"username\":\"thomas\""));
+        assertEquals(json, JSONHelper.OBJECT_MAPPER.writeValueAsString(post));
+
+        // Nothing is pinned, the author is read from the JSON rather than a store
+        Post read = (Post) JSONHelper.fromJSON(json, Post.class);
+        assertEquals("thomas", read.getAuthor().getUsername());
+        assertNull(Glue.get("1", User.class));
+        assertTrue(record(post).contains("\"author\":\"User:1\""));
+    }
+
+    @Test
+    public void generatedAdapterMatchesDatabind() throws Exception {
+        // Adapters are generated for test models by glue-compiler
+        assertNotNull(ModelAdapters.forClass(Post.class));
+
+        User author = new User();
+        author.setId("1");
+        author.setUsername("thomas");
+        author.setAge(30);
+
+        Comment comment = new Comment();
+        comment.setId("1");
+        comment.setComment("Nice");
+        comment.setAuthor(author);
+
+        ArrayList<Comment> comments = new ArrayList<>();
+        comments.add(comment);
+
+        Post post = new Post();
+        post.setId("1");
+        post.setContent("Hello");
+        post.setCreatedAt(new Date(1000));
+        post.setAuthor(author);
+        post.setComments(comments);
+
+        // References are resolved through Glue, so the graph has to be pinned
+        Glue.pin(post);
+
+        ObjectMapper databind = ((JacksonRecordCodec) JSONHelper.JSON).getObjectMapper();
+        String json = record(post);
+        assertEquals(json, databind.writeValueAsString(post));
+
+        Post viaDatabind = databind.readValue(json, Post.class);
+        Post viaAdapter = (Post) JSONHelper.decode(json.getBytes("UTF-8"), Post.class);
+
+        assertEquals(post, viaDatabind);
+        assertEquals(post, viaAdapter);
+        assertEquals(new Date(1000), viaAdapter.getCreatedAt());
+        assertNull(viaAdapter.getUpdatedAt());
+        assertEquals(30, viaAdapter.getAuthor().getAge());
+        assertEquals("Nice", viaAdapter.getComments().get(0).getComment());
+    }
+
+    @Test
+    public void adapterWritesWhatDatabindWrites() throws Exception {
+        Account account = new Account();
+        account.setId("1");
+        account.token = "secret";
+
+        Badge badge = new Badge();
+        badge.setId("1");
+        badge.setLevel(3);
+
+        // Jackson skips the package-private field and writes the getter without a field,
+        // so these models are left to databind
+        assertNull(ModelAdapters.forClass(Account.class));
+        assertNull(ModelAdapters.forClass(Badge.class));
+        ObjectMapper databind = ((JacksonRecordCodec) JSONHelper.JSON).getObjectMapper();
+        assertEquals(databind.writeValueAsString(account), record(account));
+        assertEquals(databind.writeValueAsString(badge), record(badge));
+        assertEquals("{\"id\":\"1\",\"level\":3,\"title\":\"Level 3\"}", record(badge));
+    }
+
+    @Test
+    public void canStoreRelationshipsAsReferences() throws Exception {
+        User author = new User();
+        author.setId("1");
+        author.setUsername("thomas");
+
+        Comment comment = new Comment();
+        comment.setId("1");
+        comment.setComment("Nice");
+        comment.setAuthor(author);
+
+        ArrayList<Comment> comments = new ArrayList<>();
+        comments.add(comment);
+
+        Post post = new Post();
+        post.setId("1");
+        post.setAuthor(author);
+        post.setComments(comments);
+        Glue.pin(post);
+
+        // Relationships are stored as keys, not nested copies
+        String record = CacheHelper.getString("Post:1");
+        assertTrue(record.contains("\"author\":\"User:1\""));
+        assertTrue(record.contains("\"comments\":[\"Comment:1\"]"));
+        assertFalse(record.contains("thomas"));
+
+        // An update to the author is seen through every reference
+        User update = new User();
+        update.setId("1");
+        update.setUsername("thomasdao");
+        Glue.pin(update);
+
+        Glue.clearMemoryCache();
+        Post loaded = (Post) Glue.get("1", Post.class);
+        assertEquals("thomasdao", loaded.getAuthor().getUsername());
+        assertSame(loaded.getAuthor(), loaded.getComments().get(0).getAuthor());
+        assertSame(loaded.getAuthor(), Glue.get("1", User.class));
+    }
+
+    @Test
+    public void canReadNestedRecords() throws Exception {
+        // Written before relationships were stored as references
+        CacheHelper.save("Post:1", "{\"id\":\"1\",\"content\":\"Hello\","
+                + "\"author\":{\"id\":\"1\",\"username\":\"thomas\",\"age\":30},"
+                + "\"comments\":[{\"id\":\"1\",\"comment\":\"Nice\",\"author\":null}]}");
+
+        Post post = (Post) Glue.get("1", Post.class);
+        assertEquals("Hello", post.getContent());
+        assertEquals("thomas", post.getAuthor().getUsername());
+        assertEquals("Nice", post.getComments().get(0).getComment());
+    }
+
+    @Test
+    public void canLoadRelationshipsLazily() throws Exception {
+        User author = new User();
+        author.setId("1");
+        author.setUsername("thomas");
+
+        User commenter = new User();
+        commenter.setId("2");
+        commenter.setUsername("dao");
+
+        Comment comment = new Comment();
+        comment.setId("1");
+        comment.setComment("Nice");
+        comment.setAuthor(commenter);
+
+        ArrayList<Comment> comments = new ArrayList<>();
+        comments.add(comment);
+
+        Post post = new Post();
+        post.setId("1");
+        post.setContent("Hello");
+        post.setAuthor(author);
+        post.setComments(comments);
+        Glue.pin(post);
+        Glue.clearMemoryCache();
+
+        // Only the post is read, relationships are placeholders
+        Post loaded = (Post) Glue.get("1", Post.class, 0);
+        assertEquals("Hello", loaded.getContent());
+        assertFalse(Glue.isLoaded(loaded.getAuthor()));
+        assertNull(loaded.getAuthor().getUsername());
+
+        // A placeholder is filled in place
+        assertSame(loaded.getAuthor(), Glue.fetch(loaded.getAuthor()));
+        assertTrue(Glue.isLoaded(loaded.getAuthor()));
+        assertEquals("thomas", loaded.getAuthor().getUsername());
+
+        // Placeholders are written as references, so a partly loaded object can be pinned
+        String json = record(loaded);
+        assertTrue(json.contains("\"comments\":[\"Comment:1\"]"));
+
+        Post update = new Post();
+        update.setId("1");
+        update.setContent("Updated");
+        update.setComments(loaded.getComments());
+        Glue.pin(update);
+        assertEquals("Updated", loaded.getContent());
+        assertTrue(CacheHelper.getString("Post:1").contains("\"comments\":[\"Comment:1\"]"));
+
+        // A deeper get fills in the remaining placeholders
+        Comment loadedComment = loaded.getComments().get(0);
+        assertFalse(Glue.isLoaded(loadedComment));
+        assertSame(loaded, Glue.get("1", Post.class));
+        assertTrue(Glue.isLoaded(loadedComment));
+        assertEquals("dao", loadedComment.getAuthor().getUsername());
+    }
+
+    @Test
+    public void canMakeLazyLoadingTheDefault() throws Exception {
+        User author = new User();
+        author.setId("1");
+        author.setUsername("thomas");
+
+        Post post = new Post();
+        post.setId("1");
+        post.setAuthor(author);
+        Glue.pin(post);
+        Glue.clearMemoryCache();
+
+        Glue.setLazyLoading(true);
+        try {
+            Post loaded = (Post) Glue.get("1", Post.class);
+            assertFalse(Glue.isLoaded(loaded.getAuthor()));
+
+            // Loading the author on its own fills in the placeholder too
+            assertSame(loaded.getAuthor(), Glue.get("1", User.class));
+            assertEquals("thomas", loaded.getAuthor().getUsername());
+        } finally {
+            Glue.setLazyLoading(false);
+        }
+    }
+
+    @Test
+    public void canPinAndLoadDeepGraphs() throws Exception {
+        // Far deeper than the stack allows for a recursive walk
+        int count = 50000;
+        Node head = new Node();
+        head.setId("0");
+        Node tail = head;
+        for (int i = 1; i < count; i++) {
+            Node node = new Node();
+            node.setId(String.valueOf(i));
+            tail.setNext(node);
+            tail = node;
+        }
+        Glue.pin(head);
+        Glue.clearMemoryCache();
+
+        Node node = (Node) Glue.get("0", Node.class);
+        int length = 0;
+        while (node != null) {
+            length++;
+            node = node.getNext();
+        }
+        assertEquals(count, length);
+    }
+
+    @Test
+    public void canPinAndLoadCycles() throws Exception {
+        Node first = new Node();
+        first.setId("1");
+        first.setLabel("first");
+        Node second = new Node();
+        second.setId("2");
+        second.setLabel("second");
+        first.setNext(second);
+        second.setNext(first);
+        Glue.pin(first);
+
+        assertEquals(2, Glue.getAll(Node.class).size());
+        assertEquals("\"Node:1\"", CacheHelper.getString("Node:2")
+                .replaceAll(".*\"next\":(\"[^\"]*\").*", "$1"));
+
+        Glue.clearMemoryCache();
+        Node loaded = (Node) Glue.get("1", Node.class);
+        assertEquals("second", loaded.getNext().getLabel());
+        assertSame(loaded, loaded.getNext().getNext());
+    }
+
+    @Test
+    public void canSwitchRecordCodec() throws Exception {
+        User json = new User();
+        json.setId("1");
+        json.setUsername("thomas");
+        Glue.pin(json);
+
+        // Smile records are read before the codec was ever set, say after an app restart
+        assertEquals(json, JSONHelper.decode(new SmileRecordCodec().encode(json), User.class));
+
+        Glue.setRecordCodec(new SmileRecordCodec());
+        try {
+            User smile = new User();
+            smile.setId("2");
+            smile.setUsername("dao");
+            Post post = new Post();
+            post.setId("1");
+            post.setAuthor(smile);
+            Glue.pin(post);
+
+            byte[] record = CacheHelper.getBytes("User:2");
+            assertTrue(new SmileRecordCodec().accepts(record));
+
+            // Binary records are kept in preferences as Base64
+            String stored = CacheHelper.getPrivateSharedPreference().getString("User:2", null);
+            assertTrue(stored.startsWith(SharedPreferencesEngine.BINARY_PREFIX));
+
+            // Records of both formats are read
+            Glue.clearMemoryCache();
+            assertEquals(json, Glue.get("1", User.class));
+            assertEquals(smile, ((Post) Glue.get("1", Post.class)).getAuthor());
+        } finally {
+            Glue.setRecordCodec(JSONHelper.JSON);
+        }
+
+        // And still after switching back
+        Glue.clearMemoryCache();
+        assertEquals("dao", ((User) Glue.get("2", User.class)).getUsername());
+        assertEquals("{\"id\":\"1\",\"username\":\"thomas\",\"age\":0}",
+                CacheHelper.getPrivateSharedPreference().getString("User:1", null));
+    }
+
+    @Test
+    public void canIterateAndPage() throws Exception {
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i));
+            user.setUsername("user" + i);
+            users.add(user);
+        }
+        Glue.pinAll(users);
+        Glue.clearMemoryCache();
+
+        // Pages follow the order keys were first saved, and do not overlap
+        ArrayList<User> paged = new ArrayList<>();
+        for (int offset = 0; offset < 30; offset += 10) {
+            Cursor<User> page = Glue.page(User.class, offset, 10);
+            try {
+                for (User user : page) {
+                    paged.add(user);
+                }
+            } finally {
+                page.close();
+            }
+        }
+        assertEquals(users, paged);
+
+        // A later pin appends to the order, a delete is skipped
+        User late = new User();
+        late.setId("late");
+        Glue.pin(late);
+        Glue.deleteObject(users.get(0));
+
+        Cursor<User> cursor = Glue.iterate(User.class);
+        assertEquals(25, cursor.size());
+        assertEquals(users.get(1), cursor.next());
+        cursor.close();
+        assertFalse(cursor.hasNext());
+
+        Cursor<User> last = Glue.page(User.class, 24, 10);
+        assertEquals(late, last.next());
+        assertFalse(last.hasNext());
+        last.close();
+    }
+
+    @Test
+    public void canGetManyInParallel() throws Exception {
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i));
+            user.setUsername("user" + i);
+            users.add(user);
+        }
+
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            Comment comment = new Comment();
+            comment.setId(String.valueOf(i));
+            comment.setComment("Comment " + i);
+            comment.setAuthor(users.get((i + 1) % users.size()));
+
+            ArrayList<Comment> comments = new ArrayList<>();
+            comments.add(comment);
+
+            Post post = new Post();
+            post.setId(String.valueOf(i));
+            post.setContent("Post " + i);
+            post.setAuthor(users.get(i % users.size()));
+            post.setComments(comments);
+            posts.add(post);
+        }
+        Glue.pinAll(posts);
+        Glue.clearMemoryCache();
+        Glue.setLoadExecutor(null, 4);
+
+        try {
+            // Order of the uniques is kept, missing objects are left out
+            ArrayList loaded = Glue.getMany(Arrays.asList("42", "missing", "7", "42"), Post.class);
+            assertEquals(3, loaded.size());
+            assertEquals("Post 42", ((Post) loaded.get(0)).getContent());
+            assertEquals("Post 7", ((Post) loaded.get(1)).getContent());
+            assertSame(loaded.get(0), loaded.get(2));
+
+            // Records decoded on different threads share one instance per key
+            Glue.clearMemoryCache();
+            ArrayList all = Glue.getAll(Post.class);
+            assertEquals(posts, all);
+            Post first = (Post) all.get(0);
+            assertSame(first.getAuthor(), ((Post) all.get(90)).getAuthor());
+            assertSame(first.getAuthor(), ((Post) all.get(9)).getComments().get(0).getAuthor());
+            assertEquals("user0", first.getAuthor().getUsername());
+            assertSame(first, Glue.get("0", Post.class));
+            assertSame(first.getAuthor(), Glue.get("0", User.class));
+
+            // Beyond the depth relationships are placeholders, filled by a later load
+            Glue.clearMemoryCache();
+            ArrayList shallow = Glue.getMany(Arrays.asList("1"), Post.class, 1);
+            Comment comment = ((Post) shallow.get(0)).getComments().get(0);
+            assertTrue(Glue.isLoaded(comment));
+            assertFalse(Glue.isLoaded(comment.getAuthor()));
+            Glue.getMany(Arrays.asList("1"), Post.class);
+            assertTrue(Glue.isLoaded(comment.getAuthor()));
+            assertEquals("user2", comment.getAuthor().getUsername());
+        } finally {
+            Glue.setLoadExecutor(null, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @Test
+    public void parallelLoadMatchesSequential() throws Exception {
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            User author = new User();
+            author.setId(String.valueOf(i % 7));
+            author.setUsername("user" + i % 7);
+
+            Comment comment = new Comment();
+            comment.setId(String.valueOf(i));
+            comment.setComment("Comment " + i);
+            comment.setAuthor(author);
+
+            ArrayList<Comment> comments = new ArrayList<>();
+            comments.add(comment);
+
+            Post post = new Post();
+            post.setId(String.valueOf(i));
+            post.setContent("Post " + i);
+            post.setAuthor(author);
+            post.setComments(comments);
+            posts.add(post);
+        }
+        Glue.pinAll(posts);
+        List<String> uniques = Arrays.asList("150", "3", "missing", "77", "3");
+
+        try {
+            Glue.setLoadExecutor(null, 1);
+            Glue.clearMemoryCache();
+            ArrayList sequential = Glue.getAll(Post.class);
+            Glue.clearMemoryCache();
+            ArrayList sequentialMany = Glue.getMany(uniques, Post.class);
+
+            Glue.setLoadExecutor(null, 4);
+            Glue.clearMemoryCache();
+            assertEquals(sequential, Glue.getAll(Post.class));
+            Glue.clearMemoryCache();
+            assertEquals(sequentialMany, Glue.getMany(uniques, Post.class));
+            assertEquals(posts, sequential);
+        } finally {
+            Glue.setLoadExecutor(null, Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    @Test
+    public void canFindByIndexedFields() throws Exception {
+        User thomas = new User();
+        thomas.setId("1");
+        thomas.setUsername("thomas");
+
+        User dao = new User();
+        dao.setId("2");
+        dao.setUsername("dao");
+
+        ArrayList<Comment> comments = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Comment comment = new Comment();
+            comment.setId(String.valueOf(i));
+            comment.setComment("Comment " + i);
+            comment.setAuthor(i % 2 == 0 ? thomas : dao);
+            comments.add(comment);
+        }
+        Glue.pinAll(comments);
+
+        // A relationship is indexed by the key of the object it holds
+        assertEquals(Arrays.asList("0", "2", "4"), Glue.findUniques(Comment.class, "author", thomas));
+        Glue.clearMemoryCache();
+        ArrayList found = Glue.find(Comment.class, "author", dao);
+        assertEquals(Arrays.asList(comments.get(1), comments.get(3), comments.get(5)), found);
+
+        // Indexes follow updates and deletes
+        Comment update = new Comment();
+        update.setId("0");
+        update.setAuthor(dao);
+        Glue.pin(update);
+        Glue.deleteObject(comments.get(3));
+        assertEquals(Arrays.asList("2", "4"), Glue.findUniques(Comment.class, "author", thomas));
+        assertEquals(Arrays.asList("1", "5", "0"), Glue.findUniques(Comment.class, "author", dao));
+
+        // Sorted indexes answer ranges, lower bound included and upper bound excluded
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 5; i > 0; i--) {
+            Post post = new Post();
+            post.setId(String.valueOf(i));
+            post.setCreatedAt(new Date(i * 1000L));
+            posts.add(post);
+        }
+        Glue.pinAll(posts);
+        assertEquals(Arrays.asList("2", "3", "4"),
+                Glue.findUniquesInRange(Post.class, "createdAt", new Date(2000), new Date(5000)));
+        assertEquals(Arrays.asList("4", "5"), Glue.findUniquesInRange(Post.class, "createdAt", 4000L, null));
+        assertEquals(1, Glue.find(Post.class, "createdAt", new Date(3000)).size());
+
+        // An index missing from storage is built from the saved objects
+        CacheHelper.delete(Arrays.asList("Comment#author"));
+        Glue.init(RuntimeEnvironment.application);
+        assertEquals(Arrays.asList("2", "4"), Glue.findUniques(Comment.class, "author", "User:1"));
+
+        try {
+            Glue.find(Comment.class, "comment", "Comment 1");
+            fail("Field is not indexed");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void canQueryWithIndexesAndFilters() throws Exception {
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i));
+            user.setUsername("user" + i);
+            users.add(user);
+        }
+
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            Post post = new Post();
+            post.setId(String.valueOf(i));
+            post.setContent("Post " + i);
+            post.setCreatedAt(new Date(i * 1000L));
+            post.setAuthor(users.get(i % users.size()));
+            posts.add(post);
+        }
+        Glue.pinAll(posts);
+        Glue.clearMemoryCache();
+
+        // Answered by indexes alone
+        Query<Post> latest = Glue.query(Post.class)
+                .where("author", eq(users.get(0)))
+                .orderBy("createdAt", Query.Order.DESC)
+                .limit(3);
+        assertEquals(Arrays.asList("198", "195", "192"), latest.findUniques());
+        assertEquals(posts.get(198), latest.find().get(0));
+        String plan = latest.explain();
+        assertTrue(plan.contains("INDEX Post#author = \"User:0\" (67 keys)"));
+        assertTrue(plan.contains("ORDER BY INDEX Post#createdAt DESC"));
+        assertFalse(plan.contains("SCAN"));
+
+        // Conditions without an index are checked on candidates, a batch at a time
+        Glue.clearMemoryCache();
+        long misses = Glue.getCacheStats(Post.class).getMisses();
+        Query<Post> range = Glue.query(Post.class)
+                .where("createdAt", gte(new Date(10000)))
+                .where("content", ne("Post 12"))
+                .limit(2);
+        assertEquals(Arrays.asList("10", "11"), range.findUniques());
+        assertTrue(Glue.getCacheStats(Post.class).getMisses() - misses < 100);
+        assertEquals(Arrays.asList("11", "13"), range.offset(1).findUniques());
+        assertTrue(range.explain().contains("FILTER content != \"Post 12\""));
+
+        // Without an index the query scans the model, and sorts in memory
+        Query<Post> scan = Glue.query(Post.class)
+                .where("content", in(Arrays.asList("Post 2", "Post 10", "Post 1")))
+                .orderBy("content", Query.Order.ASC);
+        ArrayList<Post> found = scan.find();
+        assertEquals(Arrays.asList(posts.get(1), posts.get(10), posts.get(2)), found);
+        assertTrue(scan.explain().contains("SCAN Post (200 keys)"));
+        assertTrue(scan.explain().contains("SORT content ASC"));
+    }
+
+    private static Node node(String id, String label) {
+        Node node = new Node();
+        node.setId(id);
+        node.setLabel(label);
+        return node;
+    }
+
+    /**
+     * @return pin counters since the test started
+     */
+    private WriteStats writeStats() {
+        WriteStats stats = Glue.getWriteStats();
+        return new WriteStats(stats.getWritten() - initialStats.getWritten(),
+                stats.getPatched() - initialStats.getPatched(),
+                stats.getBytesWritten() - initialStats.getBytesWritten(),
+                stats.getSkippedEqual() - initialStats.getSkippedEqual(),
+                stats.getSkippedFingerprint() - initialStats.getSkippedFingerprint());
+    }
+
+    /**
+     * @return records written in full or as patches
+     */
+    private long stored() {
+        WriteStats stats = writeStats();
+        return stats.getWritten() + stats.getPatched();
+    }
+
+    @Test
+    public void skipsWritesOfUnchangedRecords() throws Exception {
+        Glue.pin(node("1", "first"));
+        assertEquals(1, stored());
+
+        // Node has no equals, its record tells that nothing changed
+        Glue.pin(node("1", "first"));
+        assertEquals(1, stored());
+        assertEquals(1, writeStats().getSkippedFingerprint());
+
+        Glue.pin(node("1", "second"));
+        assertEquals(2, stored());
+        assertEquals("second", ((Node) Glue.get("1", Node.class)).getLabel());
+
+        // A record read from storage is known too
+        Glue.clearMemoryCache();
+        Glue.get("1", Node.class);
+        Glue.pin(node("1", "second"));
+        assertEquals(2, stored());
+        assertEquals(2, writeStats().getSkippedFingerprint());
+
+        User user = new User();
+        user.setId("1");
+        Glue.pin(user);
+        Glue.pin(user);
+        assertEquals(1, writeStats().getSkippedEqual());
+
+        // A deleted record is written again
+        Glue.deleteObject(Glue.get("1", Node.class));
+        Glue.pin(node("1", "second"));
+        assertEquals(4, stored());
+        Glue.clearMemoryCache();
+        assertEquals("second", ((Node) Glue.get("1", Node.class)).getLabel());
+        assertEquals(1, Glue.count(Node.class));
+    }
+
+    @Test
+    public void writesOnlyChangedFields() throws Exception {
+        User author = new User();
+        author.setId("1");
+        Glue.pin(author);
+
+        StringBuilder content = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            content.append("A long post. ");
+        }
+
+        Post post = new Post();
+        post.setId("1");
+        post.setAuthor(author);
+        post.setContent(content.toString());
+        post.setCreatedAt(new Date(1000));
+        post.setUpdatedAt(new Date(1000));
+        Glue.pin(post);
+        long fullBytes = writeStats().getBytesWritten();
+
+        // Only updatedAt changes, only updatedAt is written
+        for (int i = 2; i <= 5; i++) {
+            Post update = new Post();
+            update.setId("1");
+            update.setUpdatedAt(new Date(i * 1000));
+            Glue.pin(update);
+        }
+        WriteStats stats = writeStats();
+        assertEquals(4, stats.getPatched());
+        assertTrue(stats.getBytesWritten() - fullBytes < 4 * 100);
+        assertTrue(CacheHelper.keys().contains("~Post:1"));
+
+        // Reads apply the patch
+        Glue.clearMemoryCache();
+        Post loaded = (Post) Glue.get("1", Post.class);
+        assertEquals(new Date(5000), loaded.getUpdatedAt());
+        assertEquals(content.toString(), loaded.getContent());
+        assertEquals("1", loaded.getAuthor().getId());
+        Glue.init(RuntimeEnvironment.application);
+        assertEquals(new Date(5000), ((Post) Glue.getAll(Post.class).get(0)).getUpdatedAt());
+
+        // A patch as large as half the record is folded into it
+        Post rewrite = new Post();
+        rewrite.setId("1");
+        rewrite.setContent(content.toString().toUpperCase());
+        Glue.pin(rewrite);
+        assertFalse(CacheHelper.keys().contains("~Post:1"));
+        Glue.clearMemoryCache();
+        loaded = (Post) Glue.get("1", Post.class);
+        assertEquals(new Date(5000), loaded.getUpdatedAt());
+        assertEquals(content.toString().toUpperCase(), loaded.getContent());
+
+        // Patches can be folded on demand, and are deleted with their record
+        Post update = new Post();
+        update.setId("1");
+        update.setUpdatedAt(new Date(6000));
+        Glue.pin(update);
+        assertTrue(CacheHelper.keys().contains("~Post:1"));
+        Glue.foldPatches(Post.class);
+        assertFalse(CacheHelper.keys().contains("~Post:1"));
+        Glue.clearMemoryCache();
+        assertEquals(new Date(6000), ((Post) Glue.get("1", Post.class)).getUpdatedAt());
+
+        update.setUpdatedAt(new Date(7000));
+        Glue.pin(update);
+        assertTrue(CacheHelper.keys().contains("~Post:1"));
+        Glue.deleteObject(Glue.get("1", Post.class));
+        assertFalse(CacheHelper.keys().contains("~Post:1"));
+        assertFalse(CacheHelper.keys().contains("Post:1"));
+    }
+}
@@ -0,0 +1,121 @@
+package me.thomasdao.glue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static me.thomasdao.glue.StoreFixture.post;
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * Warm-up of a new store and snapshots of the hot set. Runs on a plain JVM.
+ */
+public class GlueWarmUpTest {
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private FileStorageEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = fixture.engine();
+
+        ArrayList<Post> posts = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            posts.add(post(String.valueOf(i), user(String.valueOf(i % 4))));
+        }
+        fixture.store().pinAll(posts);
+    }
+
+    /**
+     * @return a store over the same files, as after a restart
+     */
+    private GlueStore restart() throws Exception {
+        GlueStore store = fixture.reopen();
+        store.getMetrics().setEnabled(true);
+        return store;
+    }
+
+    @Test
+    public void snapshotRestoresHotSetInOneRead() throws Exception {
+        GlueStore store = restart();
+        store.get("3", Post.class);
+        store.get("5", Post.class);
+        assertEquals(4, store.saveSnapshot(100));
+
+        GlueStore restarted = restart();
+        GlueMetrics metrics = restarted.getMetrics();
+        assertEquals(4, restarted.restoreSnapshot());
+
+        // Records come in one read, expiries of each model are read once
+        assertEquals(3, metrics.getStats(GlueMetrics.Operation.STORAGE_READ).getCount());
+
+        // Both posts and their authors are in memory
+        long misses = restarted.getCacheStats().getMisses();
+        Post post = (Post) restarted.get("5", Post.class);
+        assertEquals("post 5", post.getContent());
+        assertEquals("user1", post.getAuthor().getUsername());
+        assertEquals(misses, restarted.getCacheStats().getMisses());
+        assertEquals(3, metrics.getStats(GlueMetrics.Operation.STORAGE_READ).getCount());
+    }
+
+    @Test
+    public void snapshotKeepsHottestObjects() throws Exception {
+        GlueStore store = restart();
+        store.get("1", Post.class, 0);
+        store.get("2", Post.class, 0);
+        store.get("1", Post.class, 0);
+        assertEquals(1, store.saveSnapshot(1));
+
+        GlueStore restarted = restart();
+        assertEquals(1, restarted.restoreSnapshot());
+        assertEquals(1, restarted.getCacheStats().getSize());
+        assertNotNull(restarted.get("1", Post.class));
+    }
+
+    @Test
+    public void writeDropsSnapshot() throws Exception {
+        GlueStore store = restart();
+        store.get("1", Post.class);
+        store.saveSnapshot(100);
+
+        Post post = new Post();
+        post.setId("1");
+        post.setContent("changed");
+        store.pin(post);
+        assertFalse(engine.keys().contains(WarmUp.SNAPSHOT_KEY));
+
+        GlueStore restarted = restart();
+        assertEquals(0, restarted.restoreSnapshot());
+        assertEquals("changed", ((Post) restarted.get("1", Post.class)).getContent());
+
+        // A store which has not seen the snapshot drops it with its first write too
+        store.saveSnapshot(100);
+        GlueStore other = restart();
+        other.deleteObject(other.get("2", Post.class));
+        assertFalse(engine.keys().contains(WarmUp.SNAPSHOT_KEY));
+        assertEquals(0, restart().restoreSnapshot());
+    }
+
+    @Test
+    public void warmUpLoadsHotModelsInBackground() throws Exception {
+        GlueStore store = restart();
+        store.get("1", Post.class);
+        store.saveSnapshot(100);
+
+        GlueStore restarted = restart();
+        assertEquals(Integer.valueOf(5), restarted.warmUp(User.class).get(10, TimeUnit.SECONDS));
+
+        GlueStore other = restart();
+        assertEquals(Integer.valueOf(4), other.warmUp(Post.class, Arrays.asList("2", "3")).get(10, TimeUnit.SECONDS));
+        long misses = other.getCacheStats().getMisses();
+        assertEquals(2, other.getMany(Arrays.asList("1", "3"), Post.class, 0).size());
+        assertEquals(misses, other.getCacheStats().getMisses());
+    }
+}
@@ -0,0 +1,64 @@
+package me.thomasdao.glue;
+
+/**
+ * A model with indexed floating point fields.
+ */
+@ModelName("Item")
+public class Item implements Pinnable {
+    private String id;
+
+    @Indexed
+    private Double price;
+
+    @Indexed(sorted = true)
+    private Float weight;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public Double getPrice() {
+        return price;
+    }
+
+    public void setPrice(Double price) {
+        this.price = price;
+    }
+
+    public Float getWeight() {
+        return weight;
+    }
+
+    public void setWeight(Float weight) {
+        this.weight = weight;
+    }
+
+    @Override
+    public String unique() {
+        return id;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        Item item = (Item) o;
+
+        if (id != null ? !id.equals(item.id) : item.id != null) return false;
+        if (price != null ? !price.equals(item.price) : item.price != null) return false;
+        return !(weight != null ? !weight.equals(item.weight) : item.weight != null);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = id != null ? id.hashCode() : 0;
+        result = 31 * result + (price != null ? price.hashCode() : 0);
+        result = 31 * result + (weight != null ? weight.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,146 @@
+package me.thomasdao.glue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class KeyIndexTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileStorageEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = new FileStorageEngine(folder.newFolder("glue"), false);
+        Glue.init(engine);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Glue.clearAll();
+    }
+
+    private static ArrayList<User> users(int count) {
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i));
+            users.add(user);
+        }
+        return users;
+    }
+
+    @Test
+    public void canStoreKeysInSegments() throws Exception {
+        Glue.pinAll(users(600));
+        assertEquals(600, Glue.count(User.class));
+        assertTrue(engine.keys().containsAll(Arrays.asList("User", "User#0", "User#1", "User#2")));
+
+        // Read back in the order keys were first saved
+        Glue.init(engine);
+        assertEquals(600, Glue.count(User.class));
+        ArrayList all = Glue.getAll(User.class);
+        assertEquals("0", ((User) all.get(0)).getId());
+        assertEquals("599", ((User) all.get(599)).getId());
+    }
+
+    @Test
+    public void writesOnlyChangedSegments() throws Exception {
+        Glue.pinAll(users(600));
+        KeyIndex index = KeyIndex.load(CacheHelper.storage(), "User");
+
+        HashMap<String, byte[]> puts = new HashMap<>();
+        ArrayList<String> deletes = new ArrayList<>();
+
+        // A new key goes to the last segment
+        assertTrue(index.add("User:new"));
+        assertFalse(index.add("User:new"));
+        index.writeChanges(puts, deletes);
+        assertEquals(Arrays.asList("User#2"), new ArrayList<>(puts.keySet()));
+        assertTrue(deletes.isEmpty());
+
+        // Removing a key rewrites its segment only
+        puts.clear();
+        assertTrue(index.remove("User:3"));
+        index.writeChanges(puts, deletes);
+        assertEquals(Arrays.asList("User#0"), new ArrayList<>(puts.keySet()));
+
+        // An empty segment is dropped from the list of segments
+        puts.clear();
+        for (int i = 256; i < 512; i++) {
+            index.remove("User:" + i);
+        }
+        index.writeChanges(puts, deletes);
+        assertEquals(Arrays.asList("User#1"), deletes);
+        assertEquals(Arrays.asList("User"), new ArrayList<>(puts.keySet()));
+        assertEquals(600 + 1 - 1 - 256, index.size());
+    }
+
+    @Test
+    public void singlePinWritesOneSegment() throws Exception {
+        Glue.pinAll(users(16000));
+
+        GlueStore store = new GlueStore(engine);
+        GlueMetrics metrics = store.getMetrics();
+        metrics.setEnabled(true);
+        User user = new User();
+        user.setId("new");
+        store.pin(user);
+
+        // A segment holds a few hundred keys, the whole index tens of thousands
+        long bytes = metrics.getStats(GlueMetrics.Operation.INDEX_WRITE).getBytes();
+        assertTrue("Wrote " + bytes + " bytes", bytes < 8 * 1024);
+        assertEquals(1, metrics.getStats(GlueMetrics.Operation.STORAGE_WRITE).getCount());
+        assertEquals(16001, store.count(User.class));
+    }
+
+    @Test
+    public void canReadSingleArrayIndex() throws Exception {
+        CacheHelper.save("User", "[\"User:1\",\"User:2\"]");
+        KeyIndex index = KeyIndex.load(CacheHelper.storage(), "User");
+        assertEquals(Arrays.asList("User:1", "User:2"), index.keys());
+
+        // Split into segments on the next write
+        HashMap<String, byte[]> puts = new HashMap<>();
+        index.add("User:3");
+        index.writeChanges(puts, new ArrayList<String>());
+        assertTrue(puts.keySet().containsAll(Arrays.asList("User", "User#0")));
+
+        CacheHelper.saveBytes(puts);
+        assertEquals(Arrays.asList("User:1", "User:2", "User:3"), KeyIndex.load(CacheHelper.storage(), "User").keys());
+    }
+
+    @Test
+    public void rebuildsUnreadableIndexFromRecords() throws Exception {
+        Glue.pinAll(users(600));
+
+        // A segment which cannot be read, and one which is missing
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("User#1", "[\"User:".getBytes());
+        engine.write(puts, Arrays.asList("User#2"));
+
+        Glue.init(engine);
+        assertEquals(600, Glue.count(User.class));
+
+        // Written again whole on the next pin, without the old segments
+        User user = new User();
+        user.setId("new");
+        Glue.pin(user);
+        assertFalse(engine.keys().contains("User#1"));
+        Glue.init(engine);
+        assertEquals(601, Glue.count(User.class));
+        assertTrue(KeyIndex.load(CacheHelper.storage(), "User").contains("User:599"));
+    }
+}
@@ -0,0 +1,161 @@
+package me.thomasdao.glue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class LogStructuredEngineTest {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private LogStructuredEngine engine;
+
+    @Before
+    public void setUp() throws Exception {
+        file = new File(folder.getRoot(), "glue.log");
+        engine = open(false);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        engine.close();
+    }
+
+    private LogStructuredEngine open(boolean memoryMap) throws Exception {
+        // Compaction only when triggered manually
+        return new LogStructuredEngine(file, false, memoryMap, 1f, Long.MAX_VALUE);
+    }
+
+    private void put(String key, String val) {
+        engine.write(Collections.singletonMap(key, val.getBytes(UTF_8)), new ArrayList<String>());
+    }
+
+    private String get(String key) {
+        byte[] val = engine.get(key);
+        return val == null ? null : new String(val, UTF_8);
+    }
+
+    @Test
+    public void canWriteReadAndDelete() throws Exception {
+        put("User:1", "thomas");
+        put("User:2", "john");
+        put("User:1", "thomas dao");
+        engine.write(new HashMap<String, byte[]>(), Arrays.asList("User:2"));
+
+        assertEquals("thomas dao", get("User:1"));
+        assertNull(get("User:2"));
+        assertEquals(1, engine.keys().size());
+
+        engine.clear();
+        assertNull(get("User:1"));
+        assertEquals(0, engine.keys().size());
+    }
+
+    @Test
+    public void canRecoverByReplayingLog() throws Exception {
+        put("User:1", "thomas");
+        put("User:2", "john");
+        engine.write(new HashMap<String, byte[]>(), Arrays.asList("User:2"));
+        engine.close();
+
+        engine = open(true);
+        assertEquals("thomas", get("User:1"));
+        assertNull(get("User:2"));
+    }
+
+    @Test
+    public void canRecoverFromTornWrite() throws Exception {
+        put("User:1", "thomas");
+        long validSize = engine.size();
+        put("User:2", "john");
+        engine.close();
+
+        // Simulate a crash in the middle of the last frame
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 3);
+        raf.close();
+
+        engine = open(false);
+        assertEquals("thomas", get("User:1"));
+        assertNull(get("User:2"));
+        assertEquals(validSize, engine.size());
+
+        // New writes go after the last valid frame
+        put("User:3", "anna");
+        engine.close();
+        engine = open(false);
+        assertEquals("anna", get("User:3"));
+    }
+
+    @Test
+    public void canCompact() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            put("User:1", "version " + i);
+            put("User:" + i, "user " + i);
+        }
+        long before = engine.size();
+
+        engine.compact();
+        assertTrue(engine.size() < before);
+        assertEquals("version 99", get("User:1"));
+        assertEquals("user 50", get("User:50"));
+        assertEquals(100, engine.keys().size());
+
+        // Compacted log replays too
+        engine.close();
+        engine = open(true);
+        assertEquals("version 99", get("User:1"));
+        assertEquals(100, engine.keys().size());
+    }
+
+    @Test
+    public void canCompactInBackground() throws Exception {
+        engine.close();
+        engine = new LogStructuredEngine(file, false, false, 0.5f, 1024);
+
+        for (int i = 0; i < 10000; i++) {
+            put("User:1", "version " + i);
+        }
+        assertEquals("version 9999", get("User:1"));
+
+        // Compaction runs on its own thread, give it time to catch up
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        while (engine.size() > 4 * 1024 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(engine.size() <= 4 * 1024);
+        assertEquals("version 9999", get("User:1"));
+    }
+
+    @Test
+    public void canPinWithLog() throws Exception {
+        Glue.init(engine);
+
+        User user = new User();
+        user.setId("1");
+        user.setUsername("thomas");
+        Glue.pin(user);
+
+        Glue.clearMemoryCache();
+        assertEquals(user, Glue.get("1", User.class));
+        Glue.clearAll();
+    }
+}
@@ -0,0 +1,91 @@
+package me.thomasdao.glue;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class MemoryCacheTest {
+
+    private static User user(String id) {
+        User user = new User();
+        user.setId(id);
+        return user;
+    }
+
+    @Test
+    public void canEvictLeastRecentlyUsed() throws Exception {
+        MemoryCache cache = new MemoryCache(2, 0, MemoryCache.Policy.LRU);
+        cache.put("User:1", "User", user("1"), 10);
+        cache.put("User:2", "User", user("2"), 10);
+
+        // Touch 1, so 2 is the eldest
+        assertNotNull(cache.get("User:1", "User"));
+        cache.put("User:3", "User", user("3"), 10);
+
+        assertNotNull(cache.peek("User:1", "User"));
+        assertNull(cache.peek("User:2", "User"));
+        assertNotNull(cache.peek("User:3", "User"));
+
+        CacheStats stats = cache.stats();
+        assertEquals(1, stats.getHits());
+        assertEquals(1, stats.getEvictions());
+        assertEquals(2, stats.getSize());
+        assertEquals(20, stats.getWeight());
+    }
+
+    @Test
+    public void canLimitWeight() throws Exception {
+        MemoryCache cache = new MemoryCache(0, 100, MemoryCache.Policy.LRU);
+        cache.put("User:1", "User", user("1"), 40);
+        cache.put("User:2", "User", user("2"), 40);
+        cache.put("User:3", "User", user("3"), 40);
+
+        assertNull(cache.peek("User:1", "User"));
+        assertEquals(80, cache.stats().getWeight());
+    }
+
+    @Test
+    public void canLimitPerModel() throws Exception {
+        MemoryCache cache = new MemoryCache();
+        cache.setModelLimit("User", 1);
+        cache.put("User:1", "User", user("1"), 0);
+        cache.put("User:2", "User", user("2"), 0);
+        cache.put("Post:1", "Post", new Post(), 0);
+        cache.put("Post:2", "Post", new Post(), 0);
+
+        assertEquals(1, cache.stats("User").getSize());
+        assertEquals(1, cache.stats("User").getEvictions());
+        assertEquals(2, cache.stats("Post").getSize());
+    }
+
+    @Test
+    public void tinyLfuKeepsHotEntries() throws Exception {
+        MemoryCache cache = new MemoryCache(10, 0, MemoryCache.Policy.TINY_LFU);
+
+        // A small hot set, accessed often
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 10; i++) {
+                String key = "User:" + i;
+                if (cache.get(key, "User") == null) {
+                    cache.put(key, "User", user(String.valueOf(i)), 0);
+                }
+            }
+        }
+
+        // A scan over cold entries, each seen once
+        for (int i = 100; i < 300; i++) {
+            String key = "User:" + i;
+            if (cache.get(key, "User") == null) {
+                cache.put(key, "User", user(String.valueOf(i)), 0);
+            }
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(cache.peek("User:" + i, "User"));
+        }
+        assertTrue(cache.stats().getRejections() > 0);
+    }
+}
@@ -0,0 +1,41 @@
+package me.thomasdao.glue;
+
+/**
+ * A linked node, used to build long chains and cycles. Equality is identity, so Glue has no
+ * equals short-circuit to stop a walk.
+ */
+@ModelName("Node")
+public class Node implements Pinnable {
+    private String id;
+    private String label;
+    private Node next;
+
+    @Override
+    public String unique() {
+        return id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public void setLabel(String label) {
+        this.label = label;
+    }
+
+    public Node getNext() {
+        return next;
+    }
+
+    public void setNext(Node next) {
+        this.next = next;
+    }
+}
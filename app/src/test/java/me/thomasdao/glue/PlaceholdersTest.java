@@ -0,0 +1,86 @@
+package me.thomasdao.glue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import static me.thomasdao.glue.StoreFixture.post;
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class PlaceholdersTest {
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    @Before
+    public void setUp() throws Exception {
+        GlueStore store = fixture.store();
+        store.pin(post("1", user("1")));
+        store.pin(post("2", user("2")));
+    }
+
+    private static long gets(GlueMetrics metrics) {
+        return metrics.getStats(GlueMetrics.Operation.GET).getCount();
+    }
+
+    @Test
+    public void onlyObjectsHoldingPlaceholdersAreFetched() throws Exception {
+        GlueStore store = fixture.reopen();
+        Post lazy = (Post) store.get("1", Post.class, 0);
+        assertFalse(store.isLoaded(lazy.getAuthor()));
+
+        GlueMetrics metrics = store.getMetrics();
+        metrics.setEnabled(true);
+
+        // Loaded whole, and again from memory, without walking the graph for placeholders
+        store.get("2", Post.class);
+        store.get("2", Post.class);
+        assertEquals(2, gets(metrics));
+
+        // The lazily loaded object is fetched once, its graph is whole after that
+        assertSame(lazy, store.get("1", Post.class));
+        assertTrue(store.isLoaded(lazy.getAuthor()));
+        assertEquals(4, gets(metrics));
+        store.get("1", Post.class);
+        assertEquals(5, gets(metrics));
+    }
+
+    @Test
+    public void pinningPlaceholderMarksGraphPartial() throws Exception {
+        GlueStore store = fixture.reopen();
+        Post whole = (Post) store.get("2", Post.class);
+        Post lazy = (Post) store.get("1", Post.class, 0);
+
+        // The whole post now refers to an author which is not loaded
+        Post update = post("2", user("2"));
+        update.setAuthor(lazy.getAuthor());
+        store.pin(update);
+        assertSame(lazy.getAuthor(), whole.getAuthor());
+        assertFalse(store.isLoaded(whole.getAuthor()));
+
+        store.get("2", Post.class);
+        assertTrue(store.isLoaded(whole.getAuthor()));
+        assertEquals("user1", whole.getAuthor().getUsername());
+    }
+
+    @Test
+    public void unreferencedPlaceholdersAreForgotten() throws Exception {
+        Placeholders placeholders = new Placeholders();
+        User kept = new User();
+        placeholders.add("User:1", kept);
+        placeholders.add("User:2", new User());
+        assertEquals("User:1", placeholders.keyOf(kept));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (placeholders.size() > 1 && System.currentTimeMillis() < deadline) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertEquals(1, placeholders.size());
+        assertNull(placeholders.get("User:2"));
+        assertSame(kept, placeholders.get("User:1"));
+    }
+}
@@ -9,8 +9,15 @@ import java.util.Date;
 @ModelName("Post")
 public class Post implements Pinnable {
     private String id, content;
-    private Date createdAt, updatedAt;
+
+    @Indexed(sorted = true)
+    private Date createdAt;
+
+    private Date updatedAt;
+
+    @Indexed
     private User author;
+
     private ArrayList<Comment> comments;
 
     public String getId() {
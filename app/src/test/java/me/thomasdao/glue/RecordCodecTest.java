@@ -0,0 +1,65 @@
+package me.thomasdao.glue;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static me.thomasdao.glue.StoreFixture.post;
+import static me.thomasdao.glue.StoreFixture.user;
+import static org.junit.Assert.*;
+
+/**
+ * JSON and Smile records of a post graph. Runs on a plain JVM.
+ */
+public class RecordCodecTest {
+
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    @Test
+    public void smileRoundTripsSmallerThanJson() throws Exception {
+        GlueStore store = fixture.store();
+        ArrayList<Pinnable> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            User author = user(String.valueOf(i % 5));
+            Comment comment = new Comment();
+            comment.setId(String.valueOf(i));
+            comment.setComment("Comment " + i);
+            comment.setAuthor(author);
+
+            ArrayList<Comment> comments = new ArrayList<>();
+            comments.add(comment);
+            Post post = post(String.valueOf(i), author);
+            post.setComments(comments);
+
+            records.add(post);
+            records.add(comment);
+            records.add(author);
+        }
+        store.pinAll(records);
+
+        JsonRecordCodec json = new JsonRecordCodec();
+        SmileRecordCodec smile = new SmileRecordCodec();
+        long jsonBytes = 0;
+        long smileBytes = 0;
+
+        // References are resolved through the store holding the graph
+        GlueStore previous = store.enter();
+        try {
+            for (Pinnable record : records) {
+                byte[] encoded = smile.encode(record);
+                assertTrue(smile.accepts(encoded));
+                assertFalse(json.accepts(encoded));
+                assertEquals(record, smile.decode(encoded, record.getClass()));
+                assertEquals(record, json.decode(json.encode(record), record.getClass()));
+
+                jsonBytes += json.encode(record).length;
+                smileBytes += encoded.length;
+            }
+        } finally {
+            GlueStore.leave(previous);
+        }
+        assertTrue(smileBytes < jsonBytes);
+    }
+}
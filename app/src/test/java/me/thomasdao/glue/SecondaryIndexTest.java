@@ -0,0 +1,167 @@
+package me.thomasdao.glue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+
+import static me.thomasdao.glue.Condition.eq;
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class SecondaryIndexTest {
+    @Rule
+    public StoreFixture fixture = new StoreFixture();
+
+    private FileStorageEngine engine;
+    private GlueStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        engine = fixture.engine();
+        store = fixture.store();
+    }
+
+    private static Item item(String id, Double price, Float weight) {
+        Item item = new Item();
+        item.setId(id);
+        item.setPrice(price);
+        item.setWeight(weight);
+        return item;
+    }
+
+    @Test
+    public void numbersMatchWhateverTheirType() throws Exception {
+        store.pinAll(Arrays.asList(item("1", 5.0, 0.1f), item("2", 5.5, 2f)));
+
+        assertEquals(Arrays.asList("1"), store.findUniques(Item.class, "price", 5));
+        assertEquals(Arrays.asList("1"), store.findUniques(Item.class, "price", 5.0));
+        assertEquals(Arrays.asList("1"), store.findUniques(Item.class, "price", 5L));
+        assertEquals(Arrays.asList("1"), store.findUniques(Item.class, "weight", 0.1));
+        assertEquals(Arrays.asList("2"), store.findUniques(Item.class, "weight", 2));
+        assertEquals(Arrays.asList("1", "2"), store.findUniquesInRange(Item.class, "weight", 0.1, 2.5));
+
+        // Same values once the index is read back, and in queries
+        GlueStore restarted = fixture.reopen();
+        assertEquals(Arrays.asList("1"), restarted.findUniques(Item.class, "price", 5));
+        assertEquals(Arrays.asList("1"), restarted.query(Item.class).where("price", eq(5)).findUniques());
+        assertEquals(Arrays.asList("1"), restarted.query(Item.class).where("weight", eq(0.1)).findUniques());
+    }
+
+    @Test
+    public void pinWritesOnlyItsSegment() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            items.add(item(String.valueOf(i), (double) i, null));
+        }
+        store.pinAll(items);
+
+        GlueMetrics metrics = store.getMetrics();
+        metrics.setEnabled(true);
+        store.pin(item("1000", 0.5, null));
+        long bytes = metrics.getStats(GlueMetrics.Operation.STORAGE_WRITE).getBytes();
+
+        // A segment holds a few hundred keys, the whole index several thousand
+        assertTrue("Wrote " + bytes + " bytes", bytes < 8 * 1024);
+        assertTrue(engine.keys().containsAll(Arrays.asList("Item#price", "Item#price#0", "Item#price#7")));
+        assertEquals(Arrays.asList("1000"), fixture.reopen().findUniques(Item.class, "price", 0.5));
+
+        // Empty segments are dropped, deleting the model deletes every segment
+        store.deleteObjects(new ArrayList<Pinnable>(items.subList(0, 256)), "Item");
+        assertFalse(engine.keys().contains("Item#price#0"));
+        store.deleteAll("Item");
+        for (String key : engine.keys()) {
+            assertFalse(key, key.startsWith("Item"));
+        }
+    }
+
+    @Test
+    public void orderedQueryReadsIndexByPage() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(item(String.valueOf(i), (double) (i % 2), i < 990 ? (float) i : null));
+        }
+        store.pinAll(items);
+
+        // A page ends at the first value past its size
+        SecondaryIndex index = store.indexFor(Item.class, "weight");
+        ArrayList<String> page = new ArrayList<>();
+        Object last = index.page(null, true, 3, page);
+        assertEquals(Arrays.asList("Item:989", "Item:988", "Item:987"), page);
+        assertEquals(987L, last);
+
+        Query<Item> heaviest = store.query(Item.class).orderBy("weight", Query.Order.DESC).limit(3);
+        assertEquals(Arrays.asList("989", "988", "987"), heaviest.findUniques());
+        assertEquals(Arrays.asList("1", "3", "5"), store.query(Item.class)
+                .where("price", eq(1)).orderBy("weight", Query.Order.ASC).limit(3).findUniques());
+
+        // Objects without a value come last
+        assertEquals(Arrays.asList("1", "0", "990", "991"), heaviest.offset(988).limit(4).findUniques());
+    }
+
+    @Test
+    public void readsIndexFromBeforeSegments() throws Exception {
+        store.pinAll(Arrays.asList(item("1", 5.0, null), item("2", 6.5, null)));
+
+        // A single object of every key, as stored before segments
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("Item#price", "{\"Item:1\":5.0,\"Item:2\":6.5}".getBytes());
+        engine.write(puts, Collections.singletonList("Item#price#0"));
+
+        GlueStore restarted = fixture.reopen();
+        assertEquals(Arrays.asList("2"), restarted.findUniques(Item.class, "price", 6.5));
+
+        // Split into segments on the next change
+        restarted.pin(item("3", 7.0, null));
+        assertTrue(engine.keys().contains("Item#price#0"));
+        assertEquals(Arrays.asList("1"), fixture.reopen().findUniques(Item.class, "price", 5));
+    }
+
+    @Test
+    public void rebuildsUnreadableIndexFromRecords() throws Exception {
+        ArrayList<Item> items = new ArrayList<>();
+        for (int i = 0; i < 600; i++) {
+            items.add(item(String.valueOf(i), (double) i, null));
+        }
+        store.pinAll(items);
+
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("Item#price#1", "{\"Item:".getBytes());
+        engine.write(puts, Collections.<String>emptyList());
+
+        GlueStore restarted = fixture.reopen();
+        assertEquals(Arrays.asList("300"), restarted.findUniques(Item.class, "price", 300));
+        assertEquals(Arrays.asList("300"), fixture.reopen().findUniques(Item.class, "price", 300));
+    }
+
+    @Test
+    public void unreadableExpiryIndexFailsUntilCleared() throws Exception {
+        store.setModelTtl(Item.class, 1000);
+        store.pinAll(Arrays.asList(item("1", 5.0, null), item("2", 6.5, null)));
+        assertTrue(engine.keys().contains("Item#-expiry#0"));
+
+        HashMap<String, byte[]> puts = new HashMap<>();
+        puts.put("Item#-expiry#0", "{\"Item:".getBytes());
+        engine.write(puts, Collections.<String>emptyList());
+
+        GlueStore restarted = fixture.reopen();
+        try {
+            restarted.count(Item.class);
+            fail("Read an index which cannot be read");
+        } catch (RuntimeException e) {
+            assertEquals("Cannot read index Item#-expiry", e.getMessage());
+        }
+
+        restarted.deleteAll("Item");
+        for (String key : engine.keys()) {
+            assertFalse(key, key.startsWith("Item"));
+        }
+        assertEquals(0, fixture.reopen().count(Item.class));
+    }
+}
@@ -0,0 +1,105 @@
+package me.thomasdao.glue;
+
+import org.junit.rules.ExternalResource;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A store over files in a temporary folder, and the objects tests pin. Use it as a
+ * {@link org.junit.Rule}. Stores of the fixture expire objects against a clock which only
+ * moves on {@link #advance(long)}. Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class StoreFixture extends ExternalResource {
+    private final TemporaryFolder folder = new TemporaryFolder();
+    private FileStorageEngine engine;
+    private GlueStore store;
+
+    private final AtomicLong now = new AtomicLong(System.currentTimeMillis());
+    private final Expiry.Clock clock = new Expiry.Clock() {
+        @Override
+        public long currentTimeMillis() {
+            return now.get();
+        }
+    };
+
+    @Override
+    protected void before() throws Throwable {
+        folder.create();
+    }
+
+    @Override
+    protected void after() {
+        folder.delete();
+        engine = null;
+        store = null;
+    }
+
+    /**
+     * @return engine of the store, created by the first call
+     */
+    public FileStorageEngine engine() throws IOException {
+        if (engine == null) {
+            engine = newEngine("glue");
+        }
+        return engine;
+    }
+
+    /**
+     * @return store over {@link #engine()}, created by the first call
+     */
+    public GlueStore store() throws IOException {
+        if (store == null) {
+            store = reopen();
+        }
+        return store;
+    }
+
+    /**
+     * @return a new store over the same files, as after a restart
+     */
+    public GlueStore reopen() throws IOException {
+        GlueStore store = new GlueStore(engine());
+        store.setClock(clock);
+        return store;
+    }
+
+    /**
+     * Move the clock of the stores forward
+     */
+    public void advance(long millis) {
+        now.addAndGet(millis);
+    }
+
+    public File newFolder(String name) throws IOException {
+        return folder.newFolder(name);
+    }
+
+    /**
+     * @return engine over a folder of its own, apart from {@link #engine()}
+     */
+    public FileStorageEngine newEngine(String name) throws IOException {
+        return new FileStorageEngine(newFolder(name), false);
+    }
+
+    /************************************************************************************
+     * Objects
+     ************************************************************************************/
+
+    public static User user(String id) {
+        User user = new User();
+        user.setId(id);
+        user.setUsername("user" + id);
+        return user;
+    }
+
+    public static Post post(String id, User author) {
+        Post post = new Post();
+        post.setId(id);
+        post.setContent("post " + id);
+        post.setAuthor(author);
+        return post;
+    }
+}
@@ -0,0 +1,121 @@
+package me.thomasdao.glue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs on a plain JVM, no Android or Robolectric needed.
+ */
+public class WriteBehindQueueTest {
+
+    // Written values, the writer fails while failing is set and waits while blocked is set
+    private final Map<String, byte[]> disk = new HashMap<>();
+    private volatile boolean failing;
+    private volatile CountDownLatch blocked;
+    private final CountDownLatch writing = new CountDownLatch(1);
+
+    private WriteBehindQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        queue = new WriteBehindQueue(new WriteBehindQueue.Writer() {
+            @Override
+            public void write(Map<String, byte[]> puts, Collection<String> deletes, boolean clear) {
+                writing.countDown();
+                CountDownLatch latch = blocked;
+                if (latch != null) {
+                    try {
+                        latch.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                if (failing) {
+                    throw new RuntimeException("Disk full");
+                }
+
+                synchronized (disk) {
+                    if (clear) disk.clear();
+                    for (String key : deletes) disk.remove(key);
+                    disk.putAll(puts);
+                }
+            }
+        }, 60 * 1000, 1000);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        failing = false;
+        queue.shutdown();
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes();
+    }
+
+    @Test
+    public void failedWritesStayQueued() throws Exception {
+        failing = true;
+        assertTrue(queue.put("x", bytes("1")));
+        try {
+            queue.awaitDurable(10 * 1000);
+            fail("A failed write is not durable");
+        } catch (RuntimeException e) {
+            assertEquals("Disk full", e.getCause().getMessage());
+        }
+
+        // Still visible, and written with newer changes once storage recovers
+        assertArrayEquals(bytes("1"), queue.lookup("x"));
+        queue.put("y", bytes("2"));
+        failing = false;
+        assertTrue(queue.awaitDurable(10 * 1000));
+        assertArrayEquals(bytes("1"), disk.get("x"));
+        assertArrayEquals(bytes("2"), disk.get("y"));
+    }
+
+    @Test
+    public void shutdownPersistsLateWrites() throws Exception {
+        queue.put("x", bytes("1"));
+        blocked = new CountDownLatch(1);
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                queue.shutdown();
+            }
+        });
+        thread.start();
+        assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+        // Accepted while shutdown waits, so it is persisted before the queue stops
+        assertTrue(queue.put("y", bytes("2")));
+        blocked.countDown();
+        thread.join(10 * 1000);
+        assertFalse(thread.isAlive());
+
+        assertArrayEquals(bytes("2"), disk.get("y"));
+        assertFalse(queue.put("z", bytes("3")));
+    }
+
+    @Test
+    public void shutdownFailsWhileWritesFail() throws Exception {
+        failing = true;
+        queue.put("x", bytes("1"));
+        try {
+            queue.shutdown();
+            fail("Queued writes cannot be persisted");
+        } catch (RuntimeException e) {
+            // The queue keeps running
+            assertTrue(queue.put("y", bytes("2")));
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package me.thomasdao.glue;
+
+import me.thomasdao.glue.benchmark.Comment;
+import me.thomasdao.glue.benchmark.Post;
+import me.thomasdao.glue.benchmark.User;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Walk the relationships of posts and merge them into another instance, with the fields
+ * cached by {@link ClassMetadata} and with reflection on every call, as Glue did before.
+ * In Glue's package, since ClassMetadata is package-private.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassMetadataBenchmark {
+    @Param({"2000"})
+    public int posts;
+
+    @Param({"5"})
+    public int commentsPerPost;
+
+    private ArrayList<Post> graph;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ArrayList<User> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i));
+            user.setUsername("user" + i);
+            users.add(user);
+        }
+
+        graph = new ArrayList<>(posts);
+        for (int i = 0; i < posts; i++) {
+            ArrayList<Comment> comments = new ArrayList<>(commentsPerPost);
+            for (int j = 0; j < commentsPerPost; j++) {
+                Comment comment = new Comment();
+                comment.setId(i + "-" + j);
+                comment.setComment("Comment " + j);
+                comment.setAuthor(users.get((i + j) % users.size()));
+                comments.add(comment);
+            }
+
+            Post post = new Post();
+            post.setId(String.valueOf(i));
+            post.setContent("Post " + i);
+            post.setAuthor(users.get(i % users.size()));
+            post.setComments(comments);
+            graph.add(post);
+        }
+    }
+
+    @Benchmark
+    public long cached() {
+        long found = 0;
+        Post target = new Post();
+        ClassMetadata metadata = ClassMetadata.forClass(Post.class);
+        for (Post post : graph) {
+            Set<Pinnable> relationships = new HashSet<>();
+            metadata.collectRelationships(post, relationships);
+            metadata.merge(target, post);
+            found += relationships.size();
+        }
+        return found;
+    }
+
+    @Benchmark
+    public long reflective() {
+        long found = 0;
+        Post target = new Post();
+        for (Post post : graph) {
+            found += reflectiveRelationships(post).size();
+            reflectiveMerge(target, post);
+        }
+        return found;
+    }
+
+    private static Set<Pinnable> reflectiveRelationships(Pinnable pinnable) {
+        Set<Pinnable> relationships = new HashSet<>();
+        for (Field field : pinnable.getClass().getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            field.setAccessible(true);
+            Class type = field.getType();
+            try {
+                if (Pinnable.class.isAssignableFrom(type)) {
+                    Pinnable val = (Pinnable) field.get(pinnable);
+                    if (val != null) relationships.add(val);
+                }
+                if (Collection.class.isAssignableFrom(type)) {
+                    Collection collection = (Collection) field.get(pinnable);
+                    if (collection != null) {
+                        for (Object item : collection) {
+                            if (item != null) relationships.add((Pinnable) item);
+                        }
+                    }
+                }
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return relationships;
+    }
+
+    private static void reflectiveMerge(Pinnable first, Pinnable second) {
+        for (Field field : second.getClass().getDeclaredFields()) {
+            if (Modifier.isStatic(field.getModifiers())) continue;
+            field.setAccessible(true);
+            try {
+                Object val = field.get(second);
+                if (val != null) field.set(first, val);
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cold getAll of a model with its comments and authors, decoded by a number of threads,
+ * see {@link GlueStore#setLoadExecutor(java.util.concurrent.ExecutorService, int)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BulkLoadBenchmark {
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"4000"})
+    public int posts;
+
+    /**
+     * Threads decoding a batch, including the calling thread
+     */
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    private GlueStore store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        GlueStore.setLoadExecutor(null, threads);
+        store = Fixtures.open(engine);
+        store.pinAll(Fixtures.posts(0, posts, 5, 1, Fixtures.users(0, 100)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.close(store);
+        GlueStore.setLoadExecutor(null, Runtime.getRuntime().availableProcessors());
+    }
+
+    @Benchmark
+    public Object getAllCold() {
+        store.clearMemoryCache();
+        return store.getAll(Post.class);
+    }
+}
@@ -0,0 +1,100 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.Glue;
+import me.thomasdao.glue.JSONHelper;
+import me.thomasdao.glue.Pinnable;
+import me.thomasdao.glue.RecordCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode every record of a post graph: posts, comments and authors. The bytes
+ * the records take are printed once per trial.
+ *
+ * References are resolved through the default store, whose memory cache holds the graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    /**
+     * Values of the "codec" parameter
+     */
+    static final String JSON = "json";
+    static final String SMILE = "smile";
+
+    @Param({JSON, SMILE})
+    public String codec;
+
+    @Param({"500"})
+    public int posts;
+
+    private RecordCodec recordCodec;
+    private ArrayList<Pinnable> records;
+    private byte[][] encoded;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        recordCodec = JSON.equals(codec) ? JSONHelper.JSON : JSONHelper.SMILE;
+
+        Glue.init(new MemoryStorageEngine());
+        ArrayList<Post> graph = Fixtures.posts(0, posts, 5, 1, Fixtures.users(0, 100));
+        Glue.pinAll(graph);
+
+        records = new ArrayList<>();
+        HashSet<String> authors = new HashSet<>();
+        for (Post post : graph) {
+            records.add(post);
+            if (authors.add(post.getAuthor().getId())) records.add(post.getAuthor());
+            for (Comment comment : post.getComments()) {
+                records.add(comment);
+                if (authors.add(comment.getAuthor().getId())) records.add(comment.getAuthor());
+            }
+        }
+
+        encoded = new byte[records.size()][];
+        long bytes = 0;
+        for (int i = 0; i < records.size(); i++) {
+            encoded[i] = recordCodec.encode(records.get(i));
+            bytes += encoded[i].length;
+        }
+        System.out.println(codec + ": " + records.size() + " records, " + bytes + " bytes stored");
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        long bytes = 0;
+        for (Pinnable record : records) {
+            bytes += recordCodec.encode(record).length;
+        }
+        return bytes;
+    }
+
+    @Benchmark
+    public Object decode() throws IOException {
+        Object last = null;
+        for (int i = 0; i < encoded.length; i++) {
+            last = recordCodec.decode(encoded[i], records.get(i).getClass());
+        }
+        return last;
+    }
+}
@@ -0,0 +1,57 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.Indexed;
+import me.thomasdao.glue.ModelName;
+import me.thomasdao.glue.Pinnable;
+
+import java.util.ArrayList;
+
+/**
+ * A comment and the thread of replies below it, which gives the graphs their depth.
+ */
+@ModelName("Comment")
+public class Comment implements Pinnable {
+    private String id, comment;
+
+    @Indexed
+    private User author;
+
+    private ArrayList<Comment> replies;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getComment() {
+        return comment;
+    }
+
+    public void setComment(String comment) {
+        this.comment = comment;
+    }
+
+    public User getAuthor() {
+        return author;
+    }
+
+    public void setAuthor(User author) {
+        this.author = author;
+    }
+
+    public ArrayList<Comment> getReplies() {
+        return replies;
+    }
+
+    public void setReplies(ArrayList<Comment> replies) {
+        this.replies = replies;
+    }
+
+    @Override
+    public String unique() {
+        return id;
+    }
+}
@@ -0,0 +1,93 @@
+package me.thomasdao.glue.benchmark;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Print the scores of two JMH runs side by side, from their JSON results. A change is
+ * marked when the scores differ by more than their combined error.
+ *
+ * Usage: CompareResults baseline.json current.json
+ */
+public class CompareResults {
+
+    private static class Score {
+        final double value;
+        final double error;
+        final String unit;
+
+        Score(double value, double error, String unit) {
+            this.value = value;
+            this.error = error;
+            this.unit = unit;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: CompareResults baseline.json current.json");
+            System.exit(1);
+        }
+
+        Map<String, Score> baseline = read(new File(args[0]));
+        Map<String, Score> current = read(new File(args[1]));
+
+        System.out.println(String.format("%-70s %14s %14s %9s", "Benchmark", "Baseline", "Current", "Change"));
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score after = entry.getValue();
+            Score before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.println(String.format("%-70s %14s %14.3f %9s", entry.getKey(), "-", after.value, "new"));
+                continue;
+            }
+
+            double change = (after.value - before.value) / before.value * 100;
+            boolean significant = Math.abs(after.value - before.value) > before.error + after.error;
+            System.out.println(String.format("%-70s %14.3f %14.3f %+8.1f%%%s %s", entry.getKey(),
+                    before.value, after.value, change, significant ? "*" : " ", after.unit));
+        }
+
+        ArrayList<String> removed = new ArrayList<>(baseline.keySet());
+        removed.removeAll(current.keySet());
+        for (String name : removed) {
+            System.out.println(String.format("%-70s %14.3f %14s %9s", name, baseline.get(name).value, "-", "removed"));
+        }
+    }
+
+    /**
+     * @return scores by benchmark name and parameters
+     */
+    private static Map<String, Score> read(File file) throws IOException {
+        LinkedHashMap<String, Score> scores = new LinkedHashMap<>();
+        JsonNode results = new ObjectMapper().readTree(file);
+        for (JsonNode result : results) {
+            StringBuilder name = new StringBuilder(result.path("benchmark").asText());
+            name.delete(0, name.lastIndexOf(".", name.lastIndexOf(".") - 1) + 1);
+
+            // Parameters in the order of their names, so runs with different orders match
+            TreeMap<String, String> params = new TreeMap<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = result.path("params").fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                params.put(field.getKey(), field.getValue().asText());
+            }
+            for (Map.Entry<String, String> param : params.entrySet()) {
+                name.append(' ').append(param.getKey()).append('=').append(param.getValue());
+            }
+
+            JsonNode metric = result.path("primaryMetric");
+            double error = metric.path("scoreError").asDouble();
+            scores.put(name.toString(), new Score(metric.path("score").asDouble(),
+                    Double.isNaN(error) ? 0 : error, metric.path("scoreUnit").asText()));
+        }
+        return scores;
+    }
+}
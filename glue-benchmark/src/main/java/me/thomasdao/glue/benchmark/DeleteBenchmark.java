@@ -0,0 +1,71 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+import me.thomasdao.glue.Pinnable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delete a batch of objects from a store holding a number of records. The batch is pinned
+ * again before each call, outside of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DeleteBenchmark {
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"10000"})
+    public int records;
+
+    @Param({"1", "100", "1000"})
+    public int batchSize;
+
+    private GlueStore store;
+    private ArrayList<Pinnable> batch;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = Fixtures.open(engine);
+        store.pinAll(Fixtures.users(0, records));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.close(store);
+    }
+
+    /**
+     * A batch is at least tens of microseconds of work, long enough for a setup per call
+     */
+    @Setup(Level.Invocation)
+    public void pinBatch() {
+        batch = new ArrayList<Pinnable>(Fixtures.users(records, batchSize));
+        store.pinAll(batch);
+    }
+
+    @Benchmark
+    public void deleteObjects() {
+        store.deleteObjects(batch, "User");
+    }
+}
@@ -0,0 +1,111 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.FileStorageEngine;
+import me.thomasdao.glue.GlueStore;
+import me.thomasdao.glue.StorageEngine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Stores and object graphs shared by the benchmarks.
+ */
+final class Fixtures {
+    /**
+     * Values of the "engine" parameter
+     */
+    static final String MEMORY = "memory";
+    static final String FILE = "file";
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return store over a new, empty engine of a kind
+     */
+    static GlueStore open(String engine) throws IOException {
+        if (MEMORY.equals(engine)) {
+            return new GlueStore(new MemoryStorageEngine());
+        }
+        if (FILE.equals(engine)) {
+            File directory = Files.createTempDirectory("glue-benchmark").toFile();
+            return new GlueStore(new FileStorageEngine(directory, false));
+        }
+        throw new IllegalArgumentException("Unknown engine: " + engine);
+    }
+
+    /**
+     * Drop the storage of a store opened by {@link #open(String)}
+     */
+    static void close(GlueStore store) {
+        StorageEngine engine = store.getEngine();
+        if (engine instanceof FileStorageEngine) {
+            File directory = ((FileStorageEngine) engine).getDirectory();
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    static ArrayList<User> users(int from, int count) {
+        ArrayList<User> users = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) {
+            User user = new User();
+            user.setId(String.valueOf(i));
+            user.setUsername("user" + i);
+            user.setAge(i % 100);
+            users.add(user);
+        }
+        return users;
+    }
+
+    /**
+     * Posts with fanOut comments each, every comment starting a thread of depth comments.
+     * Authors are shared between posts and comments
+     * @param from id of the first post
+     * @param count
+     * @param fanOut comments on each post
+     * @param depth comments in each thread, 1 for comments without replies
+     * @param authors
+     */
+    static ArrayList<Post> posts(int from, int count, int fanOut, int depth, List<User> authors) {
+        ArrayList<Post> posts = new ArrayList<>(count);
+        int author = 0;
+        for (int i = from; i < from + count; i++) {
+            Post post = new Post();
+            post.setId(String.valueOf(i));
+            post.setContent("Post " + i);
+            post.setCreatedAt(new Date(i * 1000L));
+            post.setAuthor(authors.get(author++ % authors.size()));
+
+            ArrayList<Comment> comments = new ArrayList<>(fanOut);
+            for (int c = 0; c < fanOut; c++) {
+                Comment thread = null;
+                for (int d = depth - 1; d >= 0; d--) {
+                    Comment comment = new Comment();
+                    comment.setId(i + "-" + c + "-" + d);
+                    comment.setComment("Comment " + d + " on post " + i);
+                    comment.setAuthor(authors.get(author++ % authors.size()));
+                    if (thread != null) {
+                        ArrayList<Comment> replies = new ArrayList<>(1);
+                        replies.add(thread);
+                        comment.setReplies(replies);
+                    }
+                    thread = comment;
+                }
+                comments.add(thread);
+            }
+            post.setComments(comments);
+            posts.add(post);
+        }
+        return posts;
+    }
+}
@@ -0,0 +1,110 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Get single objects and whole models from a store holding a number of records. A cold
+ * read starts from an empty memory cache and reads storage, a warm read is served from
+ * memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetBenchmark {
+    private static final int PIN_BATCH = 1000;
+
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"1000", "10000", "100000"})
+    public int records;
+
+    private GlueStore store;
+    private String[] uniques;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = Fixtures.open(engine);
+        for (int i = 0; i < records; i += PIN_BATCH) {
+            store.pinAll(Fixtures.users(i, Math.min(PIN_BATCH, records - i)));
+        }
+
+        // Visit the records in a scattered order, so reads do not follow the order of writes
+        uniques = new String[records];
+        int step = 7919;
+        for (int i = 0; i < records; i++) {
+            uniques[i] = String.valueOf((int) ((long) i * step % records));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.close(store);
+    }
+
+    private String nextUnique() {
+        String unique = uniques[next];
+        next = (next + 1) % uniques.length;
+        return unique;
+    }
+
+    @Benchmark
+    public Object getCold() {
+        store.clearMemoryCache();
+        return store.get(nextUnique(), User.class);
+    }
+
+    @Benchmark
+    public Object getWarm() {
+        return store.get(nextUnique(), User.class);
+    }
+
+    /**
+     * Get ten objects in one call
+     */
+    @Benchmark
+    public Object getManyCold() {
+        store.clearMemoryCache();
+        List<String> batch = new ArrayList<>(10);
+        for (int i = 0; i < 10; i++) {
+            batch.add(nextUnique());
+        }
+        return store.getMany(batch, User.class);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object getAllCold() {
+        store.clearMemoryCache();
+        return store.getAll(User.class);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object getAllWarm() {
+        return store.getAll(User.class);
+    }
+}
@@ -0,0 +1,118 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pin and load posts with their comments and authors. fanOut is the number of comments on
+ * a post, depth the length of the reply thread below each comment, see
+ * {@link Fixtures#posts(int, int, int, int, java.util.List)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GraphBenchmark {
+    private static final int AUTHORS = 100;
+
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"10"})
+    public int posts;
+
+    @Param({"1", "10", "50"})
+    public int fanOut;
+
+    @Param({"1", "4", "16"})
+    public int depth;
+
+    private ArrayList<User> authors;
+
+    /**
+     * Holds the posts, for the loads
+     */
+    private GlueStore loaded;
+
+    /**
+     * Starts empty on each iteration, for the pins
+     */
+    private GlueStore empty;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        authors = Fixtures.users(0, AUTHORS);
+        loaded = Fixtures.open(engine);
+        loaded.pinAll(Fixtures.posts(0, posts, fanOut, depth, authors));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.close(loaded);
+    }
+
+    @Setup(Level.Iteration)
+    public void setUpIteration() throws IOException {
+        empty = Fixtures.open(engine);
+        next = 0;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDownIteration() {
+        Fixtures.close(empty);
+    }
+
+    /**
+     * Pin a post with its whole graph, every object of which is new
+     */
+    @Benchmark
+    public void pinGraph() {
+        empty.pinAll(Fixtures.posts(next++, 1, fanOut, depth, authors));
+    }
+
+    @Benchmark
+    public Object getGraphCold() {
+        loaded.clearMemoryCache();
+        return loaded.get("0", Post.class, GlueStore.DEPTH_ALL);
+    }
+
+    @Benchmark
+    public Object getGraphWarm() {
+        return loaded.get("0", Post.class, GlueStore.DEPTH_ALL);
+    }
+
+    /**
+     * Load posts without their relationships, which are left as placeholders
+     */
+    @Benchmark
+    public Object getAllShallowCold() {
+        loaded.clearMemoryCache();
+        return loaded.getAll(Post.class, 0);
+    }
+
+    @Benchmark
+    public Object getAllGraphsCold() {
+        loaded.clearMemoryCache();
+        return loaded.getAll(Post.class, GlueStore.DEPTH_ALL);
+    }
+}
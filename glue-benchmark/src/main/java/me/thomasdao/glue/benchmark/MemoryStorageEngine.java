@@ -0,0 +1,58 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.StorageEngine;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keep values in a map, so a benchmark measures Glue itself rather than the disk.
+ */
+public class MemoryStorageEngine implements StorageEngine {
+    private final ConcurrentHashMap<String, byte[]> values = new ConcurrentHashMap<>();
+
+    @Override
+    public byte[] get(String key) {
+        return values.get(key);
+    }
+
+    @Override
+    public Map<String, byte[]> get(Collection<String> keys) {
+        HashMap<String, byte[]> result = new HashMap<>();
+        for (String key : keys) {
+            byte[] value = values.get(key);
+            if (value != null) {
+                result.put(key, value);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized void write(Map<String, byte[]> puts, Collection<String> deletes) {
+        for (String key : deletes) {
+            values.remove(key);
+        }
+        for (Map.Entry<String, byte[]> entry : puts.entrySet()) {
+            if (entry.getValue() == null) {
+                values.remove(entry.getKey());
+            } else {
+                values.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void clear() {
+        values.clear();
+    }
+
+    @Override
+    public Set<String> keys() {
+        return new HashSet<>(values.keySet());
+    }
+}
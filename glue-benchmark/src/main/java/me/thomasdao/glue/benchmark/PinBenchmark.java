@@ -0,0 +1,92 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pin batches of new objects, and pin again objects which are already saved. Each
+ * iteration starts from an empty store, which grows as new objects are pinned.
+ *
+ * A batch is written at once, so the time of pinNew divided by batchSize should stay about
+ * the same from one batch size to the next.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PinBenchmark {
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"1", "100", "1000", "10000"})
+    public int batchSize;
+
+    private GlueStore store;
+    private int next;
+    private int round;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        store = Fixtures.open(engine);
+        store.pinAll(Fixtures.users(0, batchSize));
+        next = batchSize;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Fixtures.close(store);
+    }
+
+    /**
+     * Pin a batch of objects which are not saved yet
+     */
+    @Benchmark
+    public void pinNew() {
+        if (batchSize == 1) {
+            store.pin(Fixtures.users(next, 1).get(0));
+        } else {
+            store.pinAll(Fixtures.users(next, batchSize));
+        }
+        next += batchSize;
+    }
+
+    /**
+     * Pin a batch of saved objects with one field changed
+     */
+    @Benchmark
+    public void pinChanged() {
+        round++;
+        ArrayList<User> users = Fixtures.users(0, batchSize);
+        for (User user : users) {
+            user.setAge(round);
+        }
+        store.pinAll(users);
+    }
+
+    /**
+     * Pin a batch of saved objects as they are, which writes nothing
+     */
+    @Benchmark
+    public void pinUnchanged() {
+        store.pinAll(Fixtures.users(0, batchSize));
+    }
+}
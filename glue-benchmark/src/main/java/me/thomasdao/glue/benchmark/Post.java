@@ -0,0 +1,69 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.Indexed;
+import me.thomasdao.glue.ModelName;
+import me.thomasdao.glue.Pinnable;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+/**
+ * Root of the benchmark graphs, its comments give the graphs their fan-out.
+ */
+@ModelName("Post")
+public class Post implements Pinnable {
+    private String id, content;
+
+    @Indexed(sorted = true)
+    private Date createdAt;
+
+    @Indexed
+    private User author;
+
+    private ArrayList<Comment> comments;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContent() {
+        return content;
+    }
+
+    public void setContent(String content) {
+        this.content = content;
+    }
+
+    public Date getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Date createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public User getAuthor() {
+        return author;
+    }
+
+    public void setAuthor(User author) {
+        this.author = author;
+    }
+
+    public ArrayList<Comment> getComments() {
+        return comments;
+    }
+
+    public void setComments(ArrayList<Comment> comments) {
+        this.comments = comments;
+    }
+
+    @Override
+    public String unique() {
+        return id;
+    }
+}
@@ -0,0 +1,58 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pin one new object into a model which already holds many. Only a segment of the key index
+ * is written, so the time should not grow with the number of objects already saved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SinglePinBenchmark {
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"1000", "16000", "100000"})
+    public int existing;
+
+    private GlueStore store;
+    private int next;
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        store = Fixtures.open(engine);
+        store.pinAll(Fixtures.users(0, existing));
+        next = existing;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        Fixtures.close(store);
+    }
+
+    @Benchmark
+    public void pinNew() {
+        store.pin(Fixtures.users(next++, 1).get(0));
+    }
+}
@@ -0,0 +1,85 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.GlueStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The first gets of a new store over saved posts, as after a restart, with and without
+ * restoring a snapshot of the posts the first screen shows, see {@link GlueStore#saveSnapshot(int)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+    private static final int AUTHORS = 100;
+
+    @Param({Fixtures.MEMORY, Fixtures.FILE})
+    public String engine;
+
+    @Param({"2000"})
+    public int posts;
+
+    /**
+     * Posts the first screen gets
+     */
+    @Param({"200"})
+    public int firstScreen;
+
+    private GlueStore saved;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        saved = Fixtures.open(engine);
+        saved.pinAll(Fixtures.posts(0, posts, 5, 1, Fixtures.users(0, AUTHORS)));
+
+        // The snapshot holds what the first screen loaded
+        saved.clearMemoryCache();
+        firstGets(saved);
+        saved.saveSnapshot(10000);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Fixtures.close(saved);
+    }
+
+    private void firstGets(GlueStore store) {
+        for (int i = 0; i < firstScreen; i++) {
+            store.get(String.valueOf(i), Post.class);
+        }
+    }
+
+    @Benchmark
+    public GlueStore firstGetsCold() {
+        GlueStore store = new GlueStore(saved.getEngine());
+        firstGets(store);
+        return store;
+    }
+
+    @Benchmark
+    public GlueStore firstGetsAfterRestore() {
+        GlueStore store = new GlueStore(saved.getEngine());
+        store.restoreSnapshot();
+        firstGets(store);
+        return store;
+    }
+}
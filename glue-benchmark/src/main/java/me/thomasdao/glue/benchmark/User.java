@@ -0,0 +1,42 @@
+package me.thomasdao.glue.benchmark;
+
+import me.thomasdao.glue.ModelName;
+import me.thomasdao.glue.Pinnable;
+
+/**
+ * Leaf of the benchmark graphs, like the User of the app tests.
+ */
+@ModelName("User")
+public class User implements Pinnable {
+    private String id, username;
+    private int age;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public int getAge() {
+        return age;
+    }
+
+    public void setAge(int age) {
+        this.age = age;
+    }
+
+    @Override
+    public String unique() {
+        return id;
+    }
+}
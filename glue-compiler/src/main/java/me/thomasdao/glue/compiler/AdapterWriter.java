@@ -0,0 +1,343 @@
+package me.thomasdao.glue.compiler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.Types;
+
+/**
+ * Source of one generated adapter. Every type is written fully qualified, so model classes
+ * may use any name.
+ */
+class AdapterWriter {
+    private static final String GENERATOR = "com.fasterxml.jackson.core.JsonGenerator";
+    private static final String PARSER = "com.fasterxml.jackson.core.JsonParser";
+    private static final String TOKEN = "com.fasterxml.jackson.core.JsonToken";
+    private static final String TYPE_REFERENCE = "com.fasterxml.jackson.core.type.TypeReference";
+    private static final String ADAPTERS = "me.thomasdao.glue.ModelAdapters";
+    private static final String PINNABLE = "me.thomasdao.glue.Pinnable";
+
+    /**
+     * Boxed type to parser method reading its primitive value
+     */
+    static final Map<String, String> BOXED = new HashMap<>();
+
+    static {
+        BOXED.put("java.lang.Boolean", "getValueAsBoolean()");
+        BOXED.put("java.lang.Integer", "getValueAsInt()");
+        BOXED.put("java.lang.Long", "getValueAsLong()");
+        BOXED.put("java.lang.Double", "getValueAsDouble()");
+        BOXED.put("java.lang.Float", "getValueAsDouble()");
+        BOXED.put("java.lang.Short", "getValueAsInt()");
+        BOXED.put("java.lang.Byte", "getValueAsInt()");
+    }
+
+    private final String packageName;
+    private final String adapterName;
+    private final String modelName;
+    private final List<ModelField> fields;
+    private final Types types;
+
+    private final StringBuilder out = new StringBuilder();
+    private int indent;
+
+    AdapterWriter(String packageName, String adapterName, String modelName, List<ModelField> fields, Types types) {
+        this.packageName = packageName;
+        this.adapterName = adapterName;
+        this.modelName = modelName;
+        this.fields = fields;
+        this.types = types;
+    }
+
+    String generate() {
+        if (!packageName.isEmpty()) {
+            line("package " + packageName + ";");
+            line("");
+        }
+
+        line("/**");
+        line(" * Generated by glue-compiler for {@link " + modelName + "}, do not edit.");
+        line(" */");
+        line("public final class " + adapterName + " implements me.thomasdao.glue.ModelAdapter<" + modelName + "> {");
+        indent++;
+
+        writeTypeReferences();
+        writeWrite();
+        writeRead();
+        writeCollectRelationships();
+        writeMerge();
+
+        indent--;
+        line("}");
+        return out.toString();
+    }
+
+    /************************************************************************************
+     * Members
+     ************************************************************************************/
+
+    private void writeTypeReferences() {
+        for (ModelField field : fields) {
+            if (!field.serialized || !isGeneric(field.type)) continue;
+
+            line("private static final " + TYPE_REFERENCE + "<" + field.type + "> " + typeReferenceName(field)
+                    + " = new " + TYPE_REFERENCE + "<" + field.type + ">() {};");
+        }
+        line("");
+    }
+
+    private void writeWrite() {
+        line("@Override");
+        line("public void write(" + GENERATOR + " generator, " + modelName + " object) throws java.io.IOException {");
+        indent++;
+        line("if (object == null) {");
+        line("    generator.writeNull();");
+        line("    return;");
+        line("}");
+        line("");
+        line("generator.writeStartObject();");
+
+        for (ModelField field : fields) {
+            if (!field.serialized) continue;
+
+            String value = field.get("object");
+            line("generator.writeFieldName(\"" + field.name + "\");");
+
+            switch (field.kind) {
+                case STRING:
+                    line("generator.writeString(" + value + ");");
+                    break;
+                case PRIMITIVE:
+                    line(writePrimitive(field.type.getKind(), value) + ";");
+                    break;
+                case BOXED:
+                    line("if (" + value + " == null) {");
+                    line("    generator.writeNull();");
+                    line("} else {");
+                    line("    " + writeBoxed(types.erasure(field.type).toString(), value) + ";");
+                    line("}");
+                    break;
+                case PINNABLE:
+                    line(ADAPTERS + ".writeReference(generator, " + value + ");");
+                    break;
+                case PINNABLE_COLLECTION:
+                    line(ADAPTERS + ".writeReferences(generator, " + value + ");");
+                    break;
+                default:
+                    line(ADAPTERS + ".writeValue(generator, " + value + ");");
+                    break;
+            }
+        }
+
+        line("generator.writeEndObject();");
+        indent--;
+        line("}");
+        line("");
+    }
+
+    private void writeRead() {
+        line("@Override");
+        line("public " + modelName + " read(" + PARSER + " parser) throws java.io.IOException {");
+        indent++;
+        line(TOKEN + " token = parser.getCurrentToken();");
+        line("if (token == null) {");
+        line("    token = parser.nextToken();");
+        line("}");
+        line("if (token == " + TOKEN + ".VALUE_NULL) {");
+        line("    return null;");
+        line("}");
+        line("if (token != " + TOKEN + ".START_OBJECT) {");
+        line("    throw new com.fasterxml.jackson.core.JsonParseException(\"Expected an object for " + modelName
+                + "\", parser.getCurrentLocation());");
+        line("}");
+        line("");
+        line(modelName + " object = new " + modelName + "();");
+        line("while (parser.nextToken() == " + TOKEN + ".FIELD_NAME) {");
+        indent++;
+        line("String name = parser.getCurrentName();");
+        line("parser.nextToken();");
+        line("switch (name) {");
+        indent++;
+
+        for (ModelField field : fields) {
+            if (!field.serialized) continue;
+
+            line("case \"" + field.name + "\":");
+            indent++;
+            line(field.set("object", readExpression(field)));
+            line("break;");
+            indent--;
+        }
+
+        line("default:");
+        line("    parser.skipChildren();");
+        line("    break;");
+        indent--;
+        line("}");
+        indent--;
+        line("}");
+        line("return object;");
+        indent--;
+        line("}");
+        line("");
+    }
+
+    private void writeCollectRelationships() {
+        line("@Override");
+        line("public void collectRelationships(" + modelName + " object, java.util.Collection<" + PINNABLE + "> out) {");
+        indent++;
+
+        int count = 0;
+        for (ModelField field : fields) {
+            String value = field.get("object");
+            String local = "value" + count;
+
+            switch (field.kind) {
+                case PINNABLE:
+                    line(field.type + " " + local + " = " + value + ";");
+                    line("if (" + local + " != null) {");
+                    line("    out.add(" + local + ");");
+                    line("}");
+                    count++;
+                    break;
+                case PINNABLE_COLLECTION:
+                case UNKNOWN_COLLECTION:
+                    boolean check = field.kind == ModelField.Kind.UNKNOWN_COLLECTION;
+                    line("java.util.Collection<?> " + local + " = " + value + ";");
+                    line("if (" + local + " != null) {");
+                    line("    for (Object item : " + local + ") {");
+                    line(check
+                            ? "        if (item instanceof " + PINNABLE + ") {"
+                            : "        if (item != null) {");
+                    line("            out.add((" + PINNABLE + ") item);");
+                    line("        }");
+                    line("    }");
+                    line("}");
+                    count++;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        indent--;
+        line("}");
+        line("");
+    }
+
+    private void writeMerge() {
+        line("@Override");
+        line("public void merge(" + modelName + " first, " + modelName + " second) {");
+        indent++;
+
+        for (ModelField field : fields) {
+            String value = field.get("second");
+            if (field.type.getKind().isPrimitive()) {
+                // Primitives are never null, they are always copied
+                line(field.set("first", value));
+            } else {
+                line("if (" + value + " != null) {");
+                line("    " + field.set("first", value));
+                line("}");
+            }
+        }
+
+        indent--;
+        line("}");
+    }
+
+    /************************************************************************************
+     * Expressions
+     ************************************************************************************/
+
+    private static String writePrimitive(TypeKind kind, String value) {
+        switch (kind) {
+            case BOOLEAN:
+                return "generator.writeBoolean(" + value + ")";
+            case SHORT:
+            case BYTE:
+                return "generator.writeNumber((int) " + value + ")";
+            default:
+                return "generator.writeNumber(" + value + ")";
+        }
+    }
+
+    private static String writeBoxed(String boxed, String value) {
+        if (boxed.equals("java.lang.Boolean")) {
+            return "generator.writeBoolean(" + value + ")";
+        }
+        if (boxed.equals("java.lang.Short") || boxed.equals("java.lang.Byte")) {
+            return "generator.writeNumber(" + value + ".intValue())";
+        }
+        return "generator.writeNumber(" + value + ")";
+    }
+
+    private String readExpression(ModelField field) {
+        switch (field.kind) {
+            case STRING:
+                return ADAPTERS + ".readString(parser)";
+            case PRIMITIVE:
+                return readPrimitive(field.type.getKind());
+            case BOXED: {
+                String boxed = types.erasure(field.type).toString();
+                return "parser.getCurrentToken() == " + TOKEN + ".VALUE_NULL ? null : " + boxed + ".valueOf("
+                        + castFor(boxed) + "parser." + BOXED.get(boxed) + ")";
+            }
+            default:
+                if (isGeneric(field.type)) {
+                    return ADAPTERS + ".readValue(parser, " + typeReferenceName(field) + ")";
+                }
+                return ADAPTERS + ".readValue(parser, " + types.erasure(field.type) + ".class)";
+        }
+    }
+
+    private static String readPrimitive(TypeKind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return "parser.getValueAsBoolean()";
+            case INT:
+                return "parser.getValueAsInt()";
+            case LONG:
+                return "parser.getValueAsLong()";
+            case DOUBLE:
+                return "parser.getValueAsDouble()";
+            case FLOAT:
+                return "(float) parser.getValueAsDouble()";
+            case SHORT:
+                return "(short) parser.getValueAsInt()";
+            case BYTE:
+                return "(byte) parser.getValueAsInt()";
+            default:
+                throw new IllegalArgumentException("Unexpected primitive: " + kind);
+        }
+    }
+
+    private static String castFor(String boxed) {
+        if (boxed.equals("java.lang.Float")) return "(float) ";
+        if (boxed.equals("java.lang.Short")) return "(short) ";
+        if (boxed.equals("java.lang.Byte")) return "(byte) ";
+        return "";
+    }
+
+    private static boolean isGeneric(TypeMirror type) {
+        return type.getKind() == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty();
+    }
+
+    private static String typeReferenceName(ModelField field) {
+        return field.name.toUpperCase() + "_TYPE";
+    }
+
+    private void line(String text) {
+        if (!text.isEmpty()) {
+            for (int i = 0; i < indent; i++) {
+                out.append("    ");
+            }
+            out.append(text);
+        }
+        out.append('\n');
+    }
+}
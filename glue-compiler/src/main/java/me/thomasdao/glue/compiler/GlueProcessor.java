@@ -0,0 +1,394 @@
+package me.thomasdao.glue.compiler;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generate a ModelAdapter for every class annotated with @ModelName.
+ *
+ * Classes which cannot be handled without reflection are skipped with a note, and Glue
+ * falls back to reflection for them at runtime. That covers abstract or generic classes,
+ * classes without an accessible no-arg constructor, fields without accessible getter and
+ * setter, final fields, and classes using Jackson annotations.
+ *
+ * An adapter writes the fields of a class, so it is only generated when those are exactly
+ * the properties Jackson sees with its default visibility: public fields, and fields with a
+ * public getter. Classes with fields Jackson ignores, or getters without a field, are skipped.
+ */
+@SupportedAnnotationTypes(GlueProcessor.MODEL_NAME)
+public class GlueProcessor extends AbstractProcessor {
+    static final String MODEL_NAME = "me.thomasdao.glue.ModelName";
+    static final String PINNABLE = "me.thomasdao.glue.Pinnable";
+    static final String SUFFIX = "$$GlueAdapter";
+
+    private Elements elements;
+    private Types types;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        elements = processingEnv.getElementUtils();
+        types = processingEnv.getTypeUtils();
+        messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement modelName = elements.getTypeElement(MODEL_NAME);
+        TypeElement pinnable = elements.getTypeElement(PINNABLE);
+        if (modelName == null || pinnable == null) return false;
+
+        for (Element element : roundEnv.getElementsAnnotatedWith(modelName)) {
+            if (element.getKind() != ElementKind.CLASS) continue;
+
+            TypeElement model = (TypeElement) element;
+            try {
+                List<ModelField> fields = analyze(model, pinnable.asType());
+                if (fields != null) {
+                    write(model, fields);
+                }
+            } catch (IOException e) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Cannot write Glue adapter: " + e.getMessage(), model);
+            }
+        }
+
+        return false;
+    }
+
+    private void skip(TypeElement model, String reason) {
+        messager.printMessage(Diagnostic.Kind.NOTE,
+                "No Glue adapter for " + model.getQualifiedName() + ", using reflection: " + reason, model);
+    }
+
+    /************************************************************************************
+     * Analysis
+     ************************************************************************************/
+
+    /**
+     * @return persistent fields, or null if the class needs reflection
+     */
+    private List<ModelField> analyze(TypeElement model, TypeMirror pinnable) {
+        Set<Modifier> modifiers = model.getModifiers();
+        if (modifiers.contains(Modifier.ABSTRACT)) {
+            skip(model, "class is abstract");
+            return null;
+        }
+        if (modifiers.contains(Modifier.PRIVATE)) {
+            skip(model, "class is private");
+            return null;
+        }
+        if (model.getNestingKind() == NestingKind.MEMBER && !modifiers.contains(Modifier.STATIC)) {
+            skip(model, "inner class is not static");
+            return null;
+        }
+        if (model.getNestingKind() == NestingKind.LOCAL || model.getNestingKind() == NestingKind.ANONYMOUS) {
+            skip(model, "class is local");
+            return null;
+        }
+        if (!model.getTypeParameters().isEmpty()) {
+            skip(model, "class is generic");
+            return null;
+        }
+        if (!hasNoArgConstructor(model)) {
+            skip(model, "no accessible no-arg constructor");
+            return null;
+        }
+
+        String modelPackage = packageOf(model);
+        List<ModelField> fields = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+
+        for (TypeElement current = model; current != null; current = superclass(current)) {
+            if (usesJackson(current)) {
+                skip(model, current.getSimpleName() + " uses Jackson annotations");
+                return null;
+            }
+
+            for (VariableElement field : ElementFilter.fieldsIn(current.getEnclosedElements())) {
+                Set<Modifier> fieldModifiers = field.getModifiers();
+                if (fieldModifiers.contains(Modifier.STATIC)) continue;
+
+                String name = field.getSimpleName().toString();
+                if (!names.add(name)) {
+                    skip(model, "field " + name + " is hidden by a subclass field");
+                    return null;
+                }
+                if (fieldModifiers.contains(Modifier.FINAL)) {
+                    skip(model, "field " + name + " is final");
+                    return null;
+                }
+                if (usesJackson(field)) {
+                    skip(model, "field " + name + " uses Jackson annotations");
+                    return null;
+                }
+
+                TypeMirror type = field.asType();
+                ModelField.Kind kind = kindOf(type, pinnable);
+                if (kind == null) {
+                    skip(model, "field " + name + " has unsupported type " + type);
+                    return null;
+                }
+
+                String getter = null;
+                String setter = null;
+                boolean direct = !fieldModifiers.contains(Modifier.PRIVATE)
+                        && (fieldModifiers.contains(Modifier.PUBLIC) || modelPackage.equals(packageOf(current)));
+
+                if (!direct) {
+                    getter = findGetter(model, name, type, modelPackage);
+                    setter = findSetter(model, name, type, modelPackage);
+                    if (getter == null || setter == null) {
+                        skip(model, "field " + name + " has no accessible getter and setter");
+                        return null;
+                    }
+                }
+
+                // Jackson writes public fields and the fields of public getters only
+                boolean serialized = !fieldModifiers.contains(Modifier.TRANSIENT);
+                ExecutableElement jacksonGetter = findPublicGetter(model, name);
+                if (jacksonGetter != null && !types.isSameType(jacksonGetter.getReturnType(), type)) {
+                    skip(model, "getter of field " + name + " has another type");
+                    return null;
+                }
+                boolean visible = fieldModifiers.contains(Modifier.PUBLIC) || jacksonGetter != null;
+                if (serialized && !visible) {
+                    skip(model, "field " + name + " is not visible to Jackson");
+                    return null;
+                }
+                if (!serialized && jacksonGetter != null) {
+                    skip(model, "transient field " + name + " has a public getter");
+                    return null;
+                }
+
+                fields.add(new ModelField(name, type, kind, serialized, getter, setter));
+            }
+        }
+
+        // Jackson also writes getters which have no field
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(model))) {
+            String property = getterProperty(method);
+            if (property != null && !names.contains(property)) {
+                skip(model, "getter " + method.getSimpleName() + " has no field");
+                return null;
+            }
+        }
+
+        return fields;
+    }
+
+    /**
+     * @return public getter Jackson finds for a field, or null
+     */
+    private ExecutableElement findPublicGetter(TypeElement model, String name) {
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(model))) {
+            if (name.equals(getterProperty(method))) return method;
+        }
+        return null;
+    }
+
+    /**
+     * @return name of the property Jackson reads from a method, or null if it is no getter
+     */
+    private String getterProperty(ExecutableElement method) {
+        Set<Modifier> modifiers = method.getModifiers();
+        if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)) return null;
+        if (!method.getParameters().isEmpty()) return null;
+
+        TypeMirror returnType = method.getReturnType();
+        if (returnType.getKind() == TypeKind.VOID) return null;
+
+        String name = method.getSimpleName().toString();
+        String suffix;
+        if (name.startsWith("get") && name.length() > 3 && !name.equals("getClass")) {
+            suffix = name.substring(3);
+        } else if (name.startsWith("is") && name.length() > 2 && returnType.getKind() == TypeKind.BOOLEAN) {
+            suffix = name.substring(2);
+        } else {
+            return null;
+        }
+
+        // Leading upper case letters are lower cased, getURL() is "url"
+        StringBuilder property = new StringBuilder(suffix);
+        for (int i = 0; i < property.length(); i++) {
+            char c = property.charAt(i);
+            char lower = Character.toLowerCase(c);
+            if (c == lower) break;
+            property.setCharAt(i, lower);
+        }
+        return property.toString();
+    }
+
+    private TypeElement superclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) return null;
+
+        TypeElement element = (TypeElement) types.asElement(superclass);
+        if (element.getQualifiedName().contentEquals("java.lang.Object")) return null;
+        return element;
+    }
+
+    private String packageOf(Element element) {
+        PackageElement packageElement = elements.getPackageOf(element);
+        return packageElement.getQualifiedName().toString();
+    }
+
+    private boolean hasNoArgConstructor(TypeElement model) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(model.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean usesJackson(Element element) {
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            String name = annotation.getAnnotationType().toString();
+            if (name.startsWith("com.fasterxml.jackson.")) return true;
+        }
+
+        if (element instanceof TypeElement) {
+            for (ExecutableElement method : ElementFilter.methodsIn(element.getEnclosedElements())) {
+                for (AnnotationMirror annotation : method.getAnnotationMirrors()) {
+                    if (annotation.getAnnotationType().toString().startsWith("com.fasterxml.jackson.")) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private ModelField.Kind kindOf(TypeMirror type, TypeMirror pinnable) {
+        if (type.getKind().isPrimitive()) {
+            // A char has no primitive JSON form, leave it to databind
+            return type.getKind() == TypeKind.CHAR ? null : ModelField.Kind.PRIMITIVE;
+        }
+        if (type.getKind() == TypeKind.ARRAY) {
+            return ModelField.Kind.OTHER;
+        }
+        if (type.getKind() != TypeKind.DECLARED) {
+            // Type variables and the like need runtime type information
+            return null;
+        }
+
+        String name = types.erasure(type).toString();
+        if (name.equals("java.lang.String")) return ModelField.Kind.STRING;
+        if (AdapterWriter.BOXED.containsKey(name)) return ModelField.Kind.BOXED;
+
+        if (types.isAssignable(types.erasure(type), types.erasure(pinnable))) {
+            return ModelField.Kind.PINNABLE;
+        }
+
+        TypeMirror collection = types.erasure(elements.getTypeElement("java.util.Collection").asType());
+        if (types.isAssignable(types.erasure(type), collection)) {
+            List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+            if (arguments.size() == 1 && arguments.get(0).getKind() == TypeKind.DECLARED) {
+                return types.isAssignable(types.erasure(arguments.get(0)), types.erasure(pinnable))
+                        ? ModelField.Kind.PINNABLE_COLLECTION : ModelField.Kind.OTHER;
+            }
+            if (!arguments.isEmpty()) {
+                // Wildcards or type variables cannot be read back reliably
+                return null;
+            }
+            return ModelField.Kind.UNKNOWN_COLLECTION;
+        }
+
+        for (TypeMirror argument : ((DeclaredType) type).getTypeArguments()) {
+            if (argument.getKind() != TypeKind.DECLARED) return null;
+        }
+        return ModelField.Kind.OTHER;
+    }
+
+    private String findGetter(TypeElement model, String name, TypeMirror type, String modelPackage) {
+        String capitalized = Character.toUpperCase(name.charAt(0)) + name.substring(1);
+        String[] candidates = type.getKind() == TypeKind.BOOLEAN
+                ? new String[]{"is" + capitalized, "get" + capitalized}
+                : new String[]{"get" + capitalized};
+
+        for (String candidate : candidates) {
+            for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(model))) {
+                if (!method.getSimpleName().contentEquals(candidate)) continue;
+                if (!method.getParameters().isEmpty()) continue;
+                if (!accessible(method, modelPackage)) continue;
+                if (types.isSameType(method.getReturnType(), type)) return candidate;
+            }
+        }
+        return null;
+    }
+
+    private String findSetter(TypeElement model, String name, TypeMirror type, String modelPackage) {
+        String candidate = "set" + Character.toUpperCase(name.charAt(0)) + name.substring(1);
+
+        for (ExecutableElement method : ElementFilter.methodsIn(elements.getAllMembers(model))) {
+            if (!method.getSimpleName().contentEquals(candidate)) continue;
+            if (method.getParameters().size() != 1) continue;
+            if (!accessible(method, modelPackage)) continue;
+            if (types.isSameType(method.getParameters().get(0).asType(), type)) return candidate;
+        }
+        return null;
+    }
+
+    private boolean accessible(ExecutableElement method, String modelPackage) {
+        Set<Modifier> modifiers = method.getModifiers();
+        if (modifiers.contains(Modifier.STATIC) || modifiers.contains(Modifier.PRIVATE)) return false;
+        if (modifiers.contains(Modifier.PUBLIC)) return true;
+        return modelPackage.equals(packageOf(method.getEnclosingElement()));
+    }
+
+    /************************************************************************************
+     * Output
+     ************************************************************************************/
+
+    private void write(TypeElement model, List<ModelField> fields) throws IOException {
+        String modelPackage = packageOf(model);
+        String binaryName = elements.getBinaryName(model).toString();
+        String adapterName = binaryName.substring(binaryName.lastIndexOf('.') + 1) + SUFFIX;
+        String qualifiedAdapterName = modelPackage.isEmpty() ? adapterName : modelPackage + "." + adapterName;
+
+        AdapterWriter writer = new AdapterWriter(modelPackage, adapterName,
+                model.getQualifiedName().toString(), fields, types);
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedAdapterName, model);
+        Writer out = file.openWriter();
+        try {
+            out.write(writer.generate());
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package me.thomasdao.glue.compiler;
+
+import javax.lang.model.type.TypeMirror;
+
+/**
+ * A persistent field of a model class, and how generated code reaches it.
+ */
+class ModelField {
+
+    enum Kind {
+        STRING,
+        PRIMITIVE,
+        BOXED,
+        // A single Pinnable
+        PINNABLE,
+        // A collection whose declared element type is Pinnable
+        PINNABLE_COLLECTION,
+        // A collection whose element type is unknown, elements are checked one by one
+        UNKNOWN_COLLECTION,
+        // Anything else, handed over to Jackson databind
+        OTHER
+    }
+
+    final String name;
+    final TypeMirror type;
+    final Kind kind;
+    final boolean serialized;
+
+    // Either direct field access or a getter/setter pair
+    final String getter;
+    final String setter;
+
+    ModelField(String name, TypeMirror type, Kind kind, boolean serialized, String getter, String setter) {
+        this.name = name;
+        this.type = type;
+        this.kind = kind;
+        this.serialized = serialized;
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    /**
+     * @param target expression of the object
+     * @return expression reading this field
+     */
+    String get(String target) {
+        return getter == null ? target + "." + name : target + "." + getter + "()";
+    }
+
+    /**
+     * @param target expression of the object
+     * @param value expression of the new value
+     * @return statement writing this field
+     */
+    String set(String target, String value) {
+        return setter == null ? target + "." + name + " = " + value + ";" : target + "." + setter + "(" + value + ");";
+    }
+}